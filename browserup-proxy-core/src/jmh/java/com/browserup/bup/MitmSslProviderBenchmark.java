@@ -0,0 +1,162 @@
+package com.browserup.bup;
+
+import com.browserup.bup.mitm.manager.ImpersonatingMitmManager;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the JDK and OpenSSL providers for the proxy's MITM connections, by fetching an HTTPS resource from a local
+ * server through the proxy. The bulk benchmark reuses the client's connection, so it mostly measures encryption of the
+ * response body on both legs; the handshake benchmark opens a new client connection, and so a new upstream connection,
+ * for every request. The OpenSSL provider requires netty-tcnative, which is on the benchmark classpath.
+ */
+@State(Scope.Benchmark)
+public class MitmSslProviderBenchmark {
+    @Param({"JDK", "OPENSSL"})
+    public String sslProvider;
+
+    @Param({"1048576"})
+    public int responseSize;
+
+    private EventLoopGroup originEventLoopGroup;
+    private Channel originChannel;
+    private BrowserUpProxyServer proxy;
+    private OkHttpClient client;
+    private String url;
+
+    @Setup
+    public void setUp() throws Exception {
+        SelfSignedCertificate originCertificate = new SelfSignedCertificate("localhost");
+        SslContext originSslContext = SslContextBuilder.forServer(originCertificate.certificate(), originCertificate.privateKey()).build();
+        ByteBuf responseBody = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[responseSize]));
+
+        originEventLoopGroup = new NioEventLoopGroup(2);
+        originChannel = new ServerBootstrap()
+                .group(originEventLoopGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline()
+                                .addLast(originSslContext.newHandler(ch.alloc()))
+                                .addLast(new HttpServerCodec())
+                                .addLast(new HttpObjectAggregator(65536))
+                                .addLast(new SimpleChannelInboundHandler<FullHttpRequest>() {
+                                    @Override
+                                    protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+                                        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, responseBody.duplicate());
+                                        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, responseSize);
+                                        response.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_OCTET_STREAM);
+                                        ctx.writeAndFlush(response);
+                                    }
+                                });
+                    }
+                })
+                .bind("127.0.0.1", 0)
+                .sync()
+                .channel();
+
+        url = "https://localhost:" + ((InetSocketAddress) originChannel.localAddress()).getPort() + "/resource";
+
+        proxy = new BrowserUpProxyServer();
+        proxy.setMitmManager(ImpersonatingMitmManager.builder()
+                .trustAllServers(true)
+                .sslProvider(SslProvider.valueOf(sslProvider))
+                .build());
+        proxy.start(0);
+
+        X509TrustManager trustAllManager = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext clientSslContext = SSLContext.getInstance("TLS");
+        clientSslContext.init(null, new TrustManager[]{trustAllManager}, null);
+
+        client = new OkHttpClient.Builder()
+                .proxy(new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", proxy.getPort())))
+                .sslSocketFactory(clientSslContext.getSocketFactory(), trustAllManager)
+                .hostnameVerifier((hostname, session) -> true)
+                .connectionPool(new ConnectionPool(1, 1, TimeUnit.MINUTES))
+                .build();
+
+        // generate the impersonated certificate before measuring
+        fetch();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        client.connectionPool().evictAll();
+        proxy.stop();
+        originChannel.close().sync();
+        originEventLoopGroup.shutdownGracefully().sync();
+    }
+
+    @Benchmark
+    public long bulk() throws IOException {
+        return fetch();
+    }
+
+    @Benchmark
+    public long handshake() throws IOException {
+        client.connectionPool().evictAll();
+
+        return fetch();
+    }
+
+    private long fetch() throws IOException {
+        try (Response response = client.newCall(new Request.Builder().url(url).build()).execute()) {
+            return response.body().bytes().length;
+        }
+    }
+}
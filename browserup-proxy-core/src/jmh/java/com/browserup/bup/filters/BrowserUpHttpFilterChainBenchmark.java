@@ -0,0 +1,94 @@
+package com.browserup.bup.filters;
+
+import com.browserup.bup.BrowserUpProxyServer;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures creating the {@link BrowserUpHttpFilterChain} for a request with the proxy's default filters, and dispatching
+ * the main request and response callbacks through it. With the default configuration, the latency, header, rewrite,
+ * blocklist and allowlist filters are inactive and are skipped; the configured benchmark activates the header and rewrite
+ * filters for comparison.
+ */
+@State(Scope.Benchmark)
+public class BrowserUpHttpFilterChainBenchmark {
+    @Param({"false", "true"})
+    public boolean configured;
+
+    private BrowserUpProxyServer proxy;
+    private EmbeddedChannel channel;
+    private ChannelHandlerContext ctx;
+    private FullHttpRequest request;
+    private FullHttpResponse response;
+
+    @Setup
+    public void setUp() {
+        proxy = new BrowserUpProxyServer() {
+            {
+                // the filters that are added when the proxy starts, without starting the proxy
+                addBrowserUpFilters();
+            }
+        };
+
+        if (configured) {
+            proxy.addHeader("X-Benchmark", "true");
+            proxy.rewriteUrl("https?://www\\.example\\.com/old/(.*)", "https://www.example.com/new/$1");
+        }
+
+        channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        ctx = channel.pipeline().firstContext();
+
+        request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "http://www.example.com/index.html");
+        request.headers().set(HttpHeaderNames.HOST, "www.example.com");
+
+        response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        request.release();
+        response.release();
+    }
+
+    @Benchmark
+    public BrowserUpHttpFilterChain createChain() {
+        return new BrowserUpHttpFilterChain(proxy, request, ctx);
+    }
+
+    @Benchmark
+    public void createChainAndDispatch(Blackhole blackhole) {
+        BrowserUpHttpFilterChain chain = new BrowserUpHttpFilterChain(proxy, request, ctx);
+
+        // the duplicate has a copy of the request's headers, so headers added by the filters do not accumulate
+        FullHttpRequest filteredRequest = request.retainedDuplicate();
+        try {
+            blackhole.consume(chain.clientToProxyRequest(filteredRequest));
+            blackhole.consume(chain.proxyToServerRequest(filteredRequest));
+            chain.proxyToServerRequestSending();
+            chain.proxyToServerRequestSent();
+            chain.serverToProxyResponseReceiving();
+            blackhole.consume(chain.serverToProxyResponse(response));
+            chain.serverToProxyResponseReceived();
+            blackhole.consume(chain.proxyToClientResponse(response));
+        } finally {
+            filteredRequest.release();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.browserup.bup.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Compares checking a request URL against a blocklist-style rule set one pattern at a time, as the filters used to, with
+ * checking it against the compiled {@link UrlPatternMatcher}, as the number of rules grows.
+ */
+@State(Scope.Benchmark)
+public class UrlPatternMatcherBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    public int ruleCount;
+
+    private List<Pattern> patterns;
+    private UrlPatternMatcher<Pattern> matcher;
+
+    /**
+     * URLs to check, most of which match no rule, as with most requests through a proxy with an ad and tracker blocklist.
+     */
+    private final String[] urls = {
+            "https://www.example.com/index.html",
+            "https://static.example.com/assets/app.js?v=1234",
+            "https://cdn.example.org/images/logo.png",
+            "https://ads.tracker42.com/pixel.gif",
+            "https://www.example.com/api/items?page=2&sort=name",
+    };
+
+    private int nextUrl;
+
+    @Setup
+    public void setUp() {
+        patterns = new ArrayList<>(ruleCount);
+        for (int i = 0; i < ruleCount; i++) {
+            switch (i % 4) {
+                case 0:
+                    patterns.add(Pattern.compile("https?://([a-z0-9-]+\\.)*tracker" + i + "\\.com/.*"));
+                    break;
+                case 1:
+                    patterns.add(Pattern.compile(".*/ads/banner" + i + "\\.(gif|png)"));
+                    break;
+                case 2:
+                    patterns.add(Pattern.compile("https://www\\.example\\.com/blocked/" + i + "(/.*)?"));
+                    break;
+                default:
+                    patterns.add(Pattern.compile(".*[?&]utm_campaign=c" + i + "(&.*)?"));
+                    break;
+            }
+        }
+
+        matcher = UrlPatternMatcher.compile(patterns);
+    }
+
+    @Benchmark
+    public boolean linear() {
+        String url = nextUrl();
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(url).matches()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Benchmark
+    public boolean compiled() {
+        return matcher.matchesAny(nextUrl());
+    }
+
+    private String nextUrl() {
+        nextUrl = (nextUrl + 1) % urls.length;
+
+        return urls[nextUrl];
+    }
+}
@@ -0,0 +1,74 @@
+package com.browserup.harreader.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Compares the list implementations used to hold HAR entries, when entries are appended by several threads (as the
+ * proxy's event loops do) while other threads read the HAR.
+ */
+@State(Scope.Group)
+public class HarLogEntriesBenchmark {
+    @Param({"ChunkedAppendList", "CopyOnWriteArrayList"})
+    public String listType;
+
+    /**
+     * Number of entries already in the HAR when each iteration begins.
+     */
+    @Param({"1000", "10000"})
+    public int initialEntries;
+
+    private List<HarEntry> entries;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        entries = newList();
+        for (int i = 0; i < initialEntries; i++) {
+            entries.add(new HarEntry());
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean concurrentAdd() {
+        return entries.add(new HarEntry());
+    }
+
+    @Benchmark
+    @Group("addWhileReading")
+    @GroupThreads(3)
+    public boolean addWhileReadingAdd() {
+        return entries.add(new HarEntry());
+    }
+
+    @Benchmark
+    @Group("addWhileReading")
+    @GroupThreads(1)
+    public void addWhileReadingIterate(Blackhole blackhole) {
+        for (HarEntry entry : entries) {
+            blackhole.consume(entry);
+        }
+    }
+
+    private List<HarEntry> newList() {
+        switch (listType) {
+            case "ChunkedAppendList":
+                return new ChunkedAppendList<>();
+            case "CopyOnWriteArrayList":
+                return new CopyOnWriteArrayList<>();
+            default:
+                throw new IllegalArgumentException("Unknown list type: " + listType);
+        }
+    }
+}
@@ -7,9 +7,14 @@ package com.browserup.bup;
 import com.browserup.bup.assertion.model.AssertionResult;
 import com.browserup.bup.filters.RequestFilter;
 import com.browserup.bup.filters.ResponseFilter;
+import com.browserup.bup.har.HarEntryListener;
+import com.browserup.bup.har.HarEntryOverflowPolicy;
+import com.browserup.bup.har.HarEntryPage;
+import com.browserup.bup.har.HarEntrySubscription;
 import com.browserup.bup.mitm.TrustSource;
 import com.browserup.bup.proxy.BlocklistEntry;
 import com.browserup.bup.proxy.CaptureType;
+import com.browserup.bup.proxy.LatencyRule;
 import com.browserup.bup.proxy.auth.AuthType;
 import com.browserup.bup.proxy.dns.AdvancedHostResolver;
 import com.browserup.bup.util.HttpStatusClass;
@@ -286,6 +291,44 @@ public interface BrowserUpProxy {
      */
     void setLatency(long latency, TimeUnit timeUnit);
 
+    /**
+     * Adds random jitter to the latency set by {@link #setLatency(long, TimeUnit)}. The jitter is drawn from the specified distribution
+     * for each response. The effective latency of a response is never less than 0.
+     *
+     * @param jitter maximum jitter for {@link LatencyRule.JitterDistribution#UNIFORM}, or standard deviation for
+     *               {@link LatencyRule.JitterDistribution#NORMAL}; 0 for no jitter
+     * @param timeUnit TimeUnit for the jitter
+     * @param jitterDistribution distribution to draw the jitter from
+     */
+    void setLatencyJitter(long jitter, TimeUnit timeUnit, LatencyRule.JitterDistribution jitterDistribution);
+
+    /**
+     * Adds a latency profile for requests whose URL matches the rule. Rules are evaluated in the order they were added, and the first
+     * matching rule takes precedence over the latency set by {@link #setLatency(long, TimeUnit)}.
+     *
+     * @param latencyRule latency profile to add
+     */
+    void addLatencyRule(LatencyRule latencyRule);
+
+    /**
+     * Replaces all existing latency profiles with the specified rules.
+     *
+     * @param latencyRules latency profiles, in order of precedence
+     */
+    void setLatencyRules(Collection<LatencyRule> latencyRules);
+
+    /**
+     * Returns all latency profiles added by {@link #addLatencyRule(LatencyRule)} or {@link #setLatencyRules(Collection)}.
+     *
+     * @return latency profiles, in order of precedence
+     */
+    Collection<LatencyRule> getLatencyRules();
+
+    /**
+     * Removes all latency profiles. The latency set by {@link #setLatency(long, TimeUnit)} is not affected.
+     */
+    void clearLatencyRules();
+
     /**
      * Maximum amount of time to wait to establish a connection to a remote server. If the connection has not been established within the
      * specified time, the proxy will respond with an HTTP 502 Bad Gateway. The default value is 60 seconds.
@@ -709,6 +752,41 @@ public interface BrowserUpProxy {
      */
     Collection<HarEntry> findEntries(Pattern url);
 
+    /**
+     * Returns the entries in the current HAR that were completed after the entry with the given sequence number, in the
+     * order they were completed. An entry is completed, and assigned a sequence number, when its response has been fully
+     * received or its request has failed. To poll for new entries without retrieving the entire HAR, pass the
+     * {@link HarEntryPage#getNextSequence()} of the previous page.
+     *
+     * @param sequence sequence number of the last entry already retrieved, or 0 to start with the first completed entry
+     * @param maxEntries maximum number of entries to return, must be greater than 0
+     * @return page of completed entries, which is empty if there is no current HAR
+     */
+    HarEntryPage getHarEntriesSince(long sequence, int maxEntries);
+
+    /**
+     * Subscribes the listener to HAR entries as they are completed, with a queue of
+     * {@link com.browserup.bup.har.HarEntryPublisher#DEFAULT_QUEUE_CAPACITY} entries that drops the oldest entry when full.
+     * See {@link #addHarEntryListener(HarEntryListener, int, HarEntryOverflowPolicy)}.
+     *
+     * @param listener listener to deliver completed entries to
+     * @return the subscription, which can be cancelled to remove the listener
+     */
+    HarEntrySubscription addHarEntryListener(HarEntryListener listener);
+
+    /**
+     * Subscribes the listener to HAR entries as they are completed, in the order they are completed. Entries are queued
+     * for the listener and delivered on a separate thread, so a slow listener never delays proxied traffic. When the
+     * queue is full, an entry is dropped according to the overflow policy, and counted in
+     * {@link HarEntrySubscription#getDroppedEntryCount()}.
+     *
+     * @param listener listener to deliver completed entries to
+     * @param queueCapacity maximum number of entries waiting to be delivered to the listener
+     * @param overflowPolicy entry to drop when the queue is full
+     * @return the subscription, which can be cancelled to remove the listener
+     */
+    HarEntrySubscription addHarEntryListener(HarEntryListener listener, int queueCapacity, HarEntryOverflowPolicy overflowPolicy);
+
     /**
      * Assert that the response time for the most recent request
      * found by a given URL pattern is less than or equal to a given number of milliseconds.
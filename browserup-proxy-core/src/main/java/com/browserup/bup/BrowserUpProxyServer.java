@@ -31,19 +31,43 @@ import com.browserup.bup.filters.AddHeadersFilter;
 import com.browserup.bup.filters.AutoBasicAuthFilter;
 import com.browserup.bup.filters.BlocklistFilter;
 import com.browserup.bup.filters.BrowserUpHttpFilterChain;
+import com.browserup.bup.filters.ConditionalHttpFiltersSource;
 import com.browserup.bup.filters.HarCaptureFilter;
+import com.browserup.bup.filters.Http2ClientConnectionFilter;
+import com.browserup.bup.filters.Http2UpstreamConnectionFilter;
 import com.browserup.bup.filters.HttpConnectHarCaptureFilter;
 import com.browserup.bup.filters.HttpsHostCaptureFilter;
 import com.browserup.bup.filters.HttpsOriginalHostCaptureFilter;
 import com.browserup.bup.filters.LatencyFilter;
+import com.browserup.bup.filters.MitmCertificatePrefetchFilter;
+import com.browserup.bup.filters.OffloadedFilterAdapter;
 import com.browserup.bup.filters.RegisterRequestFilter;
 import com.browserup.bup.filters.RequestFilter;
 import com.browserup.bup.filters.RequestFilterAdapter;
 import com.browserup.bup.filters.ResolvedHostnameCacheFilter;
+import com.browserup.bup.filters.ResponseAggregationPredicate;
 import com.browserup.bup.filters.ResponseFilter;
 import com.browserup.bup.filters.ResponseFilterAdapter;
 import com.browserup.bup.filters.RewriteUrlFilter;
+import com.browserup.bup.filters.SelectiveResponseAggregationFilter;
+import com.browserup.bup.filters.SelectiveResponseAggregationSource;
+import com.browserup.bup.filters.StatelessHttpFiltersSource;
+import com.browserup.bup.filters.StreamingRequestFilter;
+import com.browserup.bup.filters.StreamingRequestFilterAdapter;
+import com.browserup.bup.filters.StreamingResponseFilter;
+import com.browserup.bup.filters.StreamingResponseFilterAdapter;
+import com.browserup.bup.filters.TlsSessionStatisticsFilter;
 import com.browserup.bup.filters.UnregisterRequestFilter;
+import com.browserup.bup.filters.UpstreamConnectionStatisticsFilter;
+import com.browserup.bup.filters.support.BoundedContentBuffer;
+import com.browserup.bup.filters.support.FilterExecutor;
+import com.browserup.bup.har.HarBodyStore;
+import com.browserup.bup.har.HarEntryListener;
+import com.browserup.bup.har.HarEntryOverflowPolicy;
+import com.browserup.bup.har.HarEntryPage;
+import com.browserup.bup.har.HarEntryPublisher;
+import com.browserup.bup.har.HarEntrySequencer;
+import com.browserup.bup.har.HarEntrySubscription;
 import com.browserup.bup.filters.AllowlistFilter;
 import com.browserup.bup.mitm.KeyStoreFileCertificateSource;
 import com.browserup.bup.mitm.TrustSource;
@@ -53,7 +77,10 @@ import com.browserup.bup.mitm.manager.ImpersonatingMitmManager;
 import com.browserup.bup.proxy.ActivityMonitor;
 import com.browserup.bup.proxy.BlocklistEntry;
 import com.browserup.bup.proxy.CaptureType;
+import com.browserup.bup.proxy.ContentOverflowPolicy;
+import com.browserup.bup.proxy.LatencyRule;
 import com.browserup.bup.proxy.RewriteRule;
+import com.browserup.bup.proxy.UpstreamConnectionStatistics;
 import com.browserup.bup.proxy.Allowlist;
 import com.browserup.bup.proxy.auth.AuthType;
 import com.browserup.bup.proxy.dns.AdvancedHostResolver;
@@ -61,6 +88,7 @@ import com.browserup.bup.proxy.dns.DelegatingHostResolver;
 import com.browserup.bup.util.BrowserUpHttpUtil;
 import com.browserup.bup.util.BrowserUpProxyUtil;
 import com.browserup.bup.util.HttpStatusClass;
+import com.browserup.bup.util.UrlPatternMatcherCache;
 import com.browserup.harreader.model.Har;
 import com.browserup.harreader.model.HarCreatorBrowser;
 import com.browserup.harreader.model.HarEntry;
@@ -74,6 +102,7 @@ import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
 import org.apache.commons.lang3.StringUtils;
 import org.littleshoot.proxy.ChainedProxy;
 import org.littleshoot.proxy.ChainedProxyAdapter;
@@ -173,11 +202,24 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
      */
     private volatile MitmManager mitmManager;
 
+    /**
+     * The MITM manager created when the proxy is started without a custom MITM manager. Its certificate generator does
+     * not need the upstream server's certificate, so it can start impersonating a host as soon as the CONNECT is
+     * received. Null when MITM is disabled or a custom MITM manager is used.
+     */
+    private volatile ImpersonatingMitmManager defaultMitmManager;
+
     /**
      * The list of filterFactories that will generate the filters that implement BrowserUp-proxy behavior.
      */
     private final List<HttpFiltersSource> filterFactories = new CopyOnWriteArrayList<>();
 
+    /**
+     * A snapshot of the filterFactories, rebuilt whenever a filter factory is added, so that the filter chain created for
+     * each request can iterate over the filter factories without copying the list.
+     */
+    private volatile HttpFiltersSource[] filterFactoryArray = new HttpFiltersSource[0];
+
     /**
      * List of rejected URL patterns
      */
@@ -188,6 +230,12 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
      */
     private volatile CopyOnWriteArrayList<RewriteRule> rewriteRules = new CopyOnWriteArrayList<>();
 
+    /**
+     * The blocklist entries and rewrite rules, compiled for matching against request URLs. Invalidated whenever the entries or rules change.
+     */
+    private final UrlPatternMatcherCache<BlocklistEntry> blocklistMatcher = new UrlPatternMatcherCache<>(() -> blocklistEntries, BlocklistEntry::getUrlPattern);
+    private final UrlPatternMatcherCache<RewriteRule> rewriteRuleMatcher = new UrlPatternMatcherCache<>(() -> rewriteRules, RewriteRule::getPattern);
+
     /**
      * The LittleProxy instance that performs all proxy operations.
      */
@@ -198,6 +246,26 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
      */
     private volatile EnumSet<CaptureType> harCaptureTypes = EnumSet.noneOf(CaptureType.class);
 
+    /**
+     * Maximum number of bytes of response content captured in the HAR for each entry. Unlimited by default.
+     */
+    private volatile long harResponseContentCaptureLimit = BoundedContentBuffer.UNLIMITED;
+
+    /**
+     * Action to take when response content exceeds harResponseContentCaptureLimit.
+     */
+    private volatile ContentOverflowPolicy harResponseContentOverflowPolicy = ContentOverflowPolicy.TRUNCATE;
+
+    /**
+     * Store for captured request and response bodies. If null, bodies are held in the HAR.
+     */
+    private volatile HarBodyStore harBodyStore;
+
+    /**
+     * Publishes completed HAR entries to listeners added with {@link #addHarEntryListener(HarEntryListener)}.
+     */
+    private final HarEntryPublisher harEntryPublisher = new HarEntryPublisher();
+
     /**
      * The current HAR being captured.
      */
@@ -241,6 +309,27 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
      */
     private volatile int latencyMs;
 
+    /**
+     * The jitter to apply to latencyMs. See {@link LatencyRule} for how the jitter is applied.
+     */
+    private volatile int latencyJitterMs;
+
+    /**
+     * The distribution from which latency jitter is drawn.
+     */
+    private volatile LatencyRule.JitterDistribution latencyJitterDistribution = LatencyRule.JitterDistribution.UNIFORM;
+
+    /**
+     * The default latency rule, applied to all responses that do not match one of the latencyRules. Rebuilt whenever the latency or
+     * jitter changes, so that the LatencyFilter does not need to create a rule for every request.
+     */
+    private volatile LatencyRule defaultLatencyRule = new LatencyRule(null, 0, TimeUnit.MILLISECONDS);
+
+    /**
+     * Per-URL latency profiles, which take precedence over the default latency.
+     */
+    private volatile CopyOnWriteArrayList<LatencyRule> latencyRules = new CopyOnWriteArrayList<>();
+
     /**
      * Set to true once the HAR capture filter has been added to the filter chain.
      */
@@ -287,6 +376,16 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
      */
     private volatile boolean useEcc = false;
 
+    /**
+     * When true, the default MitmManager offers HTTP/2 to clients.
+     */
+    private volatile boolean clientHttp2Enabled = false;
+
+    /**
+     * When true, the default MitmManager offers HTTP/2 to upstream servers.
+     */
+    private volatile boolean upstreamHttp2Enabled = false;
+
     /**
      * Resolver to use when resolving hostnames to IP addresses. This is a bridge between {@link org.littleshoot.proxy.HostResolver} and
      * {@link com.browserup.bup.proxy.dns.AdvancedHostResolver}. It allows the resolvers to be changed on-the-fly without re-bootstrapping the
@@ -299,6 +398,19 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
 
     private final ActivityMonitor activityMonitor = new ActivityMonitor();
 
+    /**
+     * Counts the connections opened and requests sent to upstream servers. LittleProxy reuses an upstream connection
+     * for later requests on the same client connection, until the connection has been idle for the
+     * {@link #setIdleConnectionTimeout(int, TimeUnit) idle connection timeout}.
+     */
+    private final UpstreamConnectionStatistics upstreamConnectionStatistics = new UpstreamConnectionStatistics();
+
+    /**
+     * The source of the filters that run on a {@link FilterExecutor} instead of the proxy's event loops, or null if request
+     * and response filters run on the event loops. Set by {@link #setFilterExecutor(FilterExecutor)}.
+     */
+    private volatile OffloadedFilterAdapter.FilterSource offloadedFilterSource;
+
     /**
      * The acceptor and worker thread configuration for the Netty thread pools.
      */
@@ -370,7 +482,7 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
 
         if (!mitmDisabled) {
             if (mitmManager == null) {
-                mitmManager = ImpersonatingMitmManager.builder()
+                defaultMitmManager = ImpersonatingMitmManager.builder()
                         .rootCertificateSource(new KeyStoreFileCertificateSource(
                                 KEYSTORE_TYPE,
                                 useEcc ? EC_KEYSTORE_RESOURCE : RSA_KEYSTORE_RESOURCE,
@@ -378,7 +490,10 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
                                 KEYSTORE_PASSWORD))
                         .serverKeyGenerator(useEcc ? new ECKeyGenerator() : new RSAKeyGenerator())
                         .trustSource(trustSource)
+                        .clientHttp2(clientHttp2Enabled)
+                        .upstreamHttp2(upstreamHttp2Enabled)
                         .build();
+                mitmManager = defaultMitmManager;
             }
 
             bootstrap.withManInTheMiddle(mitmManager);
@@ -466,18 +581,28 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
 
         addHarCaptureFilter();
 
-        addHttpFilterFactory(new HttpFiltersSourceAdapter() {
+        addHttpFilterFactory(new ConditionalHttpFiltersSource() {
             @Override
             public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
-                return new BlocklistFilter(originalRequest, ctx, getBlocklist());
+                return new BlocklistFilter(originalRequest, ctx, blocklistMatcher.get());
+            }
+
+            @Override
+            public boolean isActive() {
+                return !blocklistEntries.isEmpty();
             }
         });
 
-        addHttpFilterFactory(new HttpFiltersSourceAdapter() {
+        addHttpFilterFactory(new ConditionalHttpFiltersSource() {
             @Override
             public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
                 Allowlist currentAllowlist = allowlist.get();
-                return new AllowlistFilter(originalRequest, ctx, isAllowlistEnabled(), currentAllowlist.getStatusCode(), currentAllowlist.getPatterns());
+                return new AllowlistFilter(originalRequest, ctx, isAllowlistEnabled(), currentAllowlist.getStatusCode(), currentAllowlist.getMatcher());
+            }
+
+            @Override
+            public boolean isActive() {
+                return isAllowlistEnabled();
             }
         });
     }
@@ -516,6 +641,8 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
     protected void stop(boolean graceful) {
         if (isStarted()) {
             if (stopped.compareAndSet(false, true)) {
+                harEntryPublisher.cancelAll();
+
                 if (proxyServer != null) {
                     if (graceful) {
                         proxyServer.stop();
@@ -592,6 +719,12 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
     private Har newHar(String initialPageRef, String initialPageTitle, boolean createPage) {
         Har oldHar = endHar();
 
+        // discard the bodies of HARs before oldHar, which are no longer returned by the proxy
+        HarBodyStore harBodyStore = this.harBodyStore;
+        if (harBodyStore != null) {
+            harBodyStore.newHar();
+        }
+
         addHarCaptureFilter();
 
         harPageCount.set(0);
@@ -660,6 +793,49 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
         }
     }
 
+    /**
+     * Limits the amount of response content captured for each HAR entry when {@link CaptureType#RESPONSE_CONTENT} or
+     * {@link CaptureType#RESPONSE_BINARY_CONTENT} is enabled, so that large responses do not need to be held in memory in full.
+     * Content beyond the limit is handled according to the overflow policy. Truncated content is noted in the comment of
+     * the entry's response content.
+     *
+     * @param maxBytes maximum number of bytes of response content to capture for each entry, or a negative value for no limit
+     * @param overflowPolicy action to take when the response content exceeds maxBytes
+     */
+    public void setHarResponseContentCaptureLimit(long maxBytes, ContentOverflowPolicy overflowPolicy) {
+        this.harResponseContentCaptureLimit = maxBytes < 0 ? BoundedContentBuffer.UNLIMITED : maxBytes;
+        this.harResponseContentOverflowPolicy = overflowPolicy == null ? ContentOverflowPolicy.TRUNCATE : overflowPolicy;
+    }
+
+    public long getHarResponseContentCaptureLimit() {
+        return harResponseContentCaptureLimit;
+    }
+
+    public ContentOverflowPolicy getHarResponseContentOverflowPolicy() {
+        return harResponseContentOverflowPolicy;
+    }
+
+    /**
+     * Stores the request and response bodies of subsequently captured HAR entries in the specified store, instead of in
+     * the HAR itself. Bodies are resolved from the store when they are read, for example when the HAR is serialized. This
+     * keeps heap usage independent of the amount of content captured, e.g. by using a {@link com.browserup.bup.har.MappedSegmentHarBodyStore}.
+     * <p>
+     * Each time a new HAR is started, the store discards the bodies of the HARs before the one returned by {@link #newHar()},
+     * whose bodies resolve to null from then on.
+     * <p>
+     * The proxy does not close the store, since HARs retrieved from the proxy may still refer to it after the proxy is
+     * stopped. Close the store once those HARs are no longer needed.
+     *
+     * @param harBodyStore store for captured bodies, or null to hold bodies in the HAR
+     */
+    public void setHarBodyStore(HarBodyStore harBodyStore) {
+        this.harBodyStore = harBodyStore;
+    }
+
+    public HarBodyStore getHarBodyStore() {
+        return harBodyStore;
+    }
+
     @Override
     public Har newPage() {
         return newPage(null);
@@ -784,6 +960,40 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
     @Override
     public void setLatency(long latency, TimeUnit timeUnit) {
         this.latencyMs = (int) TimeUnit.MILLISECONDS.convert(latency, timeUnit);
+
+        updateDefaultLatencyRule();
+    }
+
+    @Override
+    public void setLatencyJitter(long jitter, TimeUnit timeUnit, LatencyRule.JitterDistribution jitterDistribution) {
+        this.latencyJitterMs = (int) TimeUnit.MILLISECONDS.convert(jitter, timeUnit);
+        this.latencyJitterDistribution = jitterDistribution;
+
+        updateDefaultLatencyRule();
+    }
+
+    private void updateDefaultLatencyRule() {
+        this.defaultLatencyRule = new LatencyRule(null, latencyMs, latencyJitterMs, TimeUnit.MILLISECONDS, latencyJitterDistribution);
+    }
+
+    @Override
+    public void addLatencyRule(LatencyRule latencyRule) {
+        latencyRules.add(latencyRule);
+    }
+
+    @Override
+    public void setLatencyRules(Collection<LatencyRule> latencyRules) {
+        this.latencyRules = new CopyOnWriteArrayList<>(latencyRules);
+    }
+
+    @Override
+    public Collection<LatencyRule> getLatencyRules() {
+        return Collections.unmodifiableCollection(latencyRules);
+    }
+
+    @Override
+    public void clearLatencyRules() {
+        latencyRules.clear();
     }
 
     @Override
@@ -857,6 +1067,7 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
     @Override
     public void rewriteUrl(String pattern, String replace) {
         rewriteRules.add(new RewriteRule(pattern, replace));
+        rewriteRuleMatcher.invalidate();
     }
 
     @Override
@@ -864,26 +1075,31 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
         this.rewriteRules = rewriteRules.entrySet().stream()
                 .map(rewriteRule -> new RewriteRule(rewriteRule.getKey(), rewriteRule.getValue()))
                 .collect(toCollection(CopyOnWriteArrayList::new));
+        rewriteRuleMatcher.invalidate();
     }
 
     @Override
     public void clearRewriteRules() {
         rewriteRules.clear();
+        rewriteRuleMatcher.invalidate();
     }
 
     @Override
     public void blocklistRequests(String pattern, int responseCode) {
         blocklistEntries.add(new BlocklistEntry(pattern, responseCode));
+        blocklistMatcher.invalidate();
     }
 
     @Override
     public void blocklistRequests(String pattern, int responseCode, String method) {
         blocklistEntries.add(new BlocklistEntry(pattern, responseCode, method));
+        blocklistMatcher.invalidate();
     }
 
     @Override
     public void setBlocklist(Collection<BlocklistEntry> blocklist) {
         this.blocklistEntries = new CopyOnWriteArrayList<>(blocklist);
+        blocklistMatcher.invalidate();
     }
 
     @Override
@@ -914,6 +1130,7 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
     @Override
     public void clearBlocklist() {
         blocklistEntries.clear();
+        blocklistMatcher.invalidate();
     }
 
     @Override
@@ -1072,12 +1289,18 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
 
     @Override
     public void addFirstHttpFilterFactory(HttpFiltersSource filterFactory) {
-        filterFactories.add(0, filterFactory);
+        synchronized (filterFactories) {
+            filterFactories.add(0, filterFactory);
+            filterFactoryArray = filterFactories.toArray(new HttpFiltersSource[0]);
+        }
     }
 
     @Override
     public void addLastHttpFilterFactory(HttpFiltersSource filterFactory) {
-        filterFactories.add(filterFactory);
+        synchronized (filterFactories) {
+            filterFactories.add(filterFactory);
+            filterFactoryArray = filterFactories.toArray(new HttpFiltersSource[0]);
+        }
     }
 
     /**
@@ -1087,7 +1310,26 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
      */
     @Override
     public void addResponseFilter(ResponseFilter filter) {
-        addLastHttpFilterFactory(new ResponseFilterAdapter.FilterSource(filter));
+        OffloadedFilterAdapter.FilterSource offloadedFilterSource = this.offloadedFilterSource;
+        if (offloadedFilterSource != null) {
+            offloadedFilterSource.addResponseFilter(filter);
+        } else {
+            addLastHttpFilterFactory(new ResponseFilterAdapter.FilterSource(filter));
+        }
+    }
+
+    /**
+     * Adds a response filter that only needs the contents of the responses selected by the aggregationPredicate, such as
+     * the responses from a single host or with a textual content type. Only the selected responses are aggregated, using a
+     * maximum response size of 10 MiB; all other responses are streamed to the client, and the filter is invoked for them
+     * with null {@link com.browserup.bup.util.HttpMessageContents}. To adjust the maximum response size, add the filter source
+     * directly: <code>addLastHttpFilterFactory(new ResponseFilterAdapter.FilterSource(filter, bufferSizeInBytes, aggregationPredicate));</code>
+     *
+     * @param filter response filter to invoke
+     * @param aggregationPredicate selects the responses to aggregate
+     */
+    public void addResponseFilter(ResponseFilter filter, ResponseAggregationPredicate aggregationPredicate) {
+        addLastHttpFilterFactory(new ResponseFilterAdapter.FilterSource(filter, ResponseFilterAdapter.FilterSource.DEFAULT_MAXIMUM_RESPONSE_BUFFER_SIZE, aggregationPredicate));
     }
 
     /**
@@ -1097,7 +1339,81 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
      */
     @Override
     public void addRequestFilter(RequestFilter filter) {
-        addFirstHttpFilterFactory(new RequestFilterAdapter.FilterSource(filter));
+        OffloadedFilterAdapter.FilterSource offloadedFilterSource = this.offloadedFilterSource;
+        if (offloadedFilterSource != null) {
+            offloadedFilterSource.addRequestFilter(filter);
+        } else {
+            addFirstHttpFilterFactory(new RequestFilterAdapter.FilterSource(filter));
+        }
+    }
+
+    /**
+     * Runs the request and response filters added by {@link #addRequestFilter(RequestFilter)} and
+     * {@link #addResponseFilter(ResponseFilter)} after this call on the filterExecutor, instead of on the proxy's event
+     * loops, so that slow filters (such as javascript filters) do not delay the other connections handled by the same
+     * event loop. While a filter runs, the proxy stops reading from the client connection; if the filter does not complete
+     * within the executor's timeout, the proxy responds with 503 Service Unavailable.
+     * <p>
+     * Offloaded request filters run before the request is passed to the proxy's other filters, and offloaded response
+     * filters run after the proxy's other filters have handled the response. Filters that were added before this call keep
+     * running on the event loops. Set the filterExecutor to null to run filters added later on the event loops again. The
+     * proxy does not shut the executor down when it is stopped.
+     * <p>
+     * Offloading changes what is captured in the HAR and where filters run:
+     * <ul>
+     *     <li>Offloaded response filters run when the response is written to the client, after the HAR has recorded it.
+     *     The HAR contains the response as the server sent it: changes made by offloaded response filters are not
+     *     captured, and when a response filter times out the HAR records the server's response, while the client
+     *     receives a 503 Service Unavailable.</li>
+     *     <li>The first request on each client connection is read before the filters can be offloaded for that
+     *     connection, so its request filters run on the event loop. Connections that carry a single request, such as
+     *     plain HTTP requests with <code>Connection: close</code>, never have their request filters offloaded.</li>
+     * </ul>
+     *
+     * @param filterExecutor executor to run filters on, or null to run filters on the proxy's event loops
+     */
+    public void setFilterExecutor(FilterExecutor filterExecutor) {
+        if (filterExecutor == null) {
+            this.offloadedFilterSource = null;
+            return;
+        }
+
+        OffloadedFilterAdapter.FilterSource offloadedFilterSource = new OffloadedFilterAdapter.FilterSource(filterExecutor);
+        addLastHttpFilterFactory(offloadedFilterSource);
+
+        this.offloadedFilterSource = offloadedFilterSource;
+    }
+
+    /**
+     * Returns the executor that filters added by {@link #addRequestFilter(RequestFilter)} and
+     * {@link #addResponseFilter(ResponseFilter)} run on, including its execution metrics, or null if filters run on the
+     * proxy's event loops.
+     *
+     * @return the filter executor, or null
+     */
+    public FilterExecutor getFilterExecutor() {
+        OffloadedFilterAdapter.FilterSource offloadedFilterSource = this.offloadedFilterSource;
+        return offloadedFilterSource != null ? offloadedFilterSource.getFilterExecutor() : null;
+    }
+
+    /**
+     * Adds a filter that transforms the contents of responses as they are streamed to the client, without aggregating them.
+     * The filter is invoked after the filters that have already been added.
+     *
+     * @param filter streaming response filter to invoke
+     */
+    public void addStreamingResponseFilter(StreamingResponseFilter filter) {
+        addLastHttpFilterFactory(new StreamingResponseFilterAdapter.FilterSource(filter));
+    }
+
+    /**
+     * Adds a filter that transforms the contents of requests as they are streamed to the server, without aggregating them.
+     * The filter is invoked before the filters that have already been added.
+     *
+     * @param filter streaming request filter to invoke
+     */
+    public void addStreamingRequestFilter(StreamingRequestFilter filter) {
+        addFirstHttpFilterFactory(new StreamingRequestFilterAdapter.FilterSource(filter));
     }
 
     @Override
@@ -1115,6 +1431,7 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
         rewriteRules.stream()
                 .filter(rewriteRule -> rewriteRule.getPattern().pattern().equals(urlPattern))
                 .forEach(rewriteRule -> rewriteRules.remove(rewriteRule));
+        rewriteRuleMatcher.invalidate();
     }
 
     public boolean isStopped() {
@@ -1126,11 +1443,28 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
     }
 
     public void addHttpFilterFactory(HttpFiltersSource filterFactory) {
-        filterFactories.add(filterFactory);
+        addLastHttpFilterFactory(filterFactory);
     }
 
+    /**
+     * Returns the filter factories that create the filters for each request, in the order the filters are invoked. The
+     * returned list cannot be modified; use {@link #addFirstHttpFilterFactory(HttpFiltersSource)} or
+     * {@link #addLastHttpFilterFactory(HttpFiltersSource)} to add filter factories.
+     *
+     * @return unmodifiable list of filter factories
+     */
     public List<HttpFiltersSource> getFilterFactories() {
-        return filterFactories;
+        return Collections.unmodifiableList(filterFactories);
+    }
+
+    /**
+     * Returns the filter factories that create the filters for each request, as an array that must not be modified. The
+     * array is rebuilt whenever a filter factory is added, so callers can iterate over it without copying it.
+     *
+     * @return the filter factories, in the order the filters are invoked
+     */
+    public HttpFiltersSource[] getFilterFactoryArray() {
+        return filterFactoryArray;
     }
 
     @Override
@@ -1147,6 +1481,27 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
         this.mitmManager = mitmManager;
     }
 
+    /**
+     * Returns statistics on the connections opened and requests sent to upstream servers, including how often
+     * requests reused an existing upstream connection.
+     *
+     * @return upstream connection statistics
+     */
+    public UpstreamConnectionStatistics getUpstreamConnectionStatistics() {
+        return upstreamConnectionStatistics;
+    }
+
+    /**
+     * Returns the MitmManager used by this proxy, or null if MITM is disabled or the proxy has not been started and no
+     * MitmManager was set. When the MitmManager is an {@link ImpersonatingMitmManager}, its
+     * {@link ImpersonatingMitmManager#getSessionStatistics()} report TLS session resumption on this proxy's connections.
+     *
+     * @return the MitmManager
+     */
+    public MitmManager getMitmManager() {
+        return mitmManager;
+    }
+
     @Override
     public void setTrustAllServers(boolean trustAllServers) {
         if (isStarted()) {
@@ -1182,6 +1537,26 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
         return new UrlFilteredHarEntriesSupplier(getHar(), url).get();
     }
 
+    @Override
+    public HarEntryPage getHarEntriesSince(long sequence, int maxEntries) {
+        Har har = getHar();
+        if (har == null) {
+            return new HarEntryPage(new ArrayList<>(), sequence, HarEntrySequencer.getLastSequence(), false);
+        }
+
+        return HarEntrySequencer.getEntriesSince(har.getLog(), sequence, maxEntries);
+    }
+
+    @Override
+    public HarEntrySubscription addHarEntryListener(HarEntryListener listener) {
+        return addHarEntryListener(listener, HarEntryPublisher.DEFAULT_QUEUE_CAPACITY, HarEntryOverflowPolicy.DROP_OLDEST);
+    }
+
+    @Override
+    public HarEntrySubscription addHarEntryListener(HarEntryListener listener, int queueCapacity, HarEntryOverflowPolicy overflowPolicy) {
+        return harEntryPublisher.subscribe(listener, queueCapacity, overflowPolicy);
+    }
+
     @Override
     public AssertionResult assertMostRecentResponseTimeLessThanOrEqual(Pattern url, long time) {
         HarEntriesSupplier supplier = new MostRecentUrlFilteredHarEntrySupplier(getHar(), url);
@@ -1443,63 +1818,192 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
         this.useEcc = useEcc;
     }
 
+    /**
+     * When true, the default MitmManager offers HTTP/2 to clients using ALPN, so browsers can send all requests to an
+     * HTTPS host over a single connection to the proxy. Connections to upstream servers are not affected. Requests
+     * received over HTTP/2 are passed to filters as HTTP/1.1 requests, one at a time per client connection.
+     * <p>
+     * <b>The streams on a client connection are not handled concurrently:</b> each request waits for the responses to
+     * the requests received before it, so a slow response delays every other request on the connection. To limit the
+     * requests waiting, clients may only open {@value com.browserup.bup.filters.support.Http2ClientConnectionHandler#MAX_CONCURRENT_STREAMS}
+     * concurrent streams per connection. To offer HTTP/2 with a custom MitmManager, use
+     * {@link ImpersonatingMitmManager.Builder#clientHttp2(boolean)}.
+     * Must be set before the proxy is started.
+     *
+     * @param clientHttp2Enabled true to offer HTTP/2 to clients
+     */
+    public void setClientHttp2Enabled(boolean clientHttp2Enabled) {
+        if (isStarted()) {
+            throw new IllegalStateException("Cannot enable HTTP/2 after the proxy has been started");
+        }
+
+        this.clientHttp2Enabled = clientHttp2Enabled;
+    }
+
+    /**
+     * <b>Experimental.</b> When true, the default MitmManager offers HTTP/2 to upstream HTTPS servers using ALPN, so
+     * requests to servers that support it are sent as streams on an HTTP/2 connection. Filters and HAR capture see
+     * HTTP/1.1 messages regardless of the protocol used upstream.
+     * <p>
+     * Upstream HTTP/2 connections are not pooled or multiplexed: each client connection still uses its own connection to
+     * each server, and sends one request at a time on it, so enabling HTTP/2 upstream does not reduce the number of
+     * connections to the server. A connection is closed once the server sends a GOAWAY, and a new connection is opened
+     * for the next request. To offer HTTP/2 with a custom MitmManager, use
+     * {@link ImpersonatingMitmManager.Builder#upstreamHttp2(boolean)}. Must be set before the proxy is started.
+     *
+     * @param upstreamHttp2Enabled true to offer HTTP/2 to upstream servers
+     */
+    public void setUpstreamHttp2Enabled(boolean upstreamHttp2Enabled) {
+        if (isStarted()) {
+            throw new IllegalStateException("Cannot enable HTTP/2 after the proxy has been started");
+        }
+
+        this.upstreamHttp2Enabled = upstreamHttp2Enabled;
+    }
+
     /**
      * Adds the basic BrowserUp-proxy filters, except for the relatively-expensive HAR capture filter.
      */
     protected void addBrowserUpFilters() {
+        // these filters do not depend on the request they are created for, so a single instance is shared by all requests
+        addHttpFilterFactory(new StatelessHttpFiltersSource(new ResolvedHostnameCacheFilter(null, null)));
+
+        addHttpFilterFactory(new StatelessHttpFiltersSource(new RegisterRequestFilter(null, null, activityMonitor)));
+
         addHttpFilterFactory(new HttpFiltersSourceAdapter() {
             @Override
             public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
-                return new ResolvedHostnameCacheFilter(originalRequest, ctx);
+                return new HttpsOriginalHostCaptureFilter(originalRequest, ctx);
+            }
+        });
+
+        addHttpFilterFactory(new ConditionalHttpFiltersSource() {
+            @Override
+            public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+                return new AutoBasicAuthFilter(originalRequest, ctx, basicAuthCredentials);
+            }
+
+            @Override
+            public boolean isActive() {
+                return !basicAuthCredentials.isEmpty();
+            }
+        });
+
+        addHttpFilterFactory(new ConditionalHttpFiltersSource() {
+            @Override
+            public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+                return new RewriteUrlFilter(originalRequest, ctx, rewriteRuleMatcher.get());
+            }
+
+            @Override
+            public boolean isActive() {
+                return !rewriteRules.isEmpty();
             }
         });
 
         addHttpFilterFactory(new HttpFiltersSourceAdapter() {
             @Override
             public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
-                return new RegisterRequestFilter(originalRequest, ctx, activityMonitor);
+                return new HttpsHostCaptureFilter(originalRequest, ctx);
+            }
+        });
+
+        addHttpFilterFactory(new ConditionalHttpFiltersSource() {
+            @Override
+            public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+                return new AddHeadersFilter(originalRequest, additionalHeaders);
+            }
+
+            @Override
+            public boolean isActive() {
+                return !additionalHeaders.isEmpty();
+            }
+        });
+
+        addHttpFilterFactory(new ConditionalHttpFiltersSource() {
+            @Override
+            public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+                return new LatencyFilter(originalRequest, ctx, defaultLatencyRule, latencyRules);
+            }
+
+            @Override
+            public boolean isActive() {
+                LatencyRule currentDefaultLatencyRule = defaultLatencyRule;
+                return !latencyRules.isEmpty()
+                        || currentDefaultLatencyRule.getLatencyMs() > 0 || currentDefaultLatencyRule.getJitterMs() > 0;
             }
         });
 
         addHttpFilterFactory(new HttpFiltersSourceAdapter() {
             @Override
             public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
-                return new HttpsOriginalHostCaptureFilter(originalRequest, ctx);
+                ImpersonatingMitmManager prefetchingMitmManager = defaultMitmManager;
+                if (prefetchingMitmManager != null && ProxyUtils.isCONNECT(originalRequest)) {
+                    return new MitmCertificatePrefetchFilter(originalRequest, ctx, prefetchingMitmManager);
+                } else {
+                    return null;
+                }
             }
         });
 
         addHttpFilterFactory(new HttpFiltersSourceAdapter() {
             @Override
             public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
-                return new AutoBasicAuthFilter(originalRequest, ctx, basicAuthCredentials);
+                MitmManager currentMitmManager = mitmManager;
+                if (!mitmDisabled && ProxyUtils.isCONNECT(originalRequest) && currentMitmManager instanceof ImpersonatingMitmManager
+                        && ((ImpersonatingMitmManager) currentMitmManager).isClientHttp2Enabled()) {
+                    return new Http2ClientConnectionFilter(originalRequest, ctx);
+                } else {
+                    return null;
+                }
             }
         });
 
         addHttpFilterFactory(new HttpFiltersSourceAdapter() {
             @Override
             public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
-                return new RewriteUrlFilter(originalRequest, ctx, rewriteRules);
+                MitmManager currentMitmManager = mitmManager;
+                if (!mitmDisabled && currentMitmManager instanceof ImpersonatingMitmManager
+                        && ((ImpersonatingMitmManager) currentMitmManager).isUpstreamHttp2Enabled()) {
+                    return new Http2UpstreamConnectionFilter(originalRequest, ctx);
+                } else {
+                    return null;
+                }
             }
         });
 
         addHttpFilterFactory(new HttpFiltersSourceAdapter() {
             @Override
             public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
-                return new HttpsHostCaptureFilter(originalRequest, ctx);
+                if (hasSelectiveResponseAggregationSource()) {
+                    return new SelectiveResponseAggregationFilter(originalRequest, ctx, BrowserUpProxyServer.this::getResponseBufferSize);
+                } else {
+                    return null;
+                }
             }
         });
 
         addHttpFilterFactory(new HttpFiltersSourceAdapter() {
             @Override
-            public HttpFilters filterRequest(HttpRequest originalRequest) {
-                return new AddHeadersFilter(originalRequest, additionalHeaders);
+            public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+                MitmManager currentMitmManager = mitmManager;
+                if (!mitmDisabled && currentMitmManager instanceof ImpersonatingMitmManager) {
+                    return new TlsSessionStatisticsFilter(originalRequest, ctx, ((ImpersonatingMitmManager) currentMitmManager).getSessionStatistics());
+                } else {
+                    return null;
+                }
             }
         });
 
         addHttpFilterFactory(new HttpFiltersSourceAdapter() {
             @Override
-            public HttpFilters filterRequest(HttpRequest originalRequest) {
-                return new LatencyFilter(originalRequest, latencyMs);
+            public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+                // requests inside a CONNECT tunnel are not visible when MITM is disabled, so the tunnel's connection is not counted
+                if (mitmDisabled && ProxyUtils.isCONNECT(originalRequest)) {
+                    return null;
+                }
+
+                return new UpstreamConnectionStatisticsFilter(originalRequest, ctx, upstreamConnectionStatistics);
             }
         });
 
@@ -1523,6 +2027,34 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
         return maxBufferSize;
     }
 
+    private boolean hasSelectiveResponseAggregationSource() {
+        for (HttpFiltersSource source : filterFactories) {
+            if (source instanceof SelectiveResponseAggregationSource && ((SelectiveResponseAggregationSource) source).isSelective()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the largest buffer size any {@link SelectiveResponseAggregationSource} requires to aggregate the response, or 0
+     * if the response should be streamed.
+     */
+    private int getResponseBufferSize(String url, HttpResponse response) {
+        int maxBufferSize = 0;
+        for (HttpFiltersSource source : filterFactories) {
+            if (source instanceof SelectiveResponseAggregationSource && ((SelectiveResponseAggregationSource) source).isSelective()) {
+                int responseBufferSize = ((SelectiveResponseAggregationSource) source).getResponseBufferSizeInBytes(url, response);
+                if (responseBufferSize > maxBufferSize) {
+                    maxBufferSize = responseBufferSize;
+                }
+            }
+        }
+
+        return maxBufferSize;
+    }
+
     private int getMaximumResponseBufferSize() {
         int maxBufferSize = 0;
         for (HttpFiltersSource source : filterFactories) {
@@ -1549,7 +2081,8 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
                 public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
                     Har har = getOrCreateHar();
                     if (har != null && !ProxyUtils.isCONNECT(originalRequest)) {
-                        return new HarCaptureFilter(originalRequest, ctx, har, getCurrentPageRef(), getHarCaptureTypes());
+                        return new HarCaptureFilter(originalRequest, ctx, har, getCurrentPageRef(), getHarCaptureTypes(),
+                                harResponseContentCaptureLimit, harResponseContentOverflowPolicy, harBodyStore, harEntryPublisher);
                     } else {
                         return null;
                     }
@@ -1562,7 +2095,7 @@ public class BrowserUpProxyServer implements BrowserUpProxy {
                 public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
                     Har har = getOrCreateHar();
                     if (har != null && ProxyUtils.isCONNECT(originalRequest)) {
-                        return new HttpConnectHarCaptureFilter(originalRequest, ctx, har, getCurrentPageRef());
+                        return new HttpConnectHarCaptureFilter(originalRequest, ctx, har, getCurrentPageRef(), harEntryPublisher);
                     } else {
                         return null;
                     }
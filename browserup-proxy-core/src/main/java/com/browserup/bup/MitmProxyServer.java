@@ -15,14 +15,21 @@ import com.browserup.bup.assertion.model.AssertionResult;
 import com.browserup.bup.assertion.supplier.*;
 import com.browserup.bup.filters.RequestFilter;
 import com.browserup.bup.filters.ResponseFilter;
+import com.browserup.bup.har.HarEntryListener;
+import com.browserup.bup.har.HarEntryOverflowPolicy;
+import com.browserup.bup.har.HarEntryPage;
+import com.browserup.bup.har.HarEntryPublisher;
+import com.browserup.bup.har.HarEntrySubscription;
 import com.browserup.bup.mitm.TrustSource;
 import com.browserup.bup.mitmproxy.MitmProxyProcessManager;
 import com.browserup.bup.mitmproxy.MitmProxyProcessManager.MitmProxyLoggingLevel;
 import com.browserup.bup.mitmproxy.NetworkUtils;
 import com.browserup.bup.mitmproxy.addons.AbstractAddon;
 import com.browserup.bup.mitmproxy.management.HarCaptureManager;
+import com.browserup.bup.mitmproxy.management.HarEntryPollingPublisher;
 import com.browserup.bup.proxy.BlocklistEntry;
 import com.browserup.bup.proxy.CaptureType;
+import com.browserup.bup.proxy.LatencyRule;
 import com.browserup.bup.proxy.RewriteRule;
 import com.browserup.bup.proxy.auth.AuthType;
 import com.browserup.bup.proxy.dns.AdvancedHostResolver;
@@ -52,6 +59,8 @@ public class MitmProxyServer implements BrowserUpProxy {
 
   private MitmProxyProcessManager mitmProxyManager = new MitmProxyProcessManager();
 
+  private final HarEntryPollingPublisher harEntryPublisher = new HarEntryPollingPublisher(mitmProxyManager.getHarCaptureFilterManager());
+
   public void start(List<AbstractAddon> addons) {
     mitmProxyManager.start(NetworkUtils.getFreePort(), addons);
   }
@@ -83,11 +92,13 @@ public class MitmProxyServer implements BrowserUpProxy {
 
   @Override
   public void stop() {
+    harEntryPublisher.stop();
     mitmProxyManager.stop();
   }
 
   @Override
   public void abort() {
+    harEntryPublisher.stop();
     mitmProxyManager.stop();
   }
 
@@ -246,6 +257,31 @@ public class MitmProxyServer implements BrowserUpProxy {
     this.mitmProxyManager.getLatencyManager().setLatency(latency, timeUnit);
   }
 
+  @Override
+  public void setLatencyJitter(long jitter, TimeUnit timeUnit, LatencyRule.JitterDistribution jitterDistribution) {
+    this.mitmProxyManager.getLatencyManager().setLatencyJitter(jitter, timeUnit, jitterDistribution);
+  }
+
+  @Override
+  public void addLatencyRule(LatencyRule latencyRule) {
+    this.mitmProxyManager.getLatencyManager().addLatencyRule(latencyRule);
+  }
+
+  @Override
+  public void setLatencyRules(Collection<LatencyRule> latencyRules) {
+    this.mitmProxyManager.getLatencyManager().setLatencyRules(latencyRules);
+  }
+
+  @Override
+  public Collection<LatencyRule> getLatencyRules() {
+    return this.mitmProxyManager.getLatencyManager().getLatencyRules();
+  }
+
+  @Override
+  public void clearLatencyRules() {
+    this.mitmProxyManager.getLatencyManager().clearLatencyRules();
+  }
+
   @Override
   public void setConnectTimeout(int connectionTimeout, TimeUnit timeUnit) {
 
@@ -503,6 +539,29 @@ public class MitmProxyServer implements BrowserUpProxy {
     return new UrlFilteredHarEntriesSupplier(getHar(), url).get();
   }
 
+  @Override
+  public HarEntryPage getHarEntriesSince(long sequence, int maxEntries) {
+    return mitmProxyManager.getHarCaptureFilterManager().getHarEntriesSince(sequence, maxEntries);
+  }
+
+  @Override
+  public HarEntrySubscription addHarEntryListener(HarEntryListener listener) {
+    return addHarEntryListener(listener, HarEntryPublisher.DEFAULT_QUEUE_CAPACITY, HarEntryOverflowPolicy.DROP_OLDEST);
+  }
+
+  @Override
+  public HarEntrySubscription addHarEntryListener(HarEntryListener listener, int queueCapacity, HarEntryOverflowPolicy overflowPolicy) {
+    return harEntryPublisher.subscribe(listener, queueCapacity, overflowPolicy);
+  }
+
+  /**
+   * @return the subscriptions of the listeners added with {@link #addHarEntryListener(HarEntryListener, int, HarEntryOverflowPolicy)}
+   *         that have not been cancelled
+   */
+  public List<HarEntrySubscription> getHarEntrySubscriptions() {
+    return harEntryPublisher.getSubscriptions();
+  }
+
   @Override
   public AssertionResult assertMostRecentResponseTimeLessThanOrEqual(Pattern url, long time) {
     HarEntriesSupplier supplier = new MostRecentUrlFilteredHarEntrySupplier(getHar(), url);
@@ -11,6 +11,7 @@ import com.browserup.bup.proxy.dns.ChainedHostResolver;
 import com.browserup.bup.proxy.dns.DnsJavaResolver;
 import com.browserup.bup.proxy.dns.NativeCacheManipulatingResolver;
 import com.browserup.bup.proxy.dns.NativeResolver;
+import com.browserup.bup.proxy.dns.NettyDnsResolver;
 import org.openqa.selenium.Proxy;
 
 import java.net.InetAddress;
@@ -53,6 +54,17 @@ public class ClientUtil {
         return new DnsJavaResolver();
     }
 
+    /**
+     * Creates a {@link com.browserup.bup.proxy.dns.NettyDnsResolver} instance that performs asynchronous, cached DNS lookups
+     * using the system's default DNS servers. Can be used when calling
+     * {@link BrowserUpProxy#setHostNameResolver(com.browserup.bup.proxy.dns.AdvancedHostResolver)}.
+     *
+     * @return a new NettyDnsResolver
+     */
+    public static AdvancedHostResolver createNettyDnsResolver() {
+        return new NettyDnsResolver();
+    }
+
     /**
      * Creates a {@link com.browserup.bup.proxy.dns.ChainedHostResolver} instance that first attempts to resolve a hostname using a
      * {@link com.browserup.bup.proxy.dns.DnsJavaResolver}, then uses {@link com.browserup.bup.proxy.dns.NativeCacheManipulatingResolver}.
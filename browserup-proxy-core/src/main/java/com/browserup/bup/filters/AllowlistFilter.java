@@ -5,6 +5,7 @@
 package com.browserup.bup.filters;
 
 import com.browserup.bup.util.HttpStatusClass;
+import com.browserup.bup.util.UrlPatternMatcher;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.HttpObject;
@@ -17,28 +18,37 @@ import org.littleshoot.proxy.impl.ProxyUtils;
 import java.util.Collection;
 import java.util.regex.Pattern;
 
-import static java.util.Collections.*;
-
 /**
- * Checks this request against the allowlist, and returns the modified response if the request is not in the allowlist. The filter does not
- * make a defensive copy of the allowlist URLs, so there is no guarantee that the allowlist URLs at the time of construction will contain the
- * same values when the filter is actually invoked, if the URL collection is modified concurrently.
+ * Checks this request against the allowlist, and returns the modified response if the request is not in the allowlist. The request URL
+ * is checked against all of the allowlist URL patterns in a single pass, using a compiled {@link UrlPatternMatcher}.
  */
 public class AllowlistFilter extends HttpsAwareFiltersAdapter {
     private final boolean allowlistEnabled;
     private final int allowlistResponseCode;
-    private final Collection<Pattern> allowlistUrls;
+    private final UrlPatternMatcher<Pattern> allowlistMatcher;
 
+    /**
+     * Creates a filter for the allowlist URL patterns, compiling them for this request only. When the same patterns apply to many
+     * requests, use {@link #AllowlistFilter(HttpRequest, ChannelHandlerContext, boolean, int, UrlPatternMatcher)} to compile them once.
+     */
     public AllowlistFilter(HttpRequest originalRequest,
                            ChannelHandlerContext ctx,
                            boolean allowlistEnabled,
                            int allowlistResponseCode,
                            Collection<Pattern> allowlistUrls) {
+        this(originalRequest, ctx, allowlistEnabled, allowlistResponseCode, UrlPatternMatcher.compile(allowlistUrls));
+    }
+
+    public AllowlistFilter(HttpRequest originalRequest,
+                           ChannelHandlerContext ctx,
+                           boolean allowlistEnabled,
+                           int allowlistResponseCode,
+                           UrlPatternMatcher<Pattern> allowlistMatcher) {
         super(originalRequest, ctx);
 
         this.allowlistEnabled = allowlistEnabled;
         this.allowlistResponseCode = allowlistResponseCode;
-        this.allowlistUrls = allowlistUrls != null ? allowlistUrls : emptyList();
+        this.allowlistMatcher = allowlistMatcher;
     }
 
     @Override
@@ -59,7 +69,7 @@ public class AllowlistFilter extends HttpsAwareFiltersAdapter {
 
             String url = getOriginalUrl();
 
-            urlAllowlisted = allowlistUrls.stream().anyMatch(pattern -> pattern.matcher(url).matches());
+            urlAllowlisted = allowlistMatcher.matchesAny(url);
 
             if (!urlAllowlisted) {
                 HttpResponseStatus status;
@@ -13,27 +13,32 @@ import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import com.browserup.bup.proxy.BlocklistEntry;
 import com.browserup.bup.util.HttpStatusClass;
+import com.browserup.bup.util.UrlPatternMatcher;
 import io.netty.handler.codec.http.HttpUtil;
 
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.Collections;
 
 /**
- * Applies blocklist entries to this request. The filter does not make a defensive copy of the blocklist entries, so there is no guarantee
- * that the blocklist at the time of construction will contain the same values when the filter is actually invoked, if the entries are modified concurrently.
+ * Applies blocklist entries to this request. The first entry, in blocklist order, that matches the request determines the response.
+ * Only the entries whose URL patterns may match the request URL, as determined by the compiled {@link UrlPatternMatcher}, are evaluated.
  */
 public class BlocklistFilter extends HttpsAwareFiltersAdapter {
     public static final String BLOCKED_PHRASE = "Request blocked";
-    private final Collection<BlocklistEntry> blocklistedUrls;
+    private final UrlPatternMatcher<BlocklistEntry> blocklistMatcher;
 
+    /**
+     * Creates a filter for the blocklist entries, compiling them for this request only. When the same entries apply to many
+     * requests, use {@link #BlocklistFilter(HttpRequest, ChannelHandlerContext, UrlPatternMatcher)} to compile them once.
+     */
     public BlocklistFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, Collection<BlocklistEntry> blocklistedUrls) {
+        this(originalRequest, ctx, UrlPatternMatcher.compile(blocklistedUrls, BlocklistEntry::getUrlPattern));
+    }
+
+    public BlocklistFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, UrlPatternMatcher<BlocklistEntry> blocklistMatcher) {
         super(originalRequest, ctx);
 
-        if (blocklistedUrls != null) {
-            this.blocklistedUrls = blocklistedUrls;
-        } else {
-            this.blocklistedUrls = Collections.emptyList();
-        }
+        this.blocklistMatcher = blocklistMatcher;
     }
 
     @Override
@@ -43,7 +48,10 @@ public class BlocklistFilter extends HttpsAwareFiltersAdapter {
 
             String url = getOriginalUrl();
 
-            for (BlocklistEntry entry : blocklistedUrls) {
+            BitSet candidates = blocklistMatcher.getCandidates(url);
+            for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+                BlocklistEntry entry = blocklistMatcher.getRules().get(i);
+
                 if (HttpMethod.CONNECT.equals(httpRequest.method()) && entry.getHttpMethodPattern() == null) {
                     // do not allow CONNECTs to be blocklisted unless a method pattern is explicitly specified
                     continue;
@@ -19,38 +19,54 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Objects;
 
 /**
- * The filter "driver" that delegates to all chained filters specified by the proxy server.
+ * The filter "driver" that delegates to all chained filters specified by the proxy server. The chain is created for every
+ * request, so it iterates over the proxy's precomputed array of filter factories, skips {@link ConditionalHttpFiltersSource}s
+ * that are inactive for the current configuration, and dispatches each callback with a plain loop rather than a lambda.
  */
 public class BrowserUpHttpFilterChain extends HttpFiltersAdapter {
     private static final Logger log = LoggerFactory.getLogger(BrowserUpHttpFilterChain.class);
 
     private final BrowserUpProxyServer proxyServer;
 
-    private final List<HttpFilters> filters;
+    /**
+     * The filters for this request, in the order they are invoked. Only the first filterCount elements are used, so the
+     * array does not need to be copied when some filter sources are skipped.
+     */
+    private final HttpFilters[] filters;
+
+    private final int filterCount;
+
+    private final HttpRequestContext requestContext;
 
     public BrowserUpHttpFilterChain(BrowserUpProxyServer proxyServer, HttpRequest originalRequest, ChannelHandlerContext ctx) {
         super(originalRequest, ctx);
 
         this.proxyServer = proxyServer;
 
-        if (proxyServer.getFilterFactories() != null) {
-            filters = new ArrayList<>(proxyServer.getFilterFactories().size());
-
-            // instantiate all HttpFilters using the proxy's filter factories
-            // allow filter factories to avoid adding a filter on a per-request basis by returning a null
-            // HttpFilters instance
-            proxyServer.getFilterFactories().stream()
-                    .map(filterFactory -> filterFactory.filterRequest(originalRequest, ctx))
-                    .filter(Objects::nonNull).forEach(filters::add);
-        } else {
-            filters = Collections.emptyList();
+        // create the context shared by the filters for this request before creating the filters
+        this.requestContext = HttpRequestContext.create(originalRequest, ctx);
+
+        HttpFiltersSource[] filterFactories = proxyServer.getFilterFactoryArray();
+        filters = new HttpFilters[filterFactories.length];
+
+        // instantiate all HttpFilters using the proxy's filter factories. inactive filter factories are skipped without
+        // creating filters, and filter factories can avoid adding a filter on a per-request basis by returning a null
+        // HttpFilters instance
+        int count = 0;
+        for (HttpFiltersSource filterFactory : filterFactories) {
+            if (filterFactory instanceof ConditionalHttpFiltersSource && !((ConditionalHttpFiltersSource) filterFactory).isActive()) {
+                continue;
+            }
+
+            HttpFilters filter = filterFactory.filterRequest(originalRequest, ctx);
+            if (filter != null) {
+                filters[count++] = filter;
+            }
         }
+
+        filterCount = count;
     }
 
     @Override
@@ -62,7 +78,8 @@ public class BrowserUpHttpFilterChain extends HttpFiltersAdapter {
             return abortedResponse;
         }
 
-        for (HttpFilters filter : filters) {
+        for (int i = 0; i < filterCount; i++) {
+            HttpFilters filter = filters[i];
             try {
                 HttpResponse filterResponse = filter.clientToProxyRequest(httpObject);
                 if (filterResponse != null) {
@@ -90,7 +107,8 @@ public class BrowserUpHttpFilterChain extends HttpFiltersAdapter {
 
     @Override
     public HttpResponse proxyToServerRequest(HttpObject httpObject) {
-        for (HttpFilters filter : filters) {
+        for (int i = 0; i < filterCount; i++) {
+            HttpFilters filter = filters[i];
             try {
                 HttpResponse filterResponse = filter.proxyToServerRequest(httpObject);
                 if (filterResponse != null) {
@@ -106,13 +124,14 @@ public class BrowserUpHttpFilterChain extends HttpFiltersAdapter {
 
     @Override
     public void proxyToServerRequestSending() {
-        filters.forEach(filter -> {
+        for (int i = 0; i < filterCount; i++) {
+            HttpFilters filter = filters[i];
             try {
                 filter.proxyToServerRequestSending();
             } catch (RuntimeException e) {
                 log.warn("Filter in filter chain threw exception. Filter method may have been aborted.", e);
             }
-        });
+        }
     }
 
 
@@ -120,7 +139,8 @@ public class BrowserUpHttpFilterChain extends HttpFiltersAdapter {
     public HttpObject serverToProxyResponse(HttpObject httpObject) {
         HttpObject processedHttpObject = httpObject;
 
-        for (HttpFilters filter : filters) {
+        for (int i = 0; i < filterCount; i++) {
+            HttpFilters filter = filters[i];
             try {
                 processedHttpObject = filter.serverToProxyResponse(processedHttpObject);
                 if (processedHttpObject == null) {
@@ -136,24 +156,26 @@ public class BrowserUpHttpFilterChain extends HttpFiltersAdapter {
 
     @Override
     public void serverToProxyResponseTimedOut() {
-        filters.forEach(filter -> {
+        for (int i = 0; i < filterCount; i++) {
+            HttpFilters filter = filters[i];
             try {
                 filter.serverToProxyResponseTimedOut();
             } catch (RuntimeException e) {
                 log.warn("Filter in filter chain threw exception. Filter method may have been aborted.", e);
             }
-        });
+        }
     }
 
     @Override
     public void serverToProxyResponseReceiving() {
-        filters.forEach(filter -> {
+        for (int i = 0; i < filterCount; i++) {
+            HttpFilters filter = filters[i];
             try {
                 filter.serverToProxyResponseReceiving();
             } catch (RuntimeException e) {
                 log.warn("Filter in filter chain threw exception. Filter method may have been aborted.", e);
             }
-        });
+        }
     }
 
     @Override
@@ -161,7 +183,8 @@ public class BrowserUpHttpFilterChain extends HttpFiltersAdapter {
         InetSocketAddress overrideAddress = null;
         String newServerHostAndPort = resolvingServerHostAndPort;
 
-        for (HttpFilters filter : filters) {
+        for (int i = 0; i < filterCount; i++) {
+            HttpFilters filter = filters[i];
             try {
                 InetSocketAddress filterResult = filter.proxyToServerResolutionStarted(newServerHostAndPort);
                 if (filterResult != null) {
@@ -178,98 +201,107 @@ public class BrowserUpHttpFilterChain extends HttpFiltersAdapter {
 
     @Override
     public void proxyToServerResolutionFailed(String hostAndPort) {
-        filters.forEach(filter -> {
+        for (int i = 0; i < filterCount; i++) {
+            HttpFilters filter = filters[i];
             try {
                 filter.proxyToServerResolutionFailed(hostAndPort);
             } catch (RuntimeException e) {
                 log.warn("Filter in filter chain threw exception. Filter method may have been aborted.", e);
             }
-        });
+        }
     }
 
     @Override
     public void proxyToServerResolutionSucceeded(String serverHostAndPort, InetSocketAddress resolvedRemoteAddress) {
-        filters.forEach(filter -> {
+        for (int i = 0; i < filterCount; i++) {
+            HttpFilters filter = filters[i];
             try {
                 filter.proxyToServerResolutionSucceeded(serverHostAndPort, resolvedRemoteAddress);
             } catch (RuntimeException e) {
                 log.warn("Filter in filter chain threw exception. Filter method may have been aborted.", e);
             }
-        });
+        }
 
         super.proxyToServerResolutionSucceeded(serverHostAndPort, resolvedRemoteAddress);
     }
 
     @Override
     public void proxyToServerConnectionStarted() {
-        filters.forEach(filter -> {
+        for (int i = 0; i < filterCount; i++) {
+            HttpFilters filter = filters[i];
             try {
                 filter.proxyToServerConnectionStarted();
             } catch (RuntimeException e) {
                 log.warn("Filter in filter chain threw exception. Filter method may have been aborted.", e);
             }
-        });
+        }
     }
 
     @Override
     public void proxyToServerConnectionSSLHandshakeStarted() {
-        filters.forEach(filter -> {
+        for (int i = 0; i < filterCount; i++) {
+            HttpFilters filter = filters[i];
             try {
                 filter.proxyToServerConnectionSSLHandshakeStarted();
             } catch (RuntimeException e) {
                 log.warn("Filter in filter chain threw exception. Filter method may have been aborted.", e);
             }
-        });
+        }
     }
 
     @Override
     public void proxyToServerConnectionFailed() {
-        filters.forEach(filter -> {
+        for (int i = 0; i < filterCount; i++) {
+            HttpFilters filter = filters[i];
             try {
                 filter.proxyToServerConnectionFailed();
             } catch (RuntimeException e) {
                 log.warn("Filter in filter chain threw exception. Filter method may have been aborted.", e);
             }
-        });
+        }
     }
 
     @Override
     public void proxyToServerConnectionSucceeded(ChannelHandlerContext serverCtx) {
-        filters.forEach(filter -> {
+        for (int i = 0; i < filterCount; i++) {
+            HttpFilters filter = filters[i];
             try {
                 filter.proxyToServerConnectionSucceeded(serverCtx);
             } catch (RuntimeException e) {
                 log.warn("Filter in filter chain threw exception. Filter method may have been aborted.", e);
             }
-        });
+        }
     }
 
     @Override
     public void proxyToServerRequestSent() {
-        filters.forEach(filter -> {
+        for (int i = 0; i < filterCount; i++) {
+            HttpFilters filter = filters[i];
             try {
                 filter.proxyToServerRequestSent();
             } catch (RuntimeException e) {
                 log.warn("Filter in filter chain threw exception. Filter method may have been aborted.", e);
             }
-        });
+        }
     }
 
     @Override
     public void serverToProxyResponseReceived() {
-        filters.forEach(filter -> {
+        for (int i = 0; i < filterCount; i++) {
+            HttpFilters filter = filters[i];
             try {
                 filter.serverToProxyResponseReceived();
             } catch (RuntimeException e) {
                 log.warn("Filter in filter chain threw exception. Filter method may have been aborted.", e);
             }
-        });
+        }
     }
 
     @Override
     public HttpObject proxyToClientResponse(HttpObject httpObject) {
         HttpObject processedHttpObject = httpObject;
-        for (HttpFilters filter : filters) {
+        for (int i = 0; i < filterCount; i++) {
+            HttpFilters filter = filters[i];
             try {
                 processedHttpObject = filter.proxyToClientResponse(processedHttpObject);
                 if (processedHttpObject == null) {
@@ -285,13 +317,23 @@ public class BrowserUpHttpFilterChain extends HttpFiltersAdapter {
 
     @Override
     public void proxyToServerConnectionQueued() {
-        filters.forEach(filter -> {
+        for (int i = 0; i < filterCount; i++) {
+            HttpFilters filter = filters[i];
             try {
                 filter.proxyToServerConnectionQueued();
             } catch (RuntimeException e) {
                 log.warn("Filter in filter chain threw exception. Filter method may have been aborted.", e);
             }
-        });
+        }
+    }
+
+    /**
+     * Returns the context shared by all filters handling this request.
+     *
+     * @return the context for this request
+     */
+    public HttpRequestContext getRequestContext() {
+        return requestContext;
     }
 
     /**
@@ -301,7 +343,8 @@ public class BrowserUpHttpFilterChain extends HttpFiltersAdapter {
      * @param modifiedRequest the modified HttpRequest after all filters have finished processing it
      */
     private void updateFiltersWithModifiedResponse(HttpRequest modifiedRequest) {
-        for (HttpFilters filter : filters) {
+        for (int i = 0; i < filterCount; i++) {
+            HttpFilters filter = filters[i];
             if (filter instanceof ModifiedRequestAwareFilter) {
                 ModifiedRequestAwareFilter requestCaptureFilter = (ModifiedRequestAwareFilter) filter;
                 try {
@@ -0,0 +1,34 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters;
+
+import org.littleshoot.proxy.HttpFiltersSource;
+
+/**
+ * An {@link HttpFiltersSource} whose filters only do something for some configurations of the proxy, such as a filter
+ * that adds latency when no latency has been configured. {@link BrowserUpHttpFilterChain} checks {@link #isActive()}
+ * before creating the filters for each request, and skips inactive sources without creating filters for them.
+ * <p>
+ * Sources that do not aggregate messages can implement this interface with just {@link #filterRequest} and {@link #isActive()}.
+ */
+public interface ConditionalHttpFiltersSource extends HttpFiltersSource {
+    /**
+     * Returns true if the filters created by this source would have any effect with the current configuration. This
+     * method is called for every request, so it should be inexpensive.
+     *
+     * @return true if the chain should create filters using this source, false to skip this source
+     */
+    boolean isActive();
+
+    @Override
+    default int getMaximumRequestBufferSizeInBytes() {
+        return 0;
+    }
+
+    @Override
+    default int getMaximumResponseBufferSizeInBytes() {
+        return 0;
+    }
+}
@@ -6,13 +6,17 @@ package com.browserup.bup.filters;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
 import com.browserup.harreader.model.HarHeader;
 import com.browserup.harreader.model.HttpMethod;
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMessage;
 import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
@@ -30,14 +34,26 @@ import com.browserup.harreader.model.HarPostDataParam;
 import com.browserup.harreader.model.HarRequest;
 import com.browserup.harreader.model.HarResponse;
 import com.browserup.bup.exception.UnsupportedCharsetException;
+import com.browserup.bup.filters.support.BoundedContentBuffer;
+import com.browserup.bup.filters.support.Http2ClientConnectionHandler;
 import com.browserup.bup.filters.support.HttpConnectTiming;
 import com.browserup.bup.filters.util.HarCaptureUtil;
+import com.browserup.bup.har.HarBodyStore;
+import com.browserup.bup.har.HarEntryPublisher;
+import com.browserup.bup.har.HarEntrySequencer;
 import com.browserup.bup.proxy.CaptureType;
+import com.browserup.bup.proxy.ContentOverflowPolicy;
 import com.browserup.bup.util.BrowserUpHttpUtil;
 import org.littleshoot.proxy.impl.ProxyUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
@@ -55,6 +71,11 @@ import static java.util.concurrent.TimeUnit.*;
 public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
     private static final Logger log = LoggerFactory.getLogger(HarCaptureFilter.class);
 
+    /**
+     * The HAR httpVersion of requests and responses on HTTP/2 client connections.
+     */
+    private static final String HTTP_2_VERSION = "HTTP/2";
+
     /**
      * The currently active HAR at the time the current request is received.
      */
@@ -79,6 +100,21 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
      */
     private final ServerResponseCaptureFilter responseCaptureFilter;
 
+    /**
+     * Releases the contents captured by the responseCaptureFilter if the client disconnects before the response completes.
+     */
+    private ChannelFutureListener releaseOnDisconnectListener;
+
+    /**
+     * Store for captured request and response bodies. If null, bodies are held in the HAR.
+     */
+    private final HarBodyStore harBodyStore;
+
+    /**
+     * Publisher to notify when the HAR entry is completed. May be null.
+     */
+    private final HarEntryPublisher harEntryPublisher;
+
     /**
      * The CaptureType data types to capture in this request.
      */
@@ -93,6 +129,12 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
     private volatile long connectionQueuedNanos;
     private volatile long connectionStartedNanos;
 
+    /**
+     * Time the request waited behind the requests on other streams of an HTTP/2 client connection before the proxy started
+     * handling it. Included in the entry's blocked time.
+     */
+    private volatile long streamQueuedNanos;
+
     private volatile long sendStartedNanos;
     private volatile long sendFinishedNanos;
 
@@ -145,6 +187,38 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
      * @param ctx ChannelHandlerContext ctx
      */
     public HarCaptureFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, Har har, String currentPageRef, Set<CaptureType> dataToCapture) {
+        this(originalRequest, ctx, har, currentPageRef, dataToCapture, BoundedContentBuffer.UNLIMITED, ContentOverflowPolicy.TRUNCATE, null);
+    }
+
+    /**
+     * Create a new instance of the HarCaptureFilter that limits the amount of response content captured for each entry, and
+     * optionally stores captured bodies outside of the HAR.
+     * See {@link #HarCaptureFilter(HttpRequest, ChannelHandlerContext, Har, String, Set)} for details on the data captured.
+     *
+     * @param originalRequest the original HttpRequest from the HttpFiltersSource factory
+     * @param har a reference to the ProxyServer's current HAR file at the time this request is received
+     * @param currentPageRef the ProxyServer's currentPageRef at the time this request is received from the client
+     * @param dataToCapture the data types to capture for this request
+     * @param ctx ChannelHandlerContext ctx
+     * @param maxResponseContentSize maximum number of bytes of response content to capture, or {@link BoundedContentBuffer#UNLIMITED}
+     * @param responseContentOverflowPolicy action to take when the response content exceeds maxResponseContentSize
+     * @param harBodyStore store for captured request and response bodies, or null to hold bodies in the HAR
+     */
+    public HarCaptureFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, Har har, String currentPageRef, Set<CaptureType> dataToCapture,
+                            long maxResponseContentSize, ContentOverflowPolicy responseContentOverflowPolicy, HarBodyStore harBodyStore) {
+        this(originalRequest, ctx, har, currentPageRef, dataToCapture, maxResponseContentSize, responseContentOverflowPolicy, harBodyStore, null);
+    }
+
+    /**
+     * Create a new instance of the HarCaptureFilter that also publishes the HAR entry to listeners when it is completed.
+     * See {@link #HarCaptureFilter(HttpRequest, ChannelHandlerContext, Har, String, Set, long, ContentOverflowPolicy, HarBodyStore)}
+     * for details on the other parameters.
+     *
+     * @param harEntryPublisher publisher to notify when the HAR entry is completed, or null
+     */
+    public HarCaptureFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, Har har, String currentPageRef, Set<CaptureType> dataToCapture,
+                            long maxResponseContentSize, ContentOverflowPolicy responseContentOverflowPolicy, HarBodyStore harBodyStore,
+                            HarEntryPublisher harEntryPublisher) {
         super(originalRequest, ctx);
 
         if (har == null) {
@@ -173,12 +247,14 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
         }
 
         if (this.dataToCapture.contains(CaptureType.RESPONSE_CONTENT) || this.dataToCapture.contains(CaptureType.RESPONSE_BINARY_CONTENT)) {
-            responseCaptureFilter = new ServerResponseCaptureFilter(originalRequest, true);
+            responseCaptureFilter = new ServerResponseCaptureFilter(originalRequest, true, maxResponseContentSize, responseContentOverflowPolicy);
         } else {
             responseCaptureFilter = null;
         }
 
         this.har = har;
+        this.harBodyStore = harBodyStore;
+        this.harEntryPublisher = harEntryPublisher;
 
         this.harEntry = new HarEntry();
         this.harEntry.setPageref(currentPageRef);
@@ -195,8 +271,12 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
         if (httpObject instanceof HttpRequest) {
             // link the object up now, before we make the request, so that if we get cut off (ie: favicon.ico request and browser shuts down)
             // we still have the attempt associated, even if we never got a response
-            this.harEntry.setStartedDateTime(new Date());
-            this.har.getLog().getEntries().add(this.harEntry);
+            // on HTTP/2 client connections, the request may have waited for the proxy to handle the requests on other streams
+            this.streamQueuedNanos = Http2ClientConnectionHandler.getStreamQueueTime(ctx.channel());
+            this.harEntry.setStartedDateTime(new Date(System.currentTimeMillis() - NANOSECONDS.toMillis(streamQueuedNanos)));
+            if (streamQueuedNanos > 0L) {
+                this.harEntry.getTimings().setBlocked(streamQueuedNanos, NANOSECONDS);
+            }
 
             HttpRequest httpRequest = (HttpRequest) httpObject;
             this.capturedOriginalRequest = httpRequest;
@@ -211,6 +291,9 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
             defaultHarResponse.setAdditionalField("_errorMessage", HarCaptureUtil.getNoResponseReceivedErrorMessage());
             this.harEntry.setResponse(defaultHarResponse);
 
+            // add the entry once its request URL is set, so the entry index never sees an entry without a URL
+            this.har.getLog().getEntries().add(this.harEntry);
+
             captureQueryParameters(httpRequest);
             // not capturing user agent: in many cases, it doesn't make sense to capture at the HarLog level, since the proxy could be
             // serving requests from many different clients with various user agents. clients can turn on the REQUEST_HEADERS capture type
@@ -267,6 +350,12 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
             HttpResponse httpResponse = (HttpResponse) httpObject;
 
             captureResponse(httpResponse);
+
+            // if the client disconnects before the response completes, the captured contents will never be written to the HAR
+            if (responseCaptureFilter != null && releaseOnDisconnectListener == null) {
+                releaseOnDisconnectListener = future -> responseCaptureFilter.releaseCapturedContents();
+                ctx.channel().closeFuture().addListener(releaseOnDisconnectListener);
+            }
         }
 
         if (httpObject instanceof HttpContent) {
@@ -277,9 +366,14 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
 
         if (httpObject instanceof LastHttpContent) {
             if (dataToCapture.contains(CaptureType.RESPONSE_CONTENT)) {
-                captureResponseContent(responseCaptureFilter.getHttpResponse(), responseCaptureFilter.getFullResponseContents());
+                // the client's event loop releases the contents if the client disconnects, so read them under the filter's lock
+                HttpResponse httpResponse = responseCaptureFilter.getHttpResponse();
+                responseCaptureFilter.withFullResponseContentBuffer(contentBuffer -> captureResponseContent(httpResponse, contentBuffer));
             }
 
+            // the response content is now in the HAR (if it was captured at all), so discard the filter's copy
+            releaseCapturedResponseContents();
+
             harEntry.getResponse().setBodySize((long)(responseBodySize.get()));
         }
 
@@ -296,12 +390,19 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
             captureResponse(httpResponse);
             harEntry.setTime(getTotalElapsedTime(harEntry.getTimings()));
         }
+
+        if (!isResponse && httpObject instanceof LastHttpContent) {
+            completeHarEntry();
+        }
         return super.proxyToClientResponse(httpObject); 
     }
 
     @Override
     public void serverToProxyResponseTimedOut() {
         isResponse = true;
+
+        releaseCapturedResponseContents();
+
         // replace any existing HarResponse that was created if the server sent a partial response
         HarResponse response = HarCaptureUtil.createHarResponseForFailure();
         harEntry.setResponse(response);
@@ -326,6 +427,41 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
         }
 
         this.harEntry.setTime(getTotalElapsedTime(this.harEntry.getTimings()));
+
+        completeHarEntry();
+    }
+
+    /**
+     * Releases the response contents held by the {@link ServerResponseCaptureFilter}, and stops listening for the client
+     * to disconnect.
+     */
+    private void releaseCapturedResponseContents() {
+        if (responseCaptureFilter == null) {
+            return;
+        }
+
+        responseCaptureFilter.releaseCapturedContents();
+
+        if (releaseOnDisconnectListener != null) {
+            ctx.channel().closeFuture().removeListener(releaseOnDisconnectListener);
+            releaseOnDisconnectListener = null;
+        }
+    }
+
+    /**
+     * Marks the HAR entry as complete, once the response has been fully received or the request has failed, by assigning
+     * it a sequence number, and publishes it to listeners. The entry is only published the first time it is completed.
+     */
+    protected void completeHarEntry() {
+        if (harEntry.getSequence() != null) {
+            return;
+        }
+
+        HarEntrySequencer.assignSequence(harEntry, har.getLog());
+
+        if (harEntryPublisher != null) {
+            harEntryPublisher.publish(harEntry);
+        }
     }
 
     /**
@@ -344,10 +480,18 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
         HarRequest harRequest = new HarRequest();
         harRequest.setMethod(HttpMethod.valueOf(httpRequest.method().toString()));
         harRequest.setUrl(url);
-        harRequest.setHttpVersion(httpRequest.protocolVersion().text());
+        harRequest.setHttpVersion(getHttpVersion(httpRequest));
         return harRequest;
     }
 
+    /**
+     * Returns the version of the protocol the client used to send the request or receive the response. Messages on
+     * HTTP/2 client connections are translated to HTTP/1.1, so their protocol version is not used.
+     */
+    private String getHttpVersion(HttpMessage httpMessage) {
+        return isHttp2() ? HTTP_2_VERSION : httpMessage.protocolVersion().text();
+    }
+
     //TODO: add unit tests for these utility-like capture() methods
 
     protected void captureQueryParameters(HttpRequest httpRequest) {
@@ -473,11 +617,41 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
 
             // not URL encoded, so let's grab the body of the POST and capture that
             String postBody = BrowserUpHttpUtil.getContentAsString(fullMessage, charset);
-            harEntry.getRequest().getPostData().setText(postBody);
+            if (harBodyStore != null) {
+                harEntry.getRequest().getPostData().setTextSupplier(harBodyStore.store(postBody));
+            } else {
+                harEntry.getRequest().getPostData().setText(postBody);
+            }
         }
     }
 
     protected void captureResponseContent(HttpResponse httpResponse, byte[] fullMessage) {
+        captureResponseContent(httpResponse, fullMessage, null);
+    }
+
+    /**
+     * Captures the response content held in the contentBuffer. If the content spilled to disk and a {@link HarBodyStore} is
+     * configured, the content is streamed from disk into the store, so it is never held in memory in full.
+     *
+     * @param httpResponse the response
+     * @param contentBuffer buffer holding the entire response content
+     */
+    protected void captureResponseContent(HttpResponse httpResponse, BoundedContentBuffer contentBuffer) {
+        if (contentBuffer == null) {
+            return;
+        }
+
+        if (harBodyStore != null && contentBuffer.isSpilledToDisk()) {
+            captureResponseContent(httpResponse, null, contentBuffer);
+        } else {
+            captureResponseContent(httpResponse, contentBuffer.toByteArray(), null);
+        }
+    }
+
+    /**
+     * Captures the response content from either the fullMessage, or the spilledContent if the fullMessage is null.
+     */
+    private void captureResponseContent(HttpResponse httpResponse, byte[] fullMessage, BoundedContentBuffer spilledContent) {
         // force binary if the content encoding is not supported
         boolean forceBinary = false;
 
@@ -507,22 +681,62 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
             log.debug("No charset specified; using charset {} to decode contents from {}", charset, originalRequest.getUri());
         }
 
+        long contentSize = fullMessage != null ? fullMessage.length : spilledContent.size();
+
         if (!forceBinary && BrowserUpHttpUtil.hasTextualContent(contentType)) {
-            String text = BrowserUpHttpUtil.getContentAsString(fullMessage, charset);
-            harEntry.getResponse().getContent().setText(text);
+            if (fullMessage != null) {
+                String text = BrowserUpHttpUtil.getContentAsString(fullMessage, charset);
+                captureResponseContentText(text);
+            } else {
+                Charset textCharset = charset;
+                storeResponseContentText(writer -> {
+                    try (Reader reader = new InputStreamReader(spilledContent.openStream(), textCharset)) {
+                        CharStreams.copy(reader, writer);
+                    }
+                });
+            }
         } else if (dataToCapture.contains(CaptureType.RESPONSE_BINARY_CONTENT)) {
-            harEntry.getResponse().getContent().setText(BaseEncoding.base64().encode(fullMessage));
+            if (fullMessage != null) {
+                captureResponseContentText(BaseEncoding.base64().encode(fullMessage));
+            } else {
+                storeResponseContentText(writer -> {
+                    try (InputStream content = spilledContent.openStream();
+                         OutputStream base64 = BaseEncoding.base64().encodingStream(writer)) {
+                        ByteStreams.copy(content, base64);
+                    }
+                });
+            }
             harEntry.getResponse().getContent().setEncoding("base64");
         }
 
-        harEntry.getResponse().getContent().setSize((long)fullMessage.length);
+        harEntry.getResponse().getContent().setSize(contentSize);
+
+        if (responseCaptureFilter.isResponseContentTruncated()) {
+            harEntry.getResponse().getContent().setComment("Response content truncated to " + contentSize + " bytes");
+        }
+    }
+
+    private void storeResponseContentText(HarBodyStore.BodyWriter bodyWriter) {
+        try {
+            harEntry.getResponse().getContent().setTextSupplier(harBodyStore.store(bodyWriter));
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("Unable to store response content from {}. Content will not be captured in HAR.", originalRequest.uri(), e);
+        }
+    }
+
+    private void captureResponseContentText(String text) {
+        if (harBodyStore != null) {
+            harEntry.getResponse().getContent().setTextSupplier(harBodyStore.store(text));
+        } else {
+            harEntry.getResponse().getContent().setText(text);
+        }
     }
 
     protected void captureResponse(HttpResponse httpResponse) {
         HarResponse response = new HarResponse();
         response.setStatus(httpResponse.status().code());
         response.setStatusText(httpResponse.status().reasonPhrase());
-        response.setHttpVersion(httpResponse.protocolVersion().text());
+        response.setHttpVersion(getHttpVersion(httpResponse));
         harEntry.setResponse(response);
 
         captureResponseHeaderSize(httpResponse);
@@ -648,7 +862,7 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
         if (httpConnectTiming != null) {
             this.harEntry.getTimings().setSsl(httpConnectTiming.getSslHandshakeTimeNanos(), NANOSECONDS);
             this.harEntry.getTimings().setConnect(httpConnectTiming.getConnectTimeNanos(), NANOSECONDS);
-            this.harEntry.getTimings().setBlocked(httpConnectTiming.getBlockedTimeNanos(), NANOSECONDS);
+            this.harEntry.getTimings().setBlocked(streamQueuedNanos + httpConnectTiming.getBlockedTimeNanos(), NANOSECONDS);
             this.harEntry.getTimings().setDns(httpConnectTiming.getDnsTimeNanos(), NANOSECONDS);
         }
     }
@@ -682,9 +896,9 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
 
         // resolution started means the connection is no longer queued, so populate 'blocked' time
         if (connectionQueuedNanos > 0L) {
-            this.harEntry.getTimings().setBlocked(dnsResolutionStartedNanos - connectionQueuedNanos, NANOSECONDS);
+            this.harEntry.getTimings().setBlocked(streamQueuedNanos + dnsResolutionStartedNanos - connectionQueuedNanos, NANOSECONDS);
         } else {
-            this.harEntry.getTimings().setBlocked(0);
+            this.harEntry.getTimings().setBlocked(streamQueuedNanos, NANOSECONDS);
         }
 
         return null;
@@ -702,6 +916,8 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
         if (dnsResolutionStartedNanos > 0L) {
             this.harEntry.getTimings().setDns(System.nanoTime() - dnsResolutionStartedNanos, NANOSECONDS);
         }
+
+        completeHarEntry();
     }
 
     @Override
@@ -745,6 +961,8 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
         if (connectionStartedNanos > 0L) {
             this.harEntry.getTimings().setConnect(System.nanoTime() - connectionStartedNanos, NANOSECONDS);
         }
+
+        completeHarEntry();
     }
 
     @Override
@@ -808,5 +1026,7 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
         } else {
             this.harEntry.getTimings().setReceive(0);
         }
+
+        completeHarEntry();
     }
 }
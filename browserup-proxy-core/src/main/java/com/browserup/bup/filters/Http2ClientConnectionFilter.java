@@ -0,0 +1,33 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters;
+
+import com.browserup.bup.filters.support.Http2ClientConnectionHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import org.littleshoot.proxy.HttpFiltersAdapter;
+import org.littleshoot.proxy.impl.ProxyUtils;
+
+/**
+ * Prepares a client connection to switch to HTTP/2 if the client negotiates h2 during the man-in-the-middle TLS
+ * handshake, by adding an {@link Http2ClientConnectionHandler} to the client channel when the HTTP CONNECT is received.
+ * This filter should only be used for HTTP CONNECTs, when the MitmManager offers HTTP/2 to clients.
+ */
+public class Http2ClientConnectionFilter extends HttpFiltersAdapter {
+    public Http2ClientConnectionFilter(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+        super(originalRequest, ctx);
+    }
+
+    @Override
+    public HttpResponse clientToProxyRequest(HttpObject httpObject) {
+        if (httpObject instanceof HttpRequest && ProxyUtils.isCONNECT((HttpRequest) httpObject)) {
+            Http2ClientConnectionHandler.addTo(ctx.pipeline());
+        }
+
+        return null;
+    }
+}
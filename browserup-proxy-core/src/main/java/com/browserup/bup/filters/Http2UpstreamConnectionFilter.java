@@ -0,0 +1,27 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters;
+
+import com.browserup.bup.filters.support.Http2UpstreamConnectionHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpRequest;
+import org.littleshoot.proxy.HttpFiltersAdapter;
+
+/**
+ * Switches a new connection to an upstream server to HTTP/2 if the server negotiated h2 during the TLS handshake, by
+ * adding an {@link Http2UpstreamConnectionHandler} to the server channel before the first request is written. This
+ * filter should be used for all requests when the MitmManager offers HTTP/2 to upstream servers, since any request
+ * may open a new server connection.
+ */
+public class Http2UpstreamConnectionFilter extends HttpFiltersAdapter {
+    public Http2UpstreamConnectionFilter(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+        super(originalRequest, ctx);
+    }
+
+    @Override
+    public void proxyToServerConnectionSucceeded(ChannelHandlerContext serverCtx) {
+        Http2UpstreamConnectionHandler.switchToHttp2IfNegotiated(serverCtx.pipeline());
+    }
+}
@@ -17,6 +17,8 @@ import com.browserup.harreader.model.HarResponse;
 import com.browserup.harreader.model.HarTiming;
 import com.browserup.bup.filters.support.HttpConnectTiming;
 import com.browserup.bup.filters.util.HarCaptureUtil;
+import com.browserup.bup.har.HarEntryPublisher;
+import com.browserup.bup.har.HarEntrySequencer;
 import com.browserup.bup.util.HttpUtil;
 import org.littleshoot.proxy.impl.ProxyUtils;
 import org.slf4j.Logger;
@@ -123,7 +125,17 @@ public class HttpConnectHarCaptureFilter extends HttpsAwareFiltersAdapter implem
 
     private volatile HttpRequest modifiedHttpRequest;
 
+    /**
+     * Publisher to notify when a HAR entry for a failed CONNECT is completed. May be null.
+     */
+    private final HarEntryPublisher harEntryPublisher;
+
     public HttpConnectHarCaptureFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, Har har, String currentPageRef) {
+        this(originalRequest, ctx, har, currentPageRef, null);
+    }
+
+    public HttpConnectHarCaptureFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, Har har, String currentPageRef,
+                                       HarEntryPublisher harEntryPublisher) {
         super(originalRequest, ctx);
 
         if (har == null) {
@@ -136,6 +148,7 @@ public class HttpConnectHarCaptureFilter extends HttpsAwareFiltersAdapter implem
 
         this.har = har;
         this.currentPageRef = currentPageRef;
+        this.harEntryPublisher = harEntryPublisher;
 
         this.clientAddress = (InetSocketAddress) ctx.channel().remoteAddress();
 
@@ -166,7 +179,7 @@ public class HttpConnectHarCaptureFilter extends HttpsAwareFiltersAdapter implem
         }
 
         harEntry.setTime(getTotalElapsedTime(harEntry.getTimings()));
-        har.getLog().getEntries().add(harEntry);
+        addCompletedHarEntry(harEntry);
 
         httpConnectTimes.remove(clientAddress);
     }
@@ -183,7 +196,7 @@ public class HttpConnectHarCaptureFilter extends HttpsAwareFiltersAdapter implem
         }
 
         harEntry.setTime(getTotalElapsedTime(harEntry.getTimings()));
-        har.getLog().getEntries().add(harEntry);
+        addCompletedHarEntry(harEntry);
 
         httpConnectTimes.remove(clientAddress);
     }
@@ -231,7 +244,7 @@ public class HttpConnectHarCaptureFilter extends HttpsAwareFiltersAdapter implem
         }
 
         harEntry.setTime(getTotalElapsedTime(harEntry.getTimings()));
-        har.getLog().getEntries().add(harEntry);
+        addCompletedHarEntry(harEntry);
     }
 
     @Override
@@ -287,6 +300,19 @@ public class HttpConnectHarCaptureFilter extends HttpsAwareFiltersAdapter implem
         this.responseReceiveStartedNanos = System.nanoTime();
     }
 
+    /**
+     * Adds the completed HAR entry for a failed CONNECT to the HAR, and publishes it to listeners.
+     */
+    private void addCompletedHarEntry(HarEntry harEntry) {
+        // add the entry before it is sequenced, so that it is in the HAR by the time clients polling for entries see its sequence
+        har.getLog().getEntries().add(harEntry);
+        HarEntrySequencer.assignSequence(harEntry, har.getLog());
+
+        if (harEntryPublisher != null) {
+            harEntryPublisher.publish(harEntry);
+        }
+    }
+
     /**
      * Populates timing information in the specified harEntry for failed rquests. Populates as much timing information
      * as possible, up to the point of failure.
@@ -0,0 +1,309 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters;
+
+import com.browserup.bup.filters.support.Http2ClientConnectionHandler;
+import com.browserup.bup.util.BrowserUpHttpUtil;
+import com.google.common.net.HostAndPort;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import org.littleshoot.proxy.impl.ProxyUtils;
+
+import java.util.Objects;
+
+import static com.browserup.bup.util.HttpUtil.getHostAndPortFromRequest;
+import static com.browserup.bup.util.HttpUtil.getHostFromRequest;
+import static com.browserup.bup.util.HttpUtil.startsWithHttpOrHttps;
+
+/**
+ * Information about a single request that is shared by all the filters handling it, so that the URL, host and connection
+ * details of the request are only computed once per request, rather than once per filter. The context is created by
+ * {@link BrowserUpHttpFilterChain} before it creates the filters for a request, and filters obtain it using
+ * {@link #forRequest(HttpRequest, ChannelHandlerContext)}; {@link HttpsAwareFiltersAdapter} does this automatically.
+ * <p>
+ * Values are computed when they are first needed. The URL and host of a request are cached along with the request's URI
+ * and Host header, and are recomputed if a filter changes either of them. Filters that change the channel attributes
+ * the context is based on, such as the HTTPS host captured during a CONNECT, must call {@link #invalidate()}.
+ * <p>
+ * The filters for a request are invoked by one thread at a time, so this class is not thread-safe.
+ */
+public class HttpRequestContext {
+    private static final AttributeKey<HttpRequestContext> REQUEST_CONTEXT_KEY = AttributeKey.valueOf("browserupRequestContext");
+
+    private static final AttributeKey<Boolean> IS_HTTPS_KEY = AttributeKey.valueOf(HttpsAwareFiltersAdapter.IS_HTTPS_ATTRIBUTE_NAME);
+    private static final AttributeKey<Boolean> IS_HTTP2_KEY = AttributeKey.valueOf(Http2ClientConnectionHandler.HTTP2_ATTRIBUTE_NAME);
+    private static final AttributeKey<String> HOST_KEY = AttributeKey.valueOf(HttpsAwareFiltersAdapter.HOST_ATTRIBUTE_NAME);
+
+    private final HttpRequest originalRequest;
+    private final ChannelHandlerContext ctx;
+
+    private Boolean https;
+    private Boolean http2;
+    private String httpsHostAndPort;
+
+    /**
+     * URL information for the original request, and for the most recent modified request filters have asked about.
+     */
+    private final RequestUrl originalRequestUrl = new RequestUrl();
+    private final RequestUrl modifiedRequestUrl = new RequestUrl();
+
+    HttpRequestContext(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+        this.originalRequest = originalRequest;
+        this.ctx = ctx;
+    }
+
+    /**
+     * Creates the context for a new request and makes it available to the filters created for the request. Called by
+     * {@link BrowserUpHttpFilterChain} before it creates the filters.
+     *
+     * @param originalRequest the original request from the client
+     * @param ctx the client channel's handler context
+     * @return the new context
+     */
+    static HttpRequestContext create(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+        HttpRequestContext requestContext = new HttpRequestContext(originalRequest, ctx);
+
+        Attribute<HttpRequestContext> attribute = getContextAttribute(ctx);
+        if (attribute != null) {
+            attribute.set(requestContext);
+        }
+
+        return requestContext;
+    }
+
+    /**
+     * Returns the context for the specified request. If the request is not being handled by a {@link BrowserUpHttpFilterChain},
+     * such as when a filter is invoked directly, returns a new context that is not shared with other filters.
+     *
+     * @param originalRequest the original request from the client, as passed to the filter
+     * @param ctx the client channel's handler context, as passed to the filter
+     * @return the context for the request
+     */
+    public static HttpRequestContext forRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+        Attribute<HttpRequestContext> attribute = getContextAttribute(ctx);
+        if (attribute != null) {
+            // the attribute holds the context of the request most recently received on the channel, which may be a later request
+            HttpRequestContext requestContext = attribute.get();
+            if (requestContext != null && requestContext.originalRequest == originalRequest) {
+                return requestContext;
+            }
+        }
+
+        return new HttpRequestContext(originalRequest, ctx);
+    }
+
+    /**
+     * Returns the original request most recently received on the client channel, or null if no request on the channel has
+     * been handled by a {@link BrowserUpHttpFilterChain}. Requests on a client channel are handled one at a time, so once a
+     * response has been written for a request, a different result means the channel has moved on to a later request.
+     *
+     * @param channel client-to-proxy channel
+     * @return the most recent original request on the channel, or null
+     */
+    public static HttpRequest getMostRecentRequest(Channel channel) {
+        HttpRequestContext requestContext = channel.attr(REQUEST_CONTEXT_KEY).get();
+        return requestContext == null ? null : requestContext.originalRequest;
+    }
+
+    private static Attribute<HttpRequestContext> getContextAttribute(ChannelHandlerContext ctx) {
+        Channel channel = ctx == null ? null : ctx.channel();
+        return channel == null ? null : channel.attr(REQUEST_CONTEXT_KEY);
+    }
+
+    /**
+     * Discards all cached values, so they are recomputed the next time they are needed.
+     */
+    public void invalidate() {
+        https = null;
+        http2 = null;
+        httpsHostAndPort = null;
+        originalRequestUrl.clear();
+        modifiedRequestUrl.clear();
+    }
+
+    /**
+     * @return the original request from the client
+     */
+    public HttpRequest getOriginalRequest() {
+        return originalRequest;
+    }
+
+    /**
+     * Returns true if this is an HTTPS request.
+     *
+     * @return true if https, false if http
+     */
+    public boolean isHttps() {
+        if (https == null) {
+            Boolean isHttps = ctx.channel().attr(IS_HTTPS_KEY).get();
+            https = isHttps != null && isHttps;
+        }
+
+        return https;
+    }
+
+    /**
+     * Returns true if the client connection uses HTTP/2.
+     *
+     * @return true if the client connection uses HTTP/2
+     */
+    public boolean isHttp2() {
+        if (http2 == null) {
+            Boolean isHttp2 = ctx.channel().attr(IS_HTTP2_KEY).get();
+            http2 = isHttp2 != null && isHttp2;
+        }
+
+        return http2;
+    }
+
+    /**
+     * @return the scheme of the request, either "http" or "https"
+     */
+    public String getScheme() {
+        return isHttps() ? "https" : "http";
+    }
+
+    /**
+     * Returns the full, absolute URL of the specified request, which may reflect modifications by filters.
+     *
+     * @param request the original request or a modified version of it
+     * @return the full URL of the request, including scheme, host, port, path, and query parameters
+     */
+    public String getFullUrl(HttpRequest request) {
+        RequestUrl requestUrl = getRequestUrl(request);
+        if (requestUrl.fullUrl == null) {
+            requestUrl.fullUrl = computeFullUrl(request);
+        }
+
+        return requestUrl.fullUrl;
+    }
+
+    /**
+     * Returns the full, absolute URL of the original request from the client.
+     *
+     * @return the full URL of the original request
+     */
+    public String getOriginalUrl() {
+        return getFullUrl(originalRequest);
+    }
+
+    /**
+     * Returns the host and port of the specified request, which may reflect modifications by filters.
+     *
+     * @param request the original request or a modified version of it
+     * @return host and port of the request
+     */
+    public String getHostAndPort(HttpRequest request) {
+        RequestUrl requestUrl = getRequestUrl(request);
+        if (requestUrl.hostAndPort == null) {
+            requestUrl.hostAndPort = isHttps() ? getHttpsHostAndPort() : getHostAndPortFromRequest(request);
+        }
+
+        return requestUrl.hostAndPort;
+    }
+
+    /**
+     * Returns the hostname, without the port, of the specified request, which may reflect modifications by filters.
+     *
+     * @param request the original request or a modified version of it
+     * @return hostname of the request
+     */
+    public String getHost(HttpRequest request) {
+        RequestUrl requestUrl = getRequestUrl(request);
+        if (requestUrl.host == null) {
+            requestUrl.host = isHttps() ? HostAndPort.fromString(getHttpsHostAndPort()).getHost() : getHostFromRequest(request);
+        }
+
+        return requestUrl.host;
+    }
+
+    /**
+     * Returns the port of the specified request, which may reflect modifications by filters. If the request does not
+     * specify a port, returns the default port for the request's scheme.
+     *
+     * @param request the original request or a modified version of it
+     * @return port of the request
+     */
+    public int getPort(HttpRequest request) {
+        RequestUrl requestUrl = getRequestUrl(request);
+        if (requestUrl.port < 0) {
+            String hostAndPort = getHostAndPort(request);
+            int defaultPort = isHttps() ? 443 : 80;
+            requestUrl.port = hostAndPort == null ? defaultPort : HostAndPort.fromString(hostAndPort).getPortOrDefault(defaultPort);
+        }
+
+        return requestUrl.port;
+    }
+
+    private String computeFullUrl(HttpRequest request) {
+        // special case: for HTTPS requests, the full URL is scheme (https://) + the URI of this request
+        if (ProxyUtils.isCONNECT(request)) {
+            // CONNECT requests contain the default port, even if it isn't specified on the request.
+            String hostNoDefaultPort = BrowserUpHttpUtil.removeMatchingPort(request.uri(), 443);
+            return "https://" + hostNoDefaultPort;
+        }
+
+        // If the request URI starts with http:// or https://, it is already a full URL and can be returned directly.
+        if (startsWithHttpOrHttps(request.uri())) {
+            return request.uri();
+        }
+
+        // The URI did not include the scheme and host, so it contains only the path and query params. The scheme is based
+        // on the type of connection, and the host and port are obtained from the request or the connection.
+        return getScheme() + "://" + getHostAndPort(request) + request.uri();
+    }
+
+    private String getHttpsHostAndPort() {
+        if (httpsHostAndPort == null) {
+            httpsHostAndPort = ctx.channel().attr(HOST_KEY).get();
+        }
+
+        return httpsHostAndPort;
+    }
+
+    /**
+     * Returns the cached URL information for the request, discarding it first if the request has been replaced or its
+     * URI or Host header has changed since it was cached.
+     */
+    private RequestUrl getRequestUrl(HttpRequest request) {
+        RequestUrl requestUrl = request == originalRequest ? originalRequestUrl : modifiedRequestUrl;
+
+        String uri = request.uri();
+        String hostHeader = request.headers().get(HttpHeaderNames.HOST);
+        if (requestUrl.request != request || !Objects.equals(requestUrl.uri, uri) || !Objects.equals(requestUrl.hostHeader, hostHeader)) {
+            requestUrl.clear();
+            requestUrl.request = request;
+            requestUrl.uri = uri;
+            requestUrl.hostHeader = hostHeader;
+        }
+
+        return requestUrl;
+    }
+
+    private static class RequestUrl {
+        private HttpRequest request;
+        private String uri;
+        private String hostHeader;
+
+        private String fullUrl;
+        private String hostAndPort;
+        private String host;
+        private int port = -1;
+
+        private void clear() {
+            request = null;
+            uri = null;
+            hostHeader = null;
+            fullUrl = null;
+            hostAndPort = null;
+            host = null;
+            port = -1;
+        }
+    }
+}
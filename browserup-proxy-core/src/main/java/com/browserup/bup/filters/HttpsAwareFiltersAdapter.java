@@ -4,47 +4,66 @@
 
 package com.browserup.bup.filters;
 
-import com.google.common.net.HostAndPort;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.util.Attribute;
 import io.netty.util.AttributeKey;
-import com.browserup.bup.util.HttpUtil;
-import com.browserup.bup.util.BrowserUpHttpUtil;
 import org.littleshoot.proxy.HttpFiltersAdapter;
-import org.littleshoot.proxy.impl.ProxyUtils;
-
-import static com.browserup.bup.util.HttpUtil.*;
 
 /**
  * The HttpsAwareFiltersAdapter exposes the original host and the "real" host (after filter modifications) to filters for HTTPS
  * requets. HTTPS requests do not normally contain the host in the URI, and the Host header may be missing or spoofed.
- * <b>Note:</b> The {@link #getHttpsRequestHostAndPort()} and {@link #getHttpsOriginalRequestHostAndPort()} methods can only be
- * called when the request is an HTTPS request. Otherwise they will throw an IllegalStateException.
+ * <b>Note:</b> The {@link #getHttpsOriginalRequestHostAndPort()} method can only be called when the request is an HTTPS request.
+ * Otherwise it will throw an IllegalStateException.
+ * <p>
+ * The URL and host of the request are obtained from the {@link HttpRequestContext} shared by all filters handling the request,
+ * so they are only computed once per request.
  */
 public class HttpsAwareFiltersAdapter extends HttpFiltersAdapter {
     public static final String IS_HTTPS_ATTRIBUTE_NAME = "isHttps";
     public static final String HOST_ATTRIBUTE_NAME = "host";
     public static final String ORIGINAL_HOST_ATTRIBUTE_NAME = "originalHost";
 
+    /**
+     * The context shared by all filters handling this request. Obtained when it is first needed, since filters may be
+     * created without a channel, such as in tests.
+     */
+    private HttpRequestContext requestContext;
+
     public HttpsAwareFiltersAdapter(HttpRequest originalRequest, ChannelHandlerContext ctx) {
         super(originalRequest, ctx);
     }
 
+    /**
+     * Returns the context shared by all filters handling this request, which caches the request's URL and connection details.
+     *
+     * @return the context for this request
+     */
+    public HttpRequestContext getRequestContext() {
+        if (requestContext == null) {
+            requestContext = HttpRequestContext.forRequest(originalRequest, ctx);
+        }
+
+        return requestContext;
+    }
+
     /**
      * Returns true if this is an HTTPS request.
      *
      * @return true if https, false if http
      */
     public boolean isHttps() {
-        Attribute<Boolean> isHttpsAttr = ctx.channel().attr(AttributeKey.valueOf(IS_HTTPS_ATTRIBUTE_NAME));
+        return getRequestContext().isHttps();
+    }
 
-        Boolean isHttps = isHttpsAttr.get();
-        if (isHttps == null) {
-            return false;
-        } else {
-            return isHttps;
-        }
+    /**
+     * Returns true if the client connection uses HTTP/2. The requests and responses on an HTTP/2 client connection are
+     * translated to and from HTTP/1.1 messages, so their protocol version does not reflect the protocol the client used.
+     *
+     * @return true if the client connection uses HTTP/2
+     */
+    public boolean isHttp2() {
+        return getRequestContext().isHttp2();
     }
 
     /**
@@ -56,28 +75,7 @@ public class HttpsAwareFiltersAdapter extends HttpFiltersAdapter {
      * @return the full URL of the request, including scheme, host, port, path, and query parameters
      */
     public String getFullUrl(HttpRequest modifiedRequest) {
-        // special case: for HTTPS requests, the full URL is scheme (https://) + the URI of this request
-        if (ProxyUtils.isCONNECT(modifiedRequest)) {
-            // CONNECT requests contain the default port, even if it isn't specified on the request.
-            String hostNoDefaultPort = BrowserUpHttpUtil.removeMatchingPort(modifiedRequest.uri(), 443);
-            return "https://" + hostNoDefaultPort;
-        }
-
-        // To get the full URL, we need to retrieve the Scheme, Host + Port, Path, and Query Params from the request.
-        // If the request URI starts with http:// or https://, it is already a full URL and can be returned directly.
-        if (startsWithHttpOrHttps(modifiedRequest.uri())) {
-            return modifiedRequest.uri();
-        }
-
-        // The URI did not include the scheme and host, so examine the request to obtain them:
-        // Scheme: the scheme (HTTP/HTTPS) are based on the type of connection, obtained from isHttps()
-        // Host and Port: available for HTTP and HTTPS requests using the getHostAndPort() helper method.
-        // Path + Query Params: since the request URI doesn't start with the scheme, we can safely assume that the URI
-        //    contains only the path and query params.
-        String hostAndPort = getHostAndPort(modifiedRequest);
-        String path = modifiedRequest.uri();
-
-        return isHttps() ? "https://" + hostAndPort + path : "http://" + hostAndPort + path;
+        return getRequestContext().getFullUrl(modifiedRequest);
     }
 
     /**
@@ -87,7 +85,7 @@ public class HttpsAwareFiltersAdapter extends HttpFiltersAdapter {
      * @return the full URL of the original request, including scheme, host, port, path, and query parameters
      */
     public String getOriginalUrl() {
-        return getFullUrl(originalRequest);
+        return getRequestContext().getOriginalUrl();
     }
 
     /**
@@ -99,14 +97,7 @@ public class HttpsAwareFiltersAdapter extends HttpFiltersAdapter {
      * @return hostname of the specified request, without the port
      */
     public String getHost(HttpRequest modifiedRequest) {
-        String serverHost;
-        if (isHttps()) {
-            HostAndPort hostAndPort = HostAndPort.fromString(getHttpsRequestHostAndPort());
-            serverHost = hostAndPort.getHost();
-        } else {
-            serverHost = getHostFromRequest(modifiedRequest);
-        }
-        return serverHost;
+        return getRequestContext().getHost(modifiedRequest);
     }
 
     /**
@@ -118,25 +109,7 @@ public class HttpsAwareFiltersAdapter extends HttpFiltersAdapter {
      * @return host and port of the specified request
      */
     public String getHostAndPort(HttpRequest modifiedRequest) {
-        // For HTTP requests, the host and port can be read from the request itself using the URI and/or
-        //   Host header. for HTTPS requests, the host and port are not available in the request. by using the
-        //   getHttpsRequestHostAndPort() helper method, we can retrieve the host and port for HTTPS requests.
-        return isHttps() ? getHttpsRequestHostAndPort() : getHostAndPortFromRequest(modifiedRequest);
-    }
-
-    /**
-     * Returns the host and port of this HTTPS request, including any modifications by other filters.
-     *
-     * @return host and port of this HTTPS request
-     * @throws IllegalStateException if this is not an HTTPS request
-     */
-    private String getHttpsRequestHostAndPort() throws IllegalStateException {
-        if (!isHttps()) {
-            throw new IllegalStateException("Request is not HTTPS. Cannot get host and port on non-HTTPS request using this method.");
-        }
-
-        Attribute<String> hostnameAttr = ctx.channel().attr(AttributeKey.valueOf(HOST_ATTRIBUTE_NAME));
-        return hostnameAttr.get();
+        return getRequestContext().getHostAndPort(modifiedRequest);
     }
 
     /**
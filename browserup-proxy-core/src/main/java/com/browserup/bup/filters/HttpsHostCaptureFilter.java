@@ -41,6 +41,9 @@ public class HttpsHostCaptureFilter extends HttpFiltersAdapter {
                 // would be unexpected.
                 String hostNoDefaultPort = BrowserUpHttpUtil.removeMatchingPort(hostAndPort, 443);
                 hostname.set(hostNoDefaultPort);
+
+                // the host of HTTPS requests is read from the channel, so filters need to see the captured host
+                HttpRequestContext.forRequest(originalRequest, ctx).invalidate();
             }
         }
 
@@ -35,6 +35,8 @@ public class HttpsOriginalHostCaptureFilter extends HttpsHostCaptureFilter {
 
             Attribute<Boolean> isHttpsAttr = ctx.channel().attr(AttributeKey.valueOf(IS_HTTPS_ATTRIBUTE_NAME));
             isHttpsAttr.set(true);
+
+            HttpRequestContext.forRequest(originalRequest, ctx).invalidate();
         }
     }
 }
@@ -4,44 +4,94 @@
 
 package com.browserup.bup.filters;
 
+import com.browserup.bup.filters.support.ResponseDelayHandler;
+import com.browserup.bup.proxy.LatencyRule;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
-import org.littleshoot.proxy.HttpFiltersAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Adds latency to a response before sending it to the client. This filter always adds the specified latency, even if the latency
  * between the proxy and the remote server already exceeds this value.
+ * <p>
+ * The response is not delayed by blocking the current thread. Instead, the filter asks the {@link ResponseDelayHandler} on the
+ * client channel to hold the response, and the handler releases it from a task scheduled on the channel's event loop. Other
+ * connections served by the same event loop are not affected.
+ * <p>
+ * The latency for a request is taken from the first {@link LatencyRule} that matches the request's URL, or from the default
+ * rule if no rule matches.
  */
-public class LatencyFilter extends HttpFiltersAdapter {
-    private static final Logger log = LoggerFactory.getLogger(HttpFiltersAdapter.class);
+public class LatencyFilter extends HttpsAwareFiltersAdapter {
+    private static final Logger log = LoggerFactory.getLogger(LatencyFilter.class);
 
-    private final int latencyMs;
+    private final Collection<LatencyRule> latencyRules;
+    private final LatencyRule defaultLatencyRule;
 
+    /**
+     * Creates a filter that adds a fixed latency to the response. Without the client channel's context, the response can only
+     * be delayed by blocking the thread that invokes the filter, as this filter did before latency was scheduled on the event
+     * loop.
+     *
+     * @param originalRequest the original request from the client
+     * @param latencyMs latency to add to the response, in milliseconds
+     * @deprecated use {@link #LatencyFilter(HttpRequest, ChannelHandlerContext, LatencyRule, Collection)}, which does not block
+     *             the proxy thread
+     */
+    @Deprecated
     public LatencyFilter(HttpRequest originalRequest, int latencyMs) {
-        super(originalRequest);
+        this(originalRequest, null, new LatencyRule(null, Math.max(latencyMs, 0), TimeUnit.MILLISECONDS), null);
+    }
+
+    public LatencyFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, LatencyRule defaultLatencyRule, Collection<LatencyRule> latencyRules) {
+        super(originalRequest, ctx);
 
-        this.latencyMs = latencyMs;
+        this.defaultLatencyRule = defaultLatencyRule;
+        this.latencyRules = latencyRules == null ? Collections.emptyList() : latencyRules;
     }
 
     @Override
     public HttpObject proxyToClientResponse(HttpObject httpObject) {
         if (httpObject instanceof HttpResponse) {
+            long latencyMs = getLatencyMs();
             if (latencyMs > 0) {
-                try {
-                    TimeUnit.MILLISECONDS.sleep(latencyMs);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-
-                    log.warn("Interrupted while adding latency to response", e);
+                if (ctx != null) {
+                    ResponseDelayHandler.getOrAddTo(ctx.pipeline()).delayResponse(originalRequest, latencyMs);
+                } else {
+                    sleep(latencyMs);
                 }
             }
         }
 
         return super.proxyToClientResponse(httpObject);
     }
+
+    private long getLatencyMs() {
+        if (!latencyRules.isEmpty()) {
+            String url = getOriginalUrl();
+            for (LatencyRule latencyRule : latencyRules) {
+                if (latencyRule.matches(url)) {
+                    return latencyRule.nextLatencyMs();
+                }
+            }
+        }
+
+        return defaultLatencyRule == null ? 0L : defaultLatencyRule.nextLatencyMs();
+    }
+
+    private static void sleep(long latencyMs) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(latencyMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            log.warn("Interrupted while adding latency to response", e);
+        }
+    }
 }
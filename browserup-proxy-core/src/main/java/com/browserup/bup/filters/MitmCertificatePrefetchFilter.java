@@ -0,0 +1,36 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters;
+
+import com.browserup.bup.mitm.manager.ImpersonatingMitmManager;
+import com.browserup.bup.util.HttpUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpRequest;
+import org.littleshoot.proxy.HttpFiltersAdapter;
+
+/**
+ * Starts generating the certificate impersonating the host of an HTTP CONNECT when the proxy begins connecting to the
+ * upstream server, so the certificate is generated while the upstream connection and TLS handshake are established,
+ * rather than afterwards while the client's handshake waits for it. This filter should only be used for HTTP CONNECTs.
+ */
+public class MitmCertificatePrefetchFilter extends HttpFiltersAdapter {
+    private final ImpersonatingMitmManager mitmManager;
+
+    public MitmCertificatePrefetchFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, ImpersonatingMitmManager mitmManager) {
+        super(originalRequest, ctx);
+
+        this.mitmManager = mitmManager;
+    }
+
+    @Override
+    public void proxyToServerResolutionStarted(String resolvingServerHostAndPort) {
+        // use the same host the MITM manager will impersonate when the client handshake starts
+        String host = HttpUtil.getHostFromRequest(originalRequest);
+        if (host != null && !host.isEmpty()) {
+            // errors are ignored, since the certificate will be generated again when the client handshake needs it
+            mitmManager.prepareImpersonatingSslContext(host);
+        }
+    }
+}
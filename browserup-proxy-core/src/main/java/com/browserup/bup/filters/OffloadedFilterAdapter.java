@@ -0,0 +1,168 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters;
+
+import com.browserup.bup.filters.support.FilterExecutor;
+import com.browserup.bup.filters.support.OffloadedFilterHandler;
+import com.browserup.bup.util.HttpMessageContents;
+import com.browserup.bup.util.HttpMessageInfo;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpMessage;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import org.littleshoot.proxy.HttpFilters;
+import org.littleshoot.proxy.HttpFiltersSourceAdapter;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A filter adapter that runs {@link RequestFilter}s and {@link ResponseFilter}s on a {@link FilterExecutor}, so that
+ * slow filters do not block the event loop that handles the client connection. The filters are run by an
+ * {@link OffloadedFilterHandler} in the client channel's pipeline, which is added when the adapter handles the first
+ * request on a connection. Since that request has already been read by the proxy, its request filters run on the event
+ * loop, as they would in a {@link RequestFilterAdapter}; the filters for all later requests on the connection (including
+ * every request inside a MITM'd CONNECT tunnel) run on the executor.
+ */
+public class OffloadedFilterAdapter extends HttpsAwareFiltersAdapter implements ModifiedRequestAwareFilter {
+    private final FilterSource filterSource;
+
+    /**
+     * The final HttpRequest sent to the server, reflecting all modifications from request filters.
+     */
+    private HttpRequest modifiedHttpRequest;
+
+    public OffloadedFilterAdapter(HttpRequest originalRequest, ChannelHandlerContext ctx, FilterSource filterSource) {
+        super(originalRequest, ctx);
+
+        this.filterSource = filterSource;
+    }
+
+    @Override
+    public HttpResponse clientToProxyRequest(HttpObject httpObject) {
+        if (httpObject instanceof HttpRequest && !filterSource.requestFilters.isEmpty()) {
+            HttpRequest httpRequest = (HttpRequest) httpObject;
+
+            OffloadedFilterHandler handler = getHandler();
+            if (handler.isFiltered(httpRequest)) {
+                return handler.takeShortCircuitResponse();
+            }
+
+            // the handler was added while the proxy was reading this request, so it could not filter the request
+            return filterRequestOnEventLoop(httpRequest);
+        }
+
+        return null;
+    }
+
+    @Override
+    public HttpObject serverToProxyResponse(HttpObject httpObject) {
+        if (httpObject instanceof HttpResponse && !filterSource.responseFilters.isEmpty()) {
+            HttpMessageInfo messageInfo = new HttpMessageInfo(originalRequest, ctx, isHttps(), getFullUrl(modifiedHttpRequest), getOriginalUrl());
+
+            getHandler().filterResponse((HttpResponse) httpObject, messageInfo);
+        }
+
+        return super.serverToProxyResponse(httpObject);
+    }
+
+    @Override
+    public void setModifiedHttpRequest(HttpRequest modifiedHttpRequest) {
+        this.modifiedHttpRequest = modifiedHttpRequest;
+    }
+
+    private OffloadedFilterHandler getHandler() {
+        return OffloadedFilterHandler.getOrAddTo(ctx, filterSource.requestFilters, filterSource.responseFilters, filterSource.filterExecutor);
+    }
+
+    private HttpResponse filterRequestOnEventLoop(HttpRequest httpRequest) {
+        HttpMessageContents contents;
+        if (httpRequest instanceof FullHttpMessage) {
+            contents = new HttpMessageContents((FullHttpMessage) httpRequest);
+        } else {
+            contents = null;
+        }
+
+        for (RequestFilter requestFilter : filterSource.requestFilters) {
+            HttpMessageInfo messageInfo = new HttpMessageInfo(originalRequest, ctx, isHttps(), getFullUrl(httpRequest), getOriginalUrl());
+
+            HttpResponse response = requestFilter.filterRequest(httpRequest, contents, messageInfo);
+            if (response != null) {
+                return response;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * A {@link HttpFiltersSourceAdapter} for {@link OffloadedFilterAdapter}s. Filters can be added while the proxy is
+     * running. Like the sources for {@link RequestFilterAdapter}s and {@link ResponseFilterAdapter}s, this FilterSource
+     * enables HTTP message aggregation, with a maximum request buffer size of 2 MiB and a maximum response buffer size of 10 MiB.
+     */
+    public static class FilterSource extends HttpFiltersSourceAdapter implements ConditionalHttpFiltersSource {
+        private static final int DEFAULT_MAXIMUM_REQUEST_BUFFER_SIZE = 2097152;
+
+        private final FilterExecutor filterExecutor;
+
+        private final List<RequestFilter> requestFilters = new CopyOnWriteArrayList<>();
+        private final List<ResponseFilter> responseFilters = new CopyOnWriteArrayList<>();
+
+        /**
+         * Creates a new filter source that runs its filters on the filterExecutor.
+         *
+         * @param filterExecutor executor to run the filters on
+         */
+        public FilterSource(FilterExecutor filterExecutor) {
+            this.filterExecutor = filterExecutor;
+        }
+
+        /**
+         * Adds a request filter, which will be invoked before the request filters that have already been added.
+         *
+         * @param filter RequestFilter to invoke
+         */
+        public void addRequestFilter(RequestFilter filter) {
+            requestFilters.add(0, filter);
+        }
+
+        /**
+         * Adds a response filter, which will be invoked after the response filters that have already been added.
+         *
+         * @param filter ResponseFilter to invoke
+         */
+        public void addResponseFilter(ResponseFilter filter) {
+            responseFilters.add(filter);
+        }
+
+        /**
+         * @return the executor the filters run on
+         */
+        public FilterExecutor getFilterExecutor() {
+            return filterExecutor;
+        }
+
+        @Override
+        public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+            return new OffloadedFilterAdapter(originalRequest, ctx, this);
+        }
+
+        @Override
+        public boolean isActive() {
+            return !requestFilters.isEmpty() || !responseFilters.isEmpty();
+        }
+
+        @Override
+        public int getMaximumRequestBufferSizeInBytes() {
+            return DEFAULT_MAXIMUM_REQUEST_BUFFER_SIZE;
+        }
+
+        @Override
+        public int getMaximumResponseBufferSizeInBytes() {
+            return ResponseFilterAdapter.FilterSource.DEFAULT_MAXIMUM_RESPONSE_BUFFER_SIZE;
+        }
+    }
+}
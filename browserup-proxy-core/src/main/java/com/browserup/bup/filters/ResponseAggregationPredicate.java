@@ -0,0 +1,91 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters;
+
+import com.google.common.net.HostAndPort;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponse;
+
+import java.net.URI;
+import java.util.regex.Pattern;
+
+/**
+ * A functional interface that selects the responses a {@link ResponseFilter} needs to read or modify the contents of. Only
+ * the selected responses are aggregated into a {@link io.netty.handler.codec.http.FullHttpResponse}; all other responses
+ * are streamed to the client as they arrive. The predicate is evaluated when the response headers are received.
+ */
+@FunctionalInterface
+public interface ResponseAggregationPredicate {
+    /**
+     * Returns true if the response to the request for the specified URL should be aggregated.
+     *
+     * @param url full URL of the request sent to the server, including the scheme, host and port
+     * @param response the response headers and status line
+     * @return true to aggregate the response
+     */
+    boolean shouldAggregate(String url, HttpResponse response);
+
+    /**
+     * Returns a predicate that selects responses that match this predicate or the other predicate.
+     *
+     * @param other predicate to evaluate if this predicate does not match
+     * @return combined predicate
+     */
+    default ResponseAggregationPredicate or(ResponseAggregationPredicate other) {
+        return (url, response) -> shouldAggregate(url, response) || other.shouldAggregate(url, response);
+    }
+
+    /**
+     * Returns a predicate that selects responses to requests whose full URL matches the regular expression.
+     *
+     * @param urlPattern regular expression to match against the full URL
+     * @return URL predicate
+     */
+    static ResponseAggregationPredicate urlMatches(String urlPattern) {
+        Pattern pattern = Pattern.compile(urlPattern);
+        return (url, response) -> pattern.matcher(url).matches();
+    }
+
+    /**
+     * Returns a predicate that selects responses from the specified host, regardless of the port. The host is compared
+     * case-insensitively.
+     *
+     * @param host hostname, such as www.example.com
+     * @return host predicate
+     */
+    static ResponseAggregationPredicate hostEquals(String host) {
+        return (url, response) -> {
+            String urlHost;
+            try {
+                urlHost = URI.create(url).getHost();
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+
+            return urlHost != null && HostAndPort.fromString(urlHost).getHost().equalsIgnoreCase(host);
+        };
+    }
+
+    /**
+     * Returns a predicate that selects responses whose Content-Type matches the regular expression. Parameters such as
+     * the charset are ignored, so a pattern like {@code text/.*} matches {@code text/html; charset=UTF-8}.
+     *
+     * @param contentTypePattern regular expression to match against the response's media type
+     * @return content type predicate
+     */
+    static ResponseAggregationPredicate contentTypeMatches(String contentTypePattern) {
+        Pattern pattern = Pattern.compile(contentTypePattern, Pattern.CASE_INSENSITIVE);
+        return (url, response) -> {
+            String contentType = response.headers().get(HttpHeaderNames.CONTENT_TYPE);
+            if (contentType == null) {
+                return false;
+            }
+
+            int parametersIndex = contentType.indexOf(';');
+            String mediaType = parametersIndex < 0 ? contentType : contentType.substring(0, parametersIndex);
+            return pattern.matcher(mediaType.trim()).matches();
+        };
+    }
+}
@@ -63,13 +63,15 @@ public class ResponseFilterAdapter extends HttpsAwareFiltersAdapter implements M
 
     /**
      * A {@link HttpFiltersSourceAdapter} for {@link ResponseFilterAdapter}s. By default, this FilterSource enables HTTP message aggregation
-     * and sets a maximum response buffer size of 2 MiB.
+     * for all responses and sets a maximum response buffer size of 10 MiB. When constructed with a {@link ResponseAggregationPredicate},
+     * only the responses selected by the predicate are aggregated.
      */
-    public static class FilterSource extends HttpFiltersSourceAdapter {
-        private static final int DEFAULT_MAXIMUM_RESPONSE_BUFFER_SIZE = 10485760;
+    public static class FilterSource extends HttpFiltersSourceAdapter implements SelectiveResponseAggregationSource {
+        public static final int DEFAULT_MAXIMUM_RESPONSE_BUFFER_SIZE = 10485760;
 
         private final ResponseFilter filter;
         private final int maximumResponseBufferSizeInBytes;
+        private final ResponseAggregationPredicate aggregationPredicate;
 
         /**
          * Creates a new filter source that will invoke the specified filter and uses the {@link #DEFAULT_MAXIMUM_RESPONSE_BUFFER_SIZE} as
@@ -78,8 +80,7 @@ public class ResponseFilterAdapter extends HttpsAwareFiltersAdapter implements M
          * @param filter ResponseFilter to invoke
          */
         public FilterSource(ResponseFilter filter) {
-            this.filter = filter;
-            this.maximumResponseBufferSizeInBytes = DEFAULT_MAXIMUM_RESPONSE_BUFFER_SIZE;
+            this(filter, DEFAULT_MAXIMUM_RESPONSE_BUFFER_SIZE);
         }
 
         /**
@@ -93,8 +94,23 @@ public class ResponseFilterAdapter extends HttpsAwareFiltersAdapter implements M
          * @param maximumResponseBufferSizeInBytes maximum buffer size when aggregating responses for filtering
          */
         public FilterSource(ResponseFilter filter, int maximumResponseBufferSizeInBytes) {
+            this(filter, maximumResponseBufferSizeInBytes, null);
+        }
+
+        /**
+         * Creates a new filter source that will invoke the specified filter, and only aggregates the responses selected by the
+         * aggregationPredicate, using maximumResponseBufferSizeInBytes as the maximum buffer size. All other responses are streamed to
+         * the client without buffering, and the filter is invoked for them without {@link HttpMessageContents}. If the
+         * aggregationPredicate is null, all responses are aggregated.
+         *
+         * @param filter ResponseFilter to invoke
+         * @param maximumResponseBufferSizeInBytes maximum buffer size when aggregating responses for filtering
+         * @param aggregationPredicate selects the responses to aggregate, or null to aggregate all responses
+         */
+        public FilterSource(ResponseFilter filter, int maximumResponseBufferSizeInBytes, ResponseAggregationPredicate aggregationPredicate) {
             this.filter = filter;
             this.maximumResponseBufferSizeInBytes = maximumResponseBufferSizeInBytes;
+            this.aggregationPredicate = aggregationPredicate;
         }
 
         @Override
@@ -104,7 +120,25 @@ public class ResponseFilterAdapter extends HttpsAwareFiltersAdapter implements M
 
         @Override
         public int getMaximumResponseBufferSizeInBytes() {
-            return maximumResponseBufferSizeInBytes;
+            // selected responses are aggregated individually, so aggregation does not need to be enabled for all responses
+            return aggregationPredicate == null ? maximumResponseBufferSizeInBytes : 0;
+        }
+
+        /**
+         * @return true if this source was constructed with a {@link ResponseAggregationPredicate}
+         */
+        @Override
+        public boolean isSelective() {
+            return aggregationPredicate != null;
+        }
+
+        @Override
+        public int getResponseBufferSizeInBytes(String url, HttpResponse response) {
+            if (aggregationPredicate != null && aggregationPredicate.shouldAggregate(url, response)) {
+                return maximumResponseBufferSizeInBytes;
+            } else {
+                return 0;
+            }
         }
     }
 }
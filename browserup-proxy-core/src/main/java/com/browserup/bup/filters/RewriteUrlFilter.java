@@ -13,33 +13,42 @@ import io.netty.handler.codec.http.HttpResponse;
 import com.browserup.bup.util.HttpUtil;
 import com.browserup.bup.proxy.RewriteRule;
 import com.browserup.bup.util.BrowserUpHttpUtil;
+import com.browserup.bup.util.UrlPatternMatcher;
 import org.littleshoot.proxy.impl.ProxyUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.URISyntaxException;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.regex.Matcher;
 
-import static java.util.Collections.*;
-
 /**
  * Applies rewrite rules to the specified request. If a rewrite rule matches, the request's URI will be overwritten with the rewritten URI.
- * The filter does not make a defensive copy of the rewrite rule collection, so there is no guarantee
- * that the collection at the time of construction will contain the same values when the filter is actually invoked, if the collection is
- * modified concurrently.
+ * Rules are applied in order, each to the URL rewritten by the rules before it. Only the rules whose patterns may match the URL, as
+ * determined by the compiled {@link UrlPatternMatcher}, are evaluated.
  */
 public class RewriteUrlFilter extends HttpsAwareFiltersAdapter {
     private static final Logger log = LoggerFactory.getLogger(RewriteUrlFilter.class);
 
-    private final Collection<RewriteRule> rewriteRules;
+    private final UrlPatternMatcher<RewriteRule> rewriteRuleMatcher;
 
+    /**
+     * Creates a filter for the rewrite rules, compiling them for this request only. When the same rules apply to many
+     * requests, use {@link #RewriteUrlFilter(HttpRequest, ChannelHandlerContext, UrlPatternMatcher)} to compile them once.
+     */
     public RewriteUrlFilter(HttpRequest originalRequest,
                             ChannelHandlerContext ctx,
                             Collection<RewriteRule> rewriteRules) {
+        this(originalRequest, ctx, UrlPatternMatcher.compile(rewriteRules, RewriteRule::getPattern));
+    }
+
+    public RewriteUrlFilter(HttpRequest originalRequest,
+                            ChannelHandlerContext ctx,
+                            UrlPatternMatcher<RewriteRule> rewriteRuleMatcher) {
         super(originalRequest, ctx);
 
-        this.rewriteRules = rewriteRules != null ? rewriteRules : emptyList();
+        this.rewriteRuleMatcher = rewriteRuleMatcher;
     }
 
     @Override
@@ -56,11 +65,16 @@ public class RewriteUrlFilter extends HttpsAwareFiltersAdapter {
             String rewrittenUrl = originalUrl;
 
             boolean rewroteUri = false;
-            for (RewriteRule rule : rewriteRules) {
+            BitSet candidates = rewriteRuleMatcher.getCandidates(rewrittenUrl);
+            for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+                RewriteRule rule = rewriteRuleMatcher.getRules().get(i);
                 Matcher matcher = rule.getPattern().matcher(rewrittenUrl);
                 if (matcher.matches()) {
                     rewrittenUrl = matcher.replaceAll(rule.getReplace());
                     rewroteUri = true;
+
+                    // the remaining rules apply to the rewritten URL
+                    candidates = rewriteRuleMatcher.getCandidates(rewrittenUrl);
                 }
             }
 
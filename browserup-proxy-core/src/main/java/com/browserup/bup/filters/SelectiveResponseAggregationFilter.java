@@ -0,0 +1,33 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters;
+
+import com.browserup.bup.filters.support.SelectiveResponseAggregator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import org.littleshoot.proxy.HttpFiltersAdapter;
+
+import java.util.function.ToIntBiFunction;
+
+/**
+ * Adds a {@link SelectiveResponseAggregator} to each new connection to an upstream server, so responses can be aggregated
+ * for the filters of {@link SelectiveResponseAggregationSource}s that need their contents. This filter should be used
+ * for all requests, since any request may open a new server connection.
+ */
+public class SelectiveResponseAggregationFilter extends HttpFiltersAdapter {
+    private final ToIntBiFunction<String, HttpResponse> bufferSizeFunction;
+
+    public SelectiveResponseAggregationFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, ToIntBiFunction<String, HttpResponse> bufferSizeFunction) {
+        super(originalRequest, ctx);
+
+        this.bufferSizeFunction = bufferSizeFunction;
+    }
+
+    @Override
+    public void proxyToServerConnectionSucceeded(ChannelHandlerContext serverCtx) {
+        SelectiveResponseAggregator.addTo(serverCtx, bufferSizeFunction);
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters;
+
+import io.netty.handler.codec.http.HttpResponse;
+import org.littleshoot.proxy.HttpFiltersSource;
+
+/**
+ * An {@link HttpFiltersSource} whose filters only need the contents of some responses. Instead of enabling aggregation
+ * for all responses using {@link HttpFiltersSource#getMaximumResponseBufferSizeInBytes()}, which should return 0, the
+ * source is asked for a buffer size for each response when its headers are received, and only responses with a buffer
+ * size greater than 0 are aggregated.
+ */
+public interface SelectiveResponseAggregationSource extends HttpFiltersSource {
+    /**
+     * Returns the maximum buffer size to aggregate the response with, or 0 if the filters do not need the contents of
+     * the response.
+     *
+     * @param url full URL of the request sent to the server, including the scheme, host and port
+     * @param response the response headers and status line
+     * @return maximum buffer size in bytes, or 0 to stream the response
+     */
+    int getResponseBufferSizeInBytes(String url, HttpResponse response);
+
+    /**
+     * Returns true if this source selects the responses to aggregate using {@link #getResponseBufferSizeInBytes(String, HttpResponse)}.
+     * Sources that may or may not be selective, depending on how they are configured, return false when they are not, so
+     * the proxy does not need to ask them about each response.
+     *
+     * @return true if the source selects responses to aggregate
+     */
+    default boolean isSelective() {
+        return true;
+    }
+}
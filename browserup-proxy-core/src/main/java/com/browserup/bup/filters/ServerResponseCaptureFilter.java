@@ -4,7 +4,11 @@
 
 package com.browserup.bup.filters;
 
+import com.browserup.bup.filters.support.BoundedContentBuffer;
+import com.browserup.bup.filters.support.ContentDecoder;
+import com.browserup.bup.proxy.ContentOverflowPolicy;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
@@ -13,23 +17,26 @@ import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.LastHttpContent;
-import com.browserup.bup.util.BrowserUpHttpUtil;
 import org.littleshoot.proxy.HttpFiltersAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.util.function.Consumer;
 
 /**
  * This filter captures responses from the server (headers and content). The filter can also decompress contents if desired.
  * The filter can be used in one of three ways: (1) directly, by adding the filter to the filter chain; (2) by subclassing
  * the filter and overriding its filter methods; or (3) by invoking the filter directly from within another filter (see
  * {@link com.browserup.bup.filters.HarCaptureFilter} for an example of the latter).
+ * <p>
+ * By default the entire response is captured in memory. To bound the memory used by a single response, specify a maximum
+ * capture size and a {@link ContentOverflowPolicy}. If the policy is {@link ContentOverflowPolicy#SPILL_TO_DISK}, call
+ * {@link #releaseCapturedContents()} once the captured contents are no longer needed to delete the temporary file. Use
+ * {@link #getFullResponseContentBuffer()} to read contents that spilled to disk without loading them into memory. The
+ * captured contents are released automatically if the response times out.
  */
 public class ServerResponseCaptureFilter extends HttpFiltersAdapter {
     private static final Logger log = LoggerFactory.getLogger(ServerResponseCaptureFilter.class);
-    private static final String BROTLI_COMPRESSION = "br";
 
     /**
      * Populated by serverToProxyResponse() when processing the HttpResponse object
@@ -40,13 +47,23 @@ public class ServerResponseCaptureFilter extends HttpFiltersAdapter {
      * Populated by serverToProxyResponse() as it receives HttpContent responses. If the response is chunked, it will
      * be populated across multiple calls to proxyToServerResponse().
      */
-    private final ByteArrayOutputStream rawResponseContents = new ByteArrayOutputStream();
+    private final BoundedContentBuffer rawResponseContents;
 
     /**
      * Populated when processing the LastHttpContent. If the response is compressed and decompression is requested,
-     * this contains the entire decompressed response. Otherwise it contains the raw response.
+     * this is the buffer of decompressed contents. Otherwise it is the buffer of raw contents.
      */
-    private volatile byte[] fullResponseContents;
+    private volatile BoundedContentBuffer fullResponseContentBuffer;
+
+    /**
+     * The contents of fullResponseContentBuffer as an array. Only created if {@link #getFullResponseContents()} is called.
+     */
+    private byte[] fullResponseContents;
+
+    /**
+     * Set to true when the captured contents are released. Contents received afterward are not captured.
+     */
+    private boolean released;
 
     /**
      * Populated by serverToProxyResponse() when it processes the LastHttpContent object.
@@ -73,16 +90,53 @@ public class ServerResponseCaptureFilter extends HttpFiltersAdapter {
      */
     private final boolean decompressEncodedContent;
 
+    /**
+     * Populated by serverToProxyResponse() as it receives HttpContent responses, if the response is compressed and
+     * decompression is requested. Contents are decompressed as they are received, rather than after the entire
+     * response has been received.
+     */
+    private final BoundedContentBuffer decompressedResponseContents;
+
+    /**
+     * Decoder for the response's content encoding. Created when the HttpResponse is received, if decompression is requested.
+     */
+    private volatile ContentDecoder contentDecoder;
+
+    /**
+     * Set to true if the contentDecoder failed to decode the contents.
+     */
+    private volatile boolean decoderFailed;
+
     public ServerResponseCaptureFilter(HttpRequest originalRequest, boolean decompressEncodedContent) {
+        this(originalRequest, decompressEncodedContent, BoundedContentBuffer.UNLIMITED, ContentOverflowPolicy.TRUNCATE);
+    }
+
+    public ServerResponseCaptureFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, boolean decompressEncodedContent) {
+        this(originalRequest, ctx, decompressEncodedContent, BoundedContentBuffer.UNLIMITED, ContentOverflowPolicy.TRUNCATE);
+    }
+
+    /**
+     * Creates a response capture filter that captures at most maxCapturedContentSize bytes of the response in memory.
+     *
+     * @param originalRequest the original HttpRequest
+     * @param decompressEncodedContent true if compressed content should be decompressed
+     * @param maxCapturedContentSize maximum number of bytes to capture in memory, or {@link BoundedContentBuffer#UNLIMITED}
+     * @param overflowPolicy action to take when the response exceeds maxCapturedContentSize
+     */
+    public ServerResponseCaptureFilter(HttpRequest originalRequest, boolean decompressEncodedContent, long maxCapturedContentSize, ContentOverflowPolicy overflowPolicy) {
         super(originalRequest);
 
         this.decompressEncodedContent = decompressEncodedContent;
+        this.rawResponseContents = new BoundedContentBuffer(maxCapturedContentSize, overflowPolicy);
+        this.decompressedResponseContents = new BoundedContentBuffer(maxCapturedContentSize, overflowPolicy);
     }
 
-    public ServerResponseCaptureFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, boolean decompressEncodedContent) {
+    public ServerResponseCaptureFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, boolean decompressEncodedContent, long maxCapturedContentSize, ContentOverflowPolicy overflowPolicy) {
         super(originalRequest, ctx);
 
         this.decompressEncodedContent = decompressEncodedContent;
+        this.rawResponseContents = new BoundedContentBuffer(maxCapturedContentSize, overflowPolicy);
+        this.decompressedResponseContents = new BoundedContentBuffer(maxCapturedContentSize, overflowPolicy);
     }
 
     @Override
@@ -90,6 +144,10 @@ public class ServerResponseCaptureFilter extends HttpFiltersAdapter {
         if (httpObject instanceof HttpResponse) {
             httpResponse = (HttpResponse) httpObject;
             captureContentEncoding(httpResponse);
+
+            if (decompressEncodedContent && contentEncoding != null) {
+                contentDecoder = ContentDecoder.forContentEncoding(contentEncoding);
+            }
         }
 
         if (httpObject instanceof HttpContent) {
@@ -108,10 +166,10 @@ public class ServerResponseCaptureFilter extends HttpFiltersAdapter {
         return super.serverToProxyResponse(httpObject);
     }
 
-    protected void captureFullResponseContents() {
-        // start by setting fullResponseContent to the raw, (possibly) compressed byte stream. replace it
-        // with the decompressed bytes if decompression is successful.
-        fullResponseContents = getRawResponseContents();
+    protected synchronized void captureFullResponseContents() {
+        if (released) {
+            return;
+        }
 
         // if the content is compressed, we need to decompress it. but don't use
         // the netty HttpContentCompressor/Decompressor in the pipeline because we don't actually want it to
@@ -128,25 +186,57 @@ public class ServerResponseCaptureFilter extends HttpFiltersAdapter {
             // no compression
             responseCompressed = false;
         }
+
+        // if the contents were not decompressed, use the raw, (possibly) compressed byte stream
+        if (!decompressionSuccessful) {
+            fullResponseContentBuffer = rawResponseContents;
+        }
     }
 
+    /**
+     * Finishes decompressing the contents, most of which were decompressed as they were received.
+     */
     protected void decompressContents() {
-        if (contentEncoding.equals(HttpHeaders.Values.GZIP)) {
-            try {
-                fullResponseContents = BrowserUpHttpUtil.decompressGZIPContents(getRawResponseContents());
-                decompressionSuccessful = true;
-            } catch (RuntimeException e) {
-                log.warn("Failed to decompress response with encoding type " + contentEncoding + " when decoding request from " + originalRequest.getUri(), e);
+        if (contentDecoder == null) {
+            // the Content-Encoding may have been specified in a trailing header, in which case the contents could not be
+            // decoded as they were received. decode the entire raw contents now instead.
+            contentDecoder = ContentDecoder.forContentEncoding(contentEncoding);
+            if (contentDecoder == null) {
+                log.warn("Cannot decode unsupported content encoding type {}", contentEncoding);
+                return;
             }
-        } else if (contentEncoding.equals(BROTLI_COMPRESSION)) {
-            try {
-                fullResponseContents = BrowserUpHttpUtil.decompressBrotliContents(getRawResponseContents());
-                decompressionSuccessful = true;
-            } catch (RuntimeException e) {
-                log.warn("Failed to decompress response with encoding type " + contentEncoding + " when decoding request from " + originalRequest.getUri(), e);
-            }
-        } else {
-            log.warn("Cannot decode unsupported content encoding type {}", contentEncoding);
+
+            decodeContent(Unpooled.wrappedBuffer(rawResponseContents.toByteArray()));
+        }
+
+        if (decoderFailed) {
+            return;
+        }
+
+        try {
+            contentDecoder.finish(decompressedResponseContents);
+
+            fullResponseContentBuffer = decompressedResponseContents;
+            decompressionSuccessful = true;
+        } catch (RuntimeException e) {
+            log.warn("Failed to decompress response with encoding type " + contentEncoding + " when decoding request from " + originalRequest.getUri(), e);
+        } finally {
+            contentDecoder.close();
+        }
+    }
+
+    private void decodeContent(ByteBuf content) {
+        if (contentDecoder == null || decoderFailed) {
+            return;
+        }
+
+        try {
+            contentDecoder.decode(content, decompressedResponseContents);
+        } catch (RuntimeException e) {
+            decoderFailed = true;
+            contentDecoder.close();
+
+            log.warn("Failed to decompress response with encoding type " + contentEncoding + " when decoding request from " + originalRequest.getUri(), e);
         }
     }
 
@@ -167,40 +257,117 @@ public class ServerResponseCaptureFilter extends HttpFiltersAdapter {
 
     }
 
-    protected void storeResponseContent(HttpContent httpContent) {
-        ByteBuf bufferedContent = httpContent.content();
-        byte[] content = BrowserUpHttpUtil.extractReadableBytes(bufferedContent);
-
-        try {
-            rawResponseContents.write(content);
-        } catch (IOException e) {
-            // can't happen
+    protected synchronized void storeResponseContent(HttpContent httpContent) {
+        if (released) {
+            return;
         }
+
+        rawResponseContents.write(httpContent.content());
+
+        decodeContent(httpContent.content());
     }
 
     public HttpResponse getHttpResponse() {
         return httpResponse;
     }
 
+    @Override
+    public void serverToProxyResponseTimedOut() {
+        // the response will never be completed, so its contents will never be read
+        releaseCapturedContents();
+
+        super.serverToProxyResponseTimedOut();
+    }
+
     /**
      * Returns the contents of the entire response. If the contents were compressed, <code>decompressEncodedContent</code> is true, and
-     * decompression was successful, this method returns the decompressed contents.
+     * decompression was successful, this method returns the decompressed contents. The contents are copied into an array the first
+     * time this method is called, including any contents that spilled to disk; use {@link #getFullResponseContentBuffer()} to
+     * avoid loading them into memory.
      *
-     * @return entire response contents, decompressed if possible
+     * @return entire response contents, decompressed if possible, or null if the response has not been completely received
      */
-    public byte[] getFullResponseContents() {
+    public synchronized byte[] getFullResponseContents() {
+        if (fullResponseContents == null && fullResponseContentBuffer != null && !released) {
+            fullResponseContents = fullResponseContentBuffer.toByteArray();
+        }
+
         return fullResponseContents;
     }
 
     /**
-     * Returns the raw contents of the entire response, without decompression.
+     * Returns the buffer holding the contents of the entire response, decompressed if possible, without copying them. The buffer
+     * can be read until {@link #releaseCapturedContents()} is called. If the contents may be released on another thread, such
+     * as when the client disconnects, use {@link #withFullResponseContentBuffer(Consumer)} instead.
+     *
+     * @return buffer of the entire response contents, or null if the response has not been completely received
+     */
+    public BoundedContentBuffer getFullResponseContentBuffer() {
+        return fullResponseContentBuffer;
+    }
+
+    /**
+     * Passes the buffer holding the contents of the entire response to the consumer, while preventing the contents from being
+     * released until the consumer returns. The consumer is not invoked if the response has not been completely received, or
+     * if the contents have already been released.
+     *
+     * @param consumer reads the buffer of the entire response contents
+     * @return true if the consumer was invoked
+     */
+    public synchronized boolean withFullResponseContentBuffer(Consumer<BoundedContentBuffer> consumer) {
+        if (released || fullResponseContentBuffer == null) {
+            return false;
+        }
+
+        consumer.accept(fullResponseContentBuffer);
+
+        return true;
+    }
+
+    /**
+     * Returns the raw contents of the entire response, without decompression. The raw contents are kept, alongside any
+     * decompressed contents, until {@link #releaseCapturedContents()} is called.
      *
      * @return entire response contents, without decompression
      */
-    public byte[] getRawResponseContents() {
+    public synchronized byte[] getRawResponseContents() {
         return rawResponseContents.toByteArray();
     }
 
+    /**
+     * Returns the buffer holding the raw contents of the response. Unlike {@link #getRawResponseContents()}, the buffer gives
+     * access to the contents without copying them, and indicates whether the contents were truncated or spilled to disk.
+     *
+     * @return buffer of the raw response contents
+     */
+    public BoundedContentBuffer getRawResponseContentBuffer() {
+        return rawResponseContents;
+    }
+
+    /**
+     * @return true if the raw or decompressed contents exceeded the maximum capture size and were truncated
+     */
+    public boolean isResponseContentTruncated() {
+        return rawResponseContents.isTruncated() || decompressedResponseContents.isTruncated();
+    }
+
+    /**
+     * Discards the captured contents, including any contents that spilled to disk. May be called from any thread, such as when
+     * the client connection closes before the response is complete.
+     */
+    public synchronized void releaseCapturedContents() {
+        released = true;
+
+        if (contentDecoder != null) {
+            contentDecoder.close();
+        }
+
+        rawResponseContents.release();
+        decompressedResponseContents.release();
+        fullResponseContents = null;
+        fullResponseContentBuffer = null;
+    }
+
     public HttpHeaders getTrailingHeaders() {
         return trailingHeaders;
     }
@@ -0,0 +1,52 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpRequest;
+import org.littleshoot.proxy.HttpFilters;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * A {@link ConditionalHttpFiltersSource} that returns the same filter instance for every request, so no filters are
+ * created per request. The filter must not keep any per-request state, and must not use the original request or
+ * channel context it was constructed with, since it is shared by all requests on all connections. It may be invoked
+ * concurrently by different connections, so it must be thread-safe.
+ */
+public class StatelessHttpFiltersSource implements ConditionalHttpFiltersSource {
+    private final HttpFilters filter;
+    private final BooleanSupplier activeCondition;
+
+    /**
+     * Creates a source that always returns the specified filter.
+     *
+     * @param filter stateless filter to use for all requests
+     */
+    public StatelessHttpFiltersSource(HttpFilters filter) {
+        this(filter, () -> true);
+    }
+
+    /**
+     * Creates a source that returns the specified filter when the activeCondition is true.
+     *
+     * @param filter stateless filter to use for all requests
+     * @param activeCondition returns true if the filter should be applied to requests with the current configuration
+     */
+    public StatelessHttpFiltersSource(HttpFilters filter, BooleanSupplier activeCondition) {
+        this.filter = filter;
+        this.activeCondition = activeCondition;
+    }
+
+    @Override
+    public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+        return filter;
+    }
+
+    @Override
+    public boolean isActive() {
+        return activeCondition.getAsBoolean();
+    }
+}
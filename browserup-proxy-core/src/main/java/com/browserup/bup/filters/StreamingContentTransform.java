@@ -0,0 +1,46 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaders;
+
+/**
+ * Transforms the content of a single HTTP message as it streams through the proxy. A transform is returned by a
+ * {@link StreamingRequestFilter} or {@link StreamingResponseFilter} once the message's headers have been received, and
+ * is then invoked for each chunk of content in the order it is received, and finally once more when the message is
+ * complete. Transforms are only invoked by a single thread at a time, so they do not need to be thread-safe.
+ * <p>
+ * A transform should only hold back as much content as it needs to, such as the end of a chunk that may be the start
+ * of a match in the next chunk, so that content reaches its destination as soon as possible and messages of any size
+ * can be transformed in constant memory. See {@link com.browserup.bup.filters.support.StreamingTextTransform} for a
+ * base class for transforms that operate on text.
+ */
+public interface StreamingContentTransform {
+    /**
+     * Transforms a chunk of content. The transform takes ownership of the chunk, and must either release it or return
+     * it; a transform that does not modify the chunk can simply return it. The returned buffer is released by the proxy
+     * once it has been written. Return an empty buffer to hold back the entire chunk.
+     *
+     * @param chunk chunk of content, which the transform is responsible for releasing
+     * @param alloc allocator for new buffers
+     * @return the transformed content, which may be empty
+     */
+    ByteBuf transformContent(ByteBuf chunk, ByteBufAllocator alloc);
+
+    /**
+     * Invoked after the last chunk of content has been transformed, to return any content the transform has held back.
+     * The trailing headers of the message, if any, are available and may be modified.
+     *
+     * @param trailingHeaders trailing headers of the message, which may be modified
+     * @param alloc allocator for new buffers
+     * @return the remaining content, which may be empty
+     */
+    default ByteBuf finish(HttpHeaders trailingHeaders, ByteBufAllocator alloc) {
+        return Unpooled.EMPTY_BUFFER;
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters;
+
+import com.browserup.bup.util.HttpMessageInfo;
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * A functional interface to modify the contents of requests as they stream through the proxy, without buffering the
+ * entire request. Unlike a {@link RequestFilter}, which is invoked once with the fully aggregated request, a streaming
+ * filter is invoked when the request's headers are received, and returns a {@link StreamingContentTransform} that is
+ * invoked for each chunk of the request's content and for its trailing headers.
+ */
+public interface StreamingRequestFilter {
+    /**
+     * Implement this method to filter an HTTP request as it is streamed to the server. The HTTP method, URI and headers are
+     * available in the {@code request} parameter, and can be modified directly. To modify the contents of the request,
+     * return a transform that will be invoked with each chunk of content. When a transform is returned, the proxy removes
+     * the request's Content-Length and sends the transformed content using chunked transfer encoding.
+     *
+     * @param request The request object, including method, URI, headers, etc. Modifications to the request object will be reflected in the request sent to the server.
+     * @param messageInfo Additional information relating to the HTTP message.
+     * @return a transform for the contents of the request, or null to send the contents unmodified
+     */
+    StreamingContentTransform filterRequest(HttpRequest request, HttpMessageInfo messageInfo);
+}
@@ -0,0 +1,88 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters;
+
+import com.browserup.bup.filters.support.StreamingContentHandler;
+import com.browserup.bup.util.HttpMessageInfo;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpMessage;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import org.littleshoot.proxy.HttpFilters;
+import org.littleshoot.proxy.HttpFiltersSourceAdapter;
+
+import java.util.Collections;
+
+/**
+ * A filter adapter for {@link StreamingRequestFilter} implementations. Executes the filter when the {@link HttpFilters#clientToProxyRequest(HttpObject)}
+ * method is invoked with the request's {@link HttpRequest}, and applies the returned transform to the content that follows
+ * it as it is read from the client. If the request has already been aggregated by another filter, the transform is applied
+ * to the aggregated content instead.
+ */
+public class StreamingRequestFilterAdapter extends HttpsAwareFiltersAdapter {
+    private final StreamingRequestFilter requestFilter;
+
+    public StreamingRequestFilterAdapter(HttpRequest originalRequest, ChannelHandlerContext ctx, StreamingRequestFilter requestFilter) {
+        super(originalRequest, ctx);
+
+        this.requestFilter = requestFilter;
+    }
+
+    @Override
+    public HttpResponse clientToProxyRequest(HttpObject httpObject) {
+        if (httpObject instanceof HttpRequest) {
+            HttpRequest httpRequest = (HttpRequest) httpObject;
+
+            HttpMessageInfo messageInfo = new HttpMessageInfo(originalRequest, ctx, isHttps(), getFullUrl(httpRequest), getOriginalUrl());
+
+            StreamingContentTransform transform = requestFilter.filterRequest(httpRequest, messageInfo);
+            if (transform != null && hasContent(httpRequest)) {
+                if (httpObject instanceof FullHttpMessage) {
+                    StreamingContentHandler.transformFullMessage((FullHttpMessage) httpObject, Collections.singletonList(transform), ctx.alloc());
+                } else {
+                    // the length of the transformed content is not known until the transform has finished
+                    HttpUtil.setTransferEncodingChunked(httpRequest, true);
+
+                    StreamingContentHandler.getOrAddTo(ctx).addRequestTransform(transform);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns true if the request has a body, which may be empty. Requests without a Content-Length or Transfer-Encoding
+     * header, such as most GET requests, never have a body.
+     */
+    private static boolean hasContent(HttpRequest request) {
+        return request.headers().contains(HttpHeaderNames.CONTENT_LENGTH) || HttpUtil.isTransferEncodingChunked(request);
+    }
+
+    /**
+     * A {@link HttpFiltersSourceAdapter} for {@link StreamingRequestFilterAdapter}s. Requests are not aggregated for
+     * streaming filters, so this FilterSource does not enable HTTP message aggregation.
+     */
+    public static class FilterSource extends HttpFiltersSourceAdapter {
+        private final StreamingRequestFilter filter;
+
+        /**
+         * Creates a new filter source that will invoke the specified filter.
+         *
+         * @param filter StreamingRequestFilter to invoke
+         */
+        public FilterSource(StreamingRequestFilter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+            return new StreamingRequestFilterAdapter(originalRequest, ctx, filter);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters;
+
+import com.browserup.bup.util.HttpMessageInfo;
+import io.netty.handler.codec.http.HttpResponse;
+
+/**
+ * A functional interface to modify the contents of responses as they stream through the proxy, without buffering the
+ * entire response. Unlike a {@link ResponseFilter}, which is invoked once with the fully aggregated response, a streaming
+ * filter is invoked when the response's headers are received, and returns a {@link StreamingContentTransform} that is
+ * invoked for each chunk of the response's content and for its trailing headers.
+ */
+public interface StreamingResponseFilter {
+    /**
+     * Implement this method to filter an HTTP response as it is streamed to the client. The status line and headers are
+     * available in the {@code response} parameter, and can be modified directly. To modify the contents of the response,
+     * return a transform that will be invoked with each chunk of content. When a transform is returned, the proxy removes
+     * the response's Content-Length and sends the transformed content using chunked transfer encoding.
+     * <p>
+     * If the response has a gzip or deflate Content-Encoding, the transform receives the decoded content, and the proxy
+     * removes the Content-Encoding header. Content with any other encoding is passed to the transform as it was received.
+     *
+     * @param response The response object, including the status line and headers. Modifications to the response object will be reflected in the client response.
+     * @param messageInfo Additional information relating to the HTTP message.
+     * @return a transform for the contents of the response, or null to send the contents unmodified
+     */
+    StreamingContentTransform filterResponse(HttpResponse response, HttpMessageInfo messageInfo);
+}
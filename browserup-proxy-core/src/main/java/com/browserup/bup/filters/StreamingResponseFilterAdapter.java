@@ -0,0 +1,151 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters;
+
+import com.browserup.bup.filters.support.DecompressingContentTransform;
+import com.browserup.bup.filters.support.StreamingContentHandler;
+import com.browserup.bup.util.HttpMessageInfo;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpMessage;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import org.littleshoot.proxy.HttpFilters;
+import org.littleshoot.proxy.HttpFiltersSourceAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+
+/**
+ * A filter adapter for {@link StreamingResponseFilter} implementations. Executes the filter when the {@link HttpFilters#serverToProxyResponse(HttpObject)}
+ * method is invoked with the response's {@link HttpResponse}, and applies the returned transform to the content that follows
+ * it as it is written to the client. If the response has already been aggregated by another filter, the transform is applied
+ * to the aggregated content instead.
+ */
+public class StreamingResponseFilterAdapter extends HttpsAwareFiltersAdapter implements ModifiedRequestAwareFilter {
+    private static final Logger log = LoggerFactory.getLogger(StreamingResponseFilterAdapter.class);
+
+    private final StreamingResponseFilter responseFilter;
+
+    /**
+     * The final HttpRequest sent to the server, reflecting all modifications from request filters.
+     */
+    private HttpRequest modifiedHttpRequest;
+
+    public StreamingResponseFilterAdapter(HttpRequest originalRequest, ChannelHandlerContext ctx, StreamingResponseFilter responseFilter) {
+        super(originalRequest, ctx);
+
+        this.responseFilter = responseFilter;
+    }
+
+    @Override
+    public HttpObject serverToProxyResponse(HttpObject httpObject) {
+        if (httpObject instanceof HttpResponse && hasContent((HttpResponse) httpObject)) {
+            HttpResponse httpResponse = (HttpResponse) httpObject;
+
+            HttpMessageInfo messageInfo = new HttpMessageInfo(originalRequest, ctx, isHttps(), getFullUrl(modifiedHttpRequest), getOriginalUrl());
+
+            StreamingContentTransform transform = responseFilter.filterResponse(httpResponse, messageInfo);
+            if (transform != null) {
+                transform = decodeContentEncoding(httpResponse, transform);
+            }
+
+            if (transform != null) {
+                if (httpObject instanceof FullHttpMessage) {
+                    StreamingContentHandler.transformFullMessage((FullHttpMessage) httpObject, Collections.singletonList(transform), ctx.alloc());
+                } else {
+                    removeContentLength(httpResponse);
+
+                    StreamingContentHandler.getOrAddTo(ctx).addResponseTransform(httpResponse, transform);
+                }
+            }
+        }
+
+        return super.serverToProxyResponse(httpObject);
+    }
+
+    @Override
+    public void setModifiedHttpRequest(HttpRequest modifiedHttpRequest) {
+        this.modifiedHttpRequest = modifiedHttpRequest;
+    }
+
+    /**
+     * Returns true if the response can have content. Interim responses, 204 and 304 responses, and responses to HEAD and
+     * CONNECT requests never have content.
+     */
+    private boolean hasContent(HttpResponse response) {
+        int status = response.status().code();
+        if (response.status().codeClass() == HttpStatusClass.INFORMATIONAL || status == 204 || status == 304) {
+            return false;
+        }
+
+        HttpMethod method = originalRequest.method();
+        return !HttpMethod.HEAD.equals(method) && !HttpMethod.CONNECT.equals(method);
+    }
+
+    /**
+     * Wraps the transform with a transform that decodes the response's content, if the response has a Content-Encoding, and
+     * removes the Content-Encoding header. Returns null if the content encoding is not supported, in which case the content
+     * cannot be transformed.
+     */
+    private static StreamingContentTransform decodeContentEncoding(HttpResponse response, StreamingContentTransform transform) {
+        String contentEncoding = response.headers().get(HttpHeaderNames.CONTENT_ENCODING);
+        if (contentEncoding == null || HttpHeaderValues.IDENTITY.contentEqualsIgnoreCase(contentEncoding.trim())) {
+            return transform;
+        }
+
+        if (!DecompressingContentTransform.isSupported(contentEncoding)) {
+            log.debug("Content-Encoding {} cannot be decoded for streaming response filters. Passing response content through unmodified.", contentEncoding);
+            return null;
+        }
+
+        response.headers().remove(HttpHeaderNames.CONTENT_ENCODING);
+
+        return DecompressingContentTransform.forContentEncoding(contentEncoding, transform);
+    }
+
+    /**
+     * Removes the Content-Length of the response, since the length of the transformed content is not known until the
+     * transform has finished. HTTP/1.1 responses are sent using chunked transfer encoding instead, and HTTP/1.0 responses
+     * are delimited by closing the connection.
+     */
+    private static void removeContentLength(HttpResponse response) {
+        if (HttpVersion.HTTP_1_0.equals(response.protocolVersion())) {
+            response.headers().remove(HttpHeaderNames.CONTENT_LENGTH);
+            HttpUtil.setKeepAlive(response, false);
+        } else {
+            HttpUtil.setTransferEncodingChunked(response, true);
+        }
+    }
+
+    /**
+     * A {@link HttpFiltersSourceAdapter} for {@link StreamingResponseFilterAdapter}s. Responses are not aggregated for
+     * streaming filters, so this FilterSource does not enable HTTP message aggregation.
+     */
+    public static class FilterSource extends HttpFiltersSourceAdapter {
+        private final StreamingResponseFilter filter;
+
+        /**
+         * Creates a new filter source that will invoke the specified filter.
+         *
+         * @param filter StreamingResponseFilter to invoke
+         */
+        public FilterSource(StreamingResponseFilter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+            return new StreamingResponseFilterAdapter(originalRequest, ctx, filter);
+        }
+    }
+}
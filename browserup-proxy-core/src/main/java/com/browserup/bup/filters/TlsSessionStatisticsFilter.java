@@ -0,0 +1,69 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters;
+
+import com.browserup.bup.mitm.stats.TlsSessionStatistics;
+import com.browserup.bup.mitm.util.SslUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import org.littleshoot.proxy.HttpFiltersAdapter;
+import org.littleshoot.proxy.impl.ProxyUtils;
+
+/**
+ * Records whether the TLS handshakes on man-in-the-middle client connections, and on proxy connections to upstream
+ * servers, resumed an existing session. A client connection's handshake starts after its HTTP CONNECT, so the time of
+ * the CONNECT is stored on the channel and compared to the session's creation time when the first request is
+ * received over the encrypted connection.
+ */
+public class TlsSessionStatisticsFilter extends HttpFiltersAdapter {
+    public static final String CLIENT_HANDSHAKE_STARTED_ATTRIBUTE_NAME = "tlsClientHandshakeStarted";
+
+    private final TlsSessionStatistics statistics;
+
+    private volatile long upstreamHandshakeStartedTimeMs;
+
+    public TlsSessionStatisticsFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, TlsSessionStatistics statistics) {
+        super(originalRequest, ctx);
+
+        this.statistics = statistics;
+
+        if (ctx != null) {
+            Attribute<Long> clientHandshakeStartedAttr = ctx.channel().attr(AttributeKey.valueOf(CLIENT_HANDSHAKE_STARTED_ATTRIBUTE_NAME));
+            if (ProxyUtils.isCONNECT(originalRequest)) {
+                clientHandshakeStartedAttr.set(System.currentTimeMillis());
+            } else {
+                // record the client handshake once, when the first request arrives on the encrypted connection
+                Long clientHandshakeStartedTimeMs = clientHandshakeStartedAttr.getAndSet(null);
+                SslHandler sslHandler = ctx.pipeline().get(SslHandler.class);
+                if (clientHandshakeStartedTimeMs != null && sslHandler != null) {
+                    statistics.clientHandshakeCompleted(SslUtil.isResumedSession(sslHandler.engine().getSession(), clientHandshakeStartedTimeMs));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void proxyToServerConnectionSSLHandshakeStarted() {
+        upstreamHandshakeStartedTimeMs = System.currentTimeMillis();
+    }
+
+    @Override
+    public void proxyToServerConnectionSucceeded(ChannelHandlerContext serverCtx) {
+        long handshakeStartedTimeMs = upstreamHandshakeStartedTimeMs;
+        if (handshakeStartedTimeMs == 0L) {
+            return;
+        }
+
+        upstreamHandshakeStartedTimeMs = 0L;
+
+        SslHandler sslHandler = serverCtx.pipeline().get(SslHandler.class);
+        if (sslHandler != null) {
+            statistics.upstreamHandshakeCompleted(SslUtil.isResumedSession(sslHandler.engine().getSession(), handshakeStartedTimeMs));
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters;
+
+import com.browserup.bup.proxy.UpstreamConnectionStatistics;
+import com.browserup.bup.util.BrowserUpHttpUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpRequest;
+import org.littleshoot.proxy.impl.ProxyUtils;
+
+/**
+ * Records the upstream connections opened and the requests sent to upstream servers in the
+ * {@link UpstreamConnectionStatistics}, so the proxy can report how often requests reuse an existing upstream
+ * connection. For HTTPS, the upstream connection is opened while the proxy handles the HTTP CONNECT, and the requests
+ * sent over it are recorded by the filters for the requests inside the tunnel.
+ */
+public class UpstreamConnectionStatisticsFilter extends HttpsAwareFiltersAdapter {
+    private final UpstreamConnectionStatistics statistics;
+
+    public UpstreamConnectionStatisticsFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, UpstreamConnectionStatistics statistics) {
+        super(originalRequest, ctx);
+
+        this.statistics = statistics;
+    }
+
+    @Override
+    public void proxyToServerConnectionSucceeded(ChannelHandlerContext serverCtx) {
+        statistics.connectionOpened(getOrigin());
+    }
+
+    @Override
+    public void proxyToServerRequestSending() {
+        statistics.requestSent(getOrigin());
+    }
+
+    private String getOrigin() {
+        if (ProxyUtils.isCONNECT(originalRequest)) {
+            // use the same host and port as the requests inside the tunnel, which omit the default port
+            return "https://" + BrowserUpHttpUtil.removeMatchingPort(originalRequest.uri(), 443);
+        }
+
+        return (isHttps() ? "https://" : "http://") + getHostAndPort(originalRequest);
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support;
+
+import com.browserup.bup.proxy.ContentOverflowPolicy;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Accumulates the content of an HTTP message as it arrives, chunk by chunk, without repeatedly copying the content it has
+ * already received. Each chunk is copied once into its own component of a {@link CompositeByteBuf}, so the buffer never
+ * needs to grow and copy its existing contents the way a ByteArrayOutputStream does.
+ * <p>
+ * The buffer can be limited to a maximum size. Once the content exceeds the maximum size, the buffer either truncates the
+ * content or moves it to a temporary file and continues capturing there, depending on the {@link ContentOverflowPolicy}.
+ * A buffer that has spilled to disk must be {@link #release() released} when the content is no longer needed, so that the
+ * temporary file is deleted.
+ * <p>
+ * This class is not thread-safe. It is intended to be written to by a single filter as the message is received.
+ */
+public class BoundedContentBuffer {
+    private static final Logger log = LoggerFactory.getLogger(BoundedContentBuffer.class);
+
+    /**
+     * Maximum size value indicating the buffer will capture content of any size in memory.
+     */
+    public static final long UNLIMITED = -1;
+
+    private static final String SPILL_FILE_PREFIX = "browserup-captured-content";
+
+    private final long maxSize;
+    private final ContentOverflowPolicy overflowPolicy;
+
+    /**
+     * Content captured in memory. Never consolidated, so each chunk is only copied once.
+     */
+    private final CompositeByteBuf contents = Unpooled.compositeBuffer(Integer.MAX_VALUE);
+
+    /**
+     * Total number of bytes written to this buffer, including any bytes discarded when the content was truncated.
+     */
+    private long totalBytesWritten;
+
+    private boolean truncated;
+
+    /**
+     * Temporary file containing all captured content, once the content has spilled to disk.
+     */
+    private Path spillFile;
+    private FileChannel spillChannel;
+
+    /**
+     * Number of bytes written to the spill file.
+     */
+    private long spilledBytes;
+
+    /**
+     * Creates a buffer that captures content of any size in memory.
+     */
+    public BoundedContentBuffer() {
+        this(UNLIMITED, ContentOverflowPolicy.TRUNCATE);
+    }
+
+    /**
+     * Creates a buffer that captures up to maxSize bytes in memory.
+     *
+     * @param maxSize maximum number of bytes to hold in memory, or {@link #UNLIMITED}
+     * @param overflowPolicy what to do with content beyond maxSize; defaults to {@link ContentOverflowPolicy#TRUNCATE} if null
+     */
+    public BoundedContentBuffer(long maxSize, ContentOverflowPolicy overflowPolicy) {
+        this.maxSize = maxSize;
+        this.overflowPolicy = overflowPolicy == null ? ContentOverflowPolicy.TRUNCATE : overflowPolicy;
+    }
+
+    /**
+     * Appends the readable bytes in the specified buffer to this buffer. The reader index of the specified buffer is not modified.
+     *
+     * @param content content to append
+     */
+    public void write(ByteBuf content) {
+        int length = content.readableBytes();
+        if (length == 0) {
+            return;
+        }
+
+        totalBytesWritten += length;
+
+        if (truncated) {
+            return;
+        }
+
+        if (spillChannel != null) {
+            writeToSpillFile(content, content.readerIndex(), length);
+            return;
+        }
+
+        long remainingCapacity = maxSize < 0 ? Long.MAX_VALUE : maxSize - contents.readableBytes();
+        if (length <= remainingCapacity) {
+            append(content, content.readerIndex(), length);
+            return;
+        }
+
+        if (overflowPolicy == ContentOverflowPolicy.SPILL_TO_DISK && startSpilling()) {
+            writeToSpillFile(content, content.readerIndex(), length);
+            return;
+        }
+
+        // truncate, either because that is the overflow policy or because the content could not be spilled to disk
+        if (remainingCapacity > 0) {
+            append(content, content.readerIndex(), (int) remainingCapacity);
+        }
+
+        truncated = true;
+    }
+
+    /**
+     * Appends length bytes from the specified array to this buffer.
+     *
+     * @param content array containing the content to append
+     * @param offset offset of the content in the array
+     * @param length number of bytes to append
+     */
+    public void write(byte[] content, int offset, int length) {
+        write(Unpooled.wrappedBuffer(content, offset, length));
+    }
+
+    /**
+     * @return the number of bytes of content available from this buffer
+     */
+    public long size() {
+        if (spillChannel != null) {
+            return spilledBytes;
+        }
+
+        return contents.readableBytes();
+    }
+
+    /**
+     * @return the total number of bytes written to this buffer, including content discarded due to truncation
+     */
+    public long getTotalBytesWritten() {
+        return totalBytesWritten;
+    }
+
+    /**
+     * @return true if content was discarded because it exceeded the maximum size
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return true if the content exceeded the maximum size and was moved to disk
+     */
+    public boolean isSpilledToDisk() {
+        return spillChannel != null;
+    }
+
+    /**
+     * @return the temporary file containing the content, or null if the content has not spilled to disk
+     */
+    public Path getSpillFile() {
+        return spillFile;
+    }
+
+    /**
+     * Returns a new InputStream over the captured content. Reading from the stream does not consume content from this buffer.
+     *
+     * @return stream of the captured content
+     */
+    public InputStream openStream() {
+        if (spillChannel != null) {
+            try {
+                return Channels.newInputStream(FileChannel.open(spillFile, StandardOpenOption.READ));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read captured content from " + spillFile, e);
+            }
+        }
+
+        return new ByteBufInputStream(contents.duplicate());
+    }
+
+    /**
+     * Returns all captured content as a single array. If the content has spilled to disk, it is read back into memory,
+     * so callers that may handle large content should prefer {@link #openStream()}.
+     *
+     * @return captured content
+     */
+    public byte[] toByteArray() {
+        if (spillChannel != null) {
+            try {
+                return Files.readAllBytes(spillFile);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read captured content from " + spillFile, e);
+            }
+        }
+
+        byte[] bytes = new byte[contents.readableBytes()];
+        contents.getBytes(contents.readerIndex(), bytes);
+
+        return bytes;
+    }
+
+    /**
+     * Discards the captured content and deletes the temporary file, if the content spilled to disk.
+     */
+    public void release() {
+        contents.clear();
+        contents.removeComponents(0, contents.numComponents());
+
+        if (spillChannel != null) {
+            deleteSpillFile();
+        }
+    }
+
+    private void deleteSpillFile() {
+        try {
+            spillChannel.close();
+        } catch (IOException e) {
+            log.warn("Unable to close captured content file {}", spillFile, e);
+        }
+
+        try {
+            Files.deleteIfExists(spillFile);
+        } catch (IOException e) {
+            log.warn("Unable to delete captured content file {}", spillFile, e);
+        }
+
+        spillChannel = null;
+        spillFile = null;
+        spilledBytes = 0;
+    }
+
+    private void append(ByteBuf content, int index, int length) {
+        byte[] copy = new byte[length];
+        content.getBytes(index, copy);
+
+        contents.addComponent(true, Unpooled.wrappedBuffer(copy));
+    }
+
+    /**
+     * Creates the spill file and moves the content captured so far into it.
+     *
+     * @return true if the content was moved to disk, false if the spill file could not be created
+     */
+    private boolean startSpilling() {
+        try {
+            spillFile = Files.createTempFile(SPILL_FILE_PREFIX, ".tmp");
+            spillChannel = FileChannel.open(spillFile, StandardOpenOption.WRITE, StandardOpenOption.READ);
+
+            for (ByteBuffer nioBuffer : contents.nioBuffers()) {
+                while (nioBuffer.hasRemaining()) {
+                    spilledBytes += spillChannel.write(nioBuffer);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Unable to spill captured content to disk. Content will be truncated.", e);
+
+            if (spillChannel != null) {
+                deleteSpillFile();
+            } else if (spillFile != null) {
+                try {
+                    Files.deleteIfExists(spillFile);
+                } catch (IOException deleteException) {
+                    log.warn("Unable to delete captured content file {}", spillFile, deleteException);
+                }
+                spillFile = null;
+            }
+
+            return false;
+        }
+
+        contents.clear();
+        contents.removeComponents(0, contents.numComponents());
+
+        return true;
+    }
+
+    private void writeToSpillFile(ByteBuf content, int index, int length) {
+        int written = 0;
+        try {
+            while (written < length) {
+                written += content.getBytes(index + written, spillChannel, spilledBytes + written, length - written);
+            }
+        } catch (IOException e) {
+            // the content on disk is no longer complete, so treat the content as truncated at the point of failure
+            log.warn("Unable to write captured content to {}. Content will be truncated.", spillFile, e);
+
+            truncated = true;
+        } finally {
+            spilledBytes += written;
+        }
+    }
+}
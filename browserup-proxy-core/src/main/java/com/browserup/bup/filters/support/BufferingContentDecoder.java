@@ -0,0 +1,60 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support;
+
+import com.browserup.bup.exception.DecompressionException;
+import com.browserup.bup.util.BrowserUpHttpUtil;
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes content using a decoder that is only available as an InputStream, such as the brotli and zstd decoders. The
+ * encoded content is buffered as it is received, and decoded when the last chunk has been received.
+ */
+class BufferingContentDecoder extends ContentDecoder {
+    /**
+     * Creates a decoding stream over a stream of encoded content.
+     */
+    @FunctionalInterface
+    interface DecodingStreamFactory {
+        InputStream newDecodingStream(InputStream encodedContent) throws IOException;
+    }
+
+    private final DecodingStreamFactory decodingStreamFactory;
+
+    private final BoundedContentBuffer encodedContent = new BoundedContentBuffer();
+
+    BufferingContentDecoder(DecodingStreamFactory decodingStreamFactory) {
+        this.decodingStreamFactory = decodingStreamFactory;
+    }
+
+    @Override
+    public void decode(ByteBuf content, BoundedContentBuffer decoded) throws DecompressionException {
+        encodedContent.write(content);
+    }
+
+    @Override
+    public void finish(BoundedContentBuffer decoded) throws DecompressionException {
+        try (InputStream decodingStream = decodingStreamFactory.newDecodingStream(encodedContent.openStream())) {
+            byte[] decompressBuffer = new byte[BrowserUpHttpUtil.DECOMPRESS_BUFFER_SIZE];
+            int bytesRead;
+            while (!decoded.isTruncated() && (bytesRead = decodingStream.read(decompressBuffer)) > -1) {
+                decoded.write(decompressBuffer, 0, bytesRead);
+            }
+        } catch (IOException | RuntimeException | LinkageError e) {
+            // LinkageError is thrown when a decoder's native library is not available on this platform
+            throw new DecompressionException("Unable to decompress content", e);
+        } finally {
+            encodedContent.release();
+        }
+    }
+
+    @Override
+    public void close() {
+        encodedContent.release();
+    }
+}
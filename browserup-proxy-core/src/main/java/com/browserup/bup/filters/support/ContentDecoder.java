@@ -0,0 +1,84 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support;
+
+import com.browserup.bup.exception.DecompressionException;
+import com.github.luben.zstd.ZstdInputStream;
+import io.netty.buffer.ByteBuf;
+import org.brotli.dec.BrotliInputStream;
+
+import java.io.Closeable;
+import java.util.Locale;
+
+/**
+ * Decodes content-encoded (compressed) HTTP message content incrementally, as each chunk of the message is received.
+ * Chunks are passed to {@link #decode(ByteBuf, BoundedContentBuffer)} in the order they are received, and the decoded
+ * content is appended to the specified buffer. Once the last chunk has been decoded, {@link #finish(BoundedContentBuffer)}
+ * verifies that the encoded content was complete.
+ * <p>
+ * Decoders hold native resources, so they must be {@link #close() closed} when they are no longer needed. A decoder
+ * is not thread-safe, but it may be used from different threads as long as calls to it are not concurrent.
+ */
+public abstract class ContentDecoder implements Closeable {
+    public static final String GZIP_ENCODING = "gzip";
+    public static final String X_GZIP_ENCODING = "x-gzip";
+    public static final String DEFLATE_ENCODING = "deflate";
+    public static final String BROTLI_ENCODING = "br";
+    public static final String ZSTD_ENCODING = "zstd";
+
+    /**
+     * Creates a decoder for the specified Content-Encoding.
+     *
+     * @param contentEncoding value of the Content-Encoding header
+     * @return a new decoder, or null if the content encoding is not supported
+     */
+    public static ContentDecoder forContentEncoding(String contentEncoding) {
+        if (contentEncoding == null) {
+            return null;
+        }
+
+        switch (contentEncoding.trim().toLowerCase(Locale.US)) {
+            case GZIP_ENCODING:
+            case X_GZIP_ENCODING:
+                return InflatingContentDecoder.gzip();
+
+            case DEFLATE_ENCODING:
+                return InflatingContentDecoder.deflate();
+
+            case BROTLI_ENCODING:
+                return new BufferingContentDecoder(BrotliInputStream::new);
+
+            case ZSTD_ENCODING:
+                return new BufferingContentDecoder(ZstdInputStream::new);
+
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Decodes the readable bytes of the specified chunk of encoded content. The reader index of the chunk is not modified.
+     * If the decoded buffer has been truncated, the decoder may stop decoding, since no more content can be captured.
+     *
+     * @param content chunk of encoded content
+     * @param decoded buffer to append the decoded content to
+     * @throws DecompressionException if the content is not valid for this encoding
+     */
+    public abstract void decode(ByteBuf content, BoundedContentBuffer decoded) throws DecompressionException;
+
+    /**
+     * Decodes any remaining content and verifies that the encoded content was complete.
+     *
+     * @param decoded buffer to append the decoded content to
+     * @throws DecompressionException if the encoded content was incomplete or invalid
+     */
+    public abstract void finish(BoundedContentBuffer decoded) throws DecompressionException;
+
+    /**
+     * Releases the resources held by this decoder. Closing a decoder more than once has no effect.
+     */
+    @Override
+    public abstract void close();
+}
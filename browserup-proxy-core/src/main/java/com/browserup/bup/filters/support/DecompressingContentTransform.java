@@ -0,0 +1,107 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support;
+
+import com.browserup.bup.filters.StreamingContentTransform;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.ZlibCodecFactory;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.netty.handler.codec.http.HttpHeaders;
+
+import java.util.Locale;
+
+/**
+ * A {@link StreamingContentTransform} that decompresses gzip or deflate content as it is received, and passes the
+ * decompressed content to another transform. Only the content that has not been decompressed yet is held in memory.
+ */
+public class DecompressingContentTransform implements StreamingContentTransform {
+    private final EmbeddedChannel decoder;
+    private final StreamingContentTransform delegate;
+
+    private DecompressingContentTransform(ZlibWrapper wrapper, StreamingContentTransform delegate) {
+        this.decoder = new EmbeddedChannel(ZlibCodecFactory.newZlibDecoder(wrapper));
+        this.delegate = delegate;
+    }
+
+    /**
+     * Returns true if content with the specified Content-Encoding can be decompressed by a DecompressingContentTransform.
+     *
+     * @param contentEncoding value of the Content-Encoding header
+     * @return true if the content encoding is gzip or deflate
+     */
+    public static boolean isSupported(String contentEncoding) {
+        return getZlibWrapper(contentEncoding) != null;
+    }
+
+    /**
+     * Creates a transform that decompresses content with the specified Content-Encoding and passes it to the delegate.
+     *
+     * @param contentEncoding value of the Content-Encoding header
+     * @param delegate transform for the decompressed content
+     * @return a new transform, or null if the content encoding is not supported
+     */
+    public static DecompressingContentTransform forContentEncoding(String contentEncoding, StreamingContentTransform delegate) {
+        ZlibWrapper wrapper = getZlibWrapper(contentEncoding);
+        if (wrapper == null) {
+            return null;
+        }
+
+        return new DecompressingContentTransform(wrapper, delegate);
+    }
+
+    private static ZlibWrapper getZlibWrapper(String contentEncoding) {
+        if (contentEncoding == null) {
+            return null;
+        }
+
+        switch (contentEncoding.trim().toLowerCase(Locale.US)) {
+            case ContentDecoder.GZIP_ENCODING:
+            case ContentDecoder.X_GZIP_ENCODING:
+                return ZlibWrapper.GZIP;
+
+            case ContentDecoder.DEFLATE_ENCODING:
+                // RFC 7230 requires the zlib format, but some servers send raw deflate content
+                return ZlibWrapper.ZLIB_OR_NONE;
+
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public ByteBuf transformContent(ByteBuf chunk, ByteBufAllocator alloc) {
+        decoder.writeInbound(chunk);
+
+        return delegate.transformContent(readDecompressed(alloc), alloc);
+    }
+
+    @Override
+    public ByteBuf finish(HttpHeaders trailingHeaders, ByteBufAllocator alloc) {
+        decoder.finish();
+
+        ByteBuf content = delegate.transformContent(readDecompressed(alloc), alloc);
+        ByteBuf remaining = delegate.finish(trailingHeaders, alloc);
+
+        return alloc.compositeBuffer(2).addComponents(true, content, remaining);
+    }
+
+    private ByteBuf readDecompressed(ByteBufAllocator alloc) {
+        CompositeByteBuf decompressed = alloc.compositeBuffer();
+
+        ByteBuf buffer;
+        while ((buffer = decoder.readInbound()) != null) {
+            if (buffer.isReadable()) {
+                decompressed.addComponent(true, buffer);
+            } else {
+                buffer.release();
+            }
+        }
+
+        return decompressed;
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs request and response filters on a bounded pool of daemon threads, so that slow filters (such as filters that
+ * evaluate scripts) do not block the Netty event loop that handles the connection, and every other connection on the
+ * same event loop. Each filter has a timeout, measured from the time it is submitted, and the result is passed back to
+ * the event loop of the channel the filter was submitted for. When the queue of waiting filters is full, filters run on
+ * the event loop that submits them, as they would if they were not offloaded.
+ * <p>
+ * Filters that are still waiting for a thread when they time out, or when the executor is shut down, never run. Their
+ * cleanup actions are run when they are discarded, so that resources held for the filter (such as a reference to a
+ * pooled message) are released whether or not the filter runs.
+ * <p>
+ * The executor records the number of filters that completed, failed, timed out and ran on the event loop because the
+ * queue was full, as well as the time the filters spent executing.
+ */
+public class FilterExecutor {
+    private static final Logger log = LoggerFactory.getLogger(FilterExecutor.class);
+
+    private final ThreadPoolExecutor executor;
+
+    private final long filterTimeoutNanos;
+
+    private final AtomicLong filtersCompleted = new AtomicLong();
+    private final AtomicLong filtersFailed = new AtomicLong();
+    private final AtomicLong filtersTimedOut = new AtomicLong();
+    private final AtomicLong filtersRunOnEventLoop = new AtomicLong();
+    private final AtomicLong totalExecutionTimeNanos = new AtomicLong();
+    private final AtomicLong maxExecutionTimeNanos = new AtomicLong();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+
+    /**
+     * Creates a filter executor.
+     *
+     * @param threads number of threads that run filters
+     * @param maxQueueDepth maximum number of filters waiting for a thread; when the queue is full, filters run on the
+     *                      event loop that submits them
+     * @param filterTimeout time a filter may take to complete after it is submitted, including the time it waits in the queue
+     * @param timeUnit unit of the filterTimeout
+     */
+    public FilterExecutor(int threads, int maxQueueDepth, long filterTimeout, TimeUnit timeUnit) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Filter executor requires at least one thread");
+        }
+
+        if (filterTimeout <= 0) {
+            throw new IllegalArgumentException("Filter timeout must be greater than 0");
+        }
+
+        this.executor = new ThreadPoolExecutor(threads, threads,
+                30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, maxQueueDepth)),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("browserup-filter-%d")
+                        .setDaemon(true)
+                        .build());
+        this.executor.allowCoreThreadTimeOut(true);
+
+        this.filterTimeoutNanos = timeUnit.toNanos(filterTimeout);
+    }
+
+    /**
+     * Runs the filter on one of the executor's threads and passes its result, or the exception it threw, to the callback
+     * on the eventLoop. If the filter does not complete within the timeout, the filter's thread is interrupted and the
+     * callback receives a {@link TimeoutException}; the filter's result is discarded if it completes later. If the queue
+     * is full, the filter and the callback run on the calling thread before this method returns. The callback is invoked
+     * exactly once.
+     *
+     * @param filter filter to run
+     * @param eventLoop event loop to invoke the callback on, which must be the calling thread's event loop
+     * @param callback receives the filter's result, or null and the exception that prevented the filter from completing
+     * @param <T> type of the filter's result
+     */
+    public <T> void execute(Callable<T> filter, EventExecutor eventLoop, BiConsumer<T, Throwable> callback) {
+        execute(filter, null, eventLoop, callback);
+    }
+
+    /**
+     * Runs the filter as {@link #execute(Callable, EventExecutor, BiConsumer)} does, and runs the cleanup action exactly
+     * once: after the filter returns, on the thread that ran the filter, or when the filter is discarded without running
+     * because it timed out while waiting for a thread or the executor was shut down.
+     *
+     * @param filter filter to run
+     * @param cleanup action that releases the resources the filter uses, or null
+     * @param eventLoop event loop to invoke the callback on, which must be the calling thread's event loop
+     * @param callback receives the filter's result, or null and the exception that prevented the filter from completing
+     * @param <T> type of the filter's result
+     */
+    public <T> void execute(Callable<T> filter, Runnable cleanup, EventExecutor eventLoop, BiConsumer<T, Throwable> callback) {
+        FilterTask<T> task = new FilterTask<>(filter, cleanup, eventLoop, callback);
+        task.timeout = eventLoop.schedule(task::timeOut, filterTimeoutNanos, TimeUnit.NANOSECONDS);
+
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            filtersRunOnEventLoop.incrementAndGet();
+
+            task.run();
+            return;
+        }
+
+        maxQueueDepth.accumulateAndGet(executor.getQueue().size(), Math::max);
+    }
+
+    /**
+     * Stops the executor's threads. Filters that have not started are discarded: their cleanup actions are run, and their
+     * callbacks receive a {@link CancellationException}.
+     */
+    public void shutdown() {
+        List<Runnable> discarded = executor.shutdownNow();
+        for (Runnable task : discarded) {
+            if (task instanceof FilterTask) {
+                ((FilterTask<?>) task).discard();
+            }
+        }
+    }
+
+    /**
+     * @return the timeout for each filter, in the specified unit
+     * @param timeUnit unit of the returned timeout
+     */
+    public long getFilterTimeout(TimeUnit timeUnit) {
+        return timeUnit.convert(filterTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the number of filters that completed without throwing an exception, including filters that timed out
+     * before they completed
+     */
+    public long getFiltersCompleted() {
+        return filtersCompleted.get();
+    }
+
+    /**
+     * @return the number of filters that threw an exception
+     */
+    public long getFiltersFailed() {
+        return filtersFailed.get();
+    }
+
+    /**
+     * @return the number of filters that did not complete within the timeout
+     */
+    public long getFiltersTimedOut() {
+        return filtersTimedOut.get();
+    }
+
+    /**
+     * @return the number of filters that ran on the event loop because the queue was full
+     */
+    public long getFiltersRunOnEventLoop() {
+        return filtersRunOnEventLoop.get();
+    }
+
+    /**
+     * @return the number of filters currently waiting for a thread
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the largest number of filters that were waiting for a thread at the same time
+     */
+    public long getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * Returns the average time filters spent executing, not including the time they waited in the queue, or 0 if no filters
+     * have been executed.
+     *
+     * @param timeUnit unit of the returned time
+     * @return average execution time
+     */
+    public long getAverageExecutionTime(TimeUnit timeUnit) {
+        long executed = filtersCompleted.get() + filtersFailed.get();
+        if (executed > 0) {
+            return timeUnit.convert(totalExecutionTimeNanos.get() / executed, TimeUnit.NANOSECONDS);
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * @param timeUnit unit of the returned time
+     * @return the longest time a single filter spent executing
+     */
+    public long getMaxExecutionTime(TimeUnit timeUnit) {
+        return timeUnit.convert(maxExecutionTimeNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Discards the metrics recorded so far.
+     */
+    public void resetStatistics() {
+        filtersCompleted.set(0);
+        filtersFailed.set(0);
+        filtersTimedOut.set(0);
+        filtersRunOnEventLoop.set(0);
+        totalExecutionTimeNanos.set(0);
+        maxExecutionTimeNanos.set(0);
+        maxQueueDepth.set(0);
+    }
+
+    /**
+     * Runs the filter and records its execution time and outcome.
+     */
+    private <T> T call(Callable<T> filter) throws Exception {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            T result = filter.call();
+            succeeded = true;
+            return result;
+        } finally {
+            long executionTimeNanos = System.nanoTime() - start;
+            totalExecutionTimeNanos.addAndGet(executionTimeNanos);
+            maxExecutionTimeNanos.accumulateAndGet(executionTimeNanos, Math::max);
+
+            if (succeeded) {
+                filtersCompleted.incrementAndGet();
+            } else {
+                filtersFailed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * A filter submitted to the executor. The result is passed to the callback by whichever happens first: the filter
+     * completing, or the timeout expiring.
+     */
+    private class FilterTask<T> extends FutureTask<T> {
+        private final Runnable cleanup;
+        private final EventExecutor eventLoop;
+        private final BiConsumer<T, Throwable> callback;
+        private final AtomicBoolean callbackInvoked = new AtomicBoolean();
+
+        /**
+         * Set when a thread starts running the task. A task that is cancelled before it starts never runs its filter, so
+         * the thread that cancels it runs the cleanup action.
+         */
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final AtomicBoolean cleanedUp = new AtomicBoolean();
+
+        private volatile ScheduledFuture<?> timeout;
+
+        FilterTask(Callable<T> filter, Runnable cleanup, EventExecutor eventLoop, BiConsumer<T, Throwable> callback) {
+            super(() -> call(filter));
+
+            this.cleanup = cleanup;
+            this.eventLoop = eventLoop;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            started.set(true);
+            try {
+                super.run();
+            } finally {
+                cleanUp();
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                return;
+            }
+
+            if (eventLoop.inEventLoop()) {
+                complete();
+                return;
+            }
+
+            try {
+                eventLoop.execute(this::complete);
+            } catch (RejectedExecutionException e) {
+                log.debug("Unable to return filter result to an event loop that is shutting down", e);
+            }
+        }
+
+        private void complete() {
+            if (!callbackInvoked.compareAndSet(false, true)) {
+                return;
+            }
+
+            ScheduledFuture<?> timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+
+            T result;
+            try {
+                result = get();
+            } catch (ExecutionException e) {
+                callback.accept(null, e.getCause());
+                return;
+            } catch (InterruptedException | CancellationException e) {
+                callback.accept(null, e);
+                return;
+            }
+
+            callback.accept(result, null);
+        }
+
+        private void timeOut() {
+            if (!callbackInvoked.compareAndSet(false, true)) {
+                return;
+            }
+
+            filtersTimedOut.incrementAndGet();
+            cancel(true);
+
+            // a task that had not started will not run its filter; a running task cleans up when its filter returns
+            if (!started.get()) {
+                cleanUp();
+            }
+
+            callback.accept(null, new TimeoutException("Filter did not complete within " + TimeUnit.NANOSECONDS.toMillis(filterTimeoutNanos) + "ms"));
+        }
+
+        /**
+         * Discards a task that was removed from the queue without running, and passes a CancellationException to its
+         * callback on the event loop.
+         */
+        private void discard() {
+            cancel(false);
+            cleanUp();
+
+            ScheduledFuture<?> timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+
+            if (!callbackInvoked.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                eventLoop.execute(() -> callback.accept(null, new CancellationException("Filter executor was shut down")));
+            } catch (RejectedExecutionException e) {
+                log.debug("Unable to return filter result to an event loop that is shutting down", e);
+            }
+        }
+
+        private void cleanUp() {
+            if (cleanup != null && cleanedUp.compareAndSet(false, true)) {
+                try {
+                    cleanup.run();
+                } catch (RuntimeException e) {
+                    log.warn("Filter cleanup failed", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.DefaultHttp2Connection;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2Error;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.handler.codec.http2.HttpToHttp2ConnectionHandler;
+import io.netty.handler.codec.http2.HttpToHttp2ConnectionHandlerBuilder;
+import io.netty.handler.codec.http2.InboundHttp2ToHttpAdapterBuilder;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * An inbound handler on a client-to-proxy channel that switches the channel to HTTP/2 if the client negotiates h2
+ * using ALPN during the man-in-the-middle TLS handshake. It must be added to the pipeline before the handshake
+ * starts, such as while the proxy handles the client's HTTP CONNECT, and removes itself when the handshake completes.
+ * <p>
+ * When the client negotiates HTTP/2, LittleProxy's HTTP/1.1 codec is replaced by an HTTP/2 codec that translates
+ * each HTTP/2 stream into a {@link FullHttpRequest}, and translates the responses written by the proxy back into
+ * frames on the same stream. The requests are passed to the proxy one at a time, in the order their streams
+ * completed, because LittleProxy handles one request at a time on each client connection. This still lets the
+ * client send all requests to an impersonated host over a single connection, instead of opening a connection (and
+ * performing a handshake) for each concurrent request, but a slow response delays the responses to every other
+ * request on the connection.
+ * <p>
+ * Since requests are queued while they wait for the proxy, the client is only allowed {@value #MAX_CONCURRENT_STREAMS}
+ * concurrent streams, and streams opened beyond that limit are refused. Requests are always passed to the proxy as
+ * keep-alive requests, so the proxy never closes the connection, and every other stream on it, after a response.
+ * <p>
+ * The time each request waits for the requests ahead of it is available from {@link #getStreamQueueTime(Channel)}
+ * while the proxy handles the request, and is recorded as blocked time in the HAR.
+ */
+public class Http2ClientConnectionHandler extends ChannelInboundHandlerAdapter {
+    private static final Logger log = LoggerFactory.getLogger(Http2ClientConnectionHandler.class);
+
+    public static final String HANDLER_NAME = "browserup-http2-client-connection";
+
+    /**
+     * Channel attribute set to true when the client connection has switched to HTTP/2.
+     */
+    public static final String HTTP2_ATTRIBUTE_NAME = "http2";
+
+    /**
+     * Channel attribute holding the time, in nanoseconds, the request the proxy is currently handling waited behind the
+     * requests on other streams before it was passed to the proxy.
+     */
+    public static final String STREAM_QUEUE_TIME_ATTRIBUTE_NAME = "http2StreamQueueTimeNanos";
+
+    /**
+     * The maximum size of a request body received over HTTP/2. Each request is aggregated before it is passed to the
+     * proxy.
+     */
+    private static final int MAX_REQUEST_CONTENT_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * The maximum number of concurrent streams advertised to the client, which is also the maximum number of requests
+     * waiting for the proxy. Kept small, since the requests are handled one at a time.
+     */
+    public static final int MAX_CONCURRENT_STREAMS = 8;
+
+    /**
+     * Adds an Http2ClientConnectionHandler to the client-to-proxy channel's pipeline, in front of LittleProxy's HTTP/1.1
+     * codec, if one has not been added.
+     *
+     * @param pipeline client-to-proxy channel pipeline
+     */
+    public static void addTo(ChannelPipeline pipeline) {
+        synchronized (pipeline) {
+            ChannelHandlerContext encoderCtx = pipeline.context(HttpResponseEncoder.class);
+            if (encoderCtx != null && pipeline.get(Http2ClientConnectionHandler.class) == null) {
+                pipeline.addBefore(encoderCtx.name(), HANDLER_NAME, new Http2ClientConnectionHandler());
+            }
+        }
+    }
+
+    /**
+     * Returns the time the request the proxy is currently handling on the client channel waited for the requests on other
+     * HTTP/2 streams, or 0 if the channel does not use HTTP/2. Must be called on the channel's event loop while the proxy
+     * handles the request.
+     *
+     * @param channel client-to-proxy channel
+     * @return time the request waited before it was passed to the proxy, in nanoseconds
+     */
+    public static long getStreamQueueTime(Channel channel) {
+        Long queueTimeNanos = channel.attr(AttributeKey.<Long>valueOf(STREAM_QUEUE_TIME_ATTRIBUTE_NAME)).get();
+        return queueTimeNanos != null ? queueTimeNanos : 0L;
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof SslHandshakeCompletionEvent) {
+            ctx.pipeline().remove(this);
+
+            SslHandler sslHandler = ctx.pipeline().get(SslHandler.class);
+            if (((SslHandshakeCompletionEvent) evt).isSuccess() && sslHandler != null
+                    && ApplicationProtocolNames.HTTP_2.equals(sslHandler.applicationProtocol())) {
+                switchToHttp2(ctx);
+            }
+        }
+
+        super.userEventTriggered(ctx, evt);
+    }
+
+    private static void switchToHttp2(ChannelHandlerContext ctx) {
+        ChannelPipeline pipeline = ctx.pipeline();
+        if (pipeline.get(HttpResponseEncoder.class) == null || pipeline.get(HttpRequestDecoder.class) == null) {
+            log.warn("Client negotiated HTTP/2, but the client connection does not have an HTTP/1.1 codec to replace. Closing connection.");
+            ctx.close();
+            return;
+        }
+
+        Http2Connection connection = new DefaultHttp2Connection(true);
+        HttpToHttp2ConnectionHandler http2Handler = new HttpToHttp2ConnectionHandlerBuilder()
+                .initialSettings(Http2Settings.defaultSettings().maxConcurrentStreams(MAX_CONCURRENT_STREAMS))
+                .connection(connection)
+                .frameListener(new InboundHttp2ToHttpAdapterBuilder(connection)
+                        .maxContentLength(MAX_REQUEST_CONTENT_LENGTH)
+                        .propagateSettings(false)
+                        .validateHttpHeaders(false)
+                        .build())
+                .build();
+
+        String http2HandlerName = HANDLER_NAME + "-codec";
+        pipeline.replace(HttpResponseEncoder.class, http2HandlerName, http2Handler);
+        pipeline.remove(HttpRequestDecoder.class);
+        pipeline.addAfter(http2HandlerName, HANDLER_NAME + "-streams", new StreamSequencer(http2Handler));
+
+        ctx.channel().attr(AttributeKey.<Boolean>valueOf(HTTP2_ATTRIBUTE_NAME)).set(true);
+    }
+
+    /**
+     * Passes the requests received on HTTP/2 streams to the proxy one at a time, and adds the stream ID of the request
+     * being handled to the response the proxy writes, so the HTTP/2 codec writes the response to the right stream.
+     * The HTTP/2 extension headers are removed from the requests, so they are not sent to the upstream server.
+     */
+    static class StreamSequencer extends ChannelDuplexHandler {
+        private final HttpToHttp2ConnectionHandler http2Handler;
+
+        private final Queue<PendingRequest> pendingRequests = new ArrayDeque<>();
+
+        /**
+         * The stream ID of the request the proxy is handling, or null if the proxy is not handling a request.
+         */
+        private Integer currentStreamId;
+
+        StreamSequencer(HttpToHttp2ConnectionHandler http2Handler) {
+            this.http2Handler = http2Handler;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (!(msg instanceof FullHttpRequest)) {
+                ctx.fireChannelRead(msg);
+                return;
+            }
+
+            FullHttpRequest request = (FullHttpRequest) msg;
+
+            // the client may open more streams than allowed before it receives the settings; refuse them, so the client
+            // can safely retry them, rather than queueing them without bound
+            if (pendingRequests.size() >= MAX_CONCURRENT_STREAMS) {
+                Integer streamId = request.headers().getInt(HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text());
+                ReferenceCountUtil.release(request);
+
+                if (streamId != null) {
+                    log.debug("Refusing HTTP/2 stream {}: {} requests are already waiting for the proxy", streamId, pendingRequests.size());
+
+                    http2Handler.resetStream(ctx.pipeline().context(http2Handler), streamId, Http2Error.REFUSED_STREAM.code(), ctx.newPromise());
+                    ctx.flush();
+                }
+
+                return;
+            }
+
+            pendingRequests.add(new PendingRequest(request, System.nanoTime()));
+            if (currentStreamId == null) {
+                readNextRequest(ctx);
+            }
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            if (msg instanceof HttpResponse && currentStreamId != null) {
+                ((HttpResponse) msg).headers().setInt(HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text(), currentStreamId);
+            }
+
+            ctx.write(msg, promise);
+
+            if (msg instanceof LastHttpContent && currentStreamId != null) {
+                currentStreamId = null;
+
+                // pass the next request to the proxy once it has finished writing this response
+                ctx.executor().execute(() -> readNextRequest(ctx));
+            }
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            PendingRequest pendingRequest;
+            while ((pendingRequest = pendingRequests.poll()) != null) {
+                ReferenceCountUtil.release(pendingRequest.request);
+            }
+        }
+
+        private void readNextRequest(ChannelHandlerContext ctx) {
+            if (currentStreamId != null) {
+                return;
+            }
+
+            PendingRequest pendingRequest = pendingRequests.poll();
+            if (pendingRequest == null) {
+                return;
+            }
+
+            FullHttpRequest request = pendingRequest.request;
+            HttpHeaders headers = request.headers();
+            currentStreamId = headers.getInt(HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text());
+            for (HttpConversionUtil.ExtensionHeaderNames extensionHeader : HttpConversionUtil.ExtensionHeaderNames.values()) {
+                headers.remove(extensionHeader.text());
+            }
+
+            // HTTP/2 has no connection-specific headers, and the proxy must not close the connection after the response,
+            // since that would also reset the other streams on the connection
+            headers.remove(HttpHeaderNames.KEEP_ALIVE);
+            headers.remove(HttpHeaderNames.PROXY_CONNECTION);
+            HttpUtil.setKeepAlive(request, true);
+
+            ctx.channel().attr(AttributeKey.<Long>valueOf(STREAM_QUEUE_TIME_ATTRIBUTE_NAME)).set(System.nanoTime() - pendingRequest.receivedNanos);
+
+            ctx.fireChannelRead(request);
+        }
+    }
+
+    private static class PendingRequest {
+        private final FullHttpRequest request;
+
+        /**
+         * The time the request's stream completed, and the request started waiting for the proxy.
+         */
+        private final long receivedNanos;
+
+        PendingRequest(FullHttpRequest request, long receivedNanos) {
+            this.request = request;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+}
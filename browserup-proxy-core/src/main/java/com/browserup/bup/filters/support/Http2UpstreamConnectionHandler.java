@@ -0,0 +1,326 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support;
+
+import com.browserup.bup.util.BrowserUpHttpUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpRequestEncoder;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseDecoder;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.DefaultHttp2WindowUpdateFrame;
+import io.netty.handler.codec.http2.Http2ChannelDuplexHandler;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2FrameStream;
+import io.netty.handler.codec.http2.Http2GoAwayFrame;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2ResetFrame;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.PromiseCombiner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+/**
+ * A handler on a proxy-to-server channel that translates between the HTTP/1.1 messages LittleProxy reads and writes
+ * and HTTP/2 frames, for upstream servers that negotiate h2 using ALPN. It is installed by
+ * {@link #switchToHttp2IfNegotiated(ChannelPipeline)} when the connection to the server succeeds, before the first
+ * request is written, and replaces LittleProxy's HTTP/1.1 codec.
+ * <p>
+ * Each request is sent on a new stream of the connection, so all requests LittleProxy sends to the server reuse the
+ * connection and its TLS session. Responses are streamed back to the proxy as they arrive, so the proxy's filters
+ * (and the HAR timings recorded by them) see the same sequence of messages as they do for an HTTP/1.1 server.
+ * LittleProxy sends one request at a time on each server connection, so only one stream is active at a time.
+ * <p>
+ * When the server sends a GOAWAY, no new streams can be opened on the connection, so the connection is closed as soon
+ * as the active stream completes, or immediately if no stream is active. LittleProxy then opens a new connection for
+ * the next request.
+ */
+public class Http2UpstreamConnectionHandler extends Http2ChannelDuplexHandler {
+    private static final Logger log = LoggerFactory.getLogger(Http2UpstreamConnectionHandler.class);
+
+    public static final String HANDLER_NAME = "browserup-http2-upstream-connection";
+
+    /**
+     * The stream the current request is being written to, or null if no request is being written.
+     */
+    private Http2FrameStream requestStream;
+
+    /**
+     * True when the response headers of the current stream have been passed to the proxy, so the next headers frame
+     * contains the response's trailers.
+     */
+    private boolean responseStarted;
+
+    /**
+     * True if the current request is a HEAD request, whose response has no content regardless of its headers.
+     */
+    private boolean headRequest;
+
+    /**
+     * The stream of the current request, from the time the request is written until its response has been read or the
+     * stream is reset, or null if no stream is active.
+     */
+    private Http2FrameStream activeStream;
+
+    /**
+     * True once the server has sent a GOAWAY, after which the connection is closed when no stream is active.
+     */
+    private boolean goAwayReceived;
+
+    /**
+     * Replaces LittleProxy's HTTP/1.1 codec on a proxy-to-server channel with an HTTP/2 codec and an
+     * Http2UpstreamConnectionHandler, if the server negotiated h2 using ALPN. Does nothing if the channel has already
+     * been switched to HTTP/2 or is not encrypted.
+     *
+     * @param pipeline proxy-to-server channel pipeline
+     * @return true if the channel uses HTTP/2
+     */
+    public static boolean switchToHttp2IfNegotiated(ChannelPipeline pipeline) {
+        synchronized (pipeline) {
+            if (pipeline.get(Http2UpstreamConnectionHandler.class) != null) {
+                return true;
+            }
+
+            SslHandler sslHandler = pipeline.get(SslHandler.class);
+            if (sslHandler == null || !ApplicationProtocolNames.HTTP_2.equals(sslHandler.applicationProtocol())) {
+                return false;
+            }
+
+            if (pipeline.get(HttpRequestEncoder.class) == null || pipeline.get(HttpResponseDecoder.class) == null) {
+                log.warn("Upstream server negotiated HTTP/2, but the server connection does not have an HTTP/1.1 codec to replace. Closing connection.");
+                pipeline.close();
+                return false;
+            }
+
+            String codecName = HANDLER_NAME + "-codec";
+            pipeline.replace(HttpRequestEncoder.class, codecName, Http2FrameCodecBuilder.forClient().build());
+            pipeline.remove(HttpResponseDecoder.class);
+            pipeline.addAfter(codecName, HANDLER_NAME, new Http2UpstreamConnectionHandler());
+
+            return true;
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (!(msg instanceof HttpRequest) && !(msg instanceof HttpContent)) {
+            ctx.write(msg, promise);
+            return;
+        }
+
+        PromiseCombiner promiseCombiner = new PromiseCombiner(ctx.executor());
+
+        if (msg instanceof HttpRequest) {
+            if (goAwayReceived) {
+                ReferenceCountUtil.release(msg);
+                promise.setFailure(new IOException("Upstream server sent GOAWAY; no new HTTP/2 streams can be opened on this connection"));
+                ctx.close();
+                return;
+            }
+
+            requestStream = newStream();
+            activeStream = requestStream;
+            responseStarted = false;
+            headRequest = HttpMethod.HEAD.equals(((HttpRequest) msg).method());
+
+            ctx.write(new DefaultHttp2HeadersFrame(toHttp2Headers((HttpRequest) msg)).stream(requestStream), newCombinedPromise(ctx, promiseCombiner));
+        }
+
+        if (msg instanceof HttpContent) {
+            if (requestStream == null) {
+                ReferenceCountUtil.release(msg);
+                promise.setFailure(new IllegalStateException("Cannot write HTTP content before an HTTP request"));
+                return;
+            }
+
+            HttpContent content = (HttpContent) msg;
+            if (msg instanceof LastHttpContent) {
+                HttpHeaders trailingHeaders = ((LastHttpContent) msg).trailingHeaders();
+                if (trailingHeaders.isEmpty()) {
+                    ctx.write(new DefaultHttp2DataFrame(content.content(), true).stream(requestStream), newCombinedPromise(ctx, promiseCombiner));
+                } else {
+                    ctx.write(new DefaultHttp2DataFrame(content.content(), false).stream(requestStream), newCombinedPromise(ctx, promiseCombiner));
+
+                    Http2Headers trailers = new DefaultHttp2Headers(false);
+                    HttpConversionUtil.toHttp2Headers(trailingHeaders, trailers);
+                    ctx.write(new DefaultHttp2HeadersFrame(trailers, true).stream(requestStream), newCombinedPromise(ctx, promiseCombiner));
+                }
+
+                requestStream = null;
+            } else {
+                ctx.write(new DefaultHttp2DataFrame(content.content(), false).stream(requestStream), newCombinedPromise(ctx, promiseCombiner));
+            }
+        }
+
+        promiseCombiner.finish(promise);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof Http2HeadersFrame) {
+            readHeaders(ctx, (Http2HeadersFrame) msg);
+        } else if (msg instanceof Http2DataFrame) {
+            readData(ctx, (Http2DataFrame) msg);
+        } else if (msg instanceof Http2ResetFrame) {
+            ctx.fireExceptionCaught(new IOException("Upstream server reset HTTP/2 stream with error code " + ((Http2ResetFrame) msg).errorCode()));
+            completeStream(ctx);
+        } else if (msg instanceof Http2GoAwayFrame) {
+            readGoAway(ctx, (Http2GoAwayFrame) msg);
+        } else {
+            // settings and pings are handled by the codec
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private void readGoAway(ChannelHandlerContext ctx, Http2GoAwayFrame frame) {
+        int lastStreamId = frame.lastStreamId();
+        long errorCode = frame.errorCode();
+        frame.release();
+
+        goAwayReceived = true;
+
+        if (activeStream == null) {
+            log.debug("Upstream server sent GOAWAY with error code {}; closing idle HTTP/2 connection", errorCode);
+            ctx.close();
+        } else if (activeStream.id() > lastStreamId) {
+            // the server will not process the active stream, so its response will never arrive
+            ctx.fireExceptionCaught(new IOException("Upstream server sent GOAWAY with error code " + errorCode + " before processing the request"));
+            ctx.close();
+        } else {
+            log.debug("Upstream server sent GOAWAY with error code {}; closing HTTP/2 connection when the active stream completes", errorCode);
+        }
+    }
+
+    /**
+     * Marks the active stream as complete, and closes the connection if the server has sent a GOAWAY.
+     */
+    private void completeStream(ChannelHandlerContext ctx) {
+        activeStream = null;
+
+        if (goAwayReceived) {
+            ctx.close();
+        }
+    }
+
+    private void readHeaders(ChannelHandlerContext ctx, Http2HeadersFrame frame) throws Exception {
+        int streamId = frame.stream().id();
+
+        if (responseStarted) {
+            LastHttpContent trailers = new DefaultLastHttpContent();
+            HttpConversionUtil.addHttp2ToHttpHeaders(streamId, frame.headers(), trailers.trailingHeaders(), HttpVersion.HTTP_1_1, true, false);
+            responseStarted = false;
+            ctx.fireChannelRead(trailers);
+            completeStream(ctx);
+            return;
+        }
+
+        HttpResponse response = HttpConversionUtil.toHttpResponse(streamId, frame.headers(), false);
+        removeExtensionHeaders(response.headers());
+
+        if (response.status().codeClass() == HttpStatusClass.INFORMATIONAL) {
+            // interim responses, such as 100 Continue, are complete messages that precede the final response
+            FullHttpResponse interimResponse = new DefaultFullHttpResponse(response.protocolVersion(), response.status(), Unpooled.EMPTY_BUFFER);
+            interimResponse.headers().set(response.headers());
+            ctx.fireChannelRead(interimResponse);
+            return;
+        }
+
+        if (frame.isEndStream()) {
+            // the response has no content, which an HTTP/1.1 client can only tell from the headers
+            int status = response.status().code();
+            if (!headRequest && status != 204 && status != 304 && !response.headers().contains(HttpHeaderNames.CONTENT_LENGTH)) {
+                HttpUtil.setContentLength(response, 0);
+            }
+
+            ctx.fireChannelRead(response);
+            ctx.fireChannelRead(LastHttpContent.EMPTY_LAST_CONTENT);
+            completeStream(ctx);
+            return;
+        }
+
+        // HTTP/2 responses are delimited by the end of the stream, so the proxy needs a Transfer-Encoding to find the
+        // end of a response without a Content-Length
+        if (!response.headers().contains(HttpHeaderNames.CONTENT_LENGTH)) {
+            HttpUtil.setTransferEncodingChunked(response, true);
+        }
+
+        responseStarted = true;
+        ctx.fireChannelRead(response);
+    }
+
+    private void readData(ChannelHandlerContext ctx, Http2DataFrame frame) {
+        // the content is consumed as soon as it is passed to the proxy, so return the flow-control window to the server
+        int flowControlledBytes = frame.initialFlowControlledBytes();
+        if (flowControlledBytes > 0) {
+            ctx.writeAndFlush(new DefaultHttp2WindowUpdateFrame(flowControlledBytes).stream(frame.stream()));
+        }
+
+        if (frame.isEndStream()) {
+            responseStarted = false;
+            ctx.fireChannelRead(new DefaultLastHttpContent(frame.content()));
+            completeStream(ctx);
+        } else {
+            ctx.fireChannelRead(new DefaultHttpContent(frame.content()));
+        }
+    }
+
+    /**
+     * Converts the request headers to HTTP/2 headers. LittleProxy sends requests to the server in origin form, so the
+     * :authority is taken from the Host header and the :scheme is always https, since HTTP/2 is only negotiated on
+     * encrypted connections.
+     */
+    private static Http2Headers toHttp2Headers(HttpRequest request) throws URISyntaxException {
+        Http2Headers headers = new DefaultHttp2Headers(false);
+        headers.method(request.method().asciiName());
+        headers.path(BrowserUpHttpUtil.getRawPathAndParamsFromRequest(request));
+        headers.scheme("https");
+
+        String host = request.headers().get(HttpHeaderNames.HOST);
+        if (host != null) {
+            headers.authority(host);
+        }
+
+        HttpConversionUtil.toHttp2Headers(request.headers(), headers);
+        return headers;
+    }
+
+    private static void removeExtensionHeaders(HttpHeaders headers) {
+        for (HttpConversionUtil.ExtensionHeaderNames extensionHeader : HttpConversionUtil.ExtensionHeaderNames.values()) {
+            headers.remove(extensionHeader.text());
+        }
+    }
+
+    private static ChannelPromise newCombinedPromise(ChannelHandlerContext ctx, PromiseCombiner promiseCombiner) {
+        ChannelPromise promise = ctx.newPromise();
+        promiseCombiner.add(promise);
+        return promise;
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support;
+
+import com.browserup.bup.exception.DecompressionException;
+import com.browserup.bup.util.BrowserUpHttpUtil;
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes gzip and deflate content incrementally using a {@link Inflater}. Inflaters are expensive to create, so they are
+ * pooled per thread and reused for subsequent responses once a response has been decoded.
+ * <p>
+ * gzip content may consist of multiple gzip members, as allowed by RFC 1952. Like {@link java.util.zip.GZIPInputStream},
+ * bytes following a complete gzip member that do not start another member (such as zero padding) are ignored. deflate
+ * content may use either the zlib format required by RFC 7230, or the raw deflate format that some servers send instead.
+ */
+class InflatingContentDecoder extends ContentDecoder {
+    /**
+     * Maximum number of idle Inflaters kept for reuse by each thread.
+     */
+    private static final int MAX_POOLED_INFLATERS_PER_THREAD = 4;
+
+    private static final ThreadLocal<Deque<Inflater>> pooledRawInflaters = ThreadLocal.withInitial(ArrayDeque::new);
+    private static final ThreadLocal<Deque<Inflater>> pooledZlibInflaters = ThreadLocal.withInitial(ArrayDeque::new);
+
+    /**
+     * Scratch buffers for compressed input and decompressed output. The buffers are only used for the duration of a
+     * single call to decode(), so they can be shared by all decoders on a thread.
+     */
+    private static final ThreadLocal<byte[]> inputBuffer = ThreadLocal.withInitial(() -> new byte[BrowserUpHttpUtil.DECOMPRESS_BUFFER_SIZE]);
+    private static final ThreadLocal<byte[]> outputBuffer = ThreadLocal.withInitial(() -> new byte[BrowserUpHttpUtil.DECOMPRESS_BUFFER_SIZE]);
+
+    private static final int GZIP_MAGIC_1 = 0x1f;
+    private static final int GZIP_MAGIC_2 = 0x8b;
+    private static final int GZIP_DEFLATE_METHOD = 8;
+    private static final int GZIP_FIXED_HEADER_LENGTH = 10;
+    private static final int GZIP_TRAILER_LENGTH = 8;
+
+    private static final int FHCRC = 0x02;
+    private static final int FEXTRA = 0x04;
+    private static final int FNAME = 0x08;
+    private static final int FCOMMENT = 0x10;
+
+    private enum State {
+        /**
+         * Reading the two bytes at the start of deflate content, to determine if the content is zlib or raw deflate.
+         */
+        DEFLATE_FORMAT,
+
+        /**
+         * Reading the header of a gzip member.
+         */
+        GZIP_HEADER,
+
+        /**
+         * Inflating compressed content.
+         */
+        INFLATE,
+
+        /**
+         * Reading the CRC32 and size at the end of a gzip member.
+         */
+        GZIP_TRAILER,
+
+        /**
+         * All content has been decoded. Any further content is ignored.
+         */
+        DONE,
+
+        /**
+         * Decoding was abandoned, because of an error or because the decoded content has been truncated.
+         */
+        ABANDONED
+    }
+
+    private final boolean gzip;
+
+    private State state;
+
+    private Inflater inflater;
+    private boolean nowrap;
+
+    /**
+     * Header or trailer bytes received so far. Headers and trailers are small, but may be split across chunks.
+     */
+    private byte[] pendingBytes = new byte[GZIP_FIXED_HEADER_LENGTH];
+    private int pendingLength;
+
+    private final CRC32 crc = new CRC32();
+    private long memberDecodedSize;
+    private int gzipMembersDecoded;
+
+    private InflatingContentDecoder(boolean gzip) {
+        this.gzip = gzip;
+        this.state = gzip ? State.GZIP_HEADER : State.DEFLATE_FORMAT;
+    }
+
+    static InflatingContentDecoder gzip() {
+        return new InflatingContentDecoder(true);
+    }
+
+    static InflatingContentDecoder deflate() {
+        return new InflatingContentDecoder(false);
+    }
+
+    @Override
+    public void decode(ByteBuf content, BoundedContentBuffer decoded) throws DecompressionException {
+        int length = content.readableBytes();
+        if (length == 0 || state == State.DONE || state == State.ABANDONED) {
+            return;
+        }
+
+        try {
+            if (content.hasArray()) {
+                decode(content.array(), content.arrayOffset() + content.readerIndex(), length, decoded);
+            } else {
+                byte[] input = inputBuffer.get();
+                int index = content.readerIndex();
+                int remaining = length;
+                while (remaining > 0 && state != State.DONE && state != State.ABANDONED) {
+                    int inputLength = Math.min(remaining, input.length);
+                    content.getBytes(index, input, 0, inputLength);
+                    decode(input, 0, inputLength, decoded);
+
+                    index += inputLength;
+                    remaining -= inputLength;
+                }
+            }
+        } catch (DecompressionException e) {
+            state = State.ABANDONED;
+            releaseInflater();
+
+            throw e;
+        }
+
+        if (decoded.isTruncated()) {
+            // no more decoded content can be captured, so don't waste time decoding the rest of the content
+            state = State.ABANDONED;
+            releaseInflater();
+        }
+    }
+
+    @Override
+    public void finish(BoundedContentBuffer decoded) throws DecompressionException {
+        try {
+            boolean complete;
+            switch (state) {
+                case DONE:
+                case ABANDONED:
+                    complete = true;
+                    break;
+
+                case GZIP_HEADER:
+                    // the end of the content may only fall after a complete gzip member. a partial header after a complete
+                    // member is trailing garbage, which is ignored.
+                    complete = gzipMembersDecoded > 0;
+                    break;
+
+                default:
+                    complete = false;
+                    break;
+            }
+
+            if (!complete) {
+                throw new DecompressionException("Compressed content ended unexpectedly");
+            }
+        } finally {
+            releaseInflater();
+        }
+    }
+
+    @Override
+    public void close() {
+        releaseInflater();
+    }
+
+    private void decode(byte[] input, int offset, int length, BoundedContentBuffer decoded) {
+        while (length > 0) {
+            int consumed;
+            switch (state) {
+                case DEFLATE_FORMAT:
+                    consumed = readDeflateFormat(input, offset, length, decoded);
+                    break;
+
+                case GZIP_HEADER:
+                    consumed = readGzipHeader(input, offset, length);
+                    break;
+
+                case INFLATE:
+                    consumed = inflate(input, offset, length, decoded);
+                    break;
+
+                case GZIP_TRAILER:
+                    consumed = readGzipTrailer(input, offset, length);
+                    break;
+
+                default:
+                    // DONE or ABANDONED; ignore any trailing content
+                    return;
+            }
+
+            offset += consumed;
+            length -= consumed;
+        }
+    }
+
+    /**
+     * Determines if the deflate content is wrapped in a zlib header, which is required by the HTTP spec but often omitted.
+     */
+    private int readDeflateFormat(byte[] input, int offset, int length, BoundedContentBuffer decoded) {
+        int consumed = 0;
+        while (pendingLength < 2 && consumed < length) {
+            pendingBytes[pendingLength++] = input[offset + consumed++];
+        }
+
+        if (pendingLength == 2) {
+            int cmf = pendingBytes[0] & 0xff;
+            int flg = pendingBytes[1] & 0xff;
+            boolean zlibHeader = (cmf & 0x0f) == GZIP_DEFLATE_METHOD && ((cmf << 8) | flg) % 31 == 0;
+
+            byte[] formatBytes = { pendingBytes[0], pendingBytes[1] };
+            pendingLength = 0;
+
+            acquireInflater(!zlibHeader);
+            state = State.INFLATE;
+
+            // the two bytes are part of the compressed content, so the inflater needs them too
+            inflate(formatBytes, 0, formatBytes.length, decoded);
+        }
+
+        return consumed;
+    }
+
+    /**
+     * Reads the gzip member header, which has variable length depending on its flags. Bytes are accumulated until the
+     * complete header has been read.
+     */
+    private int readGzipHeader(byte[] input, int offset, int length) {
+        int consumed = 0;
+        while (consumed < length) {
+            appendPendingByte(input[offset + consumed++]);
+
+            if (gzipMembersDecoded > 0 && !isGzipMemberStart()) {
+                // the bytes after the last member are not another member, so the content is complete
+                pendingLength = 0;
+                state = State.DONE;
+
+                return length;
+            }
+
+            if (isGzipHeaderComplete()) {
+                pendingLength = 0;
+
+                if (inflater == null) {
+                    acquireInflater(true);
+                } else {
+                    inflater.reset();
+                }
+                crc.reset();
+                memberDecodedSize = 0;
+
+                state = State.INFLATE;
+                break;
+            }
+        }
+
+        return consumed;
+    }
+
+    private boolean isGzipHeaderComplete() {
+        if (pendingLength < GZIP_FIXED_HEADER_LENGTH) {
+            if (pendingLength <= 2 && !isGzipMemberStart()) {
+                throw new DecompressionException("Not in gzip format");
+            }
+
+            if (pendingLength == 3 && !isGzipMemberStart()) {
+                throw new DecompressionException("Unsupported gzip compression method: " + (pendingBytes[2] & 0xff));
+            }
+
+            return false;
+        }
+
+        int flags = pendingBytes[3] & 0xff;
+        int position = GZIP_FIXED_HEADER_LENGTH;
+
+        if ((flags & FEXTRA) != 0) {
+            if (pendingLength < position + 2) {
+                return false;
+            }
+
+            int extraLength = (pendingBytes[position] & 0xff) | ((pendingBytes[position + 1] & 0xff) << 8);
+            position += 2 + extraLength;
+        }
+
+        if ((flags & FNAME) != 0) {
+            position = skipZeroTerminatedField(position);
+            if (position < 0) {
+                return false;
+            }
+        }
+
+        if ((flags & FCOMMENT) != 0) {
+            position = skipZeroTerminatedField(position);
+            if (position < 0) {
+                return false;
+            }
+        }
+
+        if ((flags & FHCRC) != 0) {
+            position += 2;
+        }
+
+        return pendingLength == position;
+    }
+
+    /**
+     * @return true if the header bytes read so far match the magic number and compression method of a gzip member
+     */
+    private boolean isGzipMemberStart() {
+        return (pendingLength < 1 || (pendingBytes[0] & 0xff) == GZIP_MAGIC_1)
+                && (pendingLength < 2 || (pendingBytes[1] & 0xff) == GZIP_MAGIC_2)
+                && (pendingLength < 3 || (pendingBytes[2] & 0xff) == GZIP_DEFLATE_METHOD);
+    }
+
+    /**
+     * @return position after the terminating zero, or -1 if the terminating zero has not been read yet
+     */
+    private int skipZeroTerminatedField(int position) {
+        for (int i = position; i < pendingLength; i++) {
+            if (pendingBytes[i] == 0) {
+                return i + 1;
+            }
+        }
+
+        return -1;
+    }
+
+    private int readGzipTrailer(byte[] input, int offset, int length) {
+        int consumed = Math.min(length, GZIP_TRAILER_LENGTH - pendingLength);
+        for (int i = 0; i < consumed; i++) {
+            appendPendingByte(input[offset + i]);
+        }
+
+        if (pendingLength == GZIP_TRAILER_LENGTH) {
+            long expectedCrc = readUnsignedIntLE(pendingBytes, 0);
+            long expectedSize = readUnsignedIntLE(pendingBytes, 4);
+
+            if (expectedCrc != crc.getValue()) {
+                throw new DecompressionException("Corrupt gzip content: CRC mismatch");
+            }
+
+            if (expectedSize != (memberDecodedSize & 0xffffffffL)) {
+                throw new DecompressionException("Corrupt gzip content: size mismatch");
+            }
+
+            pendingLength = 0;
+            gzipMembersDecoded++;
+
+            // another gzip member may follow
+            state = State.GZIP_HEADER;
+        }
+
+        return consumed;
+    }
+
+    /**
+     * Inflates as much of the input as possible.
+     *
+     * @return number of input bytes consumed
+     */
+    private int inflate(byte[] input, int offset, int length, BoundedContentBuffer decoded) {
+        if (length > 0) {
+            inflater.setInput(input, offset, length);
+        }
+
+        byte[] output = outputBuffer.get();
+        try {
+            while (true) {
+                int decodedLength = inflater.inflate(output);
+                if (decodedLength > 0) {
+                    if (gzip) {
+                        crc.update(output, 0, decodedLength);
+                        memberDecodedSize += decodedLength;
+                    }
+
+                    decoded.write(output, 0, decodedLength);
+                } else if (inflater.finished() || inflater.needsInput()) {
+                    break;
+                } else if (inflater.needsDictionary()) {
+                    throw new DecompressionException("Compressed content requires a preset dictionary");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new DecompressionException("Invalid compressed content", e);
+        }
+
+        int remaining = inflater.getRemaining();
+        if (inflater.finished()) {
+            state = gzip ? State.GZIP_TRAILER : State.DONE;
+        }
+
+        return length - remaining;
+    }
+
+    private void appendPendingByte(byte b) {
+        if (pendingLength == pendingBytes.length) {
+            byte[] expanded = new byte[pendingBytes.length * 2];
+            System.arraycopy(pendingBytes, 0, expanded, 0, pendingLength);
+            pendingBytes = expanded;
+        }
+
+        pendingBytes[pendingLength++] = b;
+    }
+
+    private static long readUnsignedIntLE(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xffL)
+                | ((bytes[offset + 1] & 0xffL) << 8)
+                | ((bytes[offset + 2] & 0xffL) << 16)
+                | ((bytes[offset + 3] & 0xffL) << 24);
+    }
+
+    private void acquireInflater(boolean nowrap) {
+        Inflater pooledInflater = (nowrap ? pooledRawInflaters : pooledZlibInflaters).get().pollFirst();
+
+        this.inflater = pooledInflater != null ? pooledInflater : new Inflater(nowrap);
+        this.nowrap = nowrap;
+    }
+
+    private void releaseInflater() {
+        if (inflater == null) {
+            return;
+        }
+
+        inflater.reset();
+
+        Deque<Inflater> pool = (nowrap ? pooledRawInflaters : pooledZlibInflaters).get();
+        if (pool.size() < MAX_POOLED_INFLATERS_PER_THREAD) {
+            pool.offerFirst(inflater);
+        } else {
+            inflater.end();
+        }
+
+        inflater = null;
+    }
+}
@@ -0,0 +1,554 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support;
+
+import com.browserup.bup.filters.HttpRequestContext;
+import com.browserup.bup.filters.RequestFilter;
+import com.browserup.bup.filters.ResponseFilter;
+import com.browserup.bup.util.HttpMessageContents;
+import com.browserup.bup.util.HttpMessageInfo;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.FullHttpMessage;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A handler on the client-to-proxy channel that runs {@link RequestFilter}s and {@link ResponseFilter}s on a
+ * {@link FilterExecutor}, instead of on the channel's event loop. While a request filter runs, the channel stops reading
+ * from the client, and the messages the proxy reads or writes after the filtered message are held back, so the proxy sees
+ * the messages in the same order as it would if the filters ran on the event loop.
+ * <p>
+ * Requests are filtered before they are passed to the proxy, so the proxy (and all of its filters) see the filtered
+ * request as the request the client sent. A response returned by a request filter is passed to the proxy by
+ * {@link #takeShortCircuitResponse()}. Responses are filtered as the proxy writes them to the client, after all of the
+ * proxy's filters have handled them, and are registered for filtering using {@link #filterResponse(HttpResponse, HttpMessageInfo)}.
+ * <p>
+ * A filter that throws an exception is skipped. When a filter does not complete within the executor's timeout, the
+ * message is replaced by a 503 Service Unavailable response, since the filter may still be modifying it. The proxy
+ * then handles a copy of the request taken before its filters ran, so it never shares a request with a filter that is
+ * still running.
+ */
+public class OffloadedFilterHandler extends ChannelDuplexHandler {
+    private static final Logger log = LoggerFactory.getLogger(OffloadedFilterHandler.class);
+
+    public static final String HANDLER_NAME = "browserup-offloaded-filters";
+
+    /**
+     * The proxy's handler context, which is passed to the filters in their {@link HttpMessageInfo}.
+     */
+    private final ChannelHandlerContext proxyCtx;
+
+    private final List<RequestFilter> requestFilters;
+    private final List<ResponseFilter> responseFilters;
+    private final FilterExecutor filterExecutor;
+
+    /**
+     * Responses the proxy's filters registered for filtering, and the message info to pass to the response filters.
+     * Filters may run on the proxy-to-server event loop, so access to this map must be synchronized.
+     */
+    private final Map<HttpResponse, HttpMessageInfo> pendingResponses = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    // the remaining fields are only accessed from the client channel's event loop
+
+    private final Queue<Object> heldInboundMessages = new ArrayDeque<>();
+    private final Queue<PendingWrite> heldWrites = new ArrayDeque<>();
+
+    /**
+     * The request currently being filtered, or null if no request is being filtered.
+     */
+    private RequestFiltering requestFiltering;
+
+    /**
+     * The response currently being filtered, or null if no response is being filtered.
+     */
+    private ResponseFiltering responseFiltering;
+
+    /**
+     * The request most recently passed to the proxy after its filters ran, and the response a filter returned for it.
+     */
+    private HttpRequest filteredRequest;
+    private HttpResponse shortCircuitResponse;
+
+    private boolean flushHeld;
+    private boolean discardingResponseContent;
+    private boolean closed;
+
+    /**
+     * True while this handler has turned off auto-read, and the auto-read setting to restore when reading resumes.
+     */
+    private boolean autoReadPaused;
+    private boolean autoReadBeforePause;
+
+    private OffloadedFilterHandler(ChannelHandlerContext proxyCtx, List<RequestFilter> requestFilters, List<ResponseFilter> responseFilters,
+                                   FilterExecutor filterExecutor) {
+        this.proxyCtx = proxyCtx;
+        this.requestFilters = requestFilters;
+        this.responseFilters = responseFilters;
+        this.filterExecutor = filterExecutor;
+    }
+
+    /**
+     * Returns the OffloadedFilterHandler in the pipeline, adding one immediately before the proxy's handler if it is not
+     * already present. Requests that the proxy has already started reading when the handler is added are not filtered by it.
+     *
+     * @param proxyCtx the proxy's channel handler context on the client-to-proxy channel
+     * @param requestFilters request filters to run for each request, in order; the list may change while the handler is in use
+     * @param responseFilters response filters to run for each registered response, in order; the list may change while the handler is in use
+     * @param filterExecutor executor to run the filters on
+     * @return the OffloadedFilterHandler for the channel
+     */
+    public static OffloadedFilterHandler getOrAddTo(ChannelHandlerContext proxyCtx, List<RequestFilter> requestFilters,
+                                                    List<ResponseFilter> responseFilters, FilterExecutor filterExecutor) {
+        ChannelPipeline pipeline = proxyCtx.pipeline();
+
+        OffloadedFilterHandler handler = pipeline.get(OffloadedFilterHandler.class);
+        if (handler != null) {
+            return handler;
+        }
+
+        synchronized (pipeline) {
+            handler = pipeline.get(OffloadedFilterHandler.class);
+            if (handler == null) {
+                handler = new OffloadedFilterHandler(proxyCtx, requestFilters, responseFilters, filterExecutor);
+                pipeline.addBefore(proxyCtx.name(), HANDLER_NAME, handler);
+            }
+
+            return handler;
+        }
+    }
+
+    /**
+     * Returns true if the request filters have already been run for the request by this handler.
+     *
+     * @param request request the proxy is handling
+     * @return true if the request was filtered before it was passed to the proxy
+     */
+    public boolean isFiltered(HttpRequest request) {
+        return request == filteredRequest;
+    }
+
+    /**
+     * Returns the response a request filter returned for the request most recently passed to the proxy, or null if the
+     * request should be sent to the server. Must be called while the proxy handles the request.
+     *
+     * @return the response to send to the client instead of sending the request to the server, or null
+     */
+    public HttpResponse takeShortCircuitResponse() {
+        HttpResponse response = shortCircuitResponse;
+
+        filteredRequest = null;
+        shortCircuitResponse = null;
+
+        return response;
+    }
+
+    /**
+     * Runs the response filters for the specified response when the proxy writes it to the client. Must be called before
+     * the response is written.
+     *
+     * @param response the response to filter
+     * @param messageInfo message info to pass to the response filters
+     */
+    public void filterResponse(HttpResponse response, HttpMessageInfo messageInfo) {
+        pendingResponses.put(response, messageInfo);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (requestFiltering != null) {
+            heldInboundMessages.add(msg);
+            return;
+        }
+
+        if (msg instanceof HttpRequest && !requestFilters.isEmpty()) {
+            startRequestFiltering(ctx, (HttpRequest) msg);
+        } else {
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (responseFiltering != null) {
+            heldWrites.add(new PendingWrite(msg, promise));
+            return;
+        }
+
+        if (msg instanceof HttpResponse) {
+            discardingResponseContent = false;
+
+            HttpMessageInfo messageInfo = pendingResponses.remove(msg);
+            // responses that were registered but replaced before they were written will never be written
+            pendingResponses.clear();
+
+            if (messageInfo != null && !responseFilters.isEmpty()) {
+                startResponseFiltering(ctx, (HttpResponse) msg, promise, messageInfo);
+                return;
+            }
+        } else if (discardingResponseContent && msg instanceof HttpContent) {
+            // the content of a response that was replaced because its filters timed out
+            if (msg instanceof LastHttpContent) {
+                discardingResponseContent = false;
+            }
+
+            ReferenceCountUtil.release(msg);
+            promise.trySuccess();
+            return;
+        }
+
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        if (responseFiltering != null) {
+            flushHeld = true;
+        } else {
+            ctx.flush();
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        releaseHeldMessages();
+
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        releaseHeldMessages();
+    }
+
+    private void startRequestFiltering(ChannelHandlerContext ctx, HttpRequest request) {
+        // the proxy's filters receive a copy of the request as the original request, before any filter modifies it
+        HttpRequest originalRequest = new DefaultHttpRequest(request.protocolVersion(), request.method(), request.uri());
+        originalRequest.headers().set(request.headers());
+
+        requestFiltering = new RequestFiltering(request, originalRequest, newTimeoutRequest(request), requestFilters.iterator());
+        pauseAutoRead(ctx);
+
+        runNextRequestFilter(ctx, requestFiltering);
+    }
+
+    private void runNextRequestFilter(ChannelHandlerContext ctx, RequestFiltering filtering) {
+        if (!filtering.filters.hasNext()) {
+            finishRequestFiltering(ctx, filtering, filtering.request, null);
+            return;
+        }
+
+        RequestFilter filter = filtering.filters.next();
+        HttpRequest request = filtering.request;
+        HttpMessageInfo messageInfo = new HttpMessageInfo(filtering.originalRequest, proxyCtx, filtering.requestContext.isHttps(),
+                filtering.requestContext.getFullUrl(request), filtering.requestContext.getOriginalUrl());
+
+        // the filter holds its own reference to the request, so the request cannot be released while the filter uses it.
+        // the executor releases the reference when the filter returns, or when it discards the filter without running it.
+        ReferenceCountUtil.retain(request);
+        filterExecutor.execute(() -> filter.filterRequest(request, filtering.contents, messageInfo),
+                () -> ReferenceCountUtil.release(request), ctx.executor(), (response, cause) -> {
+            if (closed) {
+                return;
+            }
+
+            if (cause instanceof TimeoutException) {
+                log.warn("Request filter did not complete within {}ms for {}. Responding with 503 Service Unavailable.",
+                        filterExecutor.getFilterTimeout(TimeUnit.MILLISECONDS), messageInfo.getUrl());
+
+                // the filter may still be using the request, so pass the proxy the copy taken before the filters ran instead
+                ReferenceCountUtil.release(request);
+                finishRequestFiltering(ctx, filtering, filtering.timeoutRequest, newFilterTimeoutResponse(request.protocolVersion()));
+            } else if (cause != null) {
+                log.warn("Request filter failed for {}", messageInfo.getUrl(), cause);
+
+                runNextRequestFilter(ctx, filtering);
+            } else if (response != null) {
+                finishRequestFiltering(ctx, filtering, request, response);
+            } else {
+                runNextRequestFilter(ctx, filtering);
+            }
+        });
+    }
+
+    private void finishRequestFiltering(ChannelHandlerContext ctx, RequestFiltering filtering, HttpRequest request, HttpResponse response) {
+        requestFiltering = null;
+        filteredRequest = request;
+        shortCircuitResponse = response;
+
+        if (request != filtering.timeoutRequest) {
+            ReferenceCountUtil.release(filtering.timeoutRequest);
+        }
+
+        // resume reading before passing the request to the proxy, which stops reading while it connects to the server
+        resumeAutoRead(ctx);
+
+        ctx.fireChannelRead(request);
+
+        Object msg;
+        while (requestFiltering == null && !closed && (msg = heldInboundMessages.poll()) != null) {
+            if (msg instanceof HttpRequest && !requestFilters.isEmpty()) {
+                startRequestFiltering(ctx, (HttpRequest) msg);
+            } else {
+                ctx.fireChannelRead(msg);
+            }
+        }
+    }
+
+    private void startResponseFiltering(ChannelHandlerContext ctx, HttpResponse response, ChannelPromise promise, HttpMessageInfo messageInfo) {
+        // reading continues while the response is filtered: requests read in the meantime are passed to the proxy as usual,
+        // and the proxy's writes are held back until the filters complete. not pausing here also leaves the proxy in sole
+        // control of auto-read while it may be responding to backpressure from the server connection.
+        responseFiltering = new ResponseFiltering(response, promise, messageInfo, responseFilters.iterator());
+
+        runNextResponseFilter(ctx, responseFiltering);
+    }
+
+    private void runNextResponseFilter(ChannelHandlerContext ctx, ResponseFiltering filtering) {
+        if (!filtering.filters.hasNext()) {
+            finishResponseFiltering(ctx, filtering, null);
+            return;
+        }
+
+        ResponseFilter filter = filtering.filters.next();
+        HttpResponse response = filtering.response;
+
+        ReferenceCountUtil.retain(response);
+        filterExecutor.execute(() -> {
+            filter.filterResponse(response, filtering.contents, filtering.messageInfo);
+            return null;
+        }, () -> ReferenceCountUtil.release(response), ctx.executor(), (result, cause) -> {
+            if (closed) {
+                return;
+            }
+
+            if (cause instanceof TimeoutException) {
+                log.warn("Response filter did not complete within {}ms for {}. Responding with 503 Service Unavailable.",
+                        filterExecutor.getFilterTimeout(TimeUnit.MILLISECONDS), filtering.messageInfo.getUrl());
+
+                finishResponseFiltering(ctx, filtering, newFilterTimeoutResponse(response.protocolVersion()));
+            } else {
+                if (cause != null) {
+                    log.warn("Response filter failed for {}", filtering.messageInfo.getUrl(), cause);
+                }
+
+                runNextResponseFilter(ctx, filtering);
+            }
+        });
+    }
+
+    private void finishResponseFiltering(ChannelHandlerContext ctx, ResponseFiltering filtering, FullHttpResponse replacement) {
+        responseFiltering = null;
+
+        if (replacement != null) {
+            ReferenceCountUtil.release(filtering.response);
+            ctx.write(replacement, filtering.promise);
+
+            discardingResponseContent = !(filtering.response instanceof LastHttpContent);
+        } else {
+            ctx.write(filtering.response, filtering.promise);
+        }
+
+        PendingWrite pendingWrite;
+        while (responseFiltering == null && !closed && (pendingWrite = heldWrites.poll()) != null) {
+            try {
+                write(ctx, pendingWrite.msg, pendingWrite.promise);
+            } catch (Exception e) {
+                ReferenceCountUtil.release(pendingWrite.msg);
+                pendingWrite.promise.tryFailure(e);
+            }
+        }
+
+        if (flushHeld) {
+            // writes that are still held back are flushed when the next response's filters complete
+            flushHeld = responseFiltering != null;
+            ctx.flush();
+        }
+    }
+
+    private void pauseAutoRead(ChannelHandlerContext ctx) {
+        if (autoReadPaused) {
+            return;
+        }
+
+        ChannelConfig config = ctx.channel().config();
+        autoReadBeforePause = config.isAutoRead();
+        autoReadPaused = true;
+
+        if (autoReadBeforePause) {
+            config.setAutoRead(false);
+        }
+    }
+
+    /**
+     * Restores the auto-read setting from before the pause, rather than always turning auto-read on, so a pause that
+     * started after the proxy stopped reading does not resume reading.
+     */
+    private void resumeAutoRead(ChannelHandlerContext ctx) {
+        if (autoReadPaused && requestFiltering == null) {
+            autoReadPaused = false;
+
+            ChannelConfig config = ctx.channel().config();
+            if (config.isAutoRead() != autoReadBeforePause) {
+                config.setAutoRead(autoReadBeforePause);
+            }
+        }
+    }
+
+    private void releaseHeldMessages() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        if (requestFiltering != null) {
+            ReferenceCountUtil.release(requestFiltering.request);
+            ReferenceCountUtil.release(requestFiltering.timeoutRequest);
+            requestFiltering = null;
+        }
+
+        if (responseFiltering != null) {
+            ReferenceCountUtil.release(responseFiltering.response);
+            responseFiltering.promise.tryFailure(new ClosedChannelException());
+            responseFiltering = null;
+        }
+
+        Object msg;
+        while ((msg = heldInboundMessages.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+
+        PendingWrite pendingWrite;
+        while ((pendingWrite = heldWrites.poll()) != null) {
+            ReferenceCountUtil.release(pendingWrite.msg);
+            pendingWrite.promise.tryFailure(new ClosedChannelException());
+        }
+
+        pendingResponses.clear();
+        filteredRequest = null;
+        shortCircuitResponse = null;
+    }
+
+    private static FullHttpResponse newFilterTimeoutResponse(HttpVersion httpVersion) {
+        FullHttpResponse response = new DefaultFullHttpResponse(httpVersion, HttpResponseStatus.SERVICE_UNAVAILABLE, Unpooled.EMPTY_BUFFER);
+        HttpUtil.setContentLength(response, 0);
+
+        return response;
+    }
+
+    /**
+     * Copies the request's headers before any filter runs, so the proxy has a request to handle if a filter times out while
+     * it still holds the original request. The copy of an aggregated request has no content, since the proxy responds to it
+     * without sending it to the server; the copy of a request that is not aggregated is followed by its content, as usual.
+     */
+    private static HttpRequest newTimeoutRequest(HttpRequest request) {
+        HttpRequest timeoutRequest;
+        if (request instanceof FullHttpMessage) {
+            timeoutRequest = new DefaultFullHttpRequest(request.protocolVersion(), request.method(), request.uri(), Unpooled.EMPTY_BUFFER);
+            timeoutRequest.headers().set(request.headers());
+            timeoutRequest.headers().remove(HttpHeaderNames.TRANSFER_ENCODING);
+            HttpUtil.setContentLength(timeoutRequest, 0);
+        } else {
+            timeoutRequest = new DefaultHttpRequest(request.protocolVersion(), request.method(), request.uri());
+            timeoutRequest.headers().set(request.headers());
+        }
+
+        return timeoutRequest;
+    }
+
+    private static HttpMessageContents getContents(HttpMessage message) {
+        if (message instanceof FullHttpMessage) {
+            return new HttpMessageContents((FullHttpMessage) message);
+        } else {
+            // the message was not aggregated, so its contents are not available to the filters
+            return null;
+        }
+    }
+
+    /**
+     * The state of a request whose filters are running.
+     */
+    private class RequestFiltering {
+        private final HttpRequest request;
+        private final HttpRequest originalRequest;
+
+        /**
+         * Passed to the proxy instead of the request if a filter times out.
+         */
+        private final HttpRequest timeoutRequest;
+
+        private final HttpRequestContext requestContext;
+        private final HttpMessageContents contents;
+        private final Iterator<RequestFilter> filters;
+
+        RequestFiltering(HttpRequest request, HttpRequest originalRequest, HttpRequest timeoutRequest, Iterator<RequestFilter> filters) {
+            this.request = request;
+            this.originalRequest = originalRequest;
+            this.timeoutRequest = timeoutRequest;
+            this.requestContext = HttpRequestContext.forRequest(originalRequest, proxyCtx);
+            this.contents = getContents(request);
+            this.filters = filters;
+        }
+    }
+
+    /**
+     * The state of a response whose filters are running.
+     */
+    private static class ResponseFiltering {
+        private final HttpResponse response;
+        private final ChannelPromise promise;
+        private final HttpMessageInfo messageInfo;
+        private final HttpMessageContents contents;
+        private final Iterator<ResponseFilter> filters;
+
+        ResponseFiltering(HttpResponse response, ChannelPromise promise, HttpMessageInfo messageInfo, Iterator<ResponseFilter> filters) {
+            this.response = response;
+            this.promise = promise;
+            this.messageInfo = messageInfo;
+            this.contents = getContents(response);
+            this.filters = filters;
+        }
+    }
+
+    private static class PendingWrite {
+        private final Object msg;
+        private final ChannelPromise promise;
+
+        PendingWrite(Object msg, ChannelPromise promise) {
+            this.msg = msg;
+            this.promise = promise;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support;
+
+import com.browserup.bup.filters.HttpRequestContext;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.util.ReferenceCountUtil;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An outbound handler on the client-to-proxy channel that holds responses for a period of time before writing them to the
+ * client. Rather than blocking the event loop, held writes are queued and released by a task scheduled on the channel's
+ * event loop. Any HttpContent written while a response is held is queued behind it, so the order of writes to the client
+ * is preserved.
+ * <p>
+ * Filters request a delay for a request by calling {@link #delayResponse(HttpRequest, long)} while handling its response. The
+ * delay is consumed by the first {@link HttpResponse} written after it was requested, and is only applied if the channel is
+ * still handling the same request. A delay whose response is never written, because a later filter dropped it, is therefore
+ * discarded rather than applied to the response to the next request.
+ */
+public class ResponseDelayHandler extends ChannelOutboundHandlerAdapter {
+    public static final String HANDLER_NAME = "browserup-response-delay";
+
+    /**
+     * The delay requested for the response currently being handled, if any. Filters may run on the proxy-to-server event
+     * loop, so the delay is requested and consumed atomically.
+     */
+    private final AtomicReference<RequestedDelay> requestedDelay = new AtomicReference<>();
+
+    /**
+     * Writes that are waiting for a delay to elapse. Only accessed from the client channel's event loop.
+     */
+    private final Queue<HeldWrite> heldWrites = new ArrayDeque<>();
+
+    /**
+     * Returns the ResponseDelayHandler in the pipeline, adding one at the end of the pipeline if it is not already present.
+     *
+     * @param pipeline client-to-proxy channel pipeline
+     * @return the ResponseDelayHandler for the channel
+     */
+    public static ResponseDelayHandler getOrAddTo(ChannelPipeline pipeline) {
+        ResponseDelayHandler handler = pipeline.get(ResponseDelayHandler.class);
+        if (handler != null) {
+            return handler;
+        }
+
+        synchronized (pipeline) {
+            handler = pipeline.get(ResponseDelayHandler.class);
+            if (handler == null) {
+                handler = new ResponseDelayHandler();
+                pipeline.addLast(HANDLER_NAME, handler);
+            }
+        }
+
+        return handler;
+    }
+
+    /**
+     * Holds the response to the specified request for the specified amount of time. Replaces any delay requested for an
+     * earlier request whose response was never written.
+     *
+     * @param originalRequest the original request from the client, as passed to the filter
+     * @param delayMs delay in milliseconds; a value of 0 or less writes the response immediately
+     */
+    public void delayResponse(HttpRequest originalRequest, long delayMs) {
+        requestedDelay.set(new RequestedDelay(originalRequest, delayMs));
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        long delayMs = 0;
+        if (msg instanceof HttpResponse) {
+            RequestedDelay delay = requestedDelay.getAndSet(null);
+            if (delay != null && delay.isForCurrentRequest(ctx.channel())) {
+                delayMs = delay.delayMs;
+            }
+        }
+
+        if (heldWrites.isEmpty() && delayMs <= 0) {
+            ctx.write(msg, promise);
+            return;
+        }
+
+        heldWrites.add(new HeldWrite(msg, promise, delayMs));
+
+        // if this is the only held write, it is the start of a new delayed response and needs its own release task.
+        // otherwise it will be released by the task that releases the writes ahead of it.
+        if (heldWrites.size() == 1) {
+            scheduleRelease(ctx, delayMs);
+        }
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        discardHeldWrites();
+
+        super.close(ctx, promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        discardHeldWrites();
+    }
+
+    private void scheduleRelease(ChannelHandlerContext ctx, long delayMs) {
+        ctx.executor().schedule(() -> releaseHeldWrites(ctx), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the held response whose delay has elapsed, and every write queued behind it, up to the next delayed response.
+     */
+    private void releaseHeldWrites(ChannelHandlerContext ctx) {
+        HeldWrite heldWrite = heldWrites.poll();
+        if (heldWrite == null) {
+            // the held writes were discarded when the channel closed
+            return;
+        }
+
+        ctx.write(heldWrite.msg, heldWrite.promise);
+
+        while ((heldWrite = heldWrites.peek()) != null) {
+            if (heldWrite.delayMs > 0) {
+                scheduleRelease(ctx, heldWrite.delayMs);
+                break;
+            }
+
+            heldWrites.poll();
+            ctx.write(heldWrite.msg, heldWrite.promise);
+        }
+
+        ctx.flush();
+    }
+
+    private void discardHeldWrites() {
+        HeldWrite heldWrite;
+        while ((heldWrite = heldWrites.poll()) != null) {
+            ReferenceCountUtil.release(heldWrite.msg);
+            heldWrite.promise.tryFailure(new ClosedChannelException());
+        }
+    }
+
+    private static class RequestedDelay {
+        private final HttpRequest originalRequest;
+        private final long delayMs;
+
+        private RequestedDelay(HttpRequest originalRequest, long delayMs) {
+            this.originalRequest = originalRequest;
+            this.delayMs = delayMs;
+        }
+
+        /**
+         * Returns true unless a later request has been received on the channel. If requests on the channel are not tracked,
+         * such as when filters are used outside of a BrowserUpHttpFilterChain, the delay is assumed to be current.
+         */
+        private boolean isForCurrentRequest(Channel channel) {
+            HttpRequest mostRecentRequest = HttpRequestContext.getMostRecentRequest(channel);
+            return mostRecentRequest == null || mostRecentRequest == originalRequest;
+        }
+    }
+
+    private static class HeldWrite {
+        private final Object msg;
+        private final ChannelPromise promise;
+        private final long delayMs;
+
+        private HeldWrite(Object msg, ChannelPromise promise, long delayMs) {
+            this.msg = msg;
+            this.promise = promise;
+            this.delayMs = delayMs;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support;
+
+import com.browserup.bup.util.HttpUtil;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContentDecompressor;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslHandler;
+
+import java.util.function.ToIntBiFunction;
+
+/**
+ * A handler on a proxy-to-server channel that aggregates only the responses that filters need the contents of, instead
+ * of every response on the connection. When the headers of a response are received, the buffer size function is called
+ * with the URL of the request and the response; if it returns a size greater than 0, a decompressor and an
+ * {@link HttpObjectAggregator} are added to the pipeline for that response, the same handlers LittleProxy uses when
+ * aggregation is enabled for all responses, and are removed once the response is complete. All other responses are
+ * passed to the proxy chunk by chunk.
+ */
+public class SelectiveResponseAggregator extends ChannelDuplexHandler {
+    public static final String HANDLER_NAME = "browserup-selective-aggregator";
+
+    private static final String INFLATER_NAME = HANDLER_NAME + "-inflater";
+    private static final String AGGREGATOR_NAME = HANDLER_NAME + "-aggregator";
+
+    private final ToIntBiFunction<String, HttpResponse> bufferSizeFunction;
+
+    /**
+     * The full URL of the last request written to the server, which the next response is a response to.
+     */
+    private String requestUrl;
+
+    private boolean aggregating;
+
+    public SelectiveResponseAggregator(ToIntBiFunction<String, HttpResponse> bufferSizeFunction) {
+        this.bufferSizeFunction = bufferSizeFunction;
+    }
+
+    /**
+     * Adds a SelectiveResponseAggregator to the proxy-to-server channel's pipeline, immediately before LittleProxy's
+     * handler for the connection, if one has not been added.
+     *
+     * @param serverCtx context of LittleProxy's handler on the proxy-to-server channel
+     * @param bufferSizeFunction returns the maximum buffer size for a request URL and response, or 0 to stream the response
+     */
+    public static void addTo(ChannelHandlerContext serverCtx, ToIntBiFunction<String, HttpResponse> bufferSizeFunction) {
+        ChannelPipeline pipeline = serverCtx.pipeline();
+        synchronized (pipeline) {
+            if (pipeline.get(SelectiveResponseAggregator.class) == null) {
+                pipeline.addBefore(serverCtx.name(), HANDLER_NAME, new SelectiveResponseAggregator(bufferSizeFunction));
+            }
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof HttpRequest) {
+            requestUrl = getFullUrl(ctx, (HttpRequest) msg);
+        }
+
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        // responses that are already aggregated, because aggregation is enabled for all responses, are passed through
+        if (!aggregating && msg instanceof HttpResponse && !(msg instanceof FullHttpResponse) && requestUrl != null) {
+            HttpResponse response = (HttpResponse) msg;
+            if (response.status().codeClass() != HttpStatusClass.INFORMATIONAL) {
+                int bufferSize = bufferSizeFunction.applyAsInt(requestUrl, response);
+                if (bufferSize > 0) {
+                    ctx.pipeline().addAfter(ctx.name(), INFLATER_NAME, new HttpContentDecompressor());
+                    ctx.pipeline().addAfter(INFLATER_NAME, AGGREGATOR_NAME, new HttpObjectAggregator(bufferSize));
+                    aggregating = true;
+                }
+            }
+        }
+
+        ctx.fireChannelRead(msg);
+
+        // the aggregator passed the FullHttpResponse on when it received the last content, so it is no longer needed
+        if (aggregating && msg instanceof LastHttpContent) {
+            aggregating = false;
+            removeIfPresent(ctx.pipeline(), INFLATER_NAME);
+            removeIfPresent(ctx.pipeline(), AGGREGATOR_NAME);
+        }
+    }
+
+    private static void removeIfPresent(ChannelPipeline pipeline, String name) {
+        if (pipeline.context(name) != null) {
+            pipeline.remove(name);
+        }
+    }
+
+    private static String getFullUrl(ChannelHandlerContext ctx, HttpRequest request) {
+        String uri = request.uri();
+        if (HttpUtil.startsWithHttpOrHttps(uri)) {
+            return uri;
+        }
+
+        String scheme = ctx.pipeline().get(SslHandler.class) != null ? "https://" : "http://";
+        String host = request.headers().get(HttpHeaderNames.HOST);
+
+        return scheme + (host == null ? "" : host) + uri;
+    }
+}
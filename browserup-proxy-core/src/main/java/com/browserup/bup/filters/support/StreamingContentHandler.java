@@ -0,0 +1,253 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support;
+
+import com.browserup.bup.filters.StreamingContentTransform;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpMessage;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A handler on the client-to-proxy channel that applies {@link StreamingContentTransform}s to the content of requests
+ * read from the client and responses written to the client, one chunk at a time. The transforms are applied in the
+ * client channel's pipeline, rather than by the proxy's filters, so that the proxy reads and writes the transformed
+ * chunks exactly as it would the chunks it received.
+ * <p>
+ * Request transforms are added by filters while the proxy handles the request's {@link HttpRequest}, and apply to the
+ * content that follows it. Response transforms are added for a specific {@link HttpResponse} before the proxy writes it
+ * to the client, and apply to the content written after it. When several transforms are added for a message, the
+ * content passes through them in the order they were added.
+ */
+public class StreamingContentHandler extends ChannelDuplexHandler {
+    private static final Logger log = LoggerFactory.getLogger(StreamingContentHandler.class);
+
+    public static final String HANDLER_NAME = "browserup-streaming-content";
+
+    /**
+     * Transforms for the content of the request currently being read. Only accessed from the client channel's event loop.
+     */
+    private final List<StreamingContentTransform> requestTransforms = new ArrayList<>();
+
+    /**
+     * Transforms for responses that have not been written yet. Filters may run on the proxy-to-server event loop, so
+     * access to this map must be synchronized.
+     */
+    private final Map<HttpResponse, List<StreamingContentTransform>> pendingResponseTransforms = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    /**
+     * Transforms for the content of the response currently being written. Only accessed from the client channel's event loop.
+     */
+    private List<StreamingContentTransform> responseTransforms = Collections.emptyList();
+
+    /**
+     * Returns the StreamingContentHandler in the pipeline, adding one immediately before the proxy's handler if it is not
+     * already present.
+     *
+     * @param clientCtx the proxy's channel handler context on the client-to-proxy channel
+     * @return the StreamingContentHandler for the channel
+     */
+    public static StreamingContentHandler getOrAddTo(ChannelHandlerContext clientCtx) {
+        ChannelPipeline pipeline = clientCtx.pipeline();
+
+        StreamingContentHandler handler = pipeline.get(StreamingContentHandler.class);
+        if (handler != null) {
+            return handler;
+        }
+
+        synchronized (pipeline) {
+            handler = pipeline.get(StreamingContentHandler.class);
+            if (handler == null) {
+                handler = new StreamingContentHandler();
+                pipeline.addBefore(clientCtx.name(), HANDLER_NAME, handler);
+            }
+
+            return handler;
+        }
+    }
+
+    /**
+     * Adds a transform for the content of the request the proxy is currently reading. Must be called while the proxy
+     * handles the request's {@link HttpRequest}.
+     *
+     * @param transform transform for the request's content
+     */
+    public void addRequestTransform(StreamingContentTransform transform) {
+        requestTransforms.add(transform);
+    }
+
+    /**
+     * Adds a transform for the content that follows the specified response when it is written to the client. Must be
+     * called before the response is written.
+     *
+     * @param response the response whose content will be transformed
+     * @param transform transform for the response's content
+     */
+    public void addResponseTransform(HttpResponse response, StreamingContentTransform transform) {
+        pendingResponseTransforms.computeIfAbsent(response, r -> new ArrayList<>()).add(transform);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpMessage) {
+            // a new request starts here; any transforms for it are added while the proxy reads it
+            requestTransforms.clear();
+            ctx.fireChannelRead(msg);
+        } else if (msg instanceof HttpContent && !requestTransforms.isEmpty()) {
+            boolean last = msg instanceof LastHttpContent;
+
+            HttpContent transformed;
+            try {
+                transformed = transformChunk((HttpContent) msg, requestTransforms, ctx.alloc());
+            } finally {
+                if (last) {
+                    requestTransforms.clear();
+                }
+            }
+
+            ctx.fireChannelRead(transformed);
+        } else {
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof HttpResponse) {
+            HttpResponse response = (HttpResponse) msg;
+            if (response.status().codeClass() != HttpStatusClass.INFORMATIONAL) {
+                List<StreamingContentTransform> transforms;
+                synchronized (pendingResponseTransforms) {
+                    transforms = pendingResponseTransforms.remove(response);
+
+                    // the proxy writes one response at a time, so transforms for any other response will never be used
+                    pendingResponseTransforms.clear();
+                }
+
+                responseTransforms = transforms == null || msg instanceof FullHttpMessage ? Collections.emptyList() : transforms;
+            }
+
+            ctx.write(msg, promise);
+        } else if (msg instanceof HttpContent && !responseTransforms.isEmpty()) {
+            boolean last = msg instanceof LastHttpContent;
+
+            HttpContent transformed;
+            try {
+                transformed = transformChunk((HttpContent) msg, responseTransforms, ctx.alloc());
+            } catch (RuntimeException e) {
+                log.warn("Unable to transform response content. Closing connection to client.", e);
+                responseTransforms = Collections.emptyList();
+                promise.setFailure(e);
+                ctx.close();
+                return;
+            }
+
+            if (last) {
+                responseTransforms = Collections.emptyList();
+            }
+
+            ctx.write(transformed, promise);
+        } else {
+            ctx.write(msg, promise);
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        requestTransforms.clear();
+        pendingResponseTransforms.clear();
+        responseTransforms = Collections.emptyList();
+    }
+
+    /**
+     * Applies the transforms to the content of a message that has already been aggregated, replacing the message's
+     * content in place and updating its Content-Length.
+     *
+     * @param message aggregated HTTP message
+     * @param transforms transforms to apply, in order
+     * @param alloc allocator for new buffers
+     */
+    public static void transformFullMessage(FullHttpMessage message, List<StreamingContentTransform> transforms, ByteBufAllocator alloc) {
+        ByteBuf content = message.content();
+
+        // the transformed content may share memory with the original content, so copy it before overwriting the original
+        ByteBuf transformed = transform(content.retainedDuplicate(), message.trailingHeaders(), transforms, alloc);
+        ByteBuf copy;
+        try {
+            copy = Unpooled.copiedBuffer(transformed);
+        } finally {
+            transformed.release();
+        }
+
+        content.clear().writeBytes(copy);
+
+        HttpUtil.setContentLength(message, content.readableBytes());
+    }
+
+    /**
+     * Passes a chunk of content through the transforms. Takes ownership of the chunk, and returns a new HttpContent with
+     * the transformed content and, for the last chunk, the trailing headers.
+     */
+    private static HttpContent transformChunk(HttpContent chunk, List<StreamingContentTransform> transforms, ByteBufAllocator alloc) {
+        if (chunk instanceof LastHttpContent) {
+            LastHttpContent lastChunk = new DefaultLastHttpContent(Unpooled.EMPTY_BUFFER, false);
+            lastChunk.trailingHeaders().set(((LastHttpContent) chunk).trailingHeaders());
+
+            ByteBuf transformed = transform(chunk.content(), lastChunk.trailingHeaders(), transforms, alloc);
+            return lastChunk.replace(transformed);
+        } else {
+            ByteBuf transformed = chunk.content();
+            for (StreamingContentTransform transform : transforms) {
+                transformed = transform.transformContent(transformed, alloc);
+            }
+
+            return new DefaultHttpContent(transformed);
+        }
+    }
+
+    /**
+     * Passes the last chunk of a message's content through the transforms, and finishes each transform in turn. The
+     * content held back by each transform is passed through the transforms that follow it.
+     */
+    private static ByteBuf transform(ByteBuf lastChunk, HttpHeaders trailingHeaders, List<StreamingContentTransform> transforms, ByteBufAllocator alloc) {
+        ByteBuf transformed = lastChunk;
+        for (StreamingContentTransform transform : transforms) {
+            ByteBuf content = transform.transformContent(transformed, alloc);
+            ByteBuf remaining = transform.finish(trailingHeaders, alloc);
+
+            if (remaining.isReadable()) {
+                transformed = alloc.compositeBuffer(2).addComponents(true, content, remaining);
+            } else {
+                ReferenceCountUtil.release(remaining);
+                transformed = content;
+            }
+        }
+
+        return transformed;
+    }
+}
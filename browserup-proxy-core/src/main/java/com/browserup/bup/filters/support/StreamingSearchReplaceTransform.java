@@ -0,0 +1,102 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support;
+
+import java.nio.charset.Charset;
+
+/**
+ * A {@link StreamingTextTransform} that replaces every occurrence of a literal string in the content, including
+ * occurrences that span chunks. At the end of each chunk, only the text that could be the start of an occurrence is
+ * held back until the next chunk arrives, so at most {@code search.length() - 1} characters are held in memory.
+ */
+public class StreamingSearchReplaceTransform extends StreamingTextTransform {
+    private final String search;
+    private final String replacement;
+
+    /**
+     * Text from the end of the previous chunk that matches the start of the search string.
+     */
+    private final StringBuilder heldText = new StringBuilder();
+
+    /**
+     * Creates a transform that replaces every occurrence of search with replacement.
+     *
+     * @param search literal text to search for
+     * @param replacement text to replace each occurrence with
+     * @param charset character set of the content
+     */
+    public StreamingSearchReplaceTransform(String search, String replacement, Charset charset) {
+        super(charset);
+
+        if (search == null || search.isEmpty()) {
+            throw new IllegalArgumentException("Search string cannot be null or empty");
+        }
+
+        if (replacement == null) {
+            throw new IllegalArgumentException("Replacement string cannot be null");
+        }
+
+        this.search = search;
+        this.replacement = replacement;
+    }
+
+    @Override
+    protected String transformText(String text) {
+        heldText.append(text);
+
+        StringBuilder transformed = new StringBuilder(heldText.length());
+        int start = 0;
+        int matchIndex;
+        while ((matchIndex = heldText.indexOf(search, start)) >= 0) {
+            transformed.append(heldText, start, matchIndex).append(replacement);
+            start = matchIndex + search.length();
+        }
+
+        int end = heldText.length() - getPartialMatchLength(start);
+
+        // never split a surrogate pair between chunks
+        if (end > start && Character.isHighSurrogate(heldText.charAt(end - 1))) {
+            end--;
+        }
+
+        transformed.append(heldText, start, end);
+        heldText.delete(0, end);
+
+        return transformed.toString();
+    }
+
+    @Override
+    protected String finishText() {
+        String remainingText = heldText.toString();
+        heldText.setLength(0);
+
+        return remainingText;
+    }
+
+    /**
+     * Returns the length of the longest suffix of the held text, starting at or after the specified index, that is a
+     * prefix of the search string.
+     */
+    private int getPartialMatchLength(int fromIndex) {
+        int maxLength = Math.min(search.length() - 1, heldText.length() - fromIndex);
+        for (int length = maxLength; length > 0; length--) {
+            if (regionMatches(heldText.length() - length, length)) {
+                return length;
+            }
+        }
+
+        return 0;
+    }
+
+    private boolean regionMatches(int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (heldText.charAt(offset + i) != search.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
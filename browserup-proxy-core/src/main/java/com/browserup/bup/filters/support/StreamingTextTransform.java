@@ -0,0 +1,170 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support;
+
+import com.browserup.bup.exception.UnsupportedCharsetException;
+import com.browserup.bup.filters.StreamingContentTransform;
+import com.browserup.bup.util.BrowserUpHttpUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A {@link StreamingContentTransform} for textual content. Each chunk of content is decoded using the message's
+ * character set and passed to {@link #transformText(String)}, and the transformed text is encoded using the same
+ * character set. Multi-byte characters that are split across chunks are held back until the rest of the character
+ * arrives, so subclasses only ever see complete characters. Malformed input is replaced with the character set's
+ * replacement character.
+ */
+public abstract class StreamingTextTransform implements StreamingContentTransform {
+    private static final Logger log = LoggerFactory.getLogger(StreamingTextTransform.class);
+
+    private final Charset charset;
+    private final CharsetDecoder decoder;
+
+    /**
+     * The bytes at the end of the previous chunk that did not form a complete character, or null if the previous chunk
+     * ended on a character boundary.
+     */
+    private byte[] undecodedBytes;
+
+    protected StreamingTextTransform(Charset charset) {
+        this.charset = charset;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Returns the character set of the message's content, as specified in its Content-Type header. If the Content-Type
+     * header does not specify a character set, or specifies a character set that is not supported, returns
+     * {@link BrowserUpHttpUtil#DEFAULT_HTTP_CHARSET}.
+     *
+     * @param message HTTP message
+     * @return the character set of the message's content
+     */
+    public static Charset getCharset(HttpMessage message) {
+        String contentType = message.headers().get(HttpHeaderNames.CONTENT_TYPE);
+
+        Charset charset;
+        try {
+            charset = BrowserUpHttpUtil.readCharsetInContentTypeHeader(contentType);
+        } catch (UnsupportedCharsetException e) {
+            log.warn("Found unsupported character set in Content-Type header '{}'. Using default character set {} to transform content.",
+                    contentType, BrowserUpHttpUtil.DEFAULT_HTTP_CHARSET, e);
+            charset = null;
+        }
+
+        return charset == null ? BrowserUpHttpUtil.DEFAULT_HTTP_CHARSET : charset;
+    }
+
+    /**
+     * Transforms the next chunk of text. Text that may need to be combined with text from the next chunk, such as a
+     * partial match, can be held back and returned from a later call, or from {@link #finishText()}. The returned text
+     * should not end with the first half of a surrogate pair.
+     *
+     * @param text the next chunk of text
+     * @return the transformed text, which may be empty
+     */
+    protected abstract String transformText(String text);
+
+    /**
+     * Invoked after the last chunk of text has been transformed, to return any text that has been held back.
+     *
+     * @return the remaining text, which may be empty
+     */
+    protected String finishText() {
+        return "";
+    }
+
+    /**
+     * @return the character set used to decode and encode the content
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    @Override
+    public final ByteBuf transformContent(ByteBuf chunk, ByteBufAllocator alloc) {
+        String text;
+        try {
+            text = decode(chunk, false);
+        } finally {
+            chunk.release();
+        }
+
+        return encode(transformText(text), alloc);
+    }
+
+    @Override
+    public final ByteBuf finish(HttpHeaders trailingHeaders, ByteBufAllocator alloc) {
+        String text = decode(Unpooled.EMPTY_BUFFER, true);
+
+        return encode(transformText(text) + finishText(), alloc);
+    }
+
+    private String decode(ByteBuf chunk, boolean endOfInput) {
+        ByteBuffer in;
+        if (undecodedBytes == null) {
+            in = chunk.nioBuffer();
+        } else {
+            in = ByteBuffer.allocate(undecodedBytes.length + chunk.readableBytes());
+            in.put(undecodedBytes);
+            chunk.getBytes(chunk.readerIndex(), in);
+            in.flip();
+        }
+
+        CharBuffer out = CharBuffer.allocate((int) (in.remaining() * decoder.maxCharsPerByte()) + 1);
+        while (decoder.decode(in, out, endOfInput).isOverflow()) {
+            out = grow(out);
+        }
+
+        if (endOfInput) {
+            while (decoder.flush(out).isOverflow()) {
+                out = grow(out);
+            }
+
+            decoder.reset();
+        }
+
+        if (in.hasRemaining()) {
+            undecodedBytes = new byte[in.remaining()];
+            in.get(undecodedBytes);
+        } else {
+            undecodedBytes = null;
+        }
+
+        out.flip();
+        return out.toString();
+    }
+
+    private ByteBuf encode(String text, ByteBufAllocator alloc) {
+        if (text.isEmpty()) {
+            return Unpooled.EMPTY_BUFFER;
+        }
+
+        return ByteBufUtil.encodeString(alloc, CharBuffer.wrap(text), charset);
+    }
+
+    private static CharBuffer grow(CharBuffer buffer) {
+        CharBuffer grown = CharBuffer.allocate(buffer.capacity() * 2 + 1);
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.har;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.function.Supplier;
+
+/**
+ * Storage for the request and response bodies captured in a HAR. By default, captured bodies are held in memory as part
+ * of the HAR. A HarBodyStore allows bodies to be stored elsewhere, such as on disk, and resolved only when they are
+ * requested, for example when the HAR is serialized or when entries are queried. HAR entry metadata is always held in memory.
+ * <p>
+ * Implementations must be thread-safe, since bodies are stored as requests and responses complete on the proxy's worker threads.
+ */
+public interface HarBodyStore extends Closeable {
+    /**
+     * Stores the body and returns a supplier that resolves it. The supplier may be invoked any number of times, from
+     * any thread, until the body is discarded by {@link #newHar()} or this store is closed. Once the body has been
+     * discarded, the supplier returns null.
+     *
+     * @param body body to store
+     * @return supplier of the stored body
+     */
+    Supplier<String> store(String body);
+
+    /**
+     * Stores the body written by the bodyWriter and returns a supplier that resolves it. Used for bodies that are too large to
+     * hold in memory as a single String, such as response contents that spilled to disk while they were captured. The default
+     * implementation collects the body in memory and calls {@link #store(String)}.
+     *
+     * @param bodyWriter writes the body to store
+     * @return supplier of the stored body
+     * @throws IOException if the bodyWriter fails to write the body, or the body cannot be stored
+     */
+    default Supplier<String> store(BodyWriter bodyWriter) throws IOException {
+        StringWriter writer = new StringWriter();
+        bodyWriter.writeTo(writer);
+
+        return store(writer.toString());
+    }
+
+    /**
+     * Called when the proxy starts capturing a new HAR. Discards the bodies stored before the previous HAR started, so the
+     * space used by the store does not grow without bound. The bodies of the previous HAR, which is returned to the caller
+     * that started the new HAR, remain available until the next HAR starts.
+     */
+    void newHar();
+
+    /**
+     * Discards all stored bodies and releases the resources held by this store. Suppliers returned by this store return
+     * null once the store is closed.
+     */
+    @Override
+    void close();
+
+    /**
+     * Writes a body to a {@link HarBodyStore}.
+     */
+    @FunctionalInterface
+    interface BodyWriter {
+        /**
+         * Writes the entire body to the writer. The writer does not need to be closed.
+         *
+         * @param writer writer to write the body to
+         * @throws IOException if the body cannot be read or written
+         */
+        void writeTo(Writer writer) throws IOException;
+    }
+}
@@ -0,0 +1,23 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.har;
+
+import com.browserup.harreader.model.HarEntry;
+
+/**
+ * Receives HAR entries as the proxy completes them. See
+ * {@link com.browserup.bup.BrowserUpProxy#addHarEntryListener(HarEntryListener, int, HarEntryOverflowPolicy)}.
+ */
+@FunctionalInterface
+public interface HarEntryListener {
+    /**
+     * Called once for each completed entry, in the order the entries were completed. The listener is called on a
+     * delivery thread dedicated to its subscription, never on a proxy thread, so a slow listener only delays its own
+     * entries. The entry is the same object that is in the HAR, and should not be modified.
+     *
+     * @param entry completed HAR entry
+     */
+    void onHarEntryCompleted(HarEntry entry);
+}
@@ -0,0 +1,21 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.har;
+
+/**
+ * Action to take when a HAR entry is completed while a listener's queue is full. Proxy threads never wait for a
+ * listener, so one of the entries is always dropped.
+ */
+public enum HarEntryOverflowPolicy {
+    /**
+     * Drop the oldest queued entry to make room for the new entry, so the listener sees the most recent traffic.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Drop the new entry, so the listener sees an uninterrupted run of the earliest entries.
+     */
+    DROP_NEWEST
+}
@@ -0,0 +1,79 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.har;
+
+import com.browserup.harreader.model.HarEntry;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A page of completed HAR entries, in sequence order. To retrieve the next page, request the entries since
+ * {@link #getNextSequence()}.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class HarEntryPage {
+    private List<HarEntry> entries = new ArrayList<>();
+    private long nextSequence;
+    private long lastSequence;
+    private boolean hasMore;
+
+    public HarEntryPage() {
+    }
+
+    public HarEntryPage(List<HarEntry> entries, long nextSequence, long lastSequence, boolean hasMore) {
+        this.entries = entries;
+        this.nextSequence = nextSequence;
+        this.lastSequence = lastSequence;
+        this.hasMore = hasMore;
+    }
+
+    /**
+     * @return completed entries in this page, ordered by sequence number
+     */
+    public List<HarEntry> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(List<HarEntry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * @return sequence number to request the next page with. If this page is empty, this is the sequence number this
+     * page was requested with.
+     */
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    public void setNextSequence(long nextSequence) {
+        this.nextSequence = nextSequence;
+    }
+
+    /**
+     * @return the most recent sequence number assigned by the proxy when this page was retrieved. Requesting the entries
+     * since this sequence number skips every entry completed so far.
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public void setLastSequence(long lastSequence) {
+        this.lastSequence = lastSequence;
+    }
+
+    /**
+     * @return true if more completed entries were available than fit in this page
+     */
+    public boolean isHasMore() {
+        return hasMore;
+    }
+
+    public void setHasMore(boolean hasMore) {
+        this.hasMore = hasMore;
+    }
+}
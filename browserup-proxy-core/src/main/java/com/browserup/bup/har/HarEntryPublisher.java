@@ -0,0 +1,98 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.har;
+
+import com.browserup.harreader.model.HarEntry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Publishes completed HAR entries to subscribed {@link HarEntryListener}s. Publishing only adds the entry to each
+ * subscription's bounded queue, so proxy threads are never blocked by a slow listener. Entries are delivered to
+ * listeners on daemon threads, which are created as needed and discarded when they have been idle for a minute.
+ */
+public class HarEntryPublisher {
+    /**
+     * Default number of entries queued for a listener before entries are dropped.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    private final List<HarEntrySubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    private final ExecutorService deliveryExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+            .setNameFormat("har-entry-listener-%d")
+            .setDaemon(true)
+            .build());
+
+    /**
+     * Subscribes the listener to entries completed from now on.
+     *
+     * @param listener listener to deliver completed entries to
+     * @param queueCapacity maximum number of entries waiting to be delivered to the listener
+     * @param overflowPolicy entry to drop when the listener's queue is full
+     * @return the subscription, which can be used to unsubscribe the listener
+     */
+    public HarEntrySubscription subscribe(HarEntryListener listener, int queueCapacity, HarEntryOverflowPolicy overflowPolicy) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener must not be null");
+        }
+
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be greater than 0");
+        }
+
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("Overflow policy must not be null");
+        }
+
+        HarEntrySubscription subscription = new HarEntrySubscription(this, listener, queueCapacity, overflowPolicy, deliveryExecutor);
+        subscriptions.add(subscription);
+
+        return subscription;
+    }
+
+    /**
+     * Queues the completed entry for delivery to every subscribed listener. Never blocks.
+     *
+     * @param entry completed entry
+     */
+    public void publish(HarEntry entry) {
+        for (HarEntrySubscription subscription : subscriptions) {
+            subscription.offer(entry);
+        }
+    }
+
+    /**
+     * @return true if at least one listener is subscribed
+     */
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * @return the current subscriptions
+     */
+    public List<HarEntrySubscription> getSubscriptions() {
+        return Collections.unmodifiableList(subscriptions);
+    }
+
+    /**
+     * Cancels all subscriptions.
+     */
+    public void cancelAll() {
+        for (HarEntrySubscription subscription : subscriptions) {
+            subscription.cancel();
+        }
+    }
+
+    void unsubscribe(HarEntrySubscription subscription) {
+        subscriptions.remove(subscription);
+    }
+}
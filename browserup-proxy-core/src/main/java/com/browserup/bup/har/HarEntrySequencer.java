@@ -0,0 +1,165 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.har;
+
+import com.browserup.harreader.model.ChunkedAppendList;
+import com.browserup.harreader.model.HarEntry;
+import com.browserup.harreader.model.HarLog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Assigns sequence numbers to HAR entries as they are completed, and selects the entries completed since a given
+ * sequence number. Sequence numbers are unique within the JVM and never reused, even when a new HAR is created, so a
+ * client polling for new entries never confuses entries from an earlier HAR with entries in the current HAR.
+ * <p>
+ * When an entry is completed for a {@link HarLog}, it is appended to the log's {@link HarLog#getCompletedEntries()} while
+ * its sequence number is assigned, so that list is always in sequence order and can be searched from the caller's sequence
+ * number instead of scanning every entry in the HAR.
+ */
+public final class HarEntrySequencer {
+    /**
+     * Guards lastSequence, and the assignment of each sequence number to its entry.
+     */
+    private static final Object lock = new Object();
+
+    private static long lastSequence;
+
+    private HarEntrySequencer() {
+    }
+
+    /**
+     * Assigns the next sequence number to the entry, if it does not already have one.
+     *
+     * @param entry completed entry
+     */
+    public static void assignSequence(HarEntry entry) {
+        assignSequence(entry, null);
+    }
+
+    /**
+     * Assigns the next sequence number to the entry, if it does not already have one, and appends it to the completed
+     * entries of the log. The entry should already have been added to the log's entries, so that clients that find the
+     * entry by its sequence number can also find it in the HAR.
+     *
+     * @param entry completed entry
+     * @param log log the entry belongs to, or null
+     */
+    public static void assignSequence(HarEntry entry, HarLog log) {
+        synchronized (lock) {
+            if (entry.getSequence() == null) {
+                entry.setSequence(++lastSequence);
+
+                if (log != null) {
+                    log.getCompletedEntries().add(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the most recently assigned sequence number, or 0 if no sequence numbers have been assigned
+     */
+    public static long getLastSequence() {
+        synchronized (lock) {
+            return lastSequence;
+        }
+    }
+
+    /**
+     * Selects the entries of the log completed since the given sequence number, in sequence order. The log's completed
+     * entries are in sequence order, so only the entries after the sequence number are read.
+     *
+     * @param log log to select entries from
+     * @param sequence sequence number of the last entry the caller has already seen, or 0 to start from the first entry
+     * @param maxEntries maximum number of entries to return
+     * @return page of entries completed since the sequence number
+     */
+    public static HarEntryPage getEntriesSince(HarLog log, long sequence, int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Maximum number of entries must be greater than 0");
+        }
+
+        ChunkedAppendList<HarEntry> completedEntries = log.getCompletedEntries();
+        int size = completedEntries.size();
+
+        // read after the size, so it is at least the sequence number of every entry in the page
+        long lastAssignedSequence = getLastSequence();
+
+        int start = findFirstEntryAfter(completedEntries, size, sequence);
+        int end = (int) Math.min(size, (long) start + maxEntries);
+
+        List<HarEntry> page = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            page.add(completedEntries.get(i));
+        }
+
+        long nextSequence = page.isEmpty() ? sequence : page.get(page.size() - 1).getSequence();
+
+        return new HarEntryPage(page, nextSequence, lastAssignedSequence, end < size);
+    }
+
+    /**
+     * @return position of the first of the first size entries with a sequence number greater than sequence, or size if
+     * there is none
+     */
+    private static int findFirstEntryAfter(List<HarEntry> entries, int size, long sequence) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (entries.get(middle).getSequence() <= sequence) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Selects the entries completed since the given sequence number, in sequence order. Every entry is examined, so
+     * prefer {@link #getEntriesSince(HarLog, long, int)} for the entries of a HAR captured by the proxy.
+     * <p>
+     * Entries are assigned sequence numbers on many threads, so an entry may be assigned a sequence number after an entry
+     * with a greater sequence number has been returned. To make sure no entry is skipped, only entries up to the last
+     * sequence number assigned before the selection started are returned. Entries with later sequence numbers are
+     * returned by the next request.
+     *
+     * @param entries all entries in the HAR
+     * @param sequence sequence number of the last entry the caller has already seen, or 0 to start from the first entry
+     * @param maxEntries maximum number of entries to return
+     * @return page of entries completed since the sequence number
+     */
+    public static HarEntryPage getEntriesSince(Collection<HarEntry> entries, long sequence, int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Maximum number of entries must be greater than 0");
+        }
+
+        long lastAssignedSequence = getLastSequence();
+
+        List<HarEntry> completedEntries = entries.stream()
+                .filter(entry -> {
+                    Long entrySequence = entry.getSequence();
+                    return entrySequence != null && entrySequence > sequence && entrySequence <= lastAssignedSequence;
+                })
+                .sorted(Comparator.comparing(HarEntry::getSequence))
+                .collect(Collectors.toList());
+
+        boolean hasMore = completedEntries.size() > maxEntries;
+        if (hasMore) {
+            completedEntries = new ArrayList<>(completedEntries.subList(0, maxEntries));
+        }
+
+        long nextSequence = completedEntries.isEmpty() ? sequence : completedEntries.get(completedEntries.size() - 1).getSequence();
+
+        return new HarEntryPage(completedEntries, nextSequence, lastAssignedSequence, hasMore);
+    }
+}
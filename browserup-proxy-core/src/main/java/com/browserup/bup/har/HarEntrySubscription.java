@@ -0,0 +1,178 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.har;
+
+import com.browserup.harreader.model.HarEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A listener's subscription to completed HAR entries. Each subscription has its own bounded queue, which is drained
+ * by at most one delivery thread at a time, so entries are delivered to the listener in order and one at a time.
+ */
+public class HarEntrySubscription {
+    private static final Logger log = LoggerFactory.getLogger(HarEntrySubscription.class);
+
+    private final HarEntryPublisher publisher;
+    private final HarEntryListener listener;
+    private final int queueCapacity;
+    private final HarEntryOverflowPolicy overflowPolicy;
+    private final Executor deliveryExecutor;
+
+    /**
+     * Entries waiting to be delivered. Guarded by itself.
+     */
+    private final Queue<HarEntry> queue = new ArrayDeque<>();
+
+    /**
+     * True while a delivery task is scheduled or running, so that only one thread delivers entries at a time.
+     */
+    private final AtomicBoolean deliveryScheduled = new AtomicBoolean();
+
+    private final AtomicLong deliveredEntryCount = new AtomicLong();
+    private final AtomicLong droppedEntryCount = new AtomicLong();
+
+    private volatile boolean cancelled;
+
+    HarEntrySubscription(HarEntryPublisher publisher, HarEntryListener listener, int queueCapacity,
+                         HarEntryOverflowPolicy overflowPolicy, Executor deliveryExecutor) {
+        this.publisher = publisher;
+        this.listener = listener;
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+        this.deliveryExecutor = deliveryExecutor;
+    }
+
+    /**
+     * Stops delivering entries to the listener. Entries still in the queue are discarded. An entry that is being
+     * delivered when the subscription is cancelled may still be delivered.
+     */
+    public void cancel() {
+        cancelled = true;
+
+        publisher.unsubscribe(this);
+
+        synchronized (queue) {
+            queue.clear();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public HarEntryListener getListener() {
+        return listener;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public HarEntryOverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return number of entries waiting to be delivered to the listener
+     */
+    public int getQueuedEntryCount() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * @return number of entries delivered to the listener
+     */
+    public long getDeliveredEntryCount() {
+        return deliveredEntryCount.get();
+    }
+
+    /**
+     * @return number of entries dropped because the queue was full when they were completed
+     */
+    public long getDroppedEntryCount() {
+        return droppedEntryCount.get();
+    }
+
+    /**
+     * Queues the entry for delivery, without waiting for the listener.
+     */
+    void offer(HarEntry entry) {
+        if (cancelled) {
+            return;
+        }
+
+        synchronized (queue) {
+            if (queue.size() >= queueCapacity) {
+                droppedEntryCount.incrementAndGet();
+
+                if (overflowPolicy == HarEntryOverflowPolicy.DROP_NEWEST) {
+                    return;
+                }
+
+                queue.poll();
+            }
+
+            queue.add(entry);
+        }
+
+        scheduleDelivery();
+    }
+
+    private void scheduleDelivery() {
+        if (deliveryScheduled.compareAndSet(false, true)) {
+            try {
+                deliveryExecutor.execute(this::deliverQueuedEntries);
+            } catch (RuntimeException e) {
+                deliveryScheduled.set(false);
+                log.warn("Unable to schedule delivery of HAR entries to listener {}", listener, e);
+            }
+        }
+    }
+
+    private void deliverQueuedEntries() {
+        while (true) {
+            HarEntry entry;
+            synchronized (queue) {
+                entry = queue.poll();
+            }
+
+            if (entry == null) {
+                deliveryScheduled.set(false);
+
+                // an entry may have been queued after the queue was found empty, but before delivery was unscheduled
+                boolean entryQueued;
+                synchronized (queue) {
+                    entryQueued = !queue.isEmpty();
+                }
+
+                if (entryQueued && deliveryScheduled.compareAndSet(false, true)) {
+                    continue;
+                }
+
+                return;
+            }
+
+            if (cancelled) {
+                continue;
+            }
+
+            try {
+                listener.onHarEntryCompleted(entry);
+                deliveredEntryCount.incrementAndGet();
+            } catch (RuntimeException e) {
+                log.warn("HAR entry listener {} threw an exception", listener, e);
+            }
+        }
+    }
+}
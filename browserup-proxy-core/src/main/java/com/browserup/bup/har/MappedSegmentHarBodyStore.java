@@ -0,0 +1,376 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.har;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * A {@link HarBodyStore} that appends bodies to memory-mapped segment files on disk. Bodies are written once and never
+ * modified, and are decoded from the mapped segment each time they are resolved, so the heap only holds the small
+ * references to each body. The operating system pages segment contents in and out of memory as needed.
+ * <p>
+ * Segment files are deleted when the store is closed, and when the HAR after the one they were written for starts (see
+ * {@link #newHar()}). Bodies in deleted segments resolve to null. Bodies larger than the segment size, and bodies stored
+ * with a {@link HarBodyStore.BodyWriter}, are written to a segment of their own.
+ */
+public class MappedSegmentHarBodyStore implements HarBodyStore {
+    private static final Logger log = LoggerFactory.getLogger(MappedSegmentHarBodyStore.class);
+
+    /**
+     * Default size of each segment file, in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String DIRECTORY_PREFIX = "browserup-har-bodies";
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+
+    private final Path directory;
+    private final boolean deleteDirectoryOnClose;
+    private final int segmentSize;
+
+    /**
+     * All segments created by this store that have not been discarded. Guarded by this.
+     */
+    private final List<Segment> segments = new ArrayList<>();
+
+    /**
+     * Incremented each time a new HAR starts. Each segment records the generation it was created in. Guarded by this.
+     */
+    private long generation;
+
+    /**
+     * The segment new bodies are appended to. Guarded by this.
+     */
+    private Segment currentSegment;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a store that writes segments to a new temporary directory, which is deleted when the store is closed.
+     *
+     * @throws UncheckedIOException if the temporary directory cannot be created
+     */
+    public MappedSegmentHarBodyStore() {
+        this(createTempDirectory(), true, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates a store that writes segments to the specified directory.
+     *
+     * @param directory existing directory for segment files
+     * @param segmentSize size of each segment file, in bytes
+     */
+    public MappedSegmentHarBodyStore(Path directory, int segmentSize) {
+        this(directory, false, segmentSize);
+    }
+
+    private MappedSegmentHarBodyStore(Path directory, boolean deleteDirectoryOnClose, int segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Segment size must be greater than 0");
+        }
+
+        this.directory = directory;
+        this.deleteDirectoryOnClose = deleteDirectoryOnClose;
+        this.segmentSize = segmentSize;
+    }
+
+    @Override
+    public Supplier<String> store(String body) {
+        if (body == null || body.isEmpty()) {
+            // not worth a trip to disk
+            return () -> body;
+        }
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+        Segment segment;
+        MappedByteBuffer buffer;
+        int offset;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("HAR body store has been closed");
+            }
+
+            if (currentSegment == null || currentSegment.remaining() < bytes.length) {
+                currentSegment = createSegment(Math.max(segmentSize, bytes.length));
+            }
+
+            segment = currentSegment;
+            buffer = segment.buffer;
+            offset = segment.reserve(bytes.length);
+        }
+
+        // the space is reserved, so the body can be copied into the segment without holding the lock
+        ByteBuffer target = buffer.duplicate();
+        ((Buffer) target).position(offset);
+        target.put(bytes);
+
+        return new StoredBody(segment, offset, bytes.length);
+    }
+
+    /**
+     * Streams the body directly into a new segment file, so the body is never held in memory in full.
+     */
+    @Override
+    public Supplier<String> store(BodyWriter bodyWriter) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("HAR body store has been closed");
+        }
+
+        Path file = Files.createTempFile(directory, SEGMENT_FILE_PREFIX, ".bin");
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            Writer writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+            bodyWriter.writeTo(new FilterWriter(writer) {
+                @Override
+                public void close() throws IOException {
+                    // the store owns the channel, so only flush when the body writer closes its writer
+                    flush();
+                }
+            });
+            writer.flush();
+
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("HAR body of " + size + " bytes is too large to store");
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            Segment segment;
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("HAR body store has been closed");
+                }
+
+                segment = new Segment(file, channel, buffer, generation);
+                segments.add(segment);
+            }
+
+            return new StoredBody(segment, 0, (int) size);
+        } catch (IOException | RuntimeException e) {
+            closeAndDelete(file, channel, e);
+
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of segment files created by this store
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Deletes the segments written before the previous HAR started. New bodies are written to new segments, so the segments
+     * of the previous HAR are deleted when the next HAR starts.
+     */
+    @Override
+    public synchronized void newHar() {
+        if (closed) {
+            return;
+        }
+
+        generation++;
+        currentSegment = null;
+
+        Iterator<Segment> iterator = segments.iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment.generation < generation - 1) {
+                segment.discard();
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            for (Segment segment : segments) {
+                segment.discard();
+            }
+
+            segments.clear();
+            currentSegment = null;
+        }
+
+        if (deleteDirectoryOnClose) {
+            try {
+                Files.deleteIfExists(directory);
+            } catch (IOException e) {
+                log.warn("Unable to delete HAR body directory {}", directory, e);
+            }
+        }
+    }
+
+    private Segment createSegment(int size) {
+        Path file = null;
+        FileChannel channel = null;
+        try {
+            file = Files.createTempFile(directory, SEGMENT_FILE_PREFIX, ".bin");
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            Segment segment = new Segment(file, channel, buffer, generation);
+            segments.add(segment);
+
+            return segment;
+        } catch (IOException e) {
+            closeAndDelete(file, channel, e);
+
+            throw new UncheckedIOException("Unable to create HAR body segment in " + directory, e);
+        }
+    }
+
+    /**
+     * Closes the channel and deletes the file of a segment that could not be created, adding any failures to the exception
+     * that prevented the segment from being created.
+     */
+    private static void closeAndDelete(Path file, FileChannel channel, Exception e) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException closeException) {
+                e.addSuppressed(closeException);
+            }
+        }
+
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException deleteException) {
+                e.addSuppressed(deleteException);
+            }
+        }
+    }
+
+    private String resolve(Segment segment, int offset, int length) {
+        MappedByteBuffer buffer = segment.buffer;
+        if (buffer == null) {
+            // the segment was discarded by newHar() or close()
+            return null;
+        }
+
+        ByteBuffer source = buffer.duplicate();
+        ((Buffer) source).position(offset);
+        ((Buffer) source).limit(offset + length);
+
+        return StandardCharsets.UTF_8.decode(source).toString();
+    }
+
+    private static Path createTempDirectory() {
+        try {
+            return Files.createTempDirectory(DIRECTORY_PREFIX);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to create directory for HAR bodies", e);
+        }
+    }
+
+    private static class Segment {
+        private final Path file;
+        private final FileChannel channel;
+        private final int capacity;
+        private final long generation;
+
+        /**
+         * The mapped segment file, or null once the segment has been discarded. Dropping the reference allows the mapping
+         * to be released, even while HARs still refer to the segment.
+         */
+        private volatile MappedByteBuffer buffer;
+
+        /**
+         * Offset of the first unreserved byte in the segment. Guarded by the store.
+         */
+        private int position;
+
+        private Segment(Path file, FileChannel channel, MappedByteBuffer buffer, long generation) {
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.capacity = buffer.capacity();
+            this.generation = generation;
+        }
+
+        /**
+         * Closes and deletes the segment file. Bodies in the segment resolve to null afterward.
+         */
+        private void discard() {
+            buffer = null;
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Unable to close HAR body segment {}", file, e);
+            }
+
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("Unable to delete HAR body segment {}", file, e);
+            }
+        }
+
+        private int remaining() {
+            return capacity - position;
+        }
+
+        private int reserve(int length) {
+            int offset = position;
+            position += length;
+
+            return offset;
+        }
+    }
+
+    /**
+     * Reference to a body in a segment. This is the only part of a stored body held on the heap.
+     */
+    private class StoredBody implements Supplier<String> {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        private StoredBody(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public String get() {
+            return resolve(segment, offset, length);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.har;
+
+import com.browserup.harreader.model.Har;
+import com.browserup.harreader.model.HarEntry;
+import com.browserup.harreader.model.HarLog;
+import com.browserup.harreader.model.HarPage;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a HAR as JSON one page and one entry at a time, rather than serializing the entire HAR in one call. Only the
+ * generator's buffer and the entry currently being written are held in memory, so memory use does not grow with the
+ * size of the HAR. Bodies held in a {@link HarBodyStore} are resolved one entry at a time as they are written.
+ * <p>
+ * The output is the same JSON document the ObjectMapper would produce for the whole {@link Har}.
+ */
+public class StreamingHarWriter {
+    private final ObjectMapper objectMapper;
+    private final ObjectWriter elementWriter;
+
+    public StreamingHarWriter(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+        // the generator flushes its own buffer as it fills, so there is no need to flush the stream after every entry
+        this.elementWriter = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+    /**
+     * Writes the HAR to the output stream as UTF-8 encoded JSON. The output stream is flushed, but not closed.
+     *
+     * @param har HAR to write
+     * @param out stream to write the HAR to
+     * @throws IOException if the HAR cannot be written to the stream
+     */
+    public void write(Har har, OutputStream out) throws IOException {
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out, JsonEncoding.UTF8)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+            generator.writeStartObject();
+            generator.writeFieldName("log");
+            writeLog(har.getLog(), generator);
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Writes the fields of the log in the same order, and with the same null handling, as the {@link HarLog} bean.
+     */
+    private void writeLog(HarLog log, JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+
+        writeFieldIfNotNull("version", log.getVersion(), generator);
+        writeFieldIfNotNull("creator", log.getCreator(), generator);
+        writeFieldIfNotNull("browser", log.getBrowser(), generator);
+
+        generator.writeArrayFieldStart("pages");
+        for (HarPage page : log.getPages()) {
+            elementWriter.writeValue(generator, page);
+        }
+        generator.writeEndArray();
+
+        generator.writeArrayFieldStart("entries");
+        for (HarEntry entry : log.getEntries()) {
+            elementWriter.writeValue(generator, entry);
+        }
+        generator.writeEndArray();
+
+        writeFieldIfNotNull("comment", log.getComment(), generator);
+
+        generator.writeEndObject();
+    }
+
+    private void writeFieldIfNotNull(String fieldName, Object value, JsonGenerator generator) throws IOException {
+        if (value != null) {
+            generator.writeFieldName(fieldName);
+            elementWriter.writeValue(generator, value);
+        }
+    }
+}
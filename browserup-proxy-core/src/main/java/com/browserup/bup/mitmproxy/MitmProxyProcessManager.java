@@ -109,6 +109,8 @@ public class MitmProxyProcessManager {
     additionalHeadersManager.addHeaders(additionalHeadersManager.getAllHeaders());
     rewriteUrlManager.rewriteUrls(rewriteUrlManager.getRewriteRulesMap());
     latencyManager.setLatency(latencyManager.getLatencyMs(), TimeUnit.MILLISECONDS);
+    latencyManager.setLatencyJitter(latencyManager.getLatencyJitterMs(), TimeUnit.MILLISECONDS, latencyManager.getLatencyJitterDistribution());
+    latencyManager.setLatencyRules(latencyManager.getLatencyRules());
     proxyManager.setConnectionIdleTimeout(proxyManager.getConnectionIdleTimeoutSeconds());
     proxyManager.setDnsResolvingDelayMs(proxyManager.getDnsResolutionDelayMs());
     proxyManager.setChainedProxyAuthorization(proxyManager.getUpstreamProxyCredentials());
@@ -1,5 +1,6 @@
 package com.browserup.bup.mitmproxy.management;
 
+import com.browserup.bup.har.HarEntryPage;
 import com.browserup.bup.mitmproxy.MitmProxyProcessManager;
 import com.browserup.bup.proxy.CaptureType;
 import com.browserup.harreader.model.Har;
@@ -48,6 +49,25 @@ public class HarCaptureManager {
         return parseHar(response.path);
     }
 
+    public HarEntryPage getHarEntriesSince(long sequence, int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Maximum number of entries must be greater than 0");
+        }
+
+        if (!mitmProxyManager.isRunning()) return new HarEntryPage(new ArrayList<>(), sequence, sequence, false);
+
+        // the addon returns only the requested entries, rather than writing the entire HAR to a file
+        return addonsManagerClient.
+                getRequestToAddonsManager(
+                        "har",
+                        "get_har_entries_since",
+                        new ArrayList<Pair<String, String>>() {{
+                            add(of("sequence", valueOf(sequence)));
+                            add(of("maxEntries", valueOf(maxEntries)));
+                        }},
+                        HarEntryPage.class);
+    }
+
     public Har newHar() {
         return newHar(null, null);
     }
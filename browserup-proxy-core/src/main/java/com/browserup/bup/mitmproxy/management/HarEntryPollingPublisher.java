@@ -0,0 +1,127 @@
+package com.browserup.bup.mitmproxy.management;
+
+import com.browserup.bup.har.HarEntryListener;
+import com.browserup.bup.har.HarEntryOverflowPolicy;
+import com.browserup.bup.har.HarEntryPage;
+import com.browserup.bup.har.HarEntryPublisher;
+import com.browserup.bup.har.HarEntrySubscription;
+import com.browserup.harreader.model.HarEntry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes HAR entries completed by mitmproxy to {@link HarEntryListener}s. Entries are completed in the mitmproxy
+ * process, so they are polled from the har addon while at least one listener is subscribed.
+ */
+public class HarEntryPollingPublisher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HarEntryPollingPublisher.class);
+
+    /**
+     * Interval between polls for newly completed entries.
+     */
+    public static final long POLL_INTERVAL_MS = 200;
+
+    /**
+     * Number of entries requested from the addon at a time.
+     */
+    private static final int POLL_PAGE_SIZE = 500;
+
+    private final HarCaptureManager harCaptureManager;
+    private final HarEntryPublisher publisher = new HarEntryPublisher();
+
+    private final ScheduledExecutorService pollExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("har-entry-poller-%d")
+            .setDaemon(true)
+            .build());
+
+    /**
+     * Guarded by this.
+     */
+    private ScheduledFuture<?> pollTask;
+
+    /**
+     * Sequence number of the last entry published. Only accessed by the poll thread, after it is set by
+     * {@link #startPolling()}.
+     */
+    private volatile long lastPublishedSequence;
+
+    public HarEntryPollingPublisher(HarCaptureManager harCaptureManager) {
+        this.harCaptureManager = harCaptureManager;
+    }
+
+    /**
+     * Subscribes the listener to entries completed from now on, and starts polling if it is not already running.
+     *
+     * @see HarEntryPublisher#subscribe(HarEntryListener, int, HarEntryOverflowPolicy)
+     */
+    public synchronized HarEntrySubscription subscribe(HarEntryListener listener, int queueCapacity, HarEntryOverflowPolicy overflowPolicy) {
+        HarEntrySubscription subscription = publisher.subscribe(listener, queueCapacity, overflowPolicy);
+
+        if (pollTask == null) {
+            startPolling();
+        }
+
+        return subscription;
+    }
+
+    /**
+     * @return the current subscriptions
+     */
+    public List<HarEntrySubscription> getSubscriptions() {
+        return publisher.getSubscriptions();
+    }
+
+    /**
+     * Cancels all subscriptions and stops polling.
+     */
+    public synchronized void stop() {
+        publisher.cancelAll();
+        stopPolling();
+    }
+
+    private void startPolling() {
+        // skip every entry completed before the first listener subscribed
+        lastPublishedSequence = harCaptureManager.getHarEntriesSince(0, 1).getLastSequence();
+
+        pollTask = pollExecutor.scheduleWithFixedDelay(this::poll, POLL_INTERVAL_MS, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopPolling() {
+        if (pollTask != null) {
+            pollTask.cancel(false);
+            pollTask = null;
+        }
+    }
+
+    private void poll() {
+        synchronized (this) {
+            if (!publisher.hasSubscribers()) {
+                stopPolling();
+                return;
+            }
+        }
+
+        try {
+            HarEntryPage page;
+            do {
+                page = harCaptureManager.getHarEntriesSince(lastPublishedSequence, POLL_PAGE_SIZE);
+
+                for (HarEntry entry : page.getEntries()) {
+                    publisher.publish(entry);
+                }
+
+                lastPublishedSequence = page.getNextSequence();
+            } while (page.isHasMore());
+        } catch (RuntimeException e) {
+            // keep polling; the addon may be unavailable only briefly
+            LOGGER.warn("Unable to poll completed HAR entries", e);
+        }
+    }
+}
@@ -1,9 +1,20 @@
 package com.browserup.bup.mitmproxy.management;
 
 import com.browserup.bup.mitmproxy.MitmProxyProcessManager;
+import com.browserup.bup.proxy.LatencyRule;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
 import static java.lang.String.valueOf;
@@ -14,6 +25,10 @@ public class LatencyManager {
     private final MitmProxyProcessManager mitmProxyManager;
 
     private volatile int latencyMs;
+    private volatile int latencyJitterMs;
+    private volatile LatencyRule.JitterDistribution latencyJitterDistribution = LatencyRule.JitterDistribution.UNIFORM;
+
+    private volatile Collection<LatencyRule> latencyRules = new CopyOnWriteArrayList<>();
 
     public LatencyManager(AddonsManagerClient addonsManagerClient, MitmProxyProcessManager mitmProxyManager) {
         this.addonsManagerClient = addonsManagerClient;
@@ -23,6 +38,17 @@ public class LatencyManager {
     public void setLatency(long latency, TimeUnit timeUnit) {
         this.latencyMs = (int) TimeUnit.MILLISECONDS.convert(latency, timeUnit);
 
+        updateLatency();
+    }
+
+    public void setLatencyJitter(long jitter, TimeUnit timeUnit, LatencyRule.JitterDistribution jitterDistribution) {
+        this.latencyJitterMs = (int) TimeUnit.MILLISECONDS.convert(jitter, timeUnit);
+        this.latencyJitterDistribution = jitterDistribution == null ? LatencyRule.JitterDistribution.UNIFORM : jitterDistribution;
+
+        updateLatency();
+    }
+
+    private void updateLatency() {
         if (!mitmProxyManager.isRunning()) return;
 
         addonsManagerClient.
@@ -31,11 +57,67 @@ public class LatencyManager {
                         "set_latency",
                         new ArrayList<Pair<String, String>>() {{
                             add(of("latency", valueOf(latencyMs)));
+                            add(of("jitter", valueOf(latencyJitterMs)));
+                            add(of("jitterDistribution", latencyJitterDistribution.name()));
                         }},
                         Void.class);
     }
 
+    public void addLatencyRule(LatencyRule latencyRule) {
+        List<LatencyRule> newRules = new ArrayList<>(latencyRules);
+        newRules.add(latencyRule);
+
+        setLatencyRules(newRules);
+    }
+
+    public void setLatencyRules(Collection<LatencyRule> latencyRules) {
+        this.latencyRules = new CopyOnWriteArrayList<>(latencyRules);
+
+        if (!mitmProxyManager.isRunning()) return;
+
+        List<Map<String, Object>> serializableRules = new ArrayList<>(latencyRules.size());
+        latencyRules.forEach(rule -> {
+            Map<String, Object> serializableRule = new HashMap<>();
+            serializableRule.put("urlPattern", rule.getUrlPattern() == null ? null : rule.getUrlPattern().pattern());
+            serializableRule.put("latencyMs", rule.getLatencyMs());
+            serializableRule.put("jitterMs", rule.getJitterMs());
+            serializableRule.put("jitterDistribution", rule.getJitterDistribution().name());
+            serializableRules.add(serializableRule);
+        });
+
+        String serializedRules;
+        try {
+            serializedRules = new ObjectMapper().writeValueAsString(serializableRules);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Couldn't serialize latency rules", e);
+        }
+
+        addonsManagerClient.
+                putRequestToAddonsManager(
+                        "latency",
+                        "set_latency_rules",
+                        Collections.emptyList(),
+                        RequestBody.create(serializedRules, MediaType.parse("application/json; charset=utf-8")),
+                        Void.class);
+    }
+
+    public Collection<LatencyRule> getLatencyRules() {
+        return Collections.unmodifiableCollection(latencyRules);
+    }
+
+    public void clearLatencyRules() {
+        setLatencyRules(Collections.emptyList());
+    }
+
     public int getLatencyMs() {
         return latencyMs;
     }
+
+    public int getLatencyJitterMs() {
+        return latencyJitterMs;
+    }
+
+    public LatencyRule.JitterDistribution getLatencyJitterDistribution() {
+        return latencyJitterDistribution;
+    }
 }
@@ -4,13 +4,13 @@
 
 package com.browserup.bup.proxy;
 
+import com.browserup.bup.util.UrlPatternMatcher;
 import com.google.common.collect.ImmutableList;
 
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -20,6 +20,7 @@ import java.util.regex.Pattern;
  */
 public class Allowlist {
     private final List<Pattern> patterns;
+    private final UrlPatternMatcher<Pattern> matcher;
     private final int statusCode;
     private final boolean enabled;
 
@@ -33,6 +34,7 @@ public class Allowlist {
      */
     public Allowlist() {
         this.patterns = Collections.emptyList();
+        this.matcher = UrlPatternMatcher.compile(this.patterns);
         this.statusCode = -1;
         this.enabled = false;
     }
@@ -44,6 +46,7 @@ public class Allowlist {
      */
     public Allowlist(int statusCode) {
         this.patterns = Collections.emptyList();
+        this.matcher = UrlPatternMatcher.compile(this.patterns);
         this.statusCode = statusCode;
         this.enabled = true;
     }
@@ -75,6 +78,8 @@ public class Allowlist {
             this.patterns = builder.build();
         }
 
+        this.matcher = UrlPatternMatcher.compile(this.patterns);
+
         this.statusCode = statusCode;
 
         this.enabled = true;
@@ -94,6 +99,13 @@ public class Allowlist {
         return this.patterns;
     }
 
+    /**
+     * @return the allowlist patterns, compiled for matching against request URLs
+     */
+    public UrlPatternMatcher<Pattern> getMatcher() {
+        return matcher;
+    }
+
     /**
      * @return HTTP status code returned by the allowlist, or -1 if the allowlist is disabled
      */
@@ -122,6 +134,6 @@ public class Allowlist {
             return false;
         }
 
-        return getPatterns().stream().map(pattern -> pattern.matcher(url)).anyMatch(Matcher::matches);
+        return matcher.matchesAny(url);
     }
 }
@@ -0,0 +1,21 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.proxy;
+
+/**
+ * Determines what the proxy does with captured content once it exceeds the configured maximum capture size.
+ */
+public enum ContentOverflowPolicy {
+    /**
+     * Keep the content up to the maximum size and discard the rest. The content is marked as truncated.
+     */
+    TRUNCATE,
+
+    /**
+     * Move the content to a temporary file on disk and keep writing to it, so that the full content is captured without
+     * holding it on the heap.
+     */
+    SPILL_TO_DISK
+}
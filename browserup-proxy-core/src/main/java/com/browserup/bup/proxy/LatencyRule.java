@@ -0,0 +1,132 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.proxy;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * A latency profile for requests whose URL matches a regular expression. Each matching response is held by the proxy for
+ * the base latency, adjusted by a random jitter drawn from the rule's {@link JitterDistribution}.
+ */
+public class LatencyRule {
+    /**
+     * The distribution used to draw the jitter that is added to the base latency of each response.
+     */
+    public enum JitterDistribution {
+        /**
+         * Jitter is drawn uniformly from the range [-jitter, +jitter].
+         */
+        UNIFORM,
+
+        /**
+         * Jitter is drawn from a normal distribution with a mean of 0 and a standard deviation of jitter.
+         */
+        NORMAL
+    }
+
+    private final Pattern urlPattern;
+    private final long latencyMs;
+    private final long jitterMs;
+    private final JitterDistribution jitterDistribution;
+
+    /**
+     * Creates a new LatencyRule with a fixed latency and no jitter.
+     *
+     * @param urlPattern regular expression matching the URLs to delay, or null to match all URLs
+     * @param latency base latency
+     * @param timeUnit TimeUnit for the latency
+     */
+    public LatencyRule(String urlPattern, long latency, TimeUnit timeUnit) {
+        this(urlPattern, latency, 0, timeUnit, JitterDistribution.UNIFORM);
+    }
+
+    /**
+     * Creates a new LatencyRule with a base latency and a random jitter.
+     *
+     * @param urlPattern regular expression matching the URLs to delay, or null to match all URLs
+     * @param latency base latency
+     * @param jitter maximum jitter for {@link JitterDistribution#UNIFORM}, or standard deviation for {@link JitterDistribution#NORMAL}
+     * @param timeUnit TimeUnit for the latency and jitter
+     * @param jitterDistribution distribution to draw the jitter from; defaults to {@link JitterDistribution#UNIFORM} if null
+     */
+    public LatencyRule(String urlPattern, long latency, long jitter, TimeUnit timeUnit, JitterDistribution jitterDistribution) {
+        if (latency < 0 || jitter < 0) {
+            throw new IllegalArgumentException("Latency and jitter cannot be negative");
+        }
+
+        this.urlPattern = urlPattern == null ? null : Pattern.compile(urlPattern);
+        this.latencyMs = TimeUnit.MILLISECONDS.convert(latency, timeUnit);
+        this.jitterMs = TimeUnit.MILLISECONDS.convert(jitter, timeUnit);
+        this.jitterDistribution = jitterDistribution == null ? JitterDistribution.UNIFORM : jitterDistribution;
+    }
+
+    /**
+     * Creates a new LatencyRule that matches all HTTP and HTTPS URLs on the specified host, on any port.
+     *
+     * @param host hostname to delay responses from
+     * @param latency base latency
+     * @param jitter jitter, as described in {@link #LatencyRule(String, long, long, TimeUnit, JitterDistribution)}
+     * @param timeUnit TimeUnit for the latency and jitter
+     * @param jitterDistribution distribution to draw the jitter from
+     * @return a new LatencyRule for the host
+     */
+    public static LatencyRule forHost(String host, long latency, long jitter, TimeUnit timeUnit, JitterDistribution jitterDistribution) {
+        return new LatencyRule("^https?://" + Pattern.quote(host) + "(:\\d+)?([/?#].*)?$", latency, jitter, timeUnit, jitterDistribution);
+    }
+
+    /**
+     * Determines if this rule applies to the specified URL. A rule without a URL pattern matches every URL.
+     *
+     * @param url full URL of the request
+     * @return true if this rule applies to the URL
+     */
+    public boolean matches(String url) {
+        return urlPattern == null || (url != null && urlPattern.matcher(url).matches());
+    }
+
+    /**
+     * Returns the latency to apply to the next matching response, including jitter. Never returns a negative value.
+     *
+     * @return latency in milliseconds
+     */
+    public long nextLatencyMs() {
+        if (jitterMs == 0) {
+            return latencyMs;
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long jitter;
+        switch (jitterDistribution) {
+            case NORMAL:
+                jitter = Math.round(random.nextGaussian() * jitterMs);
+                break;
+
+            case UNIFORM:
+            default:
+                jitter = random.nextLong(-jitterMs, jitterMs + 1);
+                break;
+        }
+
+        return Math.max(0L, latencyMs + jitter);
+    }
+
+    public Pattern getUrlPattern() {
+        return urlPattern;
+    }
+
+    public long getLatencyMs() {
+        return latencyMs;
+    }
+
+    public long getJitterMs() {
+        return jitterMs;
+    }
+
+    public JitterDistribution getJitterDistribution() {
+        return jitterDistribution;
+    }
+}
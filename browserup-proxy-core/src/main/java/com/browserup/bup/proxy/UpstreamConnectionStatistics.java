@@ -0,0 +1,135 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.proxy;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks how often requests sent to upstream servers reuse an existing upstream connection, in total and for each
+ * origin (scheme, host and port, omitting the default port). A connection is reused when a request is sent over an
+ * upstream connection that was opened for an earlier request, so the reuse rate is the fraction of requests that did
+ * not open a new connection.
+ */
+public class UpstreamConnectionStatistics {
+    private final OriginConnectionStatistics total = new OriginConnectionStatistics();
+
+    private final ConcurrentMap<String, OriginConnectionStatistics> origins = new ConcurrentHashMap<>();
+
+    /**
+     * Records a new connection to an upstream server.
+     *
+     * @param origin origin the connection was opened to, such as https://www.example.com
+     */
+    public void connectionOpened(String origin) {
+        total.connectionOpened();
+        getOriginStatistics(origin).connectionOpened();
+    }
+
+    /**
+     * Records a request sent to an upstream server, over either a new or an existing connection.
+     *
+     * @param origin origin the request was sent to, such as https://www.example.com
+     */
+    public void requestSent(String origin) {
+        total.requestSent();
+        getOriginStatistics(origin).requestSent();
+    }
+
+    /**
+     * @return the number of connections opened to all upstream servers
+     */
+    public long getConnectionsOpened() {
+        return total.getConnectionsOpened();
+    }
+
+    /**
+     * @return the number of requests sent to all upstream servers
+     */
+    public long getRequestsSent() {
+        return total.getRequestsSent();
+    }
+
+    /**
+     * @return the fraction of requests to all upstream servers that reused an existing connection
+     */
+    public double getConnectionReuseRate() {
+        return total.getConnectionReuseRate();
+    }
+
+    /**
+     * Returns the connection statistics for each origin that a connection was opened or a request was sent to.
+     *
+     * @return connection statistics keyed by origin, such as https://www.example.com
+     */
+    public Map<String, OriginConnectionStatistics> getOrigins() {
+        return Collections.unmodifiableMap(origins);
+    }
+
+    /**
+     * Discards the statistics recorded so far.
+     */
+    public void reset() {
+        total.reset();
+        origins.clear();
+    }
+
+    private OriginConnectionStatistics getOriginStatistics(String origin) {
+        return origins.computeIfAbsent(origin, key -> new OriginConnectionStatistics());
+    }
+
+    /**
+     * Connection and request counts for a single origin.
+     */
+    public static class OriginConnectionStatistics {
+        private final AtomicLong connectionsOpened = new AtomicLong();
+        private final AtomicLong requestsSent = new AtomicLong();
+
+        private void connectionOpened() {
+            connectionsOpened.incrementAndGet();
+        }
+
+        private void requestSent() {
+            requestsSent.incrementAndGet();
+        }
+
+        private void reset() {
+            connectionsOpened.set(0);
+            requestsSent.set(0);
+        }
+
+        /**
+         * @return the number of connections opened to the origin
+         */
+        public long getConnectionsOpened() {
+            return connectionsOpened.get();
+        }
+
+        /**
+         * @return the number of requests sent to the origin
+         */
+        public long getRequestsSent() {
+            return requestsSent.get();
+        }
+
+        /**
+         * Returns the fraction of requests to the origin that reused an existing connection, or 0 if no requests were
+         * sent.
+         *
+         * @return the connection reuse rate
+         */
+        public double getConnectionReuseRate() {
+            long requests = requestsSent.get();
+            if (requests > 0) {
+                return Math.max(0L, requests - connectionsOpened.get()) / (double) requests;
+            } else {
+                return 0.0;
+            }
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.proxy.dns;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.net.InetAddresses;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.AddressedEnvelope;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.handler.codec.dns.DefaultDnsQuestion;
+import io.netty.handler.codec.dns.DnsRawRecord;
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsResponse;
+import io.netty.handler.codec.dns.DnsResponseCode;
+import io.netty.handler.codec.dns.DnsSection;
+import io.netty.resolver.HostsFileEntriesResolver;
+import io.netty.resolver.ResolvedAddressTypes;
+import io.netty.resolver.dns.DnsNameResolver;
+import io.netty.resolver.dns.DnsNameResolverBuilder;
+import io.netty.resolver.dns.DnsServerAddressStreamProvider;
+import io.netty.resolver.dns.DnsServerAddressStreamProviders;
+import io.netty.resolver.dns.SequentialDnsServerAddressStreamProvider;
+import io.netty.util.NetUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * An {@link com.browserup.bup.proxy.dns.AdvancedHostResolver} that performs DNS lookups asynchronously using Netty's
+ * {@link DnsNameResolver}, on a dedicated event loop. This implementation provides full cache manipulation capabilities.
+ * <p>
+ * IPv4 and IPv6 addresses are queried in parallel. Following the "happy eyeballs" resolution delay (RFC 8305), the
+ * addresses of the preferred family are returned as soon as they arrive, and if the other family answers first, the
+ * resolver waits at most {@link #RESOLUTION_DELAY_MS} for the preferred family before returning. Concurrent lookups of
+ * the same name share a single query. Answers are cached for their TTL, capped by the positive cache timeout, and a
+ * lookup of a cached name shortly before it expires refreshes the entry in the background, so frequently-used names
+ * are always resolved from the cache and lookups rarely delay connections to the upstream server.
+ * <p>
+ * Entries in the hosts file and IP literals are resolved without a DNS query. Search domains are not applied, so short
+ * names that rely on them should be resolved by chaining a {@link NativeResolver} using a {@link ChainedHostResolver}.
+ */
+public class NettyDnsResolver extends AbstractHostNameRemapper implements AdvancedHostResolver, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(NettyDnsResolver.class);
+
+    /**
+     * The maximum time to wait for addresses of the preferred family after addresses of the other family are resolved.
+     */
+    public static final long RESOLUTION_DELAY_MS = 50;
+
+    /**
+     * Default timeout for a single DNS query.
+     */
+    public static final long DEFAULT_QUERY_TIMEOUT_MS = 5000;
+
+    /**
+     * Default time to cache failed lookups, matching the JVM's default negative cache policy.
+     */
+    private static final long DEFAULT_NEGATIVE_CACHE_TIMEOUT_MS = 10000;
+
+    /**
+     * Fraction of a cache entry's lifetime after which a lookup of the entry refreshes it in the background.
+     */
+    private static final double PREFETCH_THRESHOLD = 0.9;
+
+    private final EventLoopGroup eventLoopGroup;
+
+    private final DnsNameResolver dnsNameResolver;
+
+    private final long queryTimeoutMs;
+
+    private final boolean ipv6Preferred;
+
+    private final ConcurrentMap<String, CachedLookup> cache = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, CompletableFuture<List<InetAddress>>> inFlightLookups = new ConcurrentHashMap<>();
+
+    /**
+     * Maximum time to cache successful lookups, regardless of the TTL of the DNS records.
+     */
+    private volatile long positiveCacheTimeoutNanos = Long.MAX_VALUE;
+
+    private volatile long negativeCacheTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_NEGATIVE_CACHE_TIMEOUT_MS);
+
+    /**
+     * Creates a resolver that queries the system's default DNS servers.
+     */
+    public NettyDnsResolver() {
+        this(null, DEFAULT_QUERY_TIMEOUT_MS);
+    }
+
+    /**
+     * Creates a resolver that queries the specified DNS servers, in order.
+     *
+     * @param nameServers addresses of the DNS servers to query, or null or an empty list to use the system's default DNS servers
+     * @param queryTimeoutMs timeout for a single DNS query, in milliseconds
+     */
+    public NettyDnsResolver(List<InetSocketAddress> nameServers, long queryTimeoutMs) {
+        DnsServerAddressStreamProvider nameServerProvider;
+        if (nameServers == null || nameServers.isEmpty()) {
+            nameServerProvider = DnsServerAddressStreamProviders.platformDefault();
+        } else {
+            nameServerProvider = new SequentialDnsServerAddressStreamProvider(ImmutableList.copyOf(nameServers));
+        }
+
+        this.queryTimeoutMs = queryTimeoutMs;
+        this.ipv6Preferred = NetUtil.isIpV6AddressesPreferred();
+
+        this.eventLoopGroup = new NioEventLoopGroup(1, new DefaultThreadFactory("browserup-dns-resolver", true));
+        this.dnsNameResolver = new DnsNameResolverBuilder(eventLoopGroup.next())
+                .channelType(NioDatagramChannel.class)
+                .nameServerProvider(nameServerProvider)
+                .queryTimeoutMillis(queryTimeoutMs)
+                .build();
+    }
+
+    @Override
+    public void clearDNSCache() {
+        cache.clear();
+    }
+
+    /**
+     * Sets the maximum time to cache successful lookups. Entries are cached for the TTL of their DNS records, up to this
+     * timeout. By default, the TTL of the records is used.
+     */
+    @Override
+    public void setPositiveDNSCacheTimeout(int timeout, TimeUnit timeUnit) {
+        positiveCacheTimeoutNanos = Math.max(0L, timeUnit.toNanos(timeout));
+    }
+
+    @Override
+    public void setNegativeDNSCacheTimeout(int timeout, TimeUnit timeUnit) {
+        negativeCacheTimeoutNanos = Math.max(0L, timeUnit.toNanos(timeout));
+    }
+
+    @Override
+    public Collection<InetAddress> resolveRemapped(String remappedHost) {
+        if (InetAddresses.isInetAddress(remappedHost)) {
+            return Collections.singletonList(InetAddresses.forString(remappedHost));
+        }
+
+        InetAddress hostsFileAddress = HostsFileEntriesResolver.DEFAULT.address(remappedHost,
+                ipv6Preferred ? ResolvedAddressTypes.IPV6_PREFERRED : ResolvedAddressTypes.IPV4_PREFERRED);
+        if (hostsFileAddress != null) {
+            return Collections.singletonList(hostsFileAddress);
+        }
+
+        String host = remappedHost.toLowerCase(Locale.US);
+        CompletableFuture<List<InetAddress>> preferredLookup = lookup(host, ipv6Preferred ? DnsRecordType.AAAA : DnsRecordType.A);
+        CompletableFuture<List<InetAddress>> otherLookup = lookup(host, ipv6Preferred ? DnsRecordType.A : DnsRecordType.AAAA);
+
+        try {
+            // both lookups complete within the query timeout, since failed queries complete with no addresses
+            long timeoutMs = queryTimeoutMs + RESOLUTION_DELAY_MS;
+
+            CompletableFuture.anyOf(preferredLookup, otherLookup).get(timeoutMs, TimeUnit.MILLISECONDS);
+
+            if (!preferredLookup.isDone()) {
+                long delayMs = otherLookup.getNow(Collections.emptyList()).isEmpty() ? timeoutMs : RESOLUTION_DELAY_MS;
+                try {
+                    preferredLookup.get(delayMs, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // use the addresses of the other family
+                }
+            }
+
+            List<InetAddress> preferredAddresses = preferredLookup.getNow(Collections.emptyList());
+            if (preferredAddresses.isEmpty() && !otherLookup.isDone()) {
+                otherLookup.get(timeoutMs, TimeUnit.MILLISECONDS);
+            }
+
+            List<InetAddress> otherAddresses = otherLookup.getNow(Collections.emptyList());
+
+            List<InetAddress> addresses = new ArrayList<>(preferredAddresses.size() + otherAddresses.size());
+            addresses.addAll(preferredAddresses);
+            addresses.addAll(otherAddresses);
+
+            return addresses;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            return Collections.emptyList();
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("Unable to resolve host: {}", remappedHost, e);
+
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Shuts down the event loop used to perform DNS lookups. The resolver cannot be used after it is closed.
+     */
+    @Override
+    public void close() {
+        dnsNameResolver.close();
+        eventLoopGroup.shutdownGracefully(0, queryTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the cached addresses of the specified type for the host, starting a background refresh if the entry is
+     * about to expire, or starts a lookup if there is no unexpired entry.
+     */
+    private CompletableFuture<List<InetAddress>> lookup(String host, DnsRecordType type) {
+        String key = type.name() + ' ' + host;
+
+        CachedLookup cachedLookup = cache.get(key);
+        if (cachedLookup != null) {
+            long now = System.nanoTime();
+            if (now - cachedLookup.expiresAtNanos < 0L) {
+                if (now - cachedLookup.prefetchAtNanos >= 0L) {
+                    query(host, type, key);
+                }
+
+                return CompletableFuture.completedFuture(cachedLookup.addresses);
+            }
+        }
+
+        return query(host, type, key);
+    }
+
+    /**
+     * Queries the DNS server for addresses of the specified type, unless a query for the same name and type is in
+     * flight, in which case the in-flight query is returned. The returned future never completes exceptionally; if the
+     * query fails, it completes with no addresses.
+     */
+    private CompletableFuture<List<InetAddress>> query(String host, DnsRecordType type, String key) {
+        CompletableFuture<List<InetAddress>> lookup = new CompletableFuture<>();
+        CompletableFuture<List<InetAddress>> inFlightLookup = inFlightLookups.putIfAbsent(key, lookup);
+        if (inFlightLookup != null) {
+            return inFlightLookup;
+        }
+
+        dnsNameResolver.query(new DefaultDnsQuestion(host, type)).addListener((Future<AddressedEnvelope<DnsResponse, InetSocketAddress>> future) -> {
+            List<InetAddress> addresses = Collections.emptyList();
+            try {
+                if (future.isSuccess()) {
+                    AddressedEnvelope<DnsResponse, InetSocketAddress> envelope = future.getNow();
+                    try {
+                        addresses = cacheResponse(host, type, key, envelope.content());
+                    } finally {
+                        envelope.release();
+                    }
+                } else {
+                    log.debug("DNS query for {} record of {} failed", type.name(), host, future.cause());
+                }
+            } catch (RuntimeException e) {
+                log.warn("Unable to read DNS response for {} record of {}", type.name(), host, e);
+            } finally {
+                inFlightLookups.remove(key, lookup);
+                lookup.complete(addresses);
+            }
+        });
+
+        return lookup;
+    }
+
+    /**
+     * Reads the addresses of the specified type from the response and caches them. Responses without addresses are
+     * cached using the negative cache timeout. Responses indicating a server failure are not cached.
+     */
+    private List<InetAddress> cacheResponse(String host, DnsRecordType type, String key, DnsResponse response) {
+        if (response.code() != DnsResponseCode.NOERROR && response.code() != DnsResponseCode.NXDOMAIN) {
+            log.debug("DNS server returned {} for {} record of {}", response.code(), type.name(), host);
+            return Collections.emptyList();
+        }
+
+        List<InetAddress> addresses = new ArrayList<>();
+        long minTtlSeconds = Long.MAX_VALUE;
+
+        int answerCount = response.count(DnsSection.ANSWER);
+        for (int i = 0; i < answerCount; i++) {
+            DnsRecord record = response.recordAt(DnsSection.ANSWER, i);
+            if (!type.equals(record.type()) || !(record instanceof DnsRawRecord)) {
+                continue;
+            }
+
+            ByteBuf content = ((DnsRawRecord) record).content();
+            try {
+                addresses.add(InetAddress.getByAddress(host, ByteBufUtil.getBytes(content)));
+                minTtlSeconds = Math.min(minTtlSeconds, record.timeToLive());
+            } catch (UnknownHostException e) {
+                log.warn("DNS server returned an invalid {} record for host: {}", type.name(), host, e);
+            }
+        }
+
+        long cacheTimeoutNanos;
+        if (addresses.isEmpty()) {
+            cacheTimeoutNanos = negativeCacheTimeoutNanos;
+        } else {
+            cacheTimeoutNanos = Math.min(TimeUnit.SECONDS.toNanos(minTtlSeconds), positiveCacheTimeoutNanos);
+        }
+
+        if (cacheTimeoutNanos > 0L) {
+            cache.put(key, new CachedLookup(addresses, cacheTimeoutNanos, !addresses.isEmpty()));
+        } else {
+            cache.remove(key);
+        }
+
+        return addresses;
+    }
+
+    /**
+     * The addresses of a single type resolved for a host, and when they expire.
+     */
+    private static class CachedLookup {
+        private final List<InetAddress> addresses;
+        private final long expiresAtNanos;
+        private final long prefetchAtNanos;
+
+        CachedLookup(List<InetAddress> addresses, long cacheTimeoutNanos, boolean prefetch) {
+            long now = System.nanoTime();
+
+            this.addresses = Collections.unmodifiableList(addresses);
+            this.expiresAtNanos = now + cacheTimeoutNanos;
+            // failed lookups are not refreshed in the background, so names that do not resolve are not queried repeatedly
+            this.prefetchAtNanos = prefetch ? now + (long) (cacheTimeoutNanos * PREFETCH_THRESHOLD) : expiresAtNanos;
+        }
+    }
+}
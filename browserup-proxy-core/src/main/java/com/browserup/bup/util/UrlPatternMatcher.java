@@ -0,0 +1,598 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.util;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable, ordered set of URL-matching rules, compiled so that a URL can be checked against every rule in a single
+ * pass. For each rule, a literal string that every URL matching the rule's pattern must contain is extracted from the
+ * pattern, for example "doubleclick.net" from {@code https?://([a-z0-9-]+\.)*doubleclick\.net/.*}. The literals of all
+ * rules are combined into a single Aho-Corasick automaton, which finds every rule whose literal occurs in a URL in time
+ * proportional to the length of the URL, whatever the number of rules. Only those rules, and the rules whose patterns
+ * have no required literal, need their regular expressions to be evaluated.
+ * <p>
+ * Literals are matched ignoring ASCII case, so a rule may be reported as a candidate when its pattern does not match;
+ * a rule whose pattern matches a URL is always reported.
+ *
+ * @param <T> type of rule
+ */
+public class UrlPatternMatcher<T> {
+    /**
+     * Rejected pattern flags: they change how the literal text of a pattern is matched.
+     */
+    private static final int UNSUPPORTED_FLAGS = Pattern.COMMENTS | Pattern.CANON_EQ;
+
+    private final List<T> rules;
+    private final List<Pattern> patterns;
+
+    /**
+     * Rules that have no required literal, and must be evaluated against every URL.
+     */
+    private final BitSet rulesWithoutLiteral;
+
+    // the automaton. node 0 is the root. the transitions of each node are sorted by character.
+    private final char[][] transitionChars;
+    private final int[][] transitionTargets;
+    private final int[] failureLinks;
+
+    /**
+     * Rules whose literal ends at each node.
+     */
+    private final int[][] nodeRules;
+
+    /**
+     * The nearest node reachable by failure links that has rules, or 0 if there is none.
+     */
+    private final int[] ruleLinks;
+
+    private UrlPatternMatcher(List<T> rules, List<Pattern> patterns) {
+        this.rules = rules;
+        this.patterns = patterns;
+        this.rulesWithoutLiteral = new BitSet(rules.size());
+
+        TrieBuilder trie = new TrieBuilder();
+        for (int i = 0; i < patterns.size(); i++) {
+            String literal = getRequiredLiteral(patterns.get(i));
+            if (literal == null) {
+                rulesWithoutLiteral.set(i);
+            } else {
+                trie.add(literal, i);
+            }
+        }
+
+        int nodeCount = trie.size();
+        this.transitionChars = new char[nodeCount][];
+        this.transitionTargets = new int[nodeCount][];
+        this.nodeRules = new int[nodeCount][];
+        for (int node = 0; node < nodeCount; node++) {
+            transitionChars[node] = Arrays.copyOf(trie.chars.get(node), trie.transitionCounts.get(node));
+            transitionTargets[node] = Arrays.copyOf(trie.targets.get(node), trie.transitionCounts.get(node));
+            nodeRules[node] = trie.rules.get(node);
+        }
+
+        this.failureLinks = new int[nodeCount];
+        this.ruleLinks = new int[nodeCount];
+        computeLinks();
+    }
+
+    /**
+     * Compiles the rules, in iteration order.
+     *
+     * @param rules rules to compile
+     * @param patternFunction returns the URL pattern of a rule
+     * @param <T> type of rule
+     * @return the compiled rules
+     */
+    public static <T> UrlPatternMatcher<T> compile(Collection<T> rules, Function<? super T, Pattern> patternFunction) {
+        List<T> ruleList = rules == null ? ImmutableList.of() : ImmutableList.copyOf(rules);
+
+        List<Pattern> patterns = new ArrayList<>(ruleList.size());
+        for (T rule : ruleList) {
+            patterns.add(patternFunction.apply(rule));
+        }
+
+        return new UrlPatternMatcher<>(ruleList, patterns);
+    }
+
+    /**
+     * Compiles the patterns, in iteration order.
+     *
+     * @param patterns URL patterns to compile
+     * @return the compiled patterns
+     */
+    public static UrlPatternMatcher<Pattern> compile(Collection<Pattern> patterns) {
+        return compile(patterns, Function.identity());
+    }
+
+    /**
+     * @return the rules, in the order they were compiled
+     */
+    public List<T> getRules() {
+        return rules;
+    }
+
+    /**
+     * Returns the indexes in {@link #getRules()} of the rules whose patterns may match the URL. Every rule whose pattern
+     * matches the URL is included.
+     *
+     * @param url URL to match
+     * @return indexes of the candidate rules
+     */
+    public BitSet getCandidates(String url) {
+        BitSet candidates = (BitSet) rulesWithoutLiteral.clone();
+
+        int node = 0;
+        for (int i = 0; i < url.length(); i++) {
+            char c = toLowerCaseAscii(url.charAt(i));
+
+            while (true) {
+                int next = getTransition(node, c);
+                if (next >= 0) {
+                    node = next;
+                    break;
+                }
+
+                if (node == 0) {
+                    break;
+                }
+
+                node = failureLinks[node];
+            }
+
+            for (int ruleNode = nodeRules[node] != null ? node : ruleLinks[node]; ruleNode != 0; ruleNode = ruleLinks[ruleNode]) {
+                for (int rule : nodeRules[ruleNode]) {
+                    candidates.set(rule);
+                }
+            }
+        }
+
+        return candidates;
+    }
+
+    /**
+     * @param url URL to match
+     * @return true if the pattern of any rule matches the entire URL
+     */
+    public boolean matchesAny(String url) {
+        BitSet candidates = getCandidates(url);
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if (patterns.get(i).matcher(url).matches()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private int getTransition(int node, char c) {
+        int index = Arrays.binarySearch(transitionChars[node], c);
+
+        return index >= 0 ? transitionTargets[node][index] : -1;
+    }
+
+    private void computeLinks() {
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int child : transitionTargets[0]) {
+            failureLinks[child] = 0;
+            ruleLinks[child] = 0;
+            queue.add(child);
+        }
+
+        while (!queue.isEmpty()) {
+            int node = queue.remove();
+
+            for (int i = 0; i < transitionChars[node].length; i++) {
+                char c = transitionChars[node][i];
+                int child = transitionTargets[node][i];
+
+                int failure = failureLinks[node];
+                while (failure != 0 && getTransition(failure, c) < 0) {
+                    failure = failureLinks[failure];
+                }
+
+                int failureTarget = getTransition(failure, c);
+                failureLinks[child] = failureTarget >= 0 ? failureTarget : 0;
+                ruleLinks[child] = nodeRules[failureLinks[child]] != null ? failureLinks[child] : ruleLinks[failureLinks[child]];
+
+                queue.add(child);
+            }
+        }
+    }
+
+    private static char toLowerCaseAscii(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Returns the longest literal string that every string matching the entire pattern contains, lower-cased, or null
+     * if none could be found. Only the top level of the pattern is examined: groups, character classes and escapes
+     * other than escaped punctuation end a literal, and a pattern with a top-level alternation or inline flags has no
+     * required literal. Literals never contain non-ASCII characters.
+     */
+    static String getRequiredLiteral(Pattern pattern) {
+        int flags = pattern.flags();
+        if ((flags & UNSUPPORTED_FLAGS) != 0
+                || (flags & Pattern.CASE_INSENSITIVE) != 0 && (flags & Pattern.UNICODE_CASE) != 0) {
+            return null;
+        }
+
+        String regex = pattern.pattern();
+        if ((flags & Pattern.LITERAL) != 0) {
+            return longestAsciiRun(regex);
+        }
+
+        LiteralScanner scanner = new LiteralScanner(regex);
+
+        return scanner.scan() ? scanner.getLongestLiteral() : null;
+    }
+
+    private static String longestAsciiRun(String text) {
+        String longest = null;
+        int start = 0;
+        for (int i = 0; i <= text.length(); i++) {
+            if (i == text.length() || text.charAt(i) >= 128) {
+                if (i > start && (longest == null || i - start > longest.length())) {
+                    longest = text.substring(start, i);
+                }
+                start = i + 1;
+            }
+        }
+
+        return longest == null ? null : toLowerCaseAscii(longest);
+    }
+
+    private static String toLowerCaseAscii(String text) {
+        StringBuilder lowerCase = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            lowerCase.append(toLowerCaseAscii(text.charAt(i)));
+        }
+
+        return lowerCase.toString();
+    }
+
+    /**
+     * Finds the required literals at the top level of a regular expression.
+     */
+    private static class LiteralScanner {
+        private final String regex;
+        private int position;
+        private final StringBuilder literal = new StringBuilder();
+        private String longestLiteral;
+
+        private LiteralScanner(String regex) {
+            this.regex = regex;
+        }
+
+        private String getLongestLiteral() {
+            return longestLiteral;
+        }
+
+        /**
+         * @return false if the pattern uses a construct that could allow a match without every top-level literal
+         */
+        private boolean scan() {
+            while (position < regex.length()) {
+                char c = regex.charAt(position);
+                switch (c) {
+                    case '\\':
+                        if (!scanEscape()) {
+                            return false;
+                        }
+                        break;
+
+                    case '[':
+                        endLiteral();
+                        skipCharacterClass();
+                        break;
+
+                    case '(':
+                        endLiteral();
+                        if (!skipGroup()) {
+                            return false;
+                        }
+                        break;
+
+                    case ')':
+                    case '|':
+                        return false;
+
+                    case '?':
+                    case '*':
+                        // the preceding character is optional
+                        dropLastCharacter();
+                        endLiteral();
+                        position++;
+                        skipQuantifierModifier();
+                        break;
+
+                    case '{':
+                        dropLastCharacter();
+                        endLiteral();
+                        position = regex.indexOf('}', position) + 1;
+                        if (position == 0) {
+                            return false;
+                        }
+                        skipQuantifierModifier();
+                        break;
+
+                    case '+':
+                        // the preceding character appears at least once, but may be repeated
+                        endLiteral();
+                        position++;
+                        skipQuantifierModifier();
+                        break;
+
+                    case '.':
+                    case '^':
+                    case '$':
+                        endLiteral();
+                        position++;
+                        break;
+
+                    default:
+                        appendLiteral(c);
+                        position++;
+                        break;
+                }
+            }
+
+            endLiteral();
+
+            return true;
+        }
+
+        private boolean scanEscape() {
+            if (position + 1 >= regex.length()) {
+                return false;
+            }
+
+            char escaped = regex.charAt(position + 1);
+            if (escaped == 'Q') {
+                int end = regex.indexOf("\\E", position + 2);
+                String quoted = end < 0 ? regex.substring(position + 2) : regex.substring(position + 2, end);
+                for (int i = 0; i < quoted.length(); i++) {
+                    appendLiteral(quoted.charAt(i));
+                }
+                position = end < 0 ? regex.length() : end + 2;
+                return true;
+            }
+
+            if (Character.isLetterOrDigit(escaped)) {
+                // escapes that are followed by more characters, such as hex escapes and properties, are not parsed
+                if ("xuc0pPkN".indexOf(escaped) >= 0) {
+                    return false;
+                }
+
+                endLiteral();
+                position += 2;
+                // back references may have several digits
+                while (Character.isDigit(escaped) && position < regex.length() && Character.isDigit(regex.charAt(position))) {
+                    position++;
+                }
+                return true;
+            }
+
+            appendLiteral(escaped);
+            position += 2;
+            return true;
+        }
+
+        private void skipCharacterClass() {
+            position++;
+            if (position < regex.length() && regex.charAt(position) == '^') {
+                position++;
+            }
+            if (position < regex.length() && regex.charAt(position) == ']') {
+                position++;
+            }
+
+            while (position < regex.length()) {
+                char c = regex.charAt(position);
+                if (c == '\\') {
+                    skipEscapeInGroup();
+                } else if (c == '[') {
+                    skipCharacterClass();
+                } else if (c == ']') {
+                    position++;
+                    return;
+                } else {
+                    position++;
+                }
+            }
+        }
+
+        /**
+         * Skips a group and any quantifier applied to it. Literals inside groups are not required, since the group may
+         * be optional or contain alternatives.
+         *
+         * @return false if the group sets flags for the rest of the pattern
+         */
+        private boolean skipGroup() {
+            if (regex.startsWith("(?", position) && !isGroupWithoutFlags()) {
+                // inline flags such as (?i) apply to the rest of the pattern, but (?i:...) applies only to the group
+                int end = position + 2;
+                while (end < regex.length() && (Character.isLetter(regex.charAt(end)) || regex.charAt(end) == '-')) {
+                    end++;
+                }
+                if (end >= regex.length() || regex.charAt(end) != ':') {
+                    return false;
+                }
+            }
+
+            int depth = 0;
+            while (position < regex.length()) {
+                char c = regex.charAt(position);
+                if (c == '\\') {
+                    skipEscapeInGroup();
+                    continue;
+                }
+
+                if (c == '[') {
+                    skipCharacterClass();
+                    continue;
+                }
+
+                position++;
+                if (c == '(') {
+                    depth++;
+                } else if (c == ')') {
+                    depth--;
+                    if (depth == 0) {
+                        skipQuantifier();
+                        return true;
+                    }
+                }
+            }
+
+            return true;
+        }
+
+        private boolean isGroupWithoutFlags() {
+            if (position + 2 >= regex.length()) {
+                return false;
+            }
+
+            char c = regex.charAt(position + 2);
+
+            return c == ':' || c == '=' || c == '!' || c == '>' || c == '<';
+        }
+
+        private void skipEscapeInGroup() {
+            if (regex.startsWith("\\Q", position)) {
+                int end = regex.indexOf("\\E", position + 2);
+                position = end < 0 ? regex.length() : end + 2;
+            } else {
+                position += 2;
+            }
+        }
+
+        private void skipQuantifier() {
+            if (position >= regex.length()) {
+                return;
+            }
+
+            char c = regex.charAt(position);
+            if (c == '?' || c == '*' || c == '+') {
+                position++;
+                skipQuantifierModifier();
+            } else if (c == '{') {
+                int end = regex.indexOf('}', position);
+                position = end < 0 ? regex.length() : end + 1;
+                skipQuantifierModifier();
+            }
+        }
+
+        private void skipQuantifierModifier() {
+            if (position < regex.length() && (regex.charAt(position) == '?' || regex.charAt(position) == '+')) {
+                position++;
+            }
+        }
+
+        private void appendLiteral(char c) {
+            if (c >= 128) {
+                endLiteral();
+            } else {
+                literal.append(toLowerCaseAscii(c));
+            }
+        }
+
+        private void dropLastCharacter() {
+            if (literal.length() > 0) {
+                literal.setLength(literal.length() - 1);
+            }
+        }
+
+        private void endLiteral() {
+            if (literal.length() > 0 && (longestLiteral == null || literal.length() > longestLiteral.length())) {
+                longestLiteral = literal.toString();
+            }
+
+            literal.setLength(0);
+        }
+    }
+
+    /**
+     * Builds the trie of literals, before it is converted into arrays.
+     */
+    private static class TrieBuilder {
+        private final List<char[]> chars = new ArrayList<>();
+        private final List<int[]> targets = new ArrayList<>();
+        private final List<Integer> transitionCounts = new ArrayList<>();
+        private final List<int[]> rules = new ArrayList<>();
+
+        private TrieBuilder() {
+            addNode();
+        }
+
+        private int size() {
+            return chars.size();
+        }
+
+        private void add(String literal, int rule) {
+            int node = 0;
+            for (int i = 0; i < literal.length(); i++) {
+                node = getOrAddChild(node, literal.charAt(i));
+            }
+
+            int[] nodeRules = rules.get(node);
+            if (nodeRules == null) {
+                rules.set(node, new int[]{rule});
+            } else {
+                int[] extended = Arrays.copyOf(nodeRules, nodeRules.length + 1);
+                extended[nodeRules.length] = rule;
+                rules.set(node, extended);
+            }
+        }
+
+        private int getOrAddChild(int node, char c) {
+            char[] nodeChars = chars.get(node);
+            int count = transitionCounts.get(node);
+
+            int index = Arrays.binarySearch(nodeChars, 0, count, c);
+            if (index >= 0) {
+                return targets.get(node)[index];
+            }
+
+            int child = addNode();
+            int insertAt = -index - 1;
+
+            int[] nodeTargets = targets.get(node);
+            if (count == nodeChars.length) {
+                nodeChars = Arrays.copyOf(nodeChars, Math.max(2, count * 2));
+                nodeTargets = Arrays.copyOf(nodeTargets, Math.max(2, count * 2));
+                chars.set(node, nodeChars);
+                targets.set(node, nodeTargets);
+            }
+
+            System.arraycopy(nodeChars, insertAt, nodeChars, insertAt + 1, count - insertAt);
+            System.arraycopy(nodeTargets, insertAt, nodeTargets, insertAt + 1, count - insertAt);
+            nodeChars[insertAt] = c;
+            nodeTargets[insertAt] = child;
+            transitionCounts.set(node, count + 1);
+
+            return child;
+        }
+
+        private int addNode() {
+            chars.add(new char[0]);
+            targets.add(new int[0]);
+            transitionCounts.add(0);
+            rules.add(null);
+
+            return chars.size() - 1;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Holds the {@link UrlPatternMatcher} compiled from a modifiable collection of rules. The rules are recompiled the next
+ * time the matcher is requested after {@link #invalidate()} is called, so a series of modifications is compiled once.
+ *
+ * @param <T> type of rule
+ */
+public class UrlPatternMatcherCache<T> {
+    private final Supplier<? extends Collection<T>> rulesSupplier;
+    private final Function<? super T, Pattern> patternFunction;
+
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * The most recently compiled matcher. Replaced while holding this object's lock.
+     */
+    private volatile CompiledRules<T> compiledRules;
+
+    /**
+     * @param rulesSupplier returns the current rules
+     * @param patternFunction returns the URL pattern of a rule
+     */
+    public UrlPatternMatcherCache(Supplier<? extends Collection<T>> rulesSupplier, Function<? super T, Pattern> patternFunction) {
+        this.rulesSupplier = rulesSupplier;
+        this.patternFunction = patternFunction;
+    }
+
+    /**
+     * Discards the compiled matcher. Must be called after the rules are modified.
+     */
+    public void invalidate() {
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return the matcher for the current rules
+     */
+    public UrlPatternMatcher<T> get() {
+        CompiledRules<T> current = compiledRules;
+        if (current != null && current.version == version.get()) {
+            return current.matcher;
+        }
+
+        synchronized (this) {
+            // read the version before the rules, so that modifications made while compiling invalidate the result
+            long currentVersion = version.get();
+
+            current = compiledRules;
+            if (current != null && current.version == currentVersion) {
+                return current.matcher;
+            }
+
+            UrlPatternMatcher<T> matcher = UrlPatternMatcher.compile(rulesSupplier.get(), patternFunction);
+            compiledRules = new CompiledRules<>(currentVersion, matcher);
+
+            return matcher;
+        }
+    }
+
+    private static class CompiledRules<T> {
+        private final long version;
+        private final UrlPatternMatcher<T> matcher;
+
+        private CompiledRules(long version, UrlPatternMatcher<T> matcher) {
+            this.version = version;
+            this.matcher = matcher;
+        }
+    }
+}
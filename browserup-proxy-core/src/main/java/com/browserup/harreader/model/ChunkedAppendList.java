@@ -0,0 +1,216 @@
+package com.browserup.harreader.model;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A thread-safe, append-only list that supports concurrent appends without locking and without copying existing elements.
+ * Elements are stored in chunks that double in size, so appending never moves an element once it has been added.
+ * <p>
+ * Iterators and streams operate on a snapshot of the list taken when they are created: they see every element added
+ * before they were created, and none of the elements added afterwards. Unlike {@link java.util.concurrent.CopyOnWriteArrayList},
+ * taking a snapshot does not copy the list, so elements replaced while iterating may or may not be seen by the iterator.
+ * <p>
+ * Elements can be replaced, which allows the list to be sorted, but cannot be removed. Null elements are not permitted.
+ *
+ * @param <E> type of elements in the list
+ */
+public class ChunkedAppendList<E> extends AbstractList<E> implements RandomAccess {
+    /**
+     * Size of the first chunk is 2^FIRST_CHUNK_SHIFT. Each subsequent chunk is twice the size of the previous chunk.
+     */
+    private static final int FIRST_CHUNK_SHIFT = 4;
+    private static final int FIRST_CHUNK_SIZE = 1 << FIRST_CHUNK_SHIFT;
+
+    /**
+     * Enough chunks to hold MAX_SIZE elements.
+     */
+    private static final int MAX_CHUNKS = Integer.SIZE - FIRST_CHUNK_SHIFT;
+
+    /**
+     * Largest number of elements the list can hold, so that index + FIRST_CHUNK_SIZE cannot overflow.
+     */
+    private static final int MAX_SIZE = Integer.MAX_VALUE - FIRST_CHUNK_SIZE;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<E>> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+
+    /**
+     * Number of slots claimed by appenders. Slots at or above published may not have been written yet.
+     */
+    private final AtomicInteger reserved = new AtomicInteger();
+
+    /**
+     * Number of elements visible to readers. Every slot below published has been written.
+     */
+    private final AtomicInteger published = new AtomicInteger();
+
+    /**
+     * Number of times an element has been replaced.
+     */
+    private final AtomicInteger replacements = new AtomicInteger();
+
+    public ChunkedAppendList() {
+    }
+
+    public ChunkedAppendList(Collection<? extends E> elements) {
+        addAll(elements);
+    }
+
+    @Override
+    public boolean add(E element) {
+        if (element == null) {
+            throw new NullPointerException("ChunkedAppendList does not permit null elements");
+        }
+
+        int index = reserved.getAndIncrement();
+        if (index < 0 || index >= MAX_SIZE) {
+            reserved.decrementAndGet();
+            throw new IllegalStateException("ChunkedAppendList is full");
+        }
+
+        chunkFor(index, true).set(offsetInChunk(index), element);
+
+        publish();
+
+        return true;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends E> elements) {
+        boolean modified = false;
+        for (E element : elements) {
+            modified |= add(element);
+        }
+
+        return modified;
+    }
+
+    @Override
+    public E get(int index) {
+        if (index < 0 || index >= published.get()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + published.get());
+        }
+
+        return chunkFor(index, false).get(offsetInChunk(index));
+    }
+
+    /**
+     * Replaces the element at the specified position. Sorting the list, such as with {@link java.util.List#sort}, replaces
+     * its elements in place; elements appended while the list is being sorted are not sorted.
+     */
+    @Override
+    public E set(int index, E element) {
+        if (element == null) {
+            throw new NullPointerException("ChunkedAppendList does not permit null elements");
+        }
+
+        if (index < 0 || index >= published.get()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + published.get());
+        }
+
+        E previous = chunkFor(index, false).getAndSet(offsetInChunk(index), element);
+        replacements.incrementAndGet();
+
+        return previous;
+    }
+
+    /**
+     * @return number of times an element has been replaced, which changes whenever the list is sorted or otherwise
+     * reordered
+     */
+    public int getReplacementCount() {
+        return replacements.get();
+    }
+
+    @Override
+    public int size() {
+        return published.get();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return new SnapshotIterator(published.get());
+    }
+
+    @Override
+    public Spliterator<E> spliterator() {
+        int snapshotSize = published.get();
+
+        return Spliterators.spliterator(new SnapshotIterator(snapshotSize), snapshotSize,
+                Spliterator.ORDERED | Spliterator.NONNULL);
+    }
+
+    /**
+     * Advances the published size over every contiguous slot that has been written. Each appender calls this after writing
+     * its slot. If an earlier slot has not been written yet, its appender will advance the published size when it finishes,
+     * so no appender ever waits for another.
+     */
+    private void publish() {
+        while (true) {
+            int publishedSize = published.get();
+            if (publishedSize >= reserved.get()) {
+                return;
+            }
+
+            AtomicReferenceArray<E> chunk = chunkFor(publishedSize, false);
+            if (chunk == null || chunk.get(offsetInChunk(publishedSize)) == null) {
+                // the next slot is still being written
+                return;
+            }
+
+            published.compareAndSet(publishedSize, publishedSize + 1);
+        }
+    }
+
+    private AtomicReferenceArray<E> chunkFor(int index, boolean create) {
+        int chunkIndex = chunkIndex(index);
+
+        AtomicReferenceArray<E> chunk = chunks.get(chunkIndex);
+        if (chunk == null && create) {
+            chunks.compareAndSet(chunkIndex, null, new AtomicReferenceArray<>(FIRST_CHUNK_SIZE << chunkIndex));
+            chunk = chunks.get(chunkIndex);
+        }
+
+        return chunk;
+    }
+
+    private static int chunkIndex(int index) {
+        return (Integer.SIZE - 1 - Integer.numberOfLeadingZeros(index + FIRST_CHUNK_SIZE)) - FIRST_CHUNK_SHIFT;
+    }
+
+    private static int offsetInChunk(int index) {
+        int position = index + FIRST_CHUNK_SIZE;
+
+        return position - Integer.highestOneBit(position);
+    }
+
+    private class SnapshotIterator implements Iterator<E> {
+        private final int snapshotSize;
+        private int nextIndex;
+
+        private SnapshotIterator(int snapshotSize) {
+            this.snapshotSize = snapshotSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextIndex < snapshotSize;
+        }
+
+        @Override
+        public E next() {
+            if (nextIndex >= snapshotSize) {
+                throw new NoSuchElementException();
+            }
+
+            return chunkFor(nextIndex, false).get(offsetInChunk(nextIndex++));
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package com.browserup.harreader.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 
 import java.util.Objects;
+import java.util.function.Supplier;
 
 /**
  * Information about the response's content.
@@ -17,6 +19,8 @@ public class HarContent {
     private Long compression;
     private String mimeType = "";
     private String text = "";
+    @JsonIgnore
+    private Supplier<String> textSupplier;
     private String encoding;
     private String comment;
 
@@ -58,11 +62,29 @@ public class HarContent {
      * Binary content may be encoded using encoding specified by {@link #getEncoding()}.
      */
     public String getText() {
+        Supplier<String> textSupplier = this.textSupplier;
+        if (textSupplier != null) {
+            return textSupplier.get();
+        }
+
         return text;
     }
 
     public void setText(String text) {
         this.text = text;
+        this.textSupplier = null;
+    }
+
+    /**
+     * Sets a supplier that resolves the text when it is requested, so that the text does not need to be held in memory.
+     * The supplier is used instead of any text previously set with {@link #setText(String)}.
+     *
+     * @param textSupplier supplier of the text
+     */
+    @JsonIgnore
+    public void setTextSupplier(Supplier<String> textSupplier) {
+        this.textSupplier = textSupplier;
+        this.text = null;
     }
 
     /**
@@ -96,13 +118,13 @@ public class HarContent {
         return Objects.equals(size, that.size) &&
                 Objects.equals(compression, that.compression) &&
                 Objects.equals(mimeType, that.mimeType) &&
-                Objects.equals(text, that.text) &&
+                Objects.equals(getText(), that.getText()) &&
                 Objects.equals(encoding, that.encoding) &&
                 Objects.equals(comment, that.comment);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(size, compression, mimeType, text, encoding, comment);
+        return Objects.hash(size, compression, mimeType, getText(), encoding, comment);
     }
 }
@@ -26,6 +26,7 @@ public class HarEntry {
     private String connection;
     private String comment;
     private String _url;
+    private Long _sequence;
     private Map<String, Object> additional = new HashMap<>();
 
     /**
@@ -131,6 +132,20 @@ public class HarEntry {
         this._url = url;
     }
 
+    /**
+     * @return Sequence number assigned by the proxy when the entry was completed, null if the entry has not been completed.
+     * Sequence numbers increase monotonically, so entries completed after an entry always have a greater sequence number.
+     */
+    @JsonProperty("_sequence")
+    public Long getSequence() {
+        return _sequence;
+    }
+
+    @JsonProperty("_sequence")
+    public void setSequence(Long sequence) {
+        this._sequence = sequence;
+    }
+
     /**
      * @return Server IP address (result of DNS resolution), null if not present.
      */
@@ -189,12 +204,13 @@ public class HarEntry {
                 Objects.equals(serverIPAddress, harEntry.serverIPAddress) &&
                 Objects.equals(connection, harEntry.connection) &&
                 Objects.equals(comment, harEntry.comment) &&
+                Objects.equals(_sequence, harEntry._sequence) &&
                 Objects.equals(additional, harEntry.additional);
     }
 
     @Override
     public int hashCode() {
         return Objects.hash(pageref, startedDateTime, time, request, response, cache, timings, serverIPAddress,
-                connection, comment, additional);
+                connection, comment, _sequence, additional);
     }
 }
@@ -0,0 +1,379 @@
+package com.browserup.harreader.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * An index over the entries of a {@link ChunkedAppendList}, maintained incrementally as entries are appended.
+ * Entries are indexed by request host and page ref. The matches of each URL pattern are cached, so repeated searches
+ * with the same pattern only test the entries added since the previous search. When a pattern requires a literal host,
+ * only the entries for that host are tested.
+ * <p>
+ * The index is brought up to date when it is searched, so appending entries is not slowed down. An entry is indexed
+ * once its request URL is set; the index assumes the request URL and page ref do not change after that. The index refers
+ * to entries by position, so it is stale once entries are replaced, for example when the entries are sorted (see
+ * {@link #isStale()}).
+ * <p>
+ * All methods are thread-safe.
+ */
+class HarEntryIndex {
+    /**
+     * Maximum number of URL patterns whose matches are cached. The least recently used pattern is evicted first.
+     */
+    static final int MAX_CACHED_PATTERNS = 256;
+
+    /**
+     * Flags that do not prevent a pattern's literal host from being used to narrow a search.
+     */
+    private static final int HOST_SAFE_FLAGS = Pattern.CASE_INSENSITIVE;
+
+    /**
+     * URL scheme prefixes recognized in patterns, followed by "://".
+     */
+    private static final List<String> SCHEME_PREFIXES = Arrays.asList(
+            "https?", "http(s)?", "http(?:s)?", "(http|https)", "(https|http)", "(?:http|https)", "(?:https|http)",
+            "https", "http");
+
+    private final ChunkedAppendList<HarEntry> entries;
+
+    /**
+     * Replacement count of the entries when the index was created.
+     */
+    private final int entriesReplacementCount;
+
+    /**
+     * Number of entries indexed. Every entry before this position has a request URL.
+     */
+    private int indexedCount;
+
+    private final Map<String, Positions> positionsByHost = new HashMap<>();
+
+    /**
+     * Entries whose URL has no host that can be compared to a pattern's literal host, such as URLs with user info.
+     * They are tested against every pattern.
+     */
+    private final Positions positionsWithoutHost = new Positions();
+
+    private final Map<String, Positions> positionsByPageref = new HashMap<>();
+
+    private final Map<String, PatternMatches> matchesByPattern = new LinkedHashMap<String, PatternMatches>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PatternMatches> eldest) {
+            return size() > MAX_CACHED_PATTERNS;
+        }
+    };
+
+    HarEntryIndex(ChunkedAppendList<HarEntry> entries) {
+        this.entries = entries;
+        this.entriesReplacementCount = entries.getReplacementCount();
+    }
+
+    ChunkedAppendList<HarEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return true if entries have been replaced or reordered since the index was created, so it must be recreated
+     */
+    boolean isStale() {
+        return entries.getReplacementCount() != entriesReplacementCount;
+    }
+
+    /**
+     * @return entries whose request URL matches the pattern, in the order they were added
+     */
+    synchronized List<HarEntry> findEntries(Pattern url) {
+        updateIndex();
+
+        PatternMatches matches = matchesByPattern.computeIfAbsent(url.flags() + "/" + url.pattern(),
+                key -> new PatternMatches(url, getRequiredHost(url)));
+        matches.update();
+
+        List<HarEntry> result = new ArrayList<>(matches.positions.size());
+        for (int i = 0; i < matches.positions.size(); i++) {
+            result.add(entries.get(matches.positions.get(i)));
+        }
+
+        // entries that are not indexed yet are tested every time, since their URL may not be set
+        for (int i = indexedCount; i < entries.size(); i++) {
+            HarEntry entry = entries.get(i);
+            String entryUrl = entry.getRequest().getUrl();
+            if (entryUrl != null && url.matcher(entryUrl).matches()) {
+                result.add(entry);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return indexed entries whose request URL has the given host, in the order they were added
+     */
+    synchronized List<HarEntry> findEntriesByHost(String host) {
+        updateIndex();
+
+        return toEntries(positionsByHost.get(host.toLowerCase(Locale.ROOT)));
+    }
+
+    /**
+     * @return indexed entries with the given page ref, in the order they were added
+     */
+    synchronized List<HarEntry> findEntriesByPageref(String pageref) {
+        updateIndex();
+
+        return toEntries(positionsByPageref.get(pageref));
+    }
+
+    private List<HarEntry> toEntries(Positions positions) {
+        if (positions == null) {
+            return new ArrayList<>();
+        }
+
+        List<HarEntry> result = new ArrayList<>(positions.size());
+        for (int i = 0; i < positions.size(); i++) {
+            result.add(entries.get(positions.get(i)));
+        }
+
+        return result;
+    }
+
+    /**
+     * Indexes the entries added since the last update, up to the first entry whose request URL is not set yet.
+     */
+    private void updateIndex() {
+        int size = entries.size();
+        while (indexedCount < size) {
+            HarEntry entry = entries.get(indexedCount);
+            String url = entry.getRequest().getUrl();
+            if (url == null) {
+                return;
+            }
+
+            String host = getHost(url);
+            if (host != null) {
+                positionsByHost.computeIfAbsent(host, key -> new Positions()).add(indexedCount);
+            } else {
+                positionsWithoutHost.add(indexedCount);
+            }
+
+            if (entry.getPageref() != null) {
+                positionsByPageref.computeIfAbsent(entry.getPageref(), key -> new Positions()).add(indexedCount);
+            }
+
+            indexedCount++;
+        }
+    }
+
+    /**
+     * Returns the lower-cased host of the URL, or null if the URL has no host, or has user info that could make a
+     * pattern's host appear somewhere else in the URL.
+     */
+    static String getHost(String url) {
+        int schemeEnd = url.indexOf("://");
+        if (schemeEnd < 0) {
+            return null;
+        }
+
+        int hostStart = schemeEnd + 3;
+        if (hostStart >= url.length()) {
+            return null;
+        }
+
+        int authorityEnd = url.length();
+        for (int i = hostStart; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c == '/' || c == '?' || c == '#') {
+                authorityEnd = i;
+                break;
+            }
+
+            if (c == '@') {
+                return null;
+            }
+        }
+
+        int hostEnd = authorityEnd;
+        if (url.charAt(hostStart) != '[') {
+            int portStart = url.indexOf(':', hostStart);
+            if (portStart >= 0 && portStart < authorityEnd) {
+                hostEnd = portStart;
+            }
+        }
+
+        if (hostEnd == hostStart) {
+            return null;
+        }
+
+        return url.substring(hostStart, hostEnd).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the lower-cased host that every URL matching the pattern must have, or null if the pattern does not
+     * require a single literal host. Only simple patterns such as {@code ^https?://example\.com/.*} are recognized;
+     * for any other pattern this conservatively returns null.
+     */
+    static String getRequiredHost(Pattern url) {
+        if ((url.flags() & ~HOST_SAFE_FLAGS) != 0) {
+            return null;
+        }
+
+        String pattern = url.pattern();
+        int position = pattern.startsWith("^") ? 1 : 0;
+
+        String scheme = null;
+        for (String prefix : SCHEME_PREFIXES) {
+            if (pattern.startsWith(prefix, position)) {
+                scheme = prefix;
+                break;
+            }
+        }
+
+        if (scheme == null) {
+            return null;
+        }
+
+        position += scheme.length();
+        if (pattern.startsWith("://", position)) {
+            position += 3;
+        } else if (pattern.startsWith(":\\/\\/", position)) {
+            position += 5;
+        } else {
+            return null;
+        }
+
+        // an alternation anywhere after the scheme could allow other hosts
+        if (pattern.indexOf('|', position) >= 0) {
+            return null;
+        }
+
+        StringBuilder host = new StringBuilder();
+        while (position < pattern.length()) {
+            char c = pattern.charAt(position);
+            if (Character.isLetterOrDigit(c) && c < 128 || c == '-' || c == '_') {
+                host.append(c);
+                position++;
+            } else if (c == '\\' && position + 1 < pattern.length()
+                    && (pattern.charAt(position + 1) == '.' || pattern.charAt(position + 1) == '-')) {
+                host.append(pattern.charAt(position + 1));
+                position += 2;
+            } else {
+                break;
+            }
+        }
+
+        if (host.length() == 0) {
+            return null;
+        }
+
+        // the host must be followed by a mandatory character that ends the host, or by the end of the pattern
+        int terminatorEnd;
+        if (position == pattern.length()) {
+            return host.toString().toLowerCase(Locale.ROOT);
+        } else if (pattern.charAt(position) == '/' || pattern.charAt(position) == ':' || pattern.charAt(position) == '$') {
+            terminatorEnd = position + 1;
+        } else if (pattern.startsWith("\\/", position) || pattern.startsWith("\\?", position)) {
+            terminatorEnd = position + 2;
+        } else {
+            return null;
+        }
+
+        if (terminatorEnd < pattern.length() && "?*{".indexOf(pattern.charAt(terminatorEnd)) >= 0) {
+            return null;
+        }
+
+        return host.toString().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Cached matches of a URL pattern against the indexed entries.
+     */
+    private class PatternMatches {
+        private final Pattern pattern;
+
+        /**
+         * Host every matching URL must have, or null to test every entry.
+         */
+        private final String requiredHost;
+
+        private final Positions positions = new Positions();
+
+        /**
+         * Number of indexed entries tested against the pattern.
+         */
+        private int testedCount;
+
+        /**
+         * Number of entries in the required host's bucket, and in the bucket of entries without a host, tested against
+         * the pattern.
+         */
+        private int testedHostCount;
+        private int testedWithoutHostCount;
+
+        private PatternMatches(Pattern pattern, String requiredHost) {
+            this.pattern = pattern;
+            this.requiredHost = requiredHost;
+        }
+
+        /**
+         * Tests the entries indexed since the last update against the pattern.
+         */
+        private void update() {
+            if (requiredHost == null) {
+                for (int i = testedCount; i < indexedCount; i++) {
+                    test(i);
+                }
+            } else {
+                // merge the new positions of both buckets, so matches stay in the order the entries were added
+                Positions hostPositions = positionsByHost.get(requiredHost);
+                int hostCount = hostPositions == null ? 0 : hostPositions.size();
+
+                while (testedHostCount < hostCount || testedWithoutHostCount < positionsWithoutHost.size()) {
+                    if (testedWithoutHostCount >= positionsWithoutHost.size() || testedHostCount < hostCount
+                            && hostPositions.get(testedHostCount) < positionsWithoutHost.get(testedWithoutHostCount)) {
+                        test(hostPositions.get(testedHostCount++));
+                    } else {
+                        test(positionsWithoutHost.get(testedWithoutHostCount++));
+                    }
+                }
+            }
+
+            testedCount = indexedCount;
+        }
+
+        private void test(int position) {
+            if (pattern.matcher(entries.get(position).getRequest().getUrl()).matches()) {
+                positions.add(position);
+            }
+        }
+    }
+
+    /**
+     * A growable list of entry positions, in ascending order.
+     */
+    private static class Positions {
+        private int[] positions = new int[8];
+        private int size;
+
+        private void add(int position) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+
+            positions[size++] = position;
+        }
+
+        private int get(int index) {
+            return positions[index];
+        }
+
+        private int size() {
+            return size;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.browserup.harreader.model;
 
 import com.browserup.harreader.filter.HarEntriesFilter;
 import com.browserup.harreader.filter.HarEntriesUrlPatternFilter;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 
@@ -27,9 +28,19 @@ public class HarLog {
     private HarCreatorBrowser creator;
     private HarCreatorBrowser browser;
     private List<HarPage> pages = new CopyOnWriteArrayList<>();
-    private List<HarEntry> entries = new CopyOnWriteArrayList<>();
+    private List<HarEntry> entries = new ChunkedAppendList<>();
     private String comment;
 
+    /**
+     * Entries in the order they were completed. Not serialized.
+     */
+    private volatile ChunkedAppendList<HarEntry> completedEntries = new ChunkedAppendList<>();
+
+    /**
+     * Index over {@link #entries}, created when the entries are first searched. Guarded by this.
+     */
+    private HarEntryIndex entryIndex;
+
     /**
      * @return Version number of the format.
      * Defaults to {@link #DEFAULT_VERSION}
@@ -85,17 +96,31 @@ public class HarLog {
     }
 
     /**
-     * @return List of all exported requests, may be empty.
+     * @return List of all exported requests, may be empty. Unless replaced using {@link #setEntries(List)}, the list is a
+     * {@link ChunkedAppendList}, so entries can be added concurrently and sorted but not removed, and iteration sees a snapshot of the entries.
      */
     public List<HarEntry> getEntries() {
         if (entries == null) {
-            entries = new CopyOnWriteArrayList<>();
+            entries = new ChunkedAppendList<>();
         }
         return entries;
     }
 
     public void setEntries(List<HarEntry> entries) {
         this.entries = entries;
+        this.completedEntries = new ChunkedAppendList<>();
+    }
+
+    /**
+     * Returns the entries of this log that have been completed, in the order they were completed. Entries are appended to
+     * this list by the proxy as they complete; the list is not serialized, and is reset when the entries are replaced
+     * using {@link #setEntries(List)}.
+     *
+     * @return entries in the order they were completed
+     */
+    @JsonIgnore
+    public ChunkedAppendList<HarEntry> getCompletedEntries() {
+        return completedEntries;
     }
 
     /**
@@ -145,7 +170,7 @@ public class HarLog {
      * @return <code>HarEntry</code> for the most recently requested URL matching the given <code>url</code> pattern.
      */
     public Optional<HarEntry> findMostRecentEntry(Pattern url) {
-        return findEntries(new HarEntriesUrlPatternFilter(url)).stream()
+        return findEntries(url).stream()
             .max(Comparator.comparing(HarEntry::getStartedDateTime));
     }
 
@@ -169,12 +194,66 @@ public class HarLog {
      *         or an empty list if none match.
      */
     public List<HarEntry> findEntries(Pattern url) {
+        HarEntryIndex index = getEntryIndex();
+        if (index != null) {
+            return index.findEntries(url);
+        }
+
         return findEntries(new HarEntriesUrlPatternFilter(url));
     }
 
+    /**
+     * Search the entire log for entries whose request URL has the given <code>host</code>.
+     *
+     * @param host Host name or IP address, compared ignoring case. Does not include the port.
+     * @return A list of <code>HarEntry</code> for any requests to the given host, or an empty list if none match.
+     */
+    public List<HarEntry> findEntriesByHost(String host) {
+        HarEntryIndex index = getEntryIndex();
+        if (index != null) {
+            return index.findEntriesByHost(host);
+        }
+
+        return findEntries(entry -> entry.getRequest().getUrl() != null
+                && host.equalsIgnoreCase(HarEntryIndex.getHost(entry.getRequest().getUrl())));
+    }
+
+    /**
+     * Search the entire log for entries that belong to the page with the given <code>pageref</code>.
+     *
+     * @param pageref Id of the page.
+     * @return A list of <code>HarEntry</code> for any requests made by the page, or an empty list if none match.
+     */
+    public List<HarEntry> findEntriesByPageref(String pageref) {
+        HarEntryIndex index = getEntryIndex();
+        if (index != null) {
+            return index.findEntriesByPageref(pageref);
+        }
+
+        return findEntries(entry -> entry.getRequest().getUrl() != null && pageref.equals(entry.getPageref()));
+    }
+
     private List<HarEntry> findEntries(HarEntriesFilter filter) {
         return getEntries().stream()
             .filter(filter)
             .collect(Collectors.toList());
     }
+
+    /**
+     * Returns the index over the entries, or null if the entries have been replaced by a list that can be modified
+     * other than by appending, which cannot be indexed incrementally.
+     */
+    private synchronized HarEntryIndex getEntryIndex() {
+        List<HarEntry> currentEntries = getEntries();
+        if (!(currentEntries instanceof ChunkedAppendList)) {
+            return null;
+        }
+
+        // the index refers to entries by position, so start over if the entries have been replaced or sorted
+        if (entryIndex == null || entryIndex.getEntries() != currentEntries || entryIndex.isStale()) {
+            entryIndex = new HarEntryIndex((ChunkedAppendList<HarEntry>) currentEntries);
+        }
+
+        return entryIndex;
+    }
 }
@@ -1,11 +1,13 @@
 package com.browserup.harreader.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.function.Supplier;
 
 /**
  * Information about POST data.
@@ -18,6 +20,8 @@ public class HarPostData {
     private String mimeType = "";
     private List<HarPostDataParam> params = new ArrayList<>();
     private String text = "";
+    @JsonIgnore
+    private Supplier<String> textSupplier;
     private String comment;
 
     /**
@@ -49,11 +53,29 @@ public class HarPostData {
      * @return Plain text posted data, null if not present.
      */
     public String getText() {
+        Supplier<String> textSupplier = this.textSupplier;
+        if (textSupplier != null) {
+            return textSupplier.get();
+        }
+
         return text;
     }
 
     public void setText(String text) {
         this.text = text;
+        this.textSupplier = null;
+    }
+
+    /**
+     * Sets a supplier that resolves the text when it is requested, so that the text does not need to be held in memory.
+     * The supplier is used instead of any text previously set with {@link #setText(String)}.
+     *
+     * @param textSupplier supplier of the text
+     */
+    @JsonIgnore
+    public void setTextSupplier(Supplier<String> textSupplier) {
+        this.textSupplier = textSupplier;
+        this.text = null;
     }
 
     /**
@@ -74,12 +96,12 @@ public class HarPostData {
         HarPostData that = (HarPostData) o;
         return Objects.equals(mimeType, that.mimeType) &&
                 Objects.equals(params, that.params) &&
-                Objects.equals(text, that.text) &&
+                Objects.equals(getText(), that.getText()) &&
                 Objects.equals(comment, that.comment);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(mimeType, params, text, comment);
+        return Objects.hash(mimeType, params, getText(), comment);
     }
 }
@@ -31,6 +31,9 @@ DEFAULT_PAGE_TITLE = "Default"
 
 REQUEST_SUBMITTED_FLAG = "_request_submitted"
 
+# Sequence number assigned to each entry when it is completed, so clients can poll for entries completed since a sequence number
+HAR_ENTRY_SEQUENCE = "_sequence"
+
 class HarCaptureTypes(Enum):
     REQUEST_HEADERS = auto()
     REQUEST_COOKIES = auto()
@@ -109,6 +112,21 @@ class HarDumpAddonResource:
             "json": filtered_har
         }, ensure_ascii=False)
 
+    def on_get_har_entries_since(self, req, resp):
+        sequence = int(req.get_param('sequence') or 0)
+        max_entries = int(req.get_param('maxEntries') or 100)
+
+        entries, has_more = self.harDumpAddOn.get_har_entries_since(sequence, max_entries)
+
+        resp.status = falcon.HTTP_200
+        resp.content_type = falcon.MEDIA_JSON
+        resp.body = json.dumps({
+            "entries": entries,
+            "nextSequence": entries[-1][HAR_ENTRY_SEQUENCE] if entries else sequence,
+            "lastSequence": self.harDumpAddOn.har_entry_sequence,
+            "hasMore": has_more
+        }, ensure_ascii=False)
+
     def on_new_har(self, req, resp):
         page_ref = req.get_param('pageRef')
         page_title = req.get_param('pageTitle')
@@ -194,6 +212,8 @@ class HarDumpAddOn:
         self.send_finished_nanos = 0
         self.response_receive_started_nanos = 0
         self.http_connect_timings = {}
+        # never reset, so sequence numbers from an earlier har are never reused
+        self.har_entry_sequence = 0
 
     def get_har_entry(self, flow):
         return flow.request.har_entry
@@ -230,6 +250,24 @@ class HarDumpAddOn:
             for entry in har['log']['entries']:
                 entry[REQUEST_SUBMITTED_FLAG] = True
 
+    def complete_har_entry(self, har_entry):
+        if HAR_ENTRY_SEQUENCE not in har_entry:
+            self.har_entry_sequence += 1
+            har_entry[HAR_ENTRY_SEQUENCE] = self.har_entry_sequence
+
+    def get_har_entries_since(self, sequence, max_entries):
+        if self.har is None:
+            return [], False
+
+        completed_entries = [entry for entry in self.har['log']['entries']
+                             if entry.get(HAR_ENTRY_SEQUENCE, 0) > sequence]
+        completed_entries.sort(key=lambda entry: entry[HAR_ENTRY_SEQUENCE])
+
+        page = [{k: v for k, v in entry.items() if k != REQUEST_SUBMITTED_FLAG}
+                for entry in completed_entries[:max_entries]]
+
+        return page, len(completed_entries) > max_entries
+
     def get_har(self, clean_har):
         if clean_har:
             return self.new_har(DEFAULT_PAGE_REF, DEFAULT_PAGE_TITLE)
@@ -720,6 +758,8 @@ class HarDumpAddOn:
             har_entry["serverIPAddress"] = str(
                 flow.server_conn.ip_address[0])
 
+        self.complete_har_entry(har_entry)
+
         ctx.log.debug('Populated har entry for response: {}, entry: {}'.format(flow.request.url, str(har_entry)))
 
     def calculate_timings(self, connect_time, flow, ssl_time):
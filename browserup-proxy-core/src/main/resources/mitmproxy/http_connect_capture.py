@@ -202,6 +202,7 @@ class HttpConnectCaptureAddOn:
         self.populate_server_ip_address(flow, original_error)
 
         self.get_har_entry(flow)['time'] = self.calculate_total_elapsed_time(flow)
+        self.har_dump_addon.complete_har_entry(self.get_har_entry(flow))
 
     def proxy_to_server_connection_failed(self, flow, original_error):
         msg = CONNECTION_FAILED_ERROR_MESSAGE
@@ -210,6 +211,7 @@ class HttpConnectCaptureAddOn:
         self.populate_server_ip_address(flow, original_error)
 
         self.get_har_entry(flow)['time'] = self.calculate_total_elapsed_time(flow)
+        self.har_dump_addon.complete_har_entry(self.get_har_entry(flow))
 
     def server_to_proxy_response_timed_out(self, flow, req_host_port, original_error):
         msg = RESPONSE_TIMED_OUT_ERROR_MESSAGE
@@ -232,6 +234,7 @@ class HttpConnectCaptureAddOn:
             har_entry['timings']['receiveNanos'] = current_time_nanos - self.response_receive_started_nanos
 
         har_entry['time'] = self.calculate_total_elapsed_time(flow)
+        self.har_dump_addon.complete_har_entry(har_entry)
 
     def create_har_entry_for_failed_connect(self, flow, msg):
         har_entry = self.get_har_entry(flow)
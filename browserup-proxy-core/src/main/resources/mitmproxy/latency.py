@@ -6,6 +6,7 @@ import tempfile
 from time import sleep
 
 import re
+import random
 
 from datetime import datetime
 from datetime import timezone
@@ -19,6 +20,7 @@ from mitmproxy import version
 from mitmproxy.utils import strutils
 from mitmproxy.net.http import cookies
 from mitmproxy import http
+from mitmproxy.script import concurrent
 
 class LatencyResource:
 
@@ -31,22 +33,77 @@ class LatencyResource:
     def on_get(self, req, resp, method_name):
         getattr(self, "on_" + method_name)(req, resp)
 
+    def on_put(self, req, resp, method_name):
+        getattr(self, "on_" + method_name)(req, resp)
+
     def on_set_latency(self, req, resp):
-        self.latency_addon.latency_ms = int(req.get_param('latency'))
+        self.latency_addon.default_rule = {
+            "url_pattern": None,
+            "latency_ms": int(req.get_param('latency')),
+            "jitter_ms": int(req.get_param('jitter') or 0),
+            "jitter_distribution": req.get_param('jitterDistribution') or 'UNIFORM'
+        }
+
+    def on_set_latency_rules(self, req, resp):
+        rules = []
+
+        for rule in json.loads(req.bounded_stream.read()):
+            try:
+                url_pattern = None
+                if rule['urlPattern'] is not None:
+                    url_pattern = re.compile(rule['urlPattern'])
+            except re.error:
+                raise falcon.HTTPBadRequest("Invalid regexp patterns")
+
+            rules.append({
+                "url_pattern": url_pattern,
+                "latency_ms": int(rule['latencyMs']),
+                "jitter_ms": int(rule['jitterMs']),
+                "jitter_distribution": rule['jitterDistribution']
+            })
+
+        self.latency_addon.rules = rules
 
 
 class LatencyAddOn:
 
     def __init__(self):
         self.num = 0
-        self.latency_ms = 0
+        self.default_rule = {
+            "url_pattern": None,
+            "latency_ms": 0,
+            "jitter_ms": 0,
+            "jitter_distribution": 'UNIFORM'
+        }
+        self.rules = []
 
     def get_resource(self):
         return LatencyResource(self)
 
+    def find_rule(self, url):
+        for rule in self.rules:
+            if rule['url_pattern'] is None or rule['url_pattern'].fullmatch(url):
+                return rule
+        return self.default_rule
+
+    def next_latency_ms(self, rule):
+        jitter_ms = rule['jitter_ms']
+        if jitter_ms == 0:
+            return rule['latency_ms']
+
+        if rule['jitter_distribution'] == 'NORMAL':
+            jitter = random.gauss(0, jitter_ms)
+        else:
+            jitter = random.uniform(-jitter_ms, jitter_ms)
+
+        return max(0, rule['latency_ms'] + jitter)
+
+    # the hook runs on its own thread, so sleeping here holds this response without stalling other flows
+    @concurrent
     def response(self, flow):
-        if self.latency_ms != 0:
-            sleep(self.latency_ms / 1000)
+        latency_ms = self.next_latency_ms(self.find_rule(flow.request.url))
+        if latency_ms > 0:
+            sleep(latency_ms / 1000)
 
 addons = [
     LatencyAddOn()
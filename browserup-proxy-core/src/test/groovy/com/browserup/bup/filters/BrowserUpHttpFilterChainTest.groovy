@@ -0,0 +1,101 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters
+
+import com.browserup.bup.BrowserUpProxyServer
+import io.netty.channel.ChannelHandlerContext
+import io.netty.handler.codec.http.DefaultHttpRequest
+import io.netty.handler.codec.http.HttpMethod
+import io.netty.handler.codec.http.HttpObject
+import io.netty.handler.codec.http.HttpRequest
+import io.netty.handler.codec.http.HttpResponse
+import io.netty.handler.codec.http.HttpVersion
+import org.junit.Test
+import org.littleshoot.proxy.HttpFilters
+import org.littleshoot.proxy.HttpFiltersAdapter
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertFalse
+import static org.mockito.Mockito.mock
+
+class BrowserUpHttpFilterChainTest {
+    private final HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "http://www.example.com/")
+
+    @Test
+    void testInactiveSourcesAreSkipped() {
+        BrowserUpProxyServer proxy = new BrowserUpProxyServer()
+
+        boolean active = false
+        int filtersCreated = 0
+        List<String> invokedFilters = []
+
+        proxy.addLastHttpFilterFactory(new ConditionalHttpFiltersSource() {
+            @Override
+            HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+                filtersCreated++
+                return new RecordingFilter(originalRequest, "conditional", invokedFilters)
+            }
+
+            @Override
+            boolean isActive() {
+                return active
+            }
+        })
+        proxy.addLastHttpFilterFactory(new StatelessHttpFiltersSource(new RecordingFilter(null, "stateless", invokedFilters)))
+
+        new BrowserUpHttpFilterChain(proxy, request, mock(ChannelHandlerContext)).clientToProxyRequest(request)
+
+        assertEquals(0, filtersCreated)
+        assertEquals(["stateless"], invokedFilters)
+
+        active = true
+        invokedFilters.clear()
+        new BrowserUpHttpFilterChain(proxy, request, mock(ChannelHandlerContext)).clientToProxyRequest(request)
+
+        assertEquals(1, filtersCreated)
+        assertEquals(["conditional", "stateless"], invokedFilters)
+    }
+
+    @Test
+    void testStatelessSourceReturnsSameFilter() {
+        HttpFilters filter = new HttpFiltersAdapter(null)
+        StatelessHttpFiltersSource source = new StatelessHttpFiltersSource(filter, { false })
+
+        assertFalse(source.isActive())
+        assert source.filterRequest(request, null).is(filter)
+        assert source.filterRequest(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/"), null).is(filter)
+    }
+
+    @Test
+    void testFilterFactoryArrayReflectsAddedFactories() {
+        BrowserUpProxyServer proxy = new BrowserUpProxyServer()
+
+        StatelessHttpFiltersSource first = new StatelessHttpFiltersSource(new HttpFiltersAdapter(null))
+        StatelessHttpFiltersSource last = new StatelessHttpFiltersSource(new HttpFiltersAdapter(null))
+        proxy.addLastHttpFilterFactory(last)
+        proxy.addFirstHttpFilterFactory(first)
+
+        assertEquals([first, last], proxy.getFilterFactoryArray() as List)
+        assertEquals([first, last], proxy.getFilterFactories())
+    }
+
+    private static class RecordingFilter extends HttpFiltersAdapter {
+        private final String name
+        private final List<String> invokedFilters
+
+        RecordingFilter(HttpRequest originalRequest, String name, List<String> invokedFilters) {
+            super(originalRequest)
+
+            this.name = name
+            this.invokedFilters = invokedFilters
+        }
+
+        @Override
+        HttpResponse clientToProxyRequest(HttpObject httpObject) {
+            invokedFilters.add(name)
+            return null
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters
+
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInboundHandlerAdapter
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.handler.codec.http.DefaultHttpRequest
+import io.netty.handler.codec.http.HttpHeaderNames
+import io.netty.handler.codec.http.HttpMethod
+import io.netty.handler.codec.http.HttpRequest
+import io.netty.handler.codec.http.HttpVersion
+import io.netty.util.AttributeKey
+import org.junit.After
+import org.junit.Test
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertFalse
+import static org.junit.Assert.assertNotSame
+import static org.junit.Assert.assertSame
+import static org.junit.Assert.assertTrue
+
+class HttpRequestContextTest {
+    private final EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter())
+    private final ChannelHandlerContext ctx = channel.pipeline().firstContext()
+
+    @After
+    void tearDown() {
+        channel.finishAndReleaseAll()
+    }
+
+    @Test
+    void testHttpRequestUrl() {
+        HttpRequest request = newRequest("/path?query=1", "www.example.com:8080")
+        HttpRequestContext requestContext = HttpRequestContext.create(request, ctx)
+
+        assertFalse(requestContext.isHttps())
+        assertEquals("http", requestContext.getScheme())
+        assertEquals("http://www.example.com:8080/path?query=1", requestContext.getOriginalUrl())
+        assertEquals("www.example.com", requestContext.getHost(request))
+        assertEquals(8080, requestContext.getPort(request))
+        assertSame("Expected the URL to be cached", requestContext.getOriginalUrl(), requestContext.getFullUrl(request))
+    }
+
+    @Test
+    void testHttpsRequestUrl() {
+        channel.attr(AttributeKey.<Boolean>valueOf(HttpsAwareFiltersAdapter.IS_HTTPS_ATTRIBUTE_NAME)).set(true)
+        channel.attr(AttributeKey.<String>valueOf(HttpsAwareFiltersAdapter.HOST_ATTRIBUTE_NAME)).set("secure.example.com")
+
+        HttpRequest request = newRequest("/index.html", "spoofed.example.com")
+        HttpRequestContext requestContext = HttpRequestContext.create(request, ctx)
+
+        assertTrue(requestContext.isHttps())
+        assertEquals("https://secure.example.com/index.html", requestContext.getOriginalUrl())
+        assertEquals("secure.example.com", requestContext.getHost(request))
+        assertEquals(443, requestContext.getPort(request))
+    }
+
+    @Test
+    void testModifiedRequestIsRecomputed() {
+        HttpRequest originalRequest = newRequest("/original", "www.example.com")
+        HttpRequestContext requestContext = HttpRequestContext.create(originalRequest, ctx)
+
+        HttpRequest modifiedRequest = newRequest("/original", "www.example.com")
+        assertEquals("http://www.example.com/original", requestContext.getFullUrl(modifiedRequest))
+
+        modifiedRequest.setUri("/rewritten")
+        assertEquals("http://www.example.com/rewritten", requestContext.getFullUrl(modifiedRequest))
+
+        modifiedRequest.headers().set(HttpHeaderNames.HOST, "www.example.org")
+        assertEquals("http://www.example.org/rewritten", requestContext.getFullUrl(modifiedRequest))
+        assertEquals("www.example.org", requestContext.getHost(modifiedRequest))
+
+        assertEquals("http://www.example.com/original", requestContext.getOriginalUrl())
+    }
+
+    @Test
+    void testInvalidateRereadsChannelAttributes() {
+        HttpRequestContext requestContext = HttpRequestContext.create(newRequest("/", "www.example.com"), ctx)
+        assertFalse(requestContext.isHttps())
+
+        channel.attr(AttributeKey.<Boolean>valueOf(HttpsAwareFiltersAdapter.IS_HTTPS_ATTRIBUTE_NAME)).set(true)
+        assertFalse("Expected the HTTPS flag to be cached", requestContext.isHttps())
+
+        requestContext.invalidate()
+        assertTrue(requestContext.isHttps())
+    }
+
+    @Test
+    void testFiltersShareContextOfCurrentRequest() {
+        HttpRequest request = newRequest("/", "www.example.com")
+        HttpRequestContext requestContext = HttpRequestContext.create(request, ctx)
+
+        assertSame(requestContext, HttpRequestContext.forRequest(request, ctx))
+        assertSame(requestContext, new HttpsAwareFiltersAdapter(request, ctx).getRequestContext())
+
+        // a filter for a different request does not use the channel's current context
+        HttpRequest otherRequest = newRequest("/", "www.example.com")
+        assertNotSame(requestContext, HttpRequestContext.forRequest(otherRequest, ctx))
+    }
+
+    private static HttpRequest newRequest(String uri, String host) {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri)
+        request.headers().set(HttpHeaderNames.HOST, host)
+        return request
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters
+
+import com.browserup.bup.proxy.LatencyRule
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInboundHandlerAdapter
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.handler.codec.http.DefaultFullHttpResponse
+import io.netty.handler.codec.http.DefaultHttpRequest
+import io.netty.handler.codec.http.FullHttpResponse
+import io.netty.handler.codec.http.HttpHeaderNames
+import io.netty.handler.codec.http.HttpMethod
+import io.netty.handler.codec.http.HttpRequest
+import io.netty.handler.codec.http.HttpResponseStatus
+import io.netty.handler.codec.http.HttpVersion
+import org.junit.After
+import org.junit.Test
+
+import java.util.concurrent.TimeUnit
+
+import static org.junit.Assert.assertNull
+import static org.junit.Assert.assertSame
+import static org.junit.Assert.assertTrue
+
+class LatencyFilterTest {
+    private static final long LATENCY_MS = 100
+
+    private final EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter())
+    private final ChannelHandlerContext ctx = channel.pipeline().firstContext()
+
+    @After
+    void tearDown() {
+        channel.finishAndReleaseAll()
+    }
+
+    @Test
+    void testResponseIsHeldForLatency() {
+        HttpRequest request = newRequest("/delayed")
+        HttpRequestContext.create(request, ctx)
+
+        FullHttpResponse response = newResponse()
+        channel.writeOutbound(newLatencyFilter(request).proxyToClientResponse(response))
+
+        assertNull("Expected the response to be held", channel.readOutbound())
+
+        assertSame(response, awaitResponse())
+    }
+
+    @Test
+    void testReplacedResponseIsDelayed() {
+        HttpRequest request = newRequest("/replaced")
+        HttpRequestContext.create(request, ctx)
+
+        newLatencyFilter(request).proxyToClientResponse(newResponse()).release()
+
+        // a later filter replaces the response
+        FullHttpResponse replacement = newResponse()
+        channel.writeOutbound(replacement)
+
+        assertNull("Expected the replacement response to be held", channel.readOutbound())
+
+        assertSame(replacement, awaitResponse())
+    }
+
+    @Test
+    void testDelayForDroppedResponseIsNotAppliedToNextRequest() {
+        HttpRequest droppedRequest = newRequest("/dropped")
+        HttpRequestContext.create(droppedRequest, ctx)
+
+        // a later filter drops the response, so it is never written
+        newLatencyFilter(droppedRequest).proxyToClientResponse(newResponse()).release()
+
+        HttpRequest nextRequest = newRequest("/next")
+        HttpRequestContext.create(nextRequest, ctx)
+
+        FullHttpResponse nextResponse = newResponse()
+        channel.writeOutbound(nextResponse)
+
+        assertSame("Expected the response to the next request to be written immediately", nextResponse, channel.readOutbound())
+    }
+
+    @Test
+    void testDelayIsOnlyAppliedToFirstResponse() {
+        HttpRequest request = newRequest("/delayed")
+        HttpRequestContext.create(request, ctx)
+
+        FullHttpResponse delayedResponse = newResponse()
+        channel.writeOutbound(newLatencyFilter(request).proxyToClientResponse(delayedResponse))
+        assertSame(delayedResponse, awaitResponse())
+
+        HttpRequest nextRequest = newRequest("/next")
+        HttpRequestContext.create(nextRequest, ctx)
+
+        FullHttpResponse nextResponse = newResponse()
+        channel.writeOutbound(nextResponse)
+
+        assertSame("Expected the delay to be consumed by the first response", nextResponse, channel.readOutbound())
+    }
+
+    @Test
+    void testDeprecatedConstructorDelaysResponse() {
+        FullHttpResponse response = newResponse()
+
+        long start = System.nanoTime()
+        assertSame(response, new LatencyFilter(newRequest("/deprecated"), (int) LATENCY_MS).proxyToClientResponse(response))
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+
+        assertTrue("Expected the response to be delayed by at least " + LATENCY_MS + "ms, but was " + elapsedMs + "ms", elapsedMs >= LATENCY_MS)
+
+        response.release()
+    }
+
+    private LatencyFilter newLatencyFilter(HttpRequest request) {
+        return new LatencyFilter(request, ctx, new LatencyRule(null, LATENCY_MS, TimeUnit.MILLISECONDS), null)
+    }
+
+    private Object awaitResponse() {
+        Thread.sleep(LATENCY_MS + 50)
+        channel.runScheduledPendingTasks()
+
+        return channel.readOutbound()
+    }
+
+    private static HttpRequest newRequest(String uri) {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri)
+        request.headers().set(HttpHeaderNames.HOST, "www.example.com")
+        return request
+    }
+
+    private static FullHttpResponse newResponse() {
+        return new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK)
+    }
+}
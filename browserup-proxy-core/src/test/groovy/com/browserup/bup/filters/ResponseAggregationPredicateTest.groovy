@@ -0,0 +1,82 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters
+
+import io.netty.handler.codec.http.DefaultHttpResponse
+import io.netty.handler.codec.http.HttpHeaderNames
+import io.netty.handler.codec.http.HttpResponse
+import io.netty.handler.codec.http.HttpResponseStatus
+import io.netty.handler.codec.http.HttpVersion
+import org.junit.Test
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertFalse
+import static org.junit.Assert.assertTrue
+
+class ResponseAggregationPredicateTest {
+    @Test
+    void testUrlMatches() {
+        ResponseAggregationPredicate predicate = ResponseAggregationPredicate.urlMatches("https://www\\.example\\.com/api/.*")
+
+        assertTrue(predicate.shouldAggregate("https://www.example.com/api/users", response(null)))
+        assertFalse(predicate.shouldAggregate("https://www.example.com/static/app.js", response(null)))
+    }
+
+    @Test
+    void testHostEquals() {
+        ResponseAggregationPredicate predicate = ResponseAggregationPredicate.hostEquals("www.example.com")
+
+        assertTrue(predicate.shouldAggregate("https://WWW.example.com:8443/index.html", response(null)))
+        assertFalse(predicate.shouldAggregate("https://cdn.example.com/index.html", response(null)))
+        assertFalse(predicate.shouldAggregate("not a url", response(null)))
+    }
+
+    @Test
+    void testContentTypeMatches() {
+        ResponseAggregationPredicate predicate = ResponseAggregationPredicate.contentTypeMatches("text/.*")
+
+        assertTrue(predicate.shouldAggregate("https://www.example.com/", response("text/html; charset=UTF-8")))
+        assertFalse(predicate.shouldAggregate("https://www.example.com/video", response("video/mp4")))
+        assertFalse(predicate.shouldAggregate("https://www.example.com/", response(null)))
+    }
+
+    @Test
+    void testOr() {
+        ResponseAggregationPredicate predicate = ResponseAggregationPredicate.hostEquals("www.example.com")
+                .or(ResponseAggregationPredicate.contentTypeMatches("application/json"))
+
+        assertTrue(predicate.shouldAggregate("https://api.example.com/", response("application/json")))
+        assertFalse(predicate.shouldAggregate("https://api.example.com/", response("image/png")))
+    }
+
+    @Test
+    void testFilterSourceOnlyAggregatesSelectedResponses() {
+        def filterSource = new ResponseFilterAdapter.FilterSource({ response, contents, messageInfo -> } as ResponseFilter, 1024,
+                ResponseAggregationPredicate.contentTypeMatches("text/html"))
+
+        assertEquals("Expected aggregation not to be enabled for all responses", 0, filterSource.maximumResponseBufferSizeInBytes)
+        assertEquals(1024, filterSource.getResponseBufferSizeInBytes("https://www.example.com/", response("text/html")))
+        assertEquals(0, filterSource.getResponseBufferSizeInBytes("https://www.example.com/", response("image/png")))
+        assertTrue(filterSource.isSelective())
+    }
+
+    @Test
+    void testFilterSourceIsOnlySelectiveWithPredicate() {
+        ResponseFilter filter = { response, contents, messageInfo -> } as ResponseFilter
+
+        assertFalse(new ResponseFilterAdapter.FilterSource(filter).isSelective())
+        assertFalse(new ResponseFilterAdapter.FilterSource(filter, 1024, null).isSelective())
+        assertTrue(new ResponseFilterAdapter.FilterSource(filter, 1024, ResponseAggregationPredicate.hostEquals("www.example.com")).isSelective())
+    }
+
+    private static HttpResponse response(String contentType) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK)
+        if (contentType != null) {
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType)
+        }
+
+        return response
+    }
+}
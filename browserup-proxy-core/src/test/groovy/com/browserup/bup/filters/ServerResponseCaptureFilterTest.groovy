@@ -0,0 +1,89 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters
+
+import com.browserup.bup.filters.support.BoundedContentBuffer
+import io.netty.buffer.Unpooled
+import io.netty.handler.codec.http.DefaultHttpRequest
+import io.netty.handler.codec.http.DefaultHttpResponse
+import io.netty.handler.codec.http.DefaultLastHttpContent
+import io.netty.handler.codec.http.HttpMethod
+import io.netty.handler.codec.http.HttpResponseStatus
+import io.netty.handler.codec.http.HttpVersion
+import org.junit.Test
+
+import java.nio.charset.StandardCharsets
+import java.util.zip.GZIPOutputStream
+
+import static org.junit.Assert.assertArrayEquals
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertFalse
+import static org.junit.Assert.assertTrue
+
+class ServerResponseCaptureFilterTest {
+    @Test
+    void testWithFullResponseContentBufferReadsCompletedResponse() {
+        ServerResponseCaptureFilter filter = newFilter(false)
+        receiveResponse(filter, null, "response contents".getBytes(StandardCharsets.UTF_8))
+
+        String contents = null
+        assertTrue(filter.withFullResponseContentBuffer({ BoundedContentBuffer buffer ->
+            contents = new String(buffer.toByteArray(), StandardCharsets.UTF_8)
+        }))
+        assertEquals("response contents", contents)
+
+        filter.releaseCapturedContents()
+    }
+
+    @Test
+    void testWithFullResponseContentBufferSkipsReleasedContents() {
+        ServerResponseCaptureFilter filter = newFilter(false)
+        receiveResponse(filter, null, "response contents".getBytes(StandardCharsets.UTF_8))
+
+        // as when the client disconnects before the HAR capture filter reads the contents
+        filter.releaseCapturedContents()
+
+        boolean invoked = false
+        assertFalse(filter.withFullResponseContentBuffer({ BoundedContentBuffer buffer -> invoked = true }))
+        assertFalse(invoked)
+    }
+
+    @Test
+    void testRawContentsAreKeptAfterDecompression() {
+        byte[] compressed = gzip("decompressed contents")
+
+        ServerResponseCaptureFilter filter = newFilter(true)
+        receiveResponse(filter, "gzip", compressed)
+
+        assertTrue(filter.isDecompressionSuccessful())
+        assertEquals("decompressed contents", new String(filter.getFullResponseContents(), StandardCharsets.UTF_8))
+        assertArrayEquals("Expected the raw contents to be available after decompression", compressed, filter.getRawResponseContents())
+
+        filter.releaseCapturedContents()
+    }
+
+    private static byte[] gzip(String contents) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+        new GZIPOutputStream(bytes).withCloseable { it.write(contents.getBytes(StandardCharsets.UTF_8)) }
+        return bytes.toByteArray()
+    }
+
+    private static ServerResponseCaptureFilter newFilter(boolean decompress) {
+        return new ServerResponseCaptureFilter(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/"), decompress)
+    }
+
+    private static void receiveResponse(ServerResponseCaptureFilter filter, String contentEncoding, byte[] contents) {
+        DefaultHttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK)
+        if (contentEncoding != null) {
+            response.headers().set("Content-Encoding", contentEncoding)
+        }
+
+        filter.serverToProxyResponse(response)
+
+        DefaultLastHttpContent lastContent = new DefaultLastHttpContent(Unpooled.wrappedBuffer(contents))
+        filter.serverToProxyResponse(lastContent)
+        lastContent.release()
+    }
+}
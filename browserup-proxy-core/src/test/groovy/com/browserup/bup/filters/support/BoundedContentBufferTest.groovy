@@ -0,0 +1,83 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support
+
+import com.browserup.bup.proxy.ContentOverflowPolicy
+import io.netty.buffer.Unpooled
+import org.junit.Test
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+
+import static org.junit.Assert.assertArrayEquals
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertFalse
+import static org.junit.Assert.assertNotNull
+import static org.junit.Assert.assertTrue
+
+class BoundedContentBufferTest {
+    @Test
+    void testUnlimitedBufferCapturesAllChunks() {
+        BoundedContentBuffer buffer = new BoundedContentBuffer()
+
+        buffer.write(Unpooled.copiedBuffer("hello ", StandardCharsets.UTF_8))
+        buffer.write(Unpooled.EMPTY_BUFFER)
+        buffer.write(Unpooled.copiedBuffer("world", StandardCharsets.UTF_8))
+
+        assertEquals("hello world", new String(buffer.toByteArray(), StandardCharsets.UTF_8))
+        assertEquals(11L, buffer.size())
+        assertFalse(buffer.isTruncated())
+        assertFalse(buffer.isSpilledToDisk())
+    }
+
+    @Test
+    void testWriteDoesNotConsumeSourceBuffer() {
+        BoundedContentBuffer buffer = new BoundedContentBuffer()
+        def chunk = Unpooled.copiedBuffer("content", StandardCharsets.UTF_8)
+
+        buffer.write(chunk)
+
+        assertEquals(7, chunk.readableBytes())
+    }
+
+    @Test
+    void testTruncateKeepsContentUpToLimit() {
+        BoundedContentBuffer buffer = new BoundedContentBuffer(8, ContentOverflowPolicy.TRUNCATE)
+
+        buffer.write(Unpooled.copiedBuffer("12345", StandardCharsets.UTF_8))
+        buffer.write(Unpooled.copiedBuffer("67890", StandardCharsets.UTF_8))
+        buffer.write(Unpooled.copiedBuffer("abc", StandardCharsets.UTF_8))
+
+        assertEquals("12345678", new String(buffer.toByteArray(), StandardCharsets.UTF_8))
+        assertEquals(8L, buffer.size())
+        assertEquals(13L, buffer.getTotalBytesWritten())
+        assertTrue(buffer.isTruncated())
+    }
+
+    @Test
+    void testSpillToDiskCapturesFullContent() {
+        BoundedContentBuffer buffer = new BoundedContentBuffer(8, ContentOverflowPolicy.SPILL_TO_DISK)
+
+        buffer.write(Unpooled.copiedBuffer("12345", StandardCharsets.UTF_8))
+        buffer.write(Unpooled.copiedBuffer("67890", StandardCharsets.UTF_8))
+        buffer.write(Unpooled.copiedBuffer("abc", StandardCharsets.UTF_8))
+
+        assertTrue(buffer.isSpilledToDisk())
+        assertFalse(buffer.isTruncated())
+        assertEquals(13L, buffer.size())
+
+        Path spillFile = buffer.getSpillFile()
+        assertNotNull(spillFile)
+        assertTrue(Files.exists(spillFile))
+
+        assertArrayEquals("1234567890abc".getBytes(StandardCharsets.UTF_8), buffer.toByteArray())
+        assertEquals("1234567890abc", buffer.openStream().withCloseable { it.getText("UTF-8") })
+
+        buffer.release()
+
+        assertFalse("Expected spill file to be deleted when the buffer is released", Files.exists(spillFile))
+    }
+}
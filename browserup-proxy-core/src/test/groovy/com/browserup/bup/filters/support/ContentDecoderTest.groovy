@@ -0,0 +1,152 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support
+
+import com.browserup.bup.exception.DecompressionException
+import com.browserup.bup.proxy.ContentOverflowPolicy
+import io.netty.buffer.Unpooled
+import org.junit.Test
+
+import java.nio.charset.StandardCharsets
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.GZIPOutputStream
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertNull
+import static org.junit.Assert.assertTrue
+
+class ContentDecoderTest {
+    private static final String CONTENT = ("The quick brown fox jumps over the lazy dog. " * 2000)
+
+    @Test
+    void testDecodeGzipInSingleChunk() {
+        assertEquals(CONTENT, decodeInChunks("gzip", gzip(CONTENT), Integer.MAX_VALUE))
+    }
+
+    @Test
+    void testDecodeGzipSplitAcrossChunks() {
+        byte[] compressed = gzip(CONTENT)
+
+        // splitting into single bytes also splits the gzip header and trailer across chunks
+        assertEquals(CONTENT, decodeInChunks("gzip", compressed, 1))
+        assertEquals(CONTENT, decodeInChunks("gzip", compressed, 7))
+        assertEquals(CONTENT, decodeInChunks("x-gzip", compressed, 1000))
+    }
+
+    @Test
+    void testDecodeMultiMemberGzip() {
+        byte[] firstMember = gzip("first member. ")
+        byte[] secondMember = gzip("second member.")
+
+        byte[] compressed = new byte[firstMember.length + secondMember.length]
+        System.arraycopy(firstMember, 0, compressed, 0, firstMember.length)
+        System.arraycopy(secondMember, 0, compressed, firstMember.length, secondMember.length)
+
+        assertEquals("first member. second member.", decodeInChunks("gzip", compressed, 5))
+    }
+
+    @Test
+    void testTrailingBytesAfterGzipMemberAreIgnored() {
+        byte[] member = gzip(CONTENT)
+
+        // zero padding after the member
+        byte[] padded = Arrays.copyOf(member, member.length + 16)
+        assertEquals(CONTENT, decodeInChunks("gzip", padded, 1))
+        assertEquals(CONTENT, decodeInChunks("gzip", padded, 100))
+
+        // a partial gzip header after the member
+        byte[] partialHeader = Arrays.copyOf(member, member.length + 2)
+        partialHeader[member.length] = (byte) 0x1f
+        partialHeader[member.length + 1] = (byte) 0x8b
+        assertEquals(CONTENT, decodeInChunks("gzip", partialHeader, 100))
+    }
+
+    @Test
+    void testDecodeZlibDeflate() {
+        assertEquals(CONTENT, decodeInChunks("deflate", deflate(CONTENT, false), 3))
+    }
+
+    @Test
+    void testDecodeRawDeflate() {
+        assertEquals(CONTENT, decodeInChunks("deflate", deflate(CONTENT, true), 3))
+    }
+
+    @Test(expected = DecompressionException)
+    void testTruncatedGzipFailsOnFinish() {
+        byte[] compressed = gzip(CONTENT)
+
+        decodeInChunks("gzip", Arrays.copyOf(compressed, compressed.length - 4), 100)
+    }
+
+    @Test(expected = DecompressionException)
+    void testCorruptGzipFails() {
+        byte[] compressed = gzip(CONTENT)
+        // corrupt the CRC in the trailer
+        compressed[compressed.length - 8] = (byte) (compressed[compressed.length - 8] ^ 0xff)
+
+        decodeInChunks("gzip", compressed, 100)
+    }
+
+    @Test(expected = DecompressionException)
+    void testNonGzipContentFails() {
+        decodeInChunks("gzip", "not gzipped".getBytes(StandardCharsets.UTF_8), 100)
+    }
+
+    @Test
+    void testDecodingStopsWhenDecodedContentIsTruncated() {
+        BoundedContentBuffer decoded = new BoundedContentBuffer(100, ContentOverflowPolicy.TRUNCATE)
+
+        ContentDecoder decoder = ContentDecoder.forContentEncoding("gzip")
+        decoder.withCloseable {
+            decoder.decode(Unpooled.wrappedBuffer(gzip(CONTENT)), decoded)
+            decoder.finish(decoded)
+        }
+
+        assertTrue(decoded.isTruncated())
+        assertEquals(CONTENT.substring(0, 100), new String(decoded.toByteArray(), StandardCharsets.UTF_8))
+    }
+
+    @Test
+    void testUnsupportedEncodingReturnsNull() {
+        assertNull(ContentDecoder.forContentEncoding("compress"))
+        assertNull(ContentDecoder.forContentEncoding(null))
+    }
+
+    private static String decodeInChunks(String contentEncoding, byte[] compressed, int chunkSize) {
+        BoundedContentBuffer decoded = new BoundedContentBuffer()
+
+        ContentDecoder decoder = ContentDecoder.forContentEncoding(contentEncoding)
+        decoder.withCloseable {
+            for (int offset = 0; offset < compressed.length; offset += chunkSize) {
+                int length = Math.min(chunkSize, compressed.length - offset)
+                // use direct buffers to exercise the non-array code path
+                decoder.decode(Unpooled.directBuffer(length).writeBytes(compressed, offset, length), decoded)
+            }
+
+            decoder.finish(decoded)
+        }
+
+        return new String(decoded.toByteArray(), StandardCharsets.UTF_8)
+    }
+
+    private static byte[] gzip(String content) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream()
+        new GZIPOutputStream(compressed).withCloseable {
+            it.write(content.getBytes(StandardCharsets.UTF_8))
+        }
+
+        return compressed.toByteArray()
+    }
+
+    private static byte[] deflate(String content, boolean nowrap) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream()
+        new DeflaterOutputStream(compressed, new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap)).withCloseable {
+            it.write(content.getBytes(StandardCharsets.UTF_8))
+        }
+
+        return compressed.toByteArray()
+    }
+}
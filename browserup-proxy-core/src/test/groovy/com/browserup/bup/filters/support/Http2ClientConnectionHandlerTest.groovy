@@ -0,0 +1,187 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support
+
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.handler.codec.http.DefaultFullHttpRequest
+import io.netty.handler.codec.http.DefaultFullHttpResponse
+import io.netty.handler.codec.http.FullHttpRequest
+import io.netty.handler.codec.http.FullHttpResponse
+import io.netty.handler.codec.http.HttpHeaderNames
+import io.netty.handler.codec.http.HttpMethod
+import io.netty.handler.codec.http.HttpRequestDecoder
+import io.netty.handler.codec.http.HttpResponseEncoder
+import io.netty.handler.codec.http.HttpResponseStatus
+import io.netty.handler.codec.http.HttpUtil
+import io.netty.handler.codec.http.HttpVersion
+import io.netty.handler.codec.http2.Http2Error
+import io.netty.handler.codec.http2.HttpConversionUtil
+import io.netty.handler.codec.http2.HttpToHttp2ConnectionHandler
+import io.netty.handler.ssl.SslHandshakeCompletionEvent
+import io.netty.util.AttributeKey
+import org.junit.Test
+
+import java.util.concurrent.TimeUnit
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertFalse
+import static org.junit.Assert.assertNotNull
+import static org.junit.Assert.assertNull
+import static org.junit.Assert.assertTrue
+import static org.mockito.ArgumentMatchers.any
+import static org.mockito.ArgumentMatchers.anyInt
+import static org.mockito.ArgumentMatchers.anyLong
+import static org.mockito.ArgumentMatchers.eq
+import static org.mockito.Mockito.mock
+import static org.mockito.Mockito.never
+import static org.mockito.Mockito.verify
+
+class Http2ClientConnectionHandlerTest {
+    @Test
+    void testHandlerIsAddedBeforeHttpCodec() {
+        EmbeddedChannel channel = new EmbeddedChannel()
+        channel.pipeline().addLast("encoder", new HttpResponseEncoder())
+        channel.pipeline().addLast("decoder", new HttpRequestDecoder())
+
+        Http2ClientConnectionHandler.addTo(channel.pipeline())
+        Http2ClientConnectionHandler.addTo(channel.pipeline())
+
+        List<String> names = channel.pipeline().names()
+        assertEquals(1, names.count { it == Http2ClientConnectionHandler.HANDLER_NAME })
+        assertEquals(names.indexOf("encoder") - 1, names.indexOf(Http2ClientConnectionHandler.HANDLER_NAME))
+    }
+
+    @Test
+    void testHttp1ConnectionIsUnchangedAfterHandshake() {
+        EmbeddedChannel channel = new EmbeddedChannel()
+        channel.pipeline().addLast("encoder", new HttpResponseEncoder())
+        channel.pipeline().addLast("decoder", new HttpRequestDecoder())
+        Http2ClientConnectionHandler.addTo(channel.pipeline())
+
+        // no ALPN protocol was negotiated, since there is no SslHandler
+        channel.pipeline().fireUserEventTriggered(SslHandshakeCompletionEvent.SUCCESS)
+
+        assertNull(channel.pipeline().get(Http2ClientConnectionHandler))
+        assertNotNull(channel.pipeline().get(HttpResponseEncoder))
+        assertNotNull(channel.pipeline().get(HttpRequestDecoder))
+        assertNull(channel.attr(AttributeKey.valueOf(Http2ClientConnectionHandler.HTTP2_ATTRIBUTE_NAME)).get())
+    }
+
+    @Test
+    void testHandlerIsNotAddedWithoutHttpCodec() {
+        EmbeddedChannel channel = new EmbeddedChannel()
+
+        Http2ClientConnectionHandler.addTo(channel.pipeline())
+
+        assertNull(channel.pipeline().get(Http2ClientConnectionHandler))
+    }
+
+    @Test
+    void testResponsesAreWrittenToStreamOfCurrentRequest() {
+        EmbeddedChannel channel = new EmbeddedChannel(new Http2ClientConnectionHandler.StreamSequencer(mock(HttpToHttp2ConnectionHandler)))
+
+        channel.writeInbound(newStreamRequest(3, "/first"), newStreamRequest(5, "/second"))
+
+        // the second request waits until the proxy has written the response to the first
+        FullHttpRequest first = channel.readInbound()
+        assertEquals("/first", first.uri())
+        assertFalse("Expected the HTTP/2 extension headers to be removed", first.headers().contains(streamIdHeader()))
+        assertNull(channel.readInbound())
+
+        channel.writeOutbound(newResponse())
+        FullHttpResponse firstResponse = channel.readOutbound()
+        assertEquals(3, firstResponse.headers().getInt(streamIdHeader()))
+
+        channel.runPendingTasks()
+
+        FullHttpRequest second = channel.readInbound()
+        assertEquals("/second", second.uri())
+
+        channel.writeOutbound(newResponse())
+        FullHttpResponse secondResponse = channel.readOutbound()
+        assertEquals(5, secondResponse.headers().getInt(streamIdHeader()))
+
+        [first, second, firstResponse, secondResponse]*.release()
+        channel.finishAndReleaseAll()
+    }
+
+    @Test
+    void testRecordsTimeRequestWaitedForOtherStreams() {
+        EmbeddedChannel channel = new EmbeddedChannel(new Http2ClientConnectionHandler.StreamSequencer(mock(HttpToHttp2ConnectionHandler)))
+
+        channel.writeInbound(newStreamRequest(3, "/first"))
+        assertTrue("Expected no wait for a request on an idle connection",
+                TimeUnit.NANOSECONDS.toMillis(Http2ClientConnectionHandler.getStreamQueueTime(channel)) < 20L)
+
+        channel.writeInbound(newStreamRequest(5, "/second"))
+        Thread.sleep(50)
+
+        channel.writeOutbound(newResponse())
+        channel.runPendingTasks()
+
+        assertTrue("Expected the second request's wait for the first response to be recorded",
+                TimeUnit.NANOSECONDS.toMillis(Http2ClientConnectionHandler.getStreamQueueTime(channel)) >= 50L)
+
+        channel.finishAndReleaseAll()
+    }
+
+    @Test
+    void testRefusesStreamsBeyondMaxConcurrentStreams() {
+        HttpToHttp2ConnectionHandler http2Handler = mock(HttpToHttp2ConnectionHandler)
+        EmbeddedChannel channel = new EmbeddedChannel(new Http2ClientConnectionHandler.StreamSequencer(http2Handler))
+
+        // one request is passed to the proxy, and MAX_CONCURRENT_STREAMS requests wait for it
+        int streamId = 1
+        (Http2ClientConnectionHandler.MAX_CONCURRENT_STREAMS + 1).times {
+            channel.writeInbound(newStreamRequest(streamId, "/stream/" + streamId))
+            streamId += 2
+        }
+        verify(http2Handler, never()).resetStream(any(), anyInt(), anyLong(), any())
+
+        FullHttpRequest refused = newStreamRequest(streamId, "/refused")
+        channel.writeInbound(refused)
+
+        verify(http2Handler).resetStream(any(), eq(streamId), eq(Http2Error.REFUSED_STREAM.code()), any())
+        assertEquals("Expected the refused request to be released", 0, refused.refCnt())
+
+        channel.finishAndReleaseAll()
+    }
+
+    @Test
+    void testRequestsArePassedToProxyAsKeepAlive() {
+        EmbeddedChannel channel = new EmbeddedChannel(new Http2ClientConnectionHandler.StreamSequencer(mock(HttpToHttp2ConnectionHandler)))
+
+        FullHttpRequest request = newStreamRequest(3, "/close")
+        request.headers().set(HttpHeaderNames.CONNECTION, "close")
+        request.headers().set(HttpHeaderNames.KEEP_ALIVE, "timeout=5")
+        request.headers().set(HttpHeaderNames.PROXY_CONNECTION, "close")
+        channel.writeInbound(request)
+
+        FullHttpRequest proxyRequest = channel.readInbound()
+        assertTrue(HttpUtil.isKeepAlive(proxyRequest))
+        assertFalse(proxyRequest.headers().contains(HttpHeaderNames.KEEP_ALIVE))
+        assertFalse(proxyRequest.headers().contains(HttpHeaderNames.PROXY_CONNECTION))
+
+        proxyRequest.release()
+        channel.finishAndReleaseAll()
+    }
+
+    private static FullHttpRequest newStreamRequest(int streamId, String uri) {
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri)
+        request.headers().set(HttpHeaderNames.HOST, "www.example.test")
+        request.headers().setInt(streamIdHeader(), streamId)
+        return request
+    }
+
+    private static FullHttpResponse newResponse() {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK)
+        HttpUtil.setContentLength(response, 0)
+        return response
+    }
+
+    private static CharSequence streamIdHeader() {
+        return HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text()
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support
+
+import io.netty.bootstrap.Bootstrap
+import io.netty.bootstrap.ServerBootstrap
+import io.netty.buffer.Unpooled
+import io.netty.channel.Channel
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInboundHandlerAdapter
+import io.netty.channel.ChannelInitializer
+import io.netty.channel.DefaultEventLoopGroup
+import io.netty.channel.EventLoopGroup
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.channel.local.LocalAddress
+import io.netty.channel.local.LocalChannel
+import io.netty.channel.local.LocalServerChannel
+import io.netty.handler.codec.http.DefaultFullHttpRequest
+import io.netty.handler.codec.http.FullHttpRequest
+import io.netty.handler.codec.http.FullHttpResponse
+import io.netty.handler.codec.http.HttpContent
+import io.netty.handler.codec.http.HttpHeaderNames
+import io.netty.handler.codec.http.HttpMethod
+import io.netty.handler.codec.http.HttpRequestEncoder
+import io.netty.handler.codec.http.HttpResponse
+import io.netty.handler.codec.http.HttpResponseDecoder
+import io.netty.handler.codec.http.HttpUtil
+import io.netty.handler.codec.http.HttpVersion
+import io.netty.handler.codec.http.LastHttpContent
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame
+import io.netty.handler.codec.http2.DefaultHttp2GoAwayFrame
+import io.netty.handler.codec.http2.DefaultHttp2Headers
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame
+import io.netty.handler.codec.http2.DefaultHttp2ResetFrame
+import io.netty.handler.codec.http2.Http2DataFrame
+import io.netty.handler.codec.http2.Http2Error
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder
+import io.netty.handler.codec.http2.Http2FrameStream
+import io.netty.handler.codec.http2.Http2Headers
+import io.netty.handler.codec.http2.Http2HeadersFrame
+import io.netty.util.ReferenceCountUtil
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertFalse
+import static org.junit.Assert.assertNotNull
+import static org.junit.Assert.assertNull
+import static org.junit.Assert.assertTrue
+
+class Http2UpstreamConnectionHandlerTest {
+    private final BlockingQueue<Http2Headers> serverRequests = new LinkedBlockingQueue<>()
+    private final BlockingQueue<Object> proxyMessages = new LinkedBlockingQueue<>()
+    private final BlockingQueue<Throwable> proxyExceptions = new LinkedBlockingQueue<>()
+
+    /**
+     * Responds to each request the server receives, once the request's stream has ended. Set by each test.
+     */
+    private volatile Closure responder
+
+    /**
+     * The server's end of the connection.
+     */
+    private volatile Channel stubServerChannel
+
+    private EventLoopGroup eventLoopGroup
+    private Channel serverChannel
+    private Channel proxyChannel
+
+    @Before
+    void setUp() {
+        eventLoopGroup = new DefaultEventLoopGroup(1)
+
+        LocalAddress address = new LocalAddress("http2-upstream-connection-handler-test")
+        serverChannel = new ServerBootstrap()
+                .group(eventLoopGroup)
+                .channel(LocalServerChannel)
+                .childHandler(new ChannelInitializer<LocalChannel>() {
+                    @Override
+                    protected void initChannel(LocalChannel ch) {
+                        ch.pipeline().addLast(Http2FrameCodecBuilder.forServer().build())
+                        ch.pipeline().addLast(new StubServerHandler())
+                    }
+                })
+                .bind(address)
+                .sync()
+                .channel()
+
+        // stands in for a proxy-to-server channel after switchToHttp2IfNegotiated() replaced the HTTP/1.1 codec
+        proxyChannel = new Bootstrap()
+                .group(eventLoopGroup)
+                .channel(LocalChannel)
+                .handler(new ChannelInitializer<LocalChannel>() {
+                    @Override
+                    protected void initChannel(LocalChannel ch) {
+                        ch.pipeline().addLast(Http2FrameCodecBuilder.forClient().build())
+                        ch.pipeline().addLast(Http2UpstreamConnectionHandler.HANDLER_NAME, new Http2UpstreamConnectionHandler())
+                        ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                            @Override
+                            void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                proxyMessages.add(msg)
+                            }
+
+                            @Override
+                            void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                                proxyExceptions.add(cause)
+                            }
+                        })
+                    }
+                })
+                .connect(address)
+                .sync()
+                .channel()
+    }
+
+    @After
+    void tearDown() {
+        proxyChannel?.close()?.awaitUninterruptibly()
+        serverChannel?.close()?.awaitUninterruptibly()
+        eventLoopGroup?.shutdownGracefully(0, 1, TimeUnit.SECONDS)
+
+        proxyMessages.each { ReferenceCountUtil.release(it) }
+    }
+
+    @Test
+    void testUnencryptedConnectionIsUnchanged() {
+        EmbeddedChannel channel = new EmbeddedChannel()
+        channel.pipeline().addLast("encoder", new HttpRequestEncoder())
+        channel.pipeline().addLast("decoder", new HttpResponseDecoder())
+
+        // no ALPN protocol was negotiated, since there is no SslHandler
+        assertFalse(Http2UpstreamConnectionHandler.switchToHttp2IfNegotiated(channel.pipeline()))
+
+        assertNull(channel.pipeline().get(Http2UpstreamConnectionHandler))
+        assertNotNull(channel.pipeline().get(HttpRequestEncoder))
+        assertNotNull(channel.pipeline().get(HttpResponseDecoder))
+        assertTrue(channel.isOpen())
+    }
+
+    @Test
+    void testTranslatesRequestAndResponseWithContent() {
+        responder = { ChannelHandlerContext ctx, Http2FrameStream stream ->
+            ctx.write(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status("200").set("content-length", "5")).stream(stream))
+            ctx.writeAndFlush(new DefaultHttp2DataFrame(Unpooled.copiedBuffer("hello", StandardCharsets.UTF_8), true).stream(stream))
+        }
+
+        proxyChannel.writeAndFlush(newRequest(HttpMethod.GET, "/path?query=1"))
+
+        Http2Headers requestHeaders = serverRequests.poll(5, TimeUnit.SECONDS)
+        assertEquals("GET", requestHeaders.method().toString())
+        assertEquals("/path?query=1", requestHeaders.path().toString())
+        assertEquals("https", requestHeaders.scheme().toString())
+        assertEquals("www.example.test", requestHeaders.authority().toString())
+
+        HttpResponse response = nextMessage(HttpResponse)
+        assertEquals(200, response.status().code())
+        assertEquals("5", response.headers().get(HttpHeaderNames.CONTENT_LENGTH))
+        assertFalse("Expected HTTP/2 extension headers to be removed", response.headers().contains("x-http2-stream-id"))
+
+        assertEquals("hello", readContent())
+        assertTrue(proxyChannel.isOpen())
+    }
+
+    @Test
+    void testResponseWithoutContentLengthIsChunked() {
+        responder = { ChannelHandlerContext ctx, Http2FrameStream stream ->
+            ctx.write(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status("200")).stream(stream))
+            ctx.write(new DefaultHttp2DataFrame(Unpooled.copiedBuffer("hello ", StandardCharsets.UTF_8), false).stream(stream))
+            ctx.writeAndFlush(new DefaultHttp2DataFrame(Unpooled.copiedBuffer("world", StandardCharsets.UTF_8), true).stream(stream))
+        }
+
+        proxyChannel.writeAndFlush(newRequest(HttpMethod.GET, "/chunked"))
+
+        HttpResponse response = nextMessage(HttpResponse)
+        assertTrue(HttpUtil.isTransferEncodingChunked(response))
+        assertEquals("hello world", readContent())
+    }
+
+    @Test
+    void testResponseWithoutContentHasZeroContentLength() {
+        responder = { ChannelHandlerContext ctx, Http2FrameStream stream ->
+            ctx.writeAndFlush(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status("200"), true).stream(stream))
+        }
+
+        proxyChannel.writeAndFlush(newRequest(HttpMethod.GET, "/empty"))
+
+        HttpResponse response = nextMessage(HttpResponse)
+        assertEquals(0L, HttpUtil.getContentLength(response))
+        assertEquals(LastHttpContent.EMPTY_LAST_CONTENT, nextMessage(LastHttpContent))
+    }
+
+    @Test
+    void testHeadResponseKeepsContentLength() {
+        responder = { ChannelHandlerContext ctx, Http2FrameStream stream ->
+            ctx.writeAndFlush(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status("200").set("content-length", "1234"), true).stream(stream))
+        }
+
+        proxyChannel.writeAndFlush(newRequest(HttpMethod.HEAD, "/head"))
+
+        HttpResponse response = nextMessage(HttpResponse)
+        assertEquals("Expected the HEAD response to keep the length of the content it describes", 1234L, HttpUtil.getContentLength(response))
+        assertEquals(LastHttpContent.EMPTY_LAST_CONTENT, nextMessage(LastHttpContent))
+    }
+
+    @Test
+    void testNoContentAndNotModifiedResponsesHaveNoContentLength() {
+        [204, 304].each { status ->
+            responder = { ChannelHandlerContext ctx, Http2FrameStream stream ->
+                ctx.writeAndFlush(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status(String.valueOf(status)), true).stream(stream))
+            }
+
+            proxyChannel.writeAndFlush(newRequest(HttpMethod.GET, "/status/" + status))
+
+            HttpResponse response = nextMessage(HttpResponse)
+            assertEquals(status, response.status().code())
+            assertFalse(response.headers().contains(HttpHeaderNames.CONTENT_LENGTH))
+            assertEquals(LastHttpContent.EMPTY_LAST_CONTENT, nextMessage(LastHttpContent))
+        }
+    }
+
+    @Test
+    void testInterimResponsePrecedesFinalResponse() {
+        responder = { ChannelHandlerContext ctx, Http2FrameStream stream ->
+            ctx.write(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status("103").set("link", "</style.css>; rel=preload")).stream(stream))
+            ctx.writeAndFlush(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status("204"), true).stream(stream))
+        }
+
+        proxyChannel.writeAndFlush(newRequest(HttpMethod.GET, "/interim"))
+
+        FullHttpResponse interimResponse = nextMessage(FullHttpResponse)
+        assertEquals(103, interimResponse.status().code())
+        assertEquals("</style.css>; rel=preload", interimResponse.headers().get("link"))
+        assertEquals(0, interimResponse.content().readableBytes())
+
+        HttpResponse response = nextMessage(HttpResponse)
+        assertEquals(204, response.status().code())
+        assertEquals(LastHttpContent.EMPTY_LAST_CONTENT, nextMessage(LastHttpContent))
+    }
+
+    @Test
+    void testTrailersArePassedInLastContent() {
+        responder = { ChannelHandlerContext ctx, Http2FrameStream stream ->
+            ctx.write(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status("200")).stream(stream))
+            ctx.write(new DefaultHttp2DataFrame(Unpooled.copiedBuffer("body", StandardCharsets.UTF_8), false).stream(stream))
+            ctx.writeAndFlush(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().set("x-checksum", "abc"), true).stream(stream))
+        }
+
+        proxyChannel.writeAndFlush(newRequest(HttpMethod.GET, "/trailers"))
+
+        nextMessage(HttpResponse)
+
+        HttpContent content = nextMessage(HttpContent)
+        assertFalse(content instanceof LastHttpContent)
+        assertEquals("body", content.content().toString(StandardCharsets.UTF_8))
+        content.release()
+
+        LastHttpContent trailers = nextMessage(LastHttpContent)
+        assertEquals("abc", trailers.trailingHeaders().get("x-checksum"))
+        trailers.release()
+    }
+
+    @Test
+    void testResetStreamIsReportedAsException() {
+        responder = { ChannelHandlerContext ctx, Http2FrameStream stream ->
+            ctx.writeAndFlush(new DefaultHttp2ResetFrame(Http2Error.INTERNAL_ERROR).stream(stream))
+        }
+
+        proxyChannel.writeAndFlush(newRequest(HttpMethod.GET, "/reset"))
+
+        Throwable cause = proxyExceptions.poll(5, TimeUnit.SECONDS)
+        assertTrue(cause instanceof IOException)
+        assertTrue(cause.getMessage().contains(String.valueOf(Http2Error.INTERNAL_ERROR.code())))
+    }
+
+    @Test
+    void testReturnsFlowControlWindowForLargeResponse() {
+        // larger than the default 64 KiB stream and connection windows, so the server can only send it all if the
+        // handler returns the window as the content is read
+        int contentLength = 256 * 1024
+        int frameSize = 16 * 1024
+
+        responder = { ChannelHandlerContext ctx, Http2FrameStream stream ->
+            ctx.write(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status("200").set("content-length", String.valueOf(contentLength))).stream(stream))
+            for (int written = 0; written < contentLength; written += frameSize) {
+                ctx.write(new DefaultHttp2DataFrame(Unpooled.wrappedBuffer(new byte[frameSize]), written + frameSize >= contentLength).stream(stream))
+            }
+            ctx.flush()
+        }
+
+        proxyChannel.writeAndFlush(newRequest(HttpMethod.GET, "/large"))
+
+        nextMessage(HttpResponse)
+
+        long received = 0
+        HttpContent content
+        while (true) {
+            content = nextMessage(HttpContent)
+            received += content.content().readableBytes()
+            content.release()
+
+            if (content instanceof LastHttpContent) {
+                break
+            }
+        }
+
+        assertEquals(contentLength, received)
+    }
+
+    @Test
+    void testClosesIdleConnectionOnGoAway() {
+        responder = { ChannelHandlerContext ctx, Http2FrameStream stream ->
+            ctx.writeAndFlush(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status("204"), true).stream(stream))
+        }
+
+        proxyChannel.writeAndFlush(newRequest(HttpMethod.GET, "/first"))
+        nextMessage(HttpResponse)
+        nextMessage(LastHttpContent)
+        assertTrue(proxyChannel.isOpen())
+
+        stubServerChannel.writeAndFlush(new DefaultHttp2GoAwayFrame(Http2Error.NO_ERROR))
+
+        assertTrue("Expected the idle connection to close after GOAWAY", proxyChannel.closeFuture().await(5, TimeUnit.SECONDS))
+    }
+
+    @Test
+    void testClosesConnectionAfterActiveStreamCompletesOnGoAway() {
+        responder = { ChannelHandlerContext ctx, Http2FrameStream stream ->
+            // the GOAWAY covers the active stream, so the response is still delivered
+            ctx.writeAndFlush(new DefaultHttp2GoAwayFrame(Http2Error.NO_ERROR))
+            ctx.write(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status("200").set("content-length", "4")).stream(stream))
+            ctx.writeAndFlush(new DefaultHttp2DataFrame(Unpooled.copiedBuffer("done", StandardCharsets.UTF_8), true).stream(stream))
+        }
+
+        proxyChannel.writeAndFlush(newRequest(HttpMethod.GET, "/goaway"))
+
+        nextMessage(HttpResponse)
+        assertEquals("done", readContent())
+
+        assertTrue("Expected the connection to close after the active stream completed", proxyChannel.closeFuture().await(5, TimeUnit.SECONDS))
+    }
+
+    private static FullHttpRequest newRequest(HttpMethod method, String uri) {
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, uri)
+        request.headers().set(HttpHeaderNames.HOST, "www.example.test")
+        return request
+    }
+
+    private <T> T nextMessage(Class<T> type) {
+        Object msg = proxyMessages.poll(5, TimeUnit.SECONDS)
+        assertNotNull("Expected the handler to pass a " + type.getSimpleName() + " to the proxy", msg)
+        assertTrue("Expected a " + type.getSimpleName() + " but was " + msg.getClass().getSimpleName(), type.isInstance(msg))
+        return type.cast(msg)
+    }
+
+    /**
+     * Reads the content passed to the proxy up to and including the LastHttpContent.
+     */
+    private String readContent() {
+        StringBuilder contents = new StringBuilder()
+        while (true) {
+            HttpContent content = nextMessage(HttpContent)
+            contents.append(content.content().toString(StandardCharsets.UTF_8))
+            content.release()
+
+            if (content instanceof LastHttpContent) {
+                return contents.toString()
+            }
+        }
+    }
+
+    /**
+     * Stands in for an upstream HTTP/2 server: records the headers of each request, and invokes the responder when the
+     * request's stream ends.
+     */
+    private class StubServerHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        void channelActive(ChannelHandlerContext ctx) {
+            stubServerChannel = ctx.channel()
+            ctx.fireChannelActive()
+        }
+
+        @Override
+        void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof Http2HeadersFrame) {
+                Http2HeadersFrame frame = (Http2HeadersFrame) msg
+                serverRequests.add(frame.headers())
+                if (frame.isEndStream()) {
+                    responder.call(ctx, frame.stream())
+                }
+            } else if (msg instanceof Http2DataFrame) {
+                Http2DataFrame frame = (Http2DataFrame) msg
+                boolean endStream = frame.isEndStream()
+                Http2FrameStream stream = frame.stream()
+                frame.release()
+
+                if (endStream) {
+                    responder.call(ctx, stream)
+                }
+            } else {
+                ReferenceCountUtil.release(msg)
+            }
+        }
+    }
+}
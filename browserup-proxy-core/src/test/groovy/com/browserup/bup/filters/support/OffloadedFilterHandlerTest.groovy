@@ -0,0 +1,379 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support
+
+import com.browserup.bup.filters.RequestFilter
+import com.browserup.bup.filters.ResponseFilter
+import com.browserup.bup.util.HttpMessageContents
+import com.browserup.bup.util.HttpMessageInfo
+import io.netty.bootstrap.Bootstrap
+import io.netty.bootstrap.ServerBootstrap
+import io.netty.buffer.Unpooled
+import io.netty.channel.Channel
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInboundHandlerAdapter
+import io.netty.channel.ChannelInitializer
+import io.netty.channel.DefaultEventLoopGroup
+import io.netty.channel.EventLoopGroup
+import io.netty.channel.local.LocalAddress
+import io.netty.channel.local.LocalChannel
+import io.netty.channel.local.LocalServerChannel
+import io.netty.handler.codec.http.DefaultFullHttpRequest
+import io.netty.handler.codec.http.DefaultFullHttpResponse
+import io.netty.handler.codec.http.FullHttpRequest
+import io.netty.handler.codec.http.FullHttpResponse
+import io.netty.handler.codec.http.HttpHeaderNames
+import io.netty.handler.codec.http.HttpMethod
+import io.netty.handler.codec.http.HttpRequest
+import io.netty.handler.codec.http.HttpResponse
+import io.netty.handler.codec.http.HttpResponseStatus
+import io.netty.handler.codec.http.HttpUtil
+import io.netty.handler.codec.http.HttpVersion
+import io.netty.util.ReferenceCountUtil
+import io.netty.util.concurrent.DefaultEventExecutor
+import io.netty.util.concurrent.EventExecutor
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicBoolean
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertFalse
+import static org.junit.Assert.assertNotNull
+import static org.junit.Assert.assertNull
+import static org.junit.Assert.assertTrue
+
+class OffloadedFilterHandlerTest {
+    private final List<RequestFilter> requestFilters = new CopyOnWriteArrayList<>()
+    private final List<ResponseFilter> responseFilters = new CopyOnWriteArrayList<>()
+
+    private final BlockingQueue<HttpRequest> proxyRequests = new LinkedBlockingQueue<>()
+    private final BlockingQueue<FullHttpResponse> clientResponses = new LinkedBlockingQueue<>()
+
+    private EventLoopGroup eventLoopGroup
+    private FilterExecutor filterExecutor
+    private Channel serverChannel
+    private Channel clientChannel
+
+    @Before
+    void setUp() {
+        eventLoopGroup = new DefaultEventLoopGroup(1)
+        filterExecutor = new FilterExecutor(2, 16, 500, TimeUnit.MILLISECONDS)
+
+        LocalAddress address = new LocalAddress("offloaded-filter-handler-test")
+        serverChannel = new ServerBootstrap()
+                .group(eventLoopGroup)
+                .channel(LocalServerChannel)
+                .childHandler(new ChannelInitializer<LocalChannel>() {
+                    @Override
+                    protected void initChannel(LocalChannel ch) {
+                        ch.pipeline().addLast("handler", new StubProxyHandler())
+                    }
+                })
+                .bind(address)
+                .sync()
+                .channel()
+
+        clientChannel = new Bootstrap()
+                .group(eventLoopGroup)
+                .channel(LocalChannel)
+                .handler(new ChannelInboundHandlerAdapter() {
+                    @Override
+                    void channelRead(ChannelHandlerContext ctx, Object msg) {
+                        clientResponses.add((FullHttpResponse) msg)
+                    }
+                })
+                .connect(address)
+                .sync()
+                .channel()
+    }
+
+    @After
+    void tearDown() {
+        clientChannel?.close()?.awaitUninterruptibly()
+        serverChannel?.close()?.awaitUninterruptibly()
+        eventLoopGroup?.shutdownGracefully(0, 1, TimeUnit.SECONDS)
+        filterExecutor?.shutdown()
+    }
+
+    @Test
+    void testRunsRequestAndResponseFiltersOnFilterExecutor() {
+        List<String> filterThreads = new CopyOnWriteArrayList<>()
+
+        requestFilters.add({ HttpRequest request, HttpMessageContents contents, HttpMessageInfo messageInfo ->
+            filterThreads.add(Thread.currentThread().getName())
+            request.headers().set("X-Filtered", messageInfo.getUrl())
+            return null
+        } as RequestFilter)
+
+        responseFilters.add({ HttpResponse response, HttpMessageContents contents, HttpMessageInfo messageInfo ->
+            filterThreads.add(Thread.currentThread().getName())
+            contents.setTextContents("filtered")
+        } as ResponseFilter)
+
+        clientChannel.writeAndFlush(newRequest("/path"))
+
+        HttpRequest proxyRequest = proxyRequests.poll(5, TimeUnit.SECONDS)
+        assertEquals("Expected the proxy to receive the filtered request", "http://www.example.test/path", proxyRequest.headers().get("X-Filtered"))
+
+        FullHttpResponse response = clientResponses.poll(5, TimeUnit.SECONDS)
+        assertEquals("filtered", response.content().toString(StandardCharsets.UTF_8))
+        ReferenceCountUtil.release(response)
+
+        assertEquals(2, filterThreads.size())
+        assertTrue("Expected filters to run on the filter executor", filterThreads.every { it.startsWith("browserup-filter-") })
+        assertEquals(2, filterExecutor.getFiltersCompleted())
+    }
+
+    @Test
+    void testReturnsShortCircuitResponseToProxy() {
+        requestFilters.add({ HttpRequest request, HttpMessageContents contents, HttpMessageInfo messageInfo ->
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.FORBIDDEN)
+            HttpUtil.setContentLength(response, 0)
+            return response
+        } as RequestFilter)
+
+        clientChannel.writeAndFlush(newRequest("/blocked"))
+
+        FullHttpResponse response = clientResponses.poll(5, TimeUnit.SECONDS)
+        assertEquals(HttpResponseStatus.FORBIDDEN, response.status())
+        ReferenceCountUtil.release(response)
+    }
+
+    @Test
+    void testRespondsWithServiceUnavailableWhenRequestFilterTimesOut() {
+        requestFilters.add({ HttpRequest request, HttpMessageContents contents, HttpMessageInfo messageInfo ->
+            Thread.sleep(5000)
+            return null
+        } as RequestFilter)
+
+        clientChannel.writeAndFlush(newRequest("/slow"))
+
+        FullHttpResponse response = clientResponses.poll(5, TimeUnit.SECONDS)
+        assertNotNull("Expected a response before the filter completed", response)
+        assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, response.status())
+        ReferenceCountUtil.release(response)
+
+        assertEquals(1, filterExecutor.getFiltersTimedOut())
+    }
+
+    @Test
+    void testPassesCopyOfRequestToProxyWhenRequestFilterTimesOut() {
+        CompletableFuture<HttpRequest> filterRequest = new CompletableFuture<>()
+        CountDownLatch filterFinished = new CountDownLatch(1)
+
+        requestFilters.add({ HttpRequest request, HttpMessageContents contents, HttpMessageInfo messageInfo ->
+            filterRequest.complete(request)
+            try {
+                Thread.sleep(5000)
+            } catch (InterruptedException ignored) {
+                // keeps modifying the request after it has timed out
+                request.headers().set("X-Filtered", "late")
+            }
+            filterFinished.countDown()
+            return null
+        } as RequestFilter)
+
+        clientChannel.writeAndFlush(newRequest("/slow"))
+
+        HttpRequest proxyRequest = proxyRequests.poll(5, TimeUnit.SECONDS)
+        assertNotNull("Expected the proxy to receive a request when the filter timed out", proxyRequest)
+        assertFalse("Expected the proxy to receive a copy of the request the filter is using", proxyRequest.is(filterRequest.get()))
+        assertEquals("/slow", proxyRequest.uri())
+        assertEquals("www.example.test", proxyRequest.headers().get(HttpHeaderNames.HOST))
+
+        FullHttpResponse response = clientResponses.poll(5, TimeUnit.SECONDS)
+        assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, response.status())
+        ReferenceCountUtil.release(response)
+
+        assertTrue(filterFinished.await(5, TimeUnit.SECONDS))
+        assertNull(proxyRequest.headers().get("X-Filtered"))
+    }
+
+    @Test
+    void testFiltersPipelinedRequestsInOrder() {
+        requestFilters.add({ HttpRequest request, HttpMessageContents contents, HttpMessageInfo messageInfo ->
+            // the first request takes longer to filter than the second
+            if (request.uri() == "/first") {
+                Thread.sleep(100)
+            }
+            return null
+        } as RequestFilter)
+
+        clientChannel.write(newRequest("/first"))
+        clientChannel.writeAndFlush(newRequest("/second"))
+
+        assertEquals("/first", proxyRequests.poll(5, TimeUnit.SECONDS).uri())
+        assertEquals("/second", proxyRequests.poll(5, TimeUnit.SECONDS).uri())
+
+        2.times { ReferenceCountUtil.release(clientResponses.poll(5, TimeUnit.SECONDS)) }
+    }
+
+    @Test
+    void testRunsFilterOnEventLoopWhenQueueIsFull() {
+        FilterExecutor singleThreadExecutor = new FilterExecutor(1, 1, 5, TimeUnit.SECONDS)
+        EventExecutor eventLoop = new DefaultEventExecutor()
+        CountDownLatch blockFilterThread = new CountDownLatch(1)
+        try {
+            CompletableFuture<String> inlineFilterThread = new CompletableFuture<>()
+            CompletableFuture<String> inlineCallbackThread = new CompletableFuture<>()
+
+            eventLoop.submit({
+                // occupies the only thread, and then the only queue slot
+                singleThreadExecutor.execute({ blockFilterThread.await() }, eventLoop, { result, cause -> })
+                singleThreadExecutor.execute({ null }, eventLoop, { result, cause -> })
+
+                singleThreadExecutor.execute({ Thread.currentThread().getName() }, eventLoop, { String result, Throwable cause ->
+                    inlineFilterThread.complete(result)
+                    inlineCallbackThread.complete(Thread.currentThread().getName())
+                })
+            } as Runnable).sync()
+
+            assertTrue("Expected the callback to be invoked before execute() returned", inlineCallbackThread.isDone())
+            assertEquals(inlineCallbackThread.get(), inlineFilterThread.get())
+            assertEquals(1, singleThreadExecutor.getFiltersRunOnEventLoop())
+            assertEquals(1, singleThreadExecutor.getMaxQueueDepth())
+        } finally {
+            blockFilterThread.countDown()
+            singleThreadExecutor.shutdown()
+            eventLoop.shutdownGracefully(0, 1, TimeUnit.SECONDS)
+        }
+    }
+
+    @Test
+    void testPassesTimeoutToCallbackOnEventLoop() {
+        FilterExecutor timeoutExecutor = new FilterExecutor(1, 1, 50, TimeUnit.MILLISECONDS)
+        EventExecutor eventLoop = new DefaultEventExecutor()
+        try {
+            CompletableFuture<Throwable> callbackCause = new CompletableFuture<>()
+            CompletableFuture<Boolean> callbackInEventLoop = new CompletableFuture<>()
+
+            eventLoop.execute({
+                timeoutExecutor.execute({ Thread.sleep(5000) }, eventLoop, { result, Throwable cause ->
+                    callbackInEventLoop.complete(eventLoop.inEventLoop())
+                    callbackCause.complete(cause)
+                })
+            })
+
+            assertTrue(callbackCause.get(5, TimeUnit.SECONDS) instanceof TimeoutException)
+            assertTrue(callbackInEventLoop.get())
+            assertEquals(1, timeoutExecutor.getFiltersTimedOut())
+        } finally {
+            timeoutExecutor.shutdown()
+            eventLoop.shutdownGracefully(0, 1, TimeUnit.SECONDS)
+        }
+    }
+
+    @Test
+    void testReleasesReferenceWhenFilterTimesOutInQueue() {
+        FilterExecutor timeoutExecutor = new FilterExecutor(1, 1, 100, TimeUnit.MILLISECONDS)
+        EventExecutor eventLoop = new DefaultEventExecutor()
+        CountDownLatch blockFilterThread = new CountDownLatch(1)
+        try {
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/queued",
+                    Unpooled.copiedBuffer("body", StandardCharsets.UTF_8))
+            CompletableFuture<Throwable> callbackCause = new CompletableFuture<>()
+            AtomicBoolean filterRan = new AtomicBoolean()
+
+            eventLoop.submit({
+                // occupies the only thread, so the second filter times out while it waits in the queue
+                timeoutExecutor.execute({ blockFilterThread.await() }, eventLoop, { result, cause -> })
+                timeoutExecutor.execute({ filterRan.set(true) }, { ReferenceCountUtil.release(request) } as Runnable, eventLoop,
+                        { result, Throwable cause -> callbackCause.complete(cause) })
+            } as Runnable).sync()
+
+            assertTrue(callbackCause.get(5, TimeUnit.SECONDS) instanceof TimeoutException)
+            assertEquals("Expected the filter's reference to be released when the filter was discarded", 0, request.refCnt())
+
+            blockFilterThread.countDown()
+            Thread.sleep(100)
+            assertFalse("Expected the timed-out filter not to run", filterRan.get())
+        } finally {
+            blockFilterThread.countDown()
+            timeoutExecutor.shutdown()
+            eventLoop.shutdownGracefully(0, 1, TimeUnit.SECONDS)
+        }
+    }
+
+    @Test
+    void testDiscardsQueuedFiltersOnShutdown() {
+        FilterExecutor shutdownExecutor = new FilterExecutor(1, 1, 5, TimeUnit.SECONDS)
+        EventExecutor eventLoop = new DefaultEventExecutor()
+        CountDownLatch blockFilterThread = new CountDownLatch(1)
+        try {
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/queued",
+                    Unpooled.copiedBuffer("body", StandardCharsets.UTF_8))
+            CompletableFuture<Throwable> callbackCause = new CompletableFuture<>()
+            CompletableFuture<Boolean> callbackInEventLoop = new CompletableFuture<>()
+
+            eventLoop.submit({
+                shutdownExecutor.execute({ blockFilterThread.await() }, eventLoop, { result, cause -> })
+                shutdownExecutor.execute({ null }, { ReferenceCountUtil.release(request) } as Runnable, eventLoop,
+                        { result, Throwable cause ->
+                            callbackInEventLoop.complete(eventLoop.inEventLoop())
+                            callbackCause.complete(cause)
+                        })
+            } as Runnable).sync()
+
+            shutdownExecutor.shutdown()
+
+            assertTrue(callbackCause.get(5, TimeUnit.SECONDS) instanceof CancellationException)
+            assertTrue(callbackInEventLoop.get())
+            assertEquals(0, request.refCnt())
+        } finally {
+            blockFilterThread.countDown()
+            shutdownExecutor.shutdown()
+            eventLoop.shutdownGracefully(0, 1, TimeUnit.SECONDS)
+        }
+    }
+
+    private static FullHttpRequest newRequest(String uri) {
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri)
+        request.headers().set(HttpHeaderNames.HOST, "www.example.test")
+        return request
+    }
+
+    /**
+     * Stands in for the proxy's handler on the client channel: responds to each request with "original" content, or with
+     * the short-circuit response returned by a request filter.
+     */
+    private class StubProxyHandler extends ChannelInboundHandlerAdapter {
+        private OffloadedFilterHandler offloadedFilterHandler
+
+        @Override
+        void handlerAdded(ChannelHandlerContext ctx) {
+            offloadedFilterHandler = OffloadedFilterHandler.getOrAddTo(ctx, requestFilters, responseFilters, filterExecutor)
+        }
+
+        @Override
+        void channelRead(ChannelHandlerContext ctx, Object msg) {
+            FullHttpRequest request = (FullHttpRequest) msg
+            proxyRequests.add(request)
+
+            HttpResponse response = offloadedFilterHandler.isFiltered(request) ? offloadedFilterHandler.takeShortCircuitResponse() : null
+            if (response == null) {
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                        Unpooled.copiedBuffer("original", StandardCharsets.UTF_8))
+                HttpUtil.setContentLength(response, 8)
+
+                offloadedFilterHandler.filterResponse(response, new HttpMessageInfo(request, ctx, false,
+                        "http://www.example.test" + request.uri(), "http://www.example.test" + request.uri()))
+            }
+
+            ReferenceCountUtil.release(request)
+            ctx.channel().writeAndFlush(response)
+        }
+    }
+}
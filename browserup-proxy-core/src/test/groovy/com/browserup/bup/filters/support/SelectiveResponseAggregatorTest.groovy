@@ -0,0 +1,115 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support
+
+import io.netty.buffer.Unpooled
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.handler.codec.http.DefaultFullHttpRequest
+import io.netty.handler.codec.http.DefaultHttpContent
+import io.netty.handler.codec.http.DefaultHttpResponse
+import io.netty.handler.codec.http.DefaultLastHttpContent
+import io.netty.handler.codec.http.FullHttpResponse
+import io.netty.handler.codec.http.HttpContent
+import io.netty.handler.codec.http.HttpHeaderNames
+import io.netty.handler.codec.http.HttpMethod
+import io.netty.handler.codec.http.HttpObjectAggregator
+import io.netty.handler.codec.http.HttpResponse
+import io.netty.handler.codec.http.HttpResponseStatus
+import io.netty.handler.codec.http.HttpVersion
+import io.netty.handler.codec.http.LastHttpContent
+import io.netty.util.ReferenceCountUtil
+import org.junit.Test
+
+import java.nio.charset.StandardCharsets
+import java.util.function.ToIntBiFunction
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertNull
+import static org.junit.Assert.assertTrue
+
+class SelectiveResponseAggregatorTest {
+    private final List<String> requestedUrls = []
+
+    private final ToIntBiFunction<String, HttpResponse> aggregateSelectedUrls = { String url, HttpResponse response ->
+        requestedUrls.add(url)
+        return url.endsWith("/aggregate") ? 1024 : 0
+    } as ToIntBiFunction<String, HttpResponse>
+
+    @Test
+    void testSelectedResponseIsAggregated() {
+        EmbeddedChannel channel = new EmbeddedChannel(new SelectiveResponseAggregator(aggregateSelectedUrls))
+
+        sendRequest(channel, "/aggregate")
+        receiveResponse(channel)
+
+        Object msg = channel.readInbound()
+        assertTrue("Expected the response to be aggregated", msg instanceof FullHttpResponse)
+        assertEquals("firstsecond", ((FullHttpResponse) msg).content().toString(StandardCharsets.UTF_8))
+        assertNull(channel.readInbound())
+        ReferenceCountUtil.release(msg)
+
+        assertEquals(["http://www.example.com/aggregate"], requestedUrls)
+        assertNull("Expected the aggregator to be removed after the response", channel.pipeline().get(HttpObjectAggregator))
+    }
+
+    @Test
+    void testOtherResponsesAreStreamed() {
+        EmbeddedChannel channel = new EmbeddedChannel(new SelectiveResponseAggregator(aggregateSelectedUrls))
+
+        sendRequest(channel, "/stream")
+        receiveResponse(channel)
+
+        Object response = channel.readInbound()
+        assertTrue(response instanceof HttpResponse && !(response instanceof FullHttpResponse))
+
+        HttpContent first = channel.readInbound()
+        assertEquals("first", first.content().toString(StandardCharsets.UTF_8))
+        first.release()
+
+        HttpContent last = channel.readInbound()
+        assertTrue(last instanceof LastHttpContent)
+        last.release()
+
+        assertNull(channel.pipeline().get(HttpObjectAggregator))
+    }
+
+    @Test
+    void testConnectionSwitchesBetweenAggregatedAndStreamedResponses() {
+        EmbeddedChannel channel = new EmbeddedChannel(new SelectiveResponseAggregator(aggregateSelectedUrls))
+
+        sendRequest(channel, "/aggregate")
+        receiveResponse(channel)
+        Object aggregated = channel.readInbound()
+        assertTrue(aggregated instanceof FullHttpResponse)
+        ReferenceCountUtil.release(aggregated)
+
+        sendRequest(channel, "/stream")
+        receiveResponse(channel)
+        Object streamed = channel.readInbound()
+        assertTrue(streamed instanceof HttpResponse && !(streamed instanceof FullHttpResponse))
+
+        Object msg
+        while ((msg = channel.readInbound()) != null) {
+            ReferenceCountUtil.release(msg)
+        }
+    }
+
+    private static void sendRequest(EmbeddedChannel channel, String uri) {
+        def request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri)
+        request.headers().set(HttpHeaderNames.HOST, "www.example.com")
+
+        channel.writeOutbound(request)
+        ReferenceCountUtil.release(channel.readOutbound())
+    }
+
+    private static void receiveResponse(EmbeddedChannel channel) {
+        def response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK)
+        response.headers().set(HttpHeaderNames.TRANSFER_ENCODING, "chunked")
+
+        channel.writeInbound(response,
+                new DefaultHttpContent(Unpooled.copiedBuffer("first", StandardCharsets.UTF_8)),
+                new DefaultLastHttpContent(Unpooled.copiedBuffer("second", StandardCharsets.UTF_8)))
+    }
+}
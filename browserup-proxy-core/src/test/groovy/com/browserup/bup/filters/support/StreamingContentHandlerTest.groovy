@@ -0,0 +1,185 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support
+
+import com.browserup.bup.filters.StreamingContentTransform
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufAllocator
+import io.netty.buffer.Unpooled
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.handler.codec.compression.ZlibCodecFactory
+import io.netty.handler.codec.compression.ZlibWrapper
+import io.netty.handler.codec.http.DefaultFullHttpResponse
+import io.netty.handler.codec.http.DefaultHttpContent
+import io.netty.handler.codec.http.DefaultHttpRequest
+import io.netty.handler.codec.http.DefaultHttpResponse
+import io.netty.handler.codec.http.DefaultLastHttpContent
+import io.netty.handler.codec.http.FullHttpResponse
+import io.netty.handler.codec.http.HttpContent
+import io.netty.handler.codec.http.HttpHeaderNames
+import io.netty.handler.codec.http.HttpHeaders
+import io.netty.handler.codec.http.HttpMethod
+import io.netty.handler.codec.http.HttpResponse
+import io.netty.handler.codec.http.HttpResponseStatus
+import io.netty.handler.codec.http.HttpVersion
+import io.netty.handler.codec.http.LastHttpContent
+import io.netty.util.ReferenceCountUtil
+import org.junit.Test
+
+import java.nio.charset.StandardCharsets
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertTrue
+
+class StreamingContentHandlerTest {
+    @Test
+    void testTransformsResponseContent() {
+        StreamingContentHandler handler = new StreamingContentHandler()
+        EmbeddedChannel channel = new EmbeddedChannel(handler)
+
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK)
+        handler.addResponseTransform(response, new StreamingSearchReplaceTransform("needle", "pin", StandardCharsets.UTF_8))
+
+        channel.writeOutbound(response,
+                new DefaultHttpContent(utf8("hay nee")),
+                new DefaultLastHttpContent(utf8("dle hay")))
+
+        assertEquals(response, channel.readOutbound())
+        assertEquals("hay pin hay", readContent(channel))
+    }
+
+    @Test
+    void testDoesNotTransformOtherResponses() {
+        StreamingContentHandler handler = new StreamingContentHandler()
+        EmbeddedChannel channel = new EmbeddedChannel(handler)
+
+        handler.addResponseTransform(new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK), new StreamingSearchReplaceTransform("needle", "pin", StandardCharsets.UTF_8))
+
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK)
+        channel.writeOutbound(response, new DefaultLastHttpContent(utf8("needle")))
+
+        assertEquals(response, channel.readOutbound())
+        assertEquals("needle", readContent(channel))
+    }
+
+    @Test
+    void testAppliesTransformsInOrder() {
+        StreamingContentHandler handler = new StreamingContentHandler()
+        EmbeddedChannel channel = new EmbeddedChannel(handler)
+
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK)
+        handler.addResponseTransform(response, new StreamingSearchReplaceTransform("a", "b", StandardCharsets.UTF_8))
+        handler.addResponseTransform(response, new StreamingSearchReplaceTransform("bb", "c", StandardCharsets.UTF_8))
+
+        channel.writeOutbound(response, new DefaultHttpContent(utf8("a")), new DefaultLastHttpContent(utf8("b")))
+
+        channel.readOutbound()
+        assertEquals("c", readContent(channel))
+    }
+
+    @Test
+    void testTransformsRequestContentAndTrailers() {
+        StreamingContentHandler handler = new StreamingContentHandler()
+        EmbeddedChannel channel = new EmbeddedChannel(handler)
+
+        channel.writeInbound(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/"))
+        channel.readInbound()
+
+        handler.addRequestTransform(new StreamingContentTransform() {
+            @Override
+            ByteBuf transformContent(ByteBuf chunk, ByteBufAllocator alloc) {
+                return chunk
+            }
+
+            @Override
+            ByteBuf finish(HttpHeaders trailingHeaders, ByteBufAllocator alloc) {
+                trailingHeaders.set("X-Transformed", "true")
+                return Unpooled.copiedBuffer(" end", StandardCharsets.UTF_8)
+            }
+        })
+
+        LastHttpContent lastContent = new DefaultLastHttpContent(utf8("last"))
+        lastContent.trailingHeaders().set("X-Trailer", "value")
+        channel.writeInbound(new DefaultHttpContent(utf8("first ")), lastContent)
+
+        HttpContent first = channel.readInbound()
+        assertEquals("first ", first.content().toString(StandardCharsets.UTF_8))
+        first.release()
+
+        LastHttpContent last = channel.readInbound()
+        assertEquals("last end", last.content().toString(StandardCharsets.UTF_8))
+        assertEquals("value", last.trailingHeaders().get("X-Trailer"))
+        assertEquals("true", last.trailingHeaders().get("X-Transformed"))
+        last.release()
+
+        // the transform only applies to the request it was added for
+        channel.writeInbound(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/"))
+        channel.readInbound()
+        channel.writeInbound(new DefaultLastHttpContent(utf8("last")))
+
+        LastHttpContent nextRequestContent = channel.readInbound()
+        assertEquals("last", nextRequestContent.content().toString(StandardCharsets.UTF_8))
+        nextRequestContent.release()
+    }
+
+    @Test
+    void testTransformFullMessage() {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, utf8("a needle"))
+
+        StreamingContentHandler.transformFullMessage(response,
+                [new StreamingSearchReplaceTransform("needle", "pin", StandardCharsets.UTF_8)] as List<StreamingContentTransform>,
+                ByteBufAllocator.DEFAULT)
+
+        assertEquals("a pin", response.content().toString(StandardCharsets.UTF_8))
+        assertEquals("5", response.headers().get(HttpHeaderNames.CONTENT_LENGTH))
+        response.release()
+    }
+
+    @Test
+    void testDecompressesContentBeforeTransforming() {
+        EmbeddedChannel encoder = new EmbeddedChannel(ZlibCodecFactory.newZlibEncoder(ZlibWrapper.GZIP))
+        encoder.writeOutbound(utf8("a compressed needle"))
+        encoder.finish()
+
+        StreamingContentTransform transform = DecompressingContentTransform.forContentEncoding("gzip",
+                new StreamingSearchReplaceTransform("needle", "pin", StandardCharsets.UTF_8))
+
+        StringBuilder transformed = new StringBuilder()
+        ByteBuf compressed
+        while ((compressed = encoder.readOutbound()) != null) {
+            // pass the compressed content to the transform one byte at a time
+            while (compressed.isReadable()) {
+                ByteBuf output = transform.transformContent(compressed.readRetainedSlice(1), ByteBufAllocator.DEFAULT)
+                transformed.append(output.toString(StandardCharsets.UTF_8))
+                output.release()
+            }
+            compressed.release()
+        }
+
+        ByteBuf remaining = transform.finish(null, ByteBufAllocator.DEFAULT)
+        transformed.append(remaining.toString(StandardCharsets.UTF_8))
+        remaining.release()
+
+        assertEquals("a compressed pin", transformed.toString())
+        assertTrue(DecompressingContentTransform.isSupported("deflate"))
+        assertTrue(!DecompressingContentTransform.isSupported("br"))
+    }
+
+    private static ByteBuf utf8(String text) {
+        return Unpooled.copiedBuffer(text, StandardCharsets.UTF_8)
+    }
+
+    private static String readContent(EmbeddedChannel channel) {
+        StringBuilder content = new StringBuilder()
+
+        Object msg
+        while ((msg = channel.readOutbound()) != null) {
+            content.append(((HttpContent) msg).content().toString(StandardCharsets.UTF_8))
+            ReferenceCountUtil.release(msg)
+        }
+
+        return content.toString()
+    }
+}
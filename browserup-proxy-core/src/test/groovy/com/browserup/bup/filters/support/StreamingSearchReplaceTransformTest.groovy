@@ -0,0 +1,111 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.filters.support
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufAllocator
+import io.netty.buffer.Unpooled
+import io.netty.handler.codec.http.DefaultHttpHeaders
+import io.netty.handler.codec.http.DefaultHttpResponse
+import io.netty.handler.codec.http.HttpHeaderNames
+import io.netty.handler.codec.http.HttpResponse
+import io.netty.handler.codec.http.HttpResponseStatus
+import io.netty.handler.codec.http.HttpVersion
+import org.junit.Test
+
+import java.nio.charset.Charset
+import java.nio.charset.StandardCharsets
+
+import static org.junit.Assert.assertEquals
+
+class StreamingSearchReplaceTransformTest {
+    @Test
+    void testReplacesWithinChunk() {
+        def transform = new StreamingSearchReplaceTransform("foo", "bar", StandardCharsets.UTF_8)
+
+        assertEquals("bar and bar", transformChunks(transform, StandardCharsets.UTF_8, ["foo and foo"]))
+    }
+
+    @Test
+    void testReplacesAcrossChunkBoundaries() {
+        def transform = new StreamingSearchReplaceTransform("needle", "pin", StandardCharsets.UTF_8)
+
+        assertEquals("hay pin hay pin hay", transformChunks(transform, StandardCharsets.UTF_8, ["hay ne", "edle hay n", "e", "edle hay"]))
+    }
+
+    @Test
+    void testOnlyHoldsBackPossibleMatches() {
+        def transform = new StreamingSearchReplaceTransform("needle", "pin", StandardCharsets.UTF_8)
+
+        assertEquals("hay ", decode(transform.transformContent(encode("hay ne", StandardCharsets.UTF_8), ByteBufAllocator.DEFAULT), StandardCharsets.UTF_8))
+        assertEquals("nex", decode(transform.transformContent(encode("x", StandardCharsets.UTF_8), ByteBufAllocator.DEFAULT), StandardCharsets.UTF_8))
+        assertEquals("", decode(transform.finish(new DefaultHttpHeaders(), ByteBufAllocator.DEFAULT), StandardCharsets.UTF_8))
+    }
+
+    @Test
+    void testReturnsUnmatchedPartialMatchWhenFinished() {
+        def transform = new StreamingSearchReplaceTransform("needle", "pin", StandardCharsets.UTF_8)
+
+        assertEquals("hay needl", transformChunks(transform, StandardCharsets.UTF_8, ["hay nee", "dl"]))
+    }
+
+    @Test
+    void testMultibyteCharactersSplitAcrossChunks() {
+        String text = "café ☃ 😀 café"
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8)
+
+        // split the content one byte at a time, so every multi-byte character is split across chunks
+        def transform = new StreamingSearchReplaceTransform("café", "tea", StandardCharsets.UTF_8)
+        StringBuilder transformed = new StringBuilder()
+        bytes.each { byte b ->
+            transformed.append(decode(transform.transformContent(Unpooled.wrappedBuffer([b] as byte[]), ByteBufAllocator.DEFAULT), StandardCharsets.UTF_8))
+        }
+        transformed.append(decode(transform.finish(new DefaultHttpHeaders(), ByteBufAllocator.DEFAULT), StandardCharsets.UTF_8))
+
+        assertEquals("tea ☃ 😀 tea", transformed.toString())
+    }
+
+    @Test
+    void testUsesCharsetOfContent() {
+        Charset charset = StandardCharsets.ISO_8859_1
+        def transform = new StreamingSearchReplaceTransform("été", "summer", charset)
+
+        assertEquals("summer", transformChunks(transform, charset, ["é", "té"]))
+    }
+
+    @Test
+    void testGetCharset() {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK)
+        assertEquals(StandardCharsets.UTF_8, StreamingTextTransform.getCharset(response))
+
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=ISO-8859-1")
+        assertEquals(StandardCharsets.ISO_8859_1, StreamingTextTransform.getCharset(response))
+
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=not-a-charset")
+        assertEquals(StandardCharsets.UTF_8, StreamingTextTransform.getCharset(response))
+    }
+
+    private static String transformChunks(StreamingTextTransform transform, Charset charset, List<String> chunks) {
+        StringBuilder transformed = new StringBuilder()
+        chunks.each { String chunk ->
+            transformed.append(decode(transform.transformContent(encode(chunk, charset), ByteBufAllocator.DEFAULT), charset))
+        }
+        transformed.append(decode(transform.finish(new DefaultHttpHeaders(), ByteBufAllocator.DEFAULT), charset))
+
+        return transformed.toString()
+    }
+
+    private static ByteBuf encode(String text, Charset charset) {
+        return Unpooled.copiedBuffer(text, charset)
+    }
+
+    private static String decode(ByteBuf buffer, Charset charset) {
+        try {
+            return buffer.toString(charset)
+        } finally {
+            buffer.release()
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.har
+
+import com.browserup.harreader.model.HarEntry
+import org.junit.Test
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertFalse
+import static org.junit.Assert.assertTrue
+
+class HarEntryPublisherTest {
+    @Test
+    void testEntriesAreDeliveredInOrder() {
+        HarEntryPublisher publisher = new HarEntryPublisher()
+
+        List<HarEntry> received = new CopyOnWriteArrayList<>()
+        CountDownLatch allReceived = new CountDownLatch(100)
+        publisher.subscribe({ HarEntry entry ->
+            received.add(entry)
+            allReceived.countDown()
+        } as HarEntryListener, 1000, HarEntryOverflowPolicy.DROP_OLDEST)
+
+        List<HarEntry> published = (1..100).collect { new HarEntry(sequence: it) }
+        published.each { publisher.publish(it) }
+
+        assertTrue("Expected all entries to be delivered", allReceived.await(5, TimeUnit.SECONDS))
+        assertEquals(published, received)
+    }
+
+    @Test
+    void testDropOldestKeepsMostRecentEntries() {
+        HarEntryPublisher publisher = new HarEntryPublisher()
+
+        CountDownLatch firstDelivered = new CountDownLatch(1)
+        CountDownLatch release = new CountDownLatch(1)
+        List<HarEntry> received = new CopyOnWriteArrayList<>()
+        HarEntrySubscription subscription = publisher.subscribe({ HarEntry entry ->
+            received.add(entry)
+            firstDelivered.countDown()
+            release.await()
+        } as HarEntryListener, 2, HarEntryOverflowPolicy.DROP_OLDEST)
+
+        List<HarEntry> published = (1..5).collect { new HarEntry(sequence: it) }
+        publisher.publish(published[0])
+        assertTrue(firstDelivered.await(5, TimeUnit.SECONDS))
+
+        // the listener is blocked on the first entry, so the rest are queued or dropped without blocking the publisher
+        published.subList(1, 5).each { publisher.publish(it) }
+
+        assertEquals(2, subscription.queuedEntryCount)
+        assertEquals(2L, subscription.droppedEntryCount)
+
+        release.countDown()
+        waitForDelivery(subscription, 3)
+
+        assertEquals([published[0], published[3], published[4]], received)
+    }
+
+    @Test
+    void testDropNewestKeepsEarliestEntries() {
+        HarEntryPublisher publisher = new HarEntryPublisher()
+
+        CountDownLatch firstDelivered = new CountDownLatch(1)
+        CountDownLatch release = new CountDownLatch(1)
+        List<HarEntry> received = new CopyOnWriteArrayList<>()
+        HarEntrySubscription subscription = publisher.subscribe({ HarEntry entry ->
+            received.add(entry)
+            firstDelivered.countDown()
+            release.await()
+        } as HarEntryListener, 2, HarEntryOverflowPolicy.DROP_NEWEST)
+
+        List<HarEntry> published = (1..5).collect { new HarEntry(sequence: it) }
+        publisher.publish(published[0])
+        assertTrue(firstDelivered.await(5, TimeUnit.SECONDS))
+
+        published.subList(1, 5).each { publisher.publish(it) }
+
+        assertEquals(2L, subscription.droppedEntryCount)
+
+        release.countDown()
+        waitForDelivery(subscription, 3)
+
+        assertEquals([published[0], published[1], published[2]], received)
+    }
+
+    @Test
+    void testCancelledSubscriptionReceivesNoEntries() {
+        HarEntryPublisher publisher = new HarEntryPublisher()
+
+        List<HarEntry> received = new CopyOnWriteArrayList<>()
+        HarEntrySubscription subscription = publisher.subscribe({ HarEntry entry ->
+            received.add(entry)
+        } as HarEntryListener, 10, HarEntryOverflowPolicy.DROP_OLDEST)
+
+        subscription.cancel()
+        publisher.publish(new HarEntry(sequence: 1))
+
+        assertTrue(subscription.cancelled)
+        assertFalse(publisher.hasSubscribers())
+        assertTrue(received.isEmpty())
+    }
+
+    @Test
+    void testListenerExceptionDoesNotStopDelivery() {
+        HarEntryPublisher publisher = new HarEntryPublisher()
+
+        CountDownLatch secondReceived = new CountDownLatch(1)
+        publisher.subscribe({ HarEntry entry ->
+            if (entry.sequence == 1L) {
+                throw new IllegalStateException("listener failure")
+            }
+            secondReceived.countDown()
+        } as HarEntryListener, 10, HarEntryOverflowPolicy.DROP_OLDEST)
+
+        publisher.publish(new HarEntry(sequence: 1))
+        publisher.publish(new HarEntry(sequence: 2))
+
+        assertTrue("Expected the entry after the failure to be delivered", secondReceived.await(5, TimeUnit.SECONDS))
+    }
+
+    private static void waitForDelivery(HarEntrySubscription subscription, long expectedDeliveredCount) {
+        long deadline = System.currentTimeMillis() + 5000
+        while (subscription.deliveredEntryCount < expectedDeliveredCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+
+        assertEquals(expectedDeliveredCount, subscription.deliveredEntryCount)
+    }
+}
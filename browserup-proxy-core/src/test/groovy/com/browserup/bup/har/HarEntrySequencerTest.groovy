@@ -0,0 +1,105 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.har
+
+import com.browserup.harreader.model.HarEntry
+import com.browserup.harreader.model.HarLog
+import org.junit.Test
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertFalse
+import static org.junit.Assert.assertTrue
+
+class HarEntrySequencerTest {
+    @Test
+    void testSequenceIsAssignedOnce() {
+        HarEntry entry = new HarEntry()
+
+        HarEntrySequencer.assignSequence(entry)
+        Long sequence = entry.sequence
+
+        HarEntrySequencer.assignSequence(entry)
+
+        assertEquals(sequence, entry.sequence)
+        assertTrue(HarEntrySequencer.getLastSequence() >= sequence)
+    }
+
+    @Test
+    void testEntriesSinceAreReturnedInCompletionOrder() {
+        HarEntry first = new HarEntry()
+        HarEntry second = new HarEntry()
+        HarEntry incomplete = new HarEntry()
+
+        // entries are added to the HAR when the request starts, but may complete in any order
+        List<HarEntry> entries = [first, second, incomplete]
+        HarEntrySequencer.assignSequence(second)
+        HarEntrySequencer.assignSequence(first)
+
+        HarEntryPage page = HarEntrySequencer.getEntriesSince(entries, second.sequence - 1, 10)
+
+        assertEquals([second, first], page.entries)
+        assertEquals(first.sequence, page.nextSequence)
+        assertFalse(page.hasMore)
+
+        HarEntryPage nextPage = HarEntrySequencer.getEntriesSince(entries, page.nextSequence, 10)
+
+        assertTrue(nextPage.entries.isEmpty())
+        assertEquals("Expected next sequence to be unchanged when there are no new entries", page.nextSequence, nextPage.nextSequence)
+    }
+
+    @Test
+    void testEntriesSinceArePaged() {
+        List<HarEntry> entries = (1..5).collect {
+            HarEntry entry = new HarEntry()
+            HarEntrySequencer.assignSequence(entry)
+            entry
+        }
+
+        long start = entries[0].sequence - 1
+
+        HarEntryPage firstPage = HarEntrySequencer.getEntriesSince(entries, start, 2)
+        assertEquals(entries[0..1], firstPage.entries)
+        assertTrue(firstPage.hasMore)
+
+        HarEntryPage secondPage = HarEntrySequencer.getEntriesSince(entries, firstPage.nextSequence, 2)
+        assertEquals(entries[2..3], secondPage.entries)
+        assertTrue(secondPage.hasMore)
+
+        HarEntryPage lastPage = HarEntrySequencer.getEntriesSince(entries, secondPage.nextSequence, 2)
+        assertEquals([entries[4]], lastPage.entries)
+        assertFalse(lastPage.hasMore)
+    }
+
+    @Test
+    void testEntriesSinceAreSelectedFromCompletedEntriesOfLog() {
+        HarLog log = new HarLog()
+        List<HarEntry> entries = (1..5).collect { new HarEntry() }
+        log.entries.addAll(entries)
+
+        // complete the entries out of order
+        [3, 0, 4, 1, 2].each { HarEntrySequencer.assignSequence(entries[it], log) }
+        List<HarEntry> completionOrder = [entries[3], entries[0], entries[4], entries[1], entries[2]]
+
+        assertEquals(completionOrder, log.completedEntries)
+
+        HarEntryPage firstPage = HarEntrySequencer.getEntriesSince(log, entries[3].sequence - 1, 3)
+        assertEquals(completionOrder[0..2], firstPage.entries)
+        assertEquals(entries[4].sequence, firstPage.nextSequence)
+        assertTrue(firstPage.hasMore)
+
+        HarEntryPage lastPage = HarEntrySequencer.getEntriesSince(log, firstPage.nextSequence, 3)
+        assertEquals(completionOrder[3..4], lastPage.entries)
+        assertFalse(lastPage.hasMore)
+
+        HarEntryPage emptyPage = HarEntrySequencer.getEntriesSince(log, lastPage.nextSequence, 3)
+        assertTrue(emptyPage.entries.isEmpty())
+        assertEquals(lastPage.nextSequence, emptyPage.nextSequence)
+    }
+
+    @Test(expected = IllegalArgumentException)
+    void testMaxEntriesMustBePositive() {
+        HarEntrySequencer.getEntriesSince([], 0, 0)
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.har
+
+import com.browserup.harreader.model.HarContent
+import org.junit.After
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.function.Supplier
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertFalse
+import static org.junit.Assert.assertNull
+
+class MappedSegmentHarBodyStoreTest {
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder()
+
+    private Path segmentDirectory
+    private MappedSegmentHarBodyStore store
+
+    @Before
+    void setUp() {
+        segmentDirectory = tmpDir.newFolder().toPath()
+        store = new MappedSegmentHarBodyStore(segmentDirectory, 1024)
+    }
+
+    @After
+    void tearDown() {
+        store.close()
+    }
+
+    @Test
+    void testStoredBodiesAreResolved() {
+        Supplier<String> first = store.store("first body")
+        Supplier<String> second = store.store("second body, with non-ASCII characters: é中")
+
+        assertEquals("first body", first.get())
+        assertEquals("second body, with non-ASCII characters: é中", second.get())
+        assertEquals("Expected bodies to be resolvable more than once", "first body", first.get())
+        assertEquals(1, store.getSegmentCount())
+    }
+
+    @Test
+    void testNewSegmentIsCreatedWhenSegmentIsFull() {
+        String body = "x" * 600
+
+        Supplier<String> first = store.store(body)
+        Supplier<String> second = store.store(body)
+
+        assertEquals(body, first.get())
+        assertEquals(body, second.get())
+        assertEquals(2, store.getSegmentCount())
+    }
+
+    @Test
+    void testBodyLargerThanSegmentSize() {
+        String body = "y" * 5000
+
+        assertEquals(body, store.store(body).get())
+    }
+
+    @Test
+    void testStreamedBodyIsStoredInOwnSegment() {
+        Supplier<String> first = store.store("first body")
+        Supplier<String> streamed = store.store({ Writer writer ->
+            3.times { writer.write("streamed body é中 ") }
+            writer.close()
+        } as HarBodyStore.BodyWriter)
+        Supplier<String> second = store.store("second body")
+
+        assertEquals("streamed body é中 " * 3, streamed.get())
+        assertEquals("first body", first.get())
+        assertEquals("second body", second.get())
+        assertEquals("Expected the streamed body to have its own segment", 2, store.getSegmentCount())
+    }
+
+    @Test
+    void testHarContentResolvesTextFromStore() {
+        HarContent content = new HarContent()
+        content.setTextSupplier(store.store("response body"))
+
+        assertEquals("response body", content.getText())
+
+        content.setText("replaced")
+        assertEquals("replaced", content.getText())
+    }
+
+    @Test
+    void testSegmentsAreDeletedOnClose() {
+        store.store("body")
+
+        store.close()
+
+        assertFalse("Expected segment files to be deleted", Files.list(segmentDirectory).withCloseable { it.findAny().isPresent() })
+    }
+
+    @Test
+    void testBodiesResolveToNullAfterClose() {
+        Supplier<String> body = store.store("body")
+
+        store.close()
+
+        assertNull(body.get())
+    }
+
+    @Test(expected = IllegalStateException)
+    void testBodiesCannotBeStoredAfterClose() {
+        store.close()
+
+        store.store("body")
+    }
+
+    @Test
+    void testNewHarDiscardsBodiesBeforePreviousHar() {
+        Supplier<String> first = store.store("first HAR")
+
+        store.newHar()
+        Supplier<String> second = store.store("second HAR")
+
+        assertEquals("Expected the previous HAR's bodies to remain available", "first HAR", first.get())
+        assertEquals(2, store.getSegmentCount())
+
+        store.newHar()
+        Supplier<String> third = store.store("third HAR")
+
+        assertNull("Expected bodies before the previous HAR to be discarded", first.get())
+        assertEquals("second HAR", second.get())
+        assertEquals("third HAR", third.get())
+        assertEquals(2, store.getSegmentCount())
+        assertEquals(2, Files.list(segmentDirectory).withCloseable { it.count() })
+    }
+}
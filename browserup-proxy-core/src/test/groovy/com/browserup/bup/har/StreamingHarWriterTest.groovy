@@ -0,0 +1,75 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.har
+
+import com.browserup.harreader.model.Har
+import com.browserup.harreader.model.HarEntry
+import com.browserup.harreader.model.HarPage
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.junit.Test
+
+import java.util.function.Supplier
+
+import static org.junit.Assert.assertEquals
+
+class StreamingHarWriterTest {
+    private final ObjectMapper objectMapper = new ObjectMapper()
+
+    @Test
+    void testStreamedHarMatchesObjectMapperOutput() {
+        Har har = new Har()
+        har.log.comment = "streamed"
+
+        HarPage page = new HarPage()
+        page.id = "page_1"
+        page.title = "Page 1"
+        page.startedDateTime = new Date()
+        har.log.pages.add(page)
+
+        for (int i = 0; i < 100; i++) {
+            HarEntry entry = new HarEntry()
+            entry.pageref = "page_1"
+            entry.startedDateTime = new Date()
+            entry.request.url = "https://www.example.com/resource/" + i
+            entry.response.status = 200
+            entry.response.content.mimeType = "text/plain"
+            entry.response.content.text = "body " + i
+            har.log.entries.add(entry)
+        }
+
+        assertEquals(objectMapper.valueToTree(har), writeAndParse(har))
+    }
+
+    @Test
+    void testEmptyHar() {
+        Har har = new Har()
+
+        JsonNode streamed = writeAndParse(har)
+
+        assertEquals(objectMapper.valueToTree(har), streamed)
+        assertEquals(0, streamed.get("log").get("entries").size())
+    }
+
+    @Test
+    void testBodySuppliersAreResolvedWhileWriting() {
+        Har har = new Har()
+
+        HarEntry entry = new HarEntry()
+        entry.response.content.setTextSupplier({ "stored body" } as Supplier<String>)
+        har.log.entries.add(entry)
+
+        JsonNode streamed = writeAndParse(har)
+
+        assertEquals("stored body", streamed.get("log").get("entries").get(0).get("response").get("content").get("text").asText())
+    }
+
+    private JsonNode writeAndParse(Har har) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+        new StreamingHarWriter(objectMapper).write(har, out)
+
+        return objectMapper.readTree(out.toByteArray())
+    }
+}
@@ -6,10 +6,12 @@ package com.browserup.bup.mitmproxy
 
 
 import com.browserup.bup.MitmProxyServer
+import com.browserup.bup.proxy.LatencyRule
 import com.browserup.bup.proxy.test.util.MockServerTest
 import com.browserup.bup.proxy.test.util.NewProxyServerTestUtil
 import org.apache.http.HttpResponse
 import org.apache.http.client.methods.HttpGet
+import org.apache.http.util.EntityUtils
 import org.junit.After
 import org.junit.Test
 
@@ -51,5 +53,36 @@ class LatencyTest extends MockServerTest {
         verify(1, getRequestedFor(urlEqualTo(url)))
     }
 
+    @Test
+    void testLatencyRuleOnlyAppliesToMatchingUrls() {
+        stubFor(get(urlEqualTo("/slow")).willReturn(ok()))
+        stubFor(get(urlEqualTo("/fast")).willReturn(ok()))
 
+        proxy = new MitmProxyServer()
+        proxy.addLatencyRule(new LatencyRule(".*/slow", 2, TimeUnit.SECONDS))
+        proxy.start()
+
+        NewProxyServerTestUtil.getNewHttpClient(proxy.getPort()).withCloseable {
+            long start = System.nanoTime()
+            HttpResponse response = it.execute(new HttpGet("http://127.0.0.1:" + mockServerPort + "/fast"))
+            long stop = System.nanoTime()
+            EntityUtils.consume(response.getEntity())
+
+            assertEquals("Expected to receive an HTTP 200 from the upstream server", 200, response.getStatusLine().getStatusCode())
+            assertTrue("Expected no latency for a URL that does not match the latency rule. Total time was: " + TimeUnit.MILLISECONDS.convert(stop - start, TimeUnit.NANOSECONDS) + "ms",
+                    TimeUnit.SECONDS.convert(stop - start, TimeUnit.NANOSECONDS) < 2)
+
+            start = System.nanoTime()
+            response = it.execute(new HttpGet("http://127.0.0.1:" + mockServerPort + "/slow"))
+            stop = System.nanoTime()
+            EntityUtils.consume(response.getEntity())
+
+            assertEquals("Expected to receive an HTTP 200 from the upstream server", 200, response.getStatusLine().getStatusCode())
+            assertTrue("Expected latency to be at least 2 seconds. Total time was: " + TimeUnit.MILLISECONDS.convert(stop - start, TimeUnit.NANOSECONDS) + "ms",
+                    TimeUnit.SECONDS.convert(stop - start, TimeUnit.NANOSECONDS) >= 2)
+        }
+
+        verify(1, getRequestedFor(urlEqualTo("/slow")))
+        verify(1, getRequestedFor(urlEqualTo("/fast")))
+    }
 }
@@ -0,0 +1,60 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.proxy
+
+import org.junit.Test
+
+import java.util.concurrent.TimeUnit
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertFalse
+import static org.junit.Assert.assertTrue
+
+class LatencyRuleTest {
+    @Test
+    void testRuleWithoutPatternMatchesAllUrls() {
+        LatencyRule rule = new LatencyRule(null, 100, TimeUnit.MILLISECONDS)
+
+        assertTrue(rule.matches("http://www.example.com/"))
+        assertTrue(rule.matches("https://www.example.com:8443/some/path"))
+        assertEquals(100L, rule.nextLatencyMs())
+    }
+
+    @Test
+    void testHostRuleMatchesOnlyThatHost() {
+        LatencyRule rule = LatencyRule.forHost("www.example.com", 1, 0, TimeUnit.SECONDS, null)
+
+        assertTrue(rule.matches("http://www.example.com"))
+        assertTrue(rule.matches("https://www.example.com:8443/some/path?param=value"))
+        assertFalse(rule.matches("http://wwwXexample.com/"))
+        assertFalse(rule.matches("http://www.example.com.evil.com/"))
+        assertFalse(rule.matches("http://other.com/?www.example.com"))
+        assertEquals(1000L, rule.nextLatencyMs())
+    }
+
+    @Test
+    void testUniformJitterStaysWithinBounds() {
+        LatencyRule rule = new LatencyRule(null, 100, 20, TimeUnit.MILLISECONDS, LatencyRule.JitterDistribution.UNIFORM)
+
+        1000.times {
+            long latency = rule.nextLatencyMs()
+            assertTrue("Expected latency between 80 and 120 ms, but was: " + latency, latency >= 80 && latency <= 120)
+        }
+    }
+
+    @Test
+    void testJitterNeverProducesNegativeLatency() {
+        LatencyRule rule = new LatencyRule(null, 10, 1000, TimeUnit.MILLISECONDS, LatencyRule.JitterDistribution.NORMAL)
+
+        1000.times {
+            assertTrue(rule.nextLatencyMs() >= 0)
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    void testNegativeLatencyIsRejected() {
+        new LatencyRule(null, -1, TimeUnit.MILLISECONDS)
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.proxy
+
+import com.browserup.bup.BrowserUpProxyServer
+import com.browserup.bup.filters.RequestFilter
+import com.browserup.bup.filters.ResponseFilter
+import com.browserup.bup.filters.support.FilterExecutor
+import com.browserup.bup.proxy.test.util.MockServerTest
+import com.browserup.bup.proxy.test.util.NewProxyServerTestUtil
+import com.browserup.bup.util.HttpMessageContents
+import com.browserup.bup.util.HttpMessageInfo
+import com.browserup.harreader.model.HarEntry
+import io.netty.handler.codec.http.HttpRequest
+import io.netty.handler.codec.http.HttpResponse
+import org.apache.http.client.methods.CloseableHttpResponse
+import org.apache.http.client.methods.HttpGet
+import org.apache.http.impl.client.CloseableHttpClient
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+
+import static com.github.tomakehurst.wiremock.client.WireMock.get
+import static com.github.tomakehurst.wiremock.client.WireMock.ok
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertFalse
+import static org.junit.Assert.assertTrue
+
+/**
+ * Documents how offloading filters to a {@link FilterExecutor} affects HAR capture and which requests are offloaded.
+ */
+class OffloadedFilterTest extends MockServerTest {
+    private BrowserUpProxyServer proxy
+    private FilterExecutor filterExecutor
+
+    @Before
+    void setUp() {
+        filterExecutor = new FilterExecutor(2, 16, 500, TimeUnit.MILLISECONDS)
+
+        proxy = new BrowserUpProxyServer()
+        proxy.setFilterExecutor(filterExecutor)
+        proxy.setHarCaptureTypes([CaptureType.RESPONSE_CONTENT] as Set)
+        proxy.start()
+        proxy.newHar()
+    }
+
+    @After
+    void tearDown() {
+        if (proxy?.started) {
+            proxy.abort()
+        }
+
+        filterExecutor?.shutdown()
+    }
+
+    @Test
+    void testHarRecordsResponseBeforeOffloadedResponseFilters() {
+        stubFor(get(urlEqualTo("/offloadedresponse")).willReturn(ok().withBody("original").withHeader("Content-Type", "text/plain")))
+
+        proxy.addResponseFilter({ HttpResponse response, HttpMessageContents contents, HttpMessageInfo messageInfo ->
+            contents.setTextContents("filtered")
+        } as ResponseFilter)
+
+        NewProxyServerTestUtil.getNewHttpClient(proxy.getPort()).withCloseable {
+            String responseBody = NewProxyServerTestUtil.toStringAndClose(it.execute(new HttpGet("http://localhost:${mockServerPort}/offloadedresponse")).getEntity().getContent())
+            assertEquals("Expected the client to receive the filtered response", "filtered", responseBody)
+        }
+
+        HarEntry entry = getOnlyHarEntry()
+        assertEquals("Expected the HAR to contain the response before it was filtered", "original", entry.response.content.text)
+    }
+
+    @Test
+    void testHarRecordsServerResponseWhenOffloadedResponseFilterTimesOut() {
+        stubFor(get(urlEqualTo("/slowresponsefilter")).willReturn(ok().withBody("original").withHeader("Content-Type", "text/plain")))
+
+        proxy.addResponseFilter({ HttpResponse response, HttpMessageContents contents, HttpMessageInfo messageInfo ->
+            Thread.sleep(5000)
+        } as ResponseFilter)
+
+        NewProxyServerTestUtil.getNewHttpClient(proxy.getPort()).withCloseable {
+            CloseableHttpResponse response = it.execute(new HttpGet("http://localhost:${mockServerPort}/slowresponsefilter"))
+            assertEquals("Expected the client to receive a 503 when the filter timed out", 503, response.getStatusLine().getStatusCode())
+            response.close()
+        }
+
+        HarEntry entry = getOnlyHarEntry()
+        assertEquals("Expected the HAR to contain the server's response", 200, entry.response.status)
+    }
+
+    @Test
+    void testFirstRequestOnConnectionIsFilteredOnEventLoop() {
+        stubFor(get(urlEqualTo("/offloadedrequest")).willReturn(ok().withBody("success")))
+
+        List<String> filterThreads = new CopyOnWriteArrayList<>()
+        proxy.addRequestFilter({ HttpRequest request, HttpMessageContents contents, HttpMessageInfo messageInfo ->
+            filterThreads.add(Thread.currentThread().getName())
+            return null
+        } as RequestFilter)
+
+        // both requests are sent on the same connection
+        CloseableHttpClient httpClient = NewProxyServerTestUtil.getNewHttpClient(proxy.getPort())
+        httpClient.withCloseable {
+            2.times {
+                String responseBody = NewProxyServerTestUtil.toStringAndClose(httpClient.execute(new HttpGet("http://localhost:${mockServerPort}/offloadedrequest")).getEntity().getContent())
+                assertEquals("success", responseBody)
+            }
+        }
+
+        assertEquals(2, filterThreads.size())
+        assertFalse("Expected the first request's filters to run on the event loop", filterThreads[0].startsWith("browserup-filter-"))
+        assertTrue("Expected the second request's filters to run on the filter executor", filterThreads[1].startsWith("browserup-filter-"))
+    }
+
+    @Test
+    void testRequestWithConnectionCloseIsFilteredOnEventLoop() {
+        stubFor(get(urlEqualTo("/connectionclose")).willReturn(ok().withBody("success")))
+
+        List<String> filterThreads = new CopyOnWriteArrayList<>()
+        proxy.addRequestFilter({ HttpRequest request, HttpMessageContents contents, HttpMessageInfo messageInfo ->
+            filterThreads.add(Thread.currentThread().getName())
+            return null
+        } as RequestFilter)
+
+        CloseableHttpClient httpClient = NewProxyServerTestUtil.getNewHttpClient(proxy.getPort())
+        httpClient.withCloseable {
+            2.times {
+                HttpGet request = new HttpGet("http://localhost:${mockServerPort}/connectionclose")
+                request.addHeader("Connection", "close")
+                String responseBody = NewProxyServerTestUtil.toStringAndClose(httpClient.execute(request).getEntity().getContent())
+                assertEquals("success", responseBody)
+            }
+        }
+
+        assertEquals(2, filterThreads.size())
+        assertTrue("Expected the filters for every request to run on the event loop", filterThreads.every { !it.startsWith("browserup-filter-") })
+    }
+
+    private HarEntry getOnlyHarEntry() {
+        // the HAR entry is completed after the response is sent to the client
+        Thread.sleep(500)
+
+        List<HarEntry> entries = proxy.getHar().log.entries
+        assertEquals(1, entries.size())
+        return entries[0]
+    }
+}
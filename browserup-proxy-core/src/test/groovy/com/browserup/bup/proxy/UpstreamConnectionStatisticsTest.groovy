@@ -0,0 +1,53 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.proxy
+
+import org.junit.Test
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertTrue
+
+class UpstreamConnectionStatisticsTest {
+    @Test
+    void testConnectionReuseRate() {
+        UpstreamConnectionStatistics statistics = new UpstreamConnectionStatistics()
+
+        statistics.connectionOpened("https://www.example.com")
+        4.times { statistics.requestSent("https://www.example.com") }
+
+        statistics.connectionOpened("http://www.example.org")
+        statistics.requestSent("http://www.example.org")
+
+        assertEquals(2, statistics.connectionsOpened)
+        assertEquals(5, statistics.requestsSent)
+        assertEquals(0.6, statistics.connectionReuseRate, 0.0001)
+
+        assertEquals(0.75, statistics.origins["https://www.example.com"].connectionReuseRate, 0.0001)
+        assertEquals(0.0, statistics.origins["http://www.example.org"].connectionReuseRate, 0.0001)
+    }
+
+    @Test
+    void testConnectionsWithoutRequestsAreNotReused() {
+        UpstreamConnectionStatistics statistics = new UpstreamConnectionStatistics()
+
+        2.times { statistics.connectionOpened("https://www.example.com") }
+        statistics.requestSent("https://www.example.com")
+
+        assertEquals(0.0, statistics.connectionReuseRate, 0.0001)
+    }
+
+    @Test
+    void testReset() {
+        UpstreamConnectionStatistics statistics = new UpstreamConnectionStatistics()
+        statistics.connectionOpened("https://www.example.com")
+        statistics.requestSent("https://www.example.com")
+
+        statistics.reset()
+
+        assertEquals(0, statistics.connectionsOpened)
+        assertEquals(0, statistics.requestsSent)
+        assertTrue(statistics.origins.isEmpty())
+    }
+}
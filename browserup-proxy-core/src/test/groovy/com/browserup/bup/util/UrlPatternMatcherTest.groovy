@@ -0,0 +1,97 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.util
+
+import org.junit.Test
+
+import java.util.regex.Pattern
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertFalse
+import static org.junit.Assert.assertNull
+import static org.junit.Assert.assertTrue
+
+class UrlPatternMatcherTest {
+    @Test
+    void testRequiredLiteral() {
+        Map<String, String> patternToLiteral = [
+                'https?://([a-z0-9-]+\\.)*doubleclick\\.net/.*': 'doubleclick.net/',
+                '.*\\.png'                                      : '.png',
+                '^http://Example\\.com/blocked.*'               : 'http://example.com/blocked',
+                'ab+c'                                          : 'ab',
+                'abc?d'                                         : 'ab',
+                '\\Qfoo.bar\\E\\d+'                             : 'foo.bar',
+                '[a-z]+tracker[0-9]*\\.js'                      : 'tracker',
+        ]
+
+        patternToLiteral.each { pattern, expectedLiteral ->
+            assertEquals("Unexpected required literal for pattern: " + pattern, expectedLiteral,
+                    UrlPatternMatcher.getRequiredLiteral(Pattern.compile(pattern)))
+        }
+    }
+
+    @Test
+    void testNoRequiredLiteral() {
+        ['.*', '(?i)tracker', 'http://a\\.com/.*|.*ads.*', '\\x41bc', '[abc]*'].each { pattern ->
+            assertNull("Expected no required literal for pattern: " + pattern,
+                    UrlPatternMatcher.getRequiredLiteral(Pattern.compile(pattern)))
+        }
+
+        assertNull(UrlPatternMatcher.getRequiredLiteral(Pattern.compile('tracker', Pattern.COMMENTS)))
+    }
+
+    @Test
+    void testCandidatesIncludeEveryMatchingRule() {
+        List<Pattern> patterns = [
+                '.*\\.png',
+                'https?://([a-z0-9-]+\\.)*doubleclick\\.net/.*',
+                '.*',
+                'http://www\\.example\\.com/.*',
+                '(?i)https?://WWW\\.EXAMPLE\\.COM/ads/.*',
+        ].collect { Pattern.compile(it) }
+
+        UrlPatternMatcher<Pattern> matcher = UrlPatternMatcher.compile(patterns)
+
+        ['http://www.example.com/image.png',
+         'https://ad.doubleclick.net/track',
+         'https://WWW.example.com/ads/banner.gif',
+         'http://other.org/'].each { url ->
+            BitSet candidates = matcher.getCandidates(url)
+            patterns.eachWithIndex { pattern, i ->
+                if (pattern.matcher(url).matches()) {
+                    assertTrue("Expected pattern " + pattern + " to be a candidate for URL: " + url, candidates.get(i))
+                }
+            }
+        }
+
+        BitSet candidates = matcher.getCandidates('http://other.org/')
+        assertEquals([2], candidates.stream().toArray() as List)
+    }
+
+    @Test
+    void testMatchesAny() {
+        UrlPatternMatcher<Pattern> matcher = UrlPatternMatcher.compile(['.*\\.png', 'http://www\\.example\\.com/.*'].collect { Pattern.compile(it) })
+
+        assertTrue(matcher.matchesAny('http://other.org/image.png'))
+        assertTrue(matcher.matchesAny('http://www.example.com/'))
+        assertFalse(matcher.matchesAny('http://other.org/image.gif'))
+        assertFalse(UrlPatternMatcher.compile([]).matchesAny('http://www.example.com/'))
+    }
+
+    @Test
+    void testCacheRecompilesAfterInvalidate() {
+        List<Pattern> patterns = [Pattern.compile('.*\\.png')]
+        UrlPatternMatcherCache<Pattern> cache = new UrlPatternMatcherCache<>({ patterns }, { it })
+
+        UrlPatternMatcher<Pattern> matcher = cache.get()
+        assertTrue(matcher.is(cache.get()))
+
+        patterns.add(Pattern.compile('.*\\.gif'))
+        cache.invalidate()
+
+        assertEquals(2, cache.get().rules.size())
+        assertTrue(cache.get().matchesAny('http://www.example.com/image.gif'))
+    }
+}
@@ -31,7 +31,7 @@ public class AdvancedHostResolverTest {
     @Parameterized.Parameters
     public static Collection<Object[]> data() {
         return Arrays.asList(new Object[][]{
-                {NativeResolver.class}, {NativeCacheManipulatingResolver.class}, {ChainedHostResolver.class}
+                {NativeResolver.class}, {NativeCacheManipulatingResolver.class}, {ChainedHostResolver.class}, {NettyDnsResolver.class}
         });
     }
 
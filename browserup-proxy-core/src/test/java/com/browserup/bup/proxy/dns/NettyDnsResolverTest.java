@@ -0,0 +1,264 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.proxy.dns;
+
+import com.google.common.net.InetAddresses;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.handler.codec.dns.DatagramDnsQuery;
+import io.netty.handler.codec.dns.DatagramDnsQueryDecoder;
+import io.netty.handler.codec.dns.DatagramDnsResponse;
+import io.netty.handler.codec.dns.DatagramDnsResponseEncoder;
+import io.netty.handler.codec.dns.DefaultDnsRawRecord;
+import io.netty.handler.codec.dns.DnsQuestion;
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsResponseCode;
+import io.netty.handler.codec.dns.DnsSection;
+import io.netty.util.NetUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NettyDnsResolverTest {
+    private static final InetAddress IPV4_ADDRESS = InetAddresses.forString("192.0.2.1");
+    private static final InetAddress IPV6_ADDRESS = InetAddresses.forString("2001:db8::1");
+
+    private StubDnsServer dnsServer;
+
+    private NettyDnsResolver resolver;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        dnsServer = new StubDnsServer();
+        dnsServer.addRecord("www.example.test", DnsRecordType.A, IPV4_ADDRESS, 300);
+        dnsServer.addRecord("www.example.test", DnsRecordType.AAAA, IPV6_ADDRESS, 300);
+        dnsServer.addRecord("ipv4.example.test", DnsRecordType.A, IPV4_ADDRESS, 300);
+        dnsServer.addRecord("ipv6.example.test", DnsRecordType.AAAA, IPV6_ADDRESS, 300);
+
+        resolver = new NettyDnsResolver(Collections.singletonList(dnsServer.getAddress()), 2000);
+    }
+
+    @After
+    public void tearDown() {
+        if (resolver != null) {
+            resolver.close();
+        }
+
+        if (dnsServer != null) {
+            dnsServer.close();
+        }
+    }
+
+    @Test
+    public void testResolvePreferredAddressFirst() {
+        Collection<InetAddress> addresses = resolver.resolve("www.example.test");
+
+        // the address of the other family is only included if it arrived before the lookup completed
+        InetAddress preferredAddress = NetUtil.isIpV6AddressesPreferred() ? IPV6_ADDRESS : IPV4_ADDRESS;
+        assertEquals(preferredAddress, addresses.iterator().next());
+    }
+
+    @Test
+    public void testResolveOtherFamilyWhenPreferredFamilyHasNoAddresses() {
+        assertEquals(Collections.singletonList(IPV4_ADDRESS), new ArrayList<>(resolver.resolve("ipv4.example.test")));
+        assertEquals(Collections.singletonList(IPV6_ADDRESS), new ArrayList<>(resolver.resolve("ipv6.example.test")));
+    }
+
+    @Test
+    public void testCachesLookups() {
+        resolver.resolve("www.example.test");
+        resolver.resolve("www.example.test");
+
+        assertEquals("Expected a single A query", 1, dnsServer.getQueryCount("www.example.test", DnsRecordType.A));
+        assertEquals("Expected a single AAAA query", 1, dnsServer.getQueryCount("www.example.test", DnsRecordType.AAAA));
+
+        resolver.clearDNSCache();
+        resolver.resolve("www.example.test");
+
+        assertEquals("Expected the A record to be queried again after clearing the cache", 2, dnsServer.getQueryCount("www.example.test", DnsRecordType.A));
+    }
+
+    @Test
+    public void testPositiveCacheTimeoutLimitsTtl() {
+        resolver.setPositiveDNSCacheTimeout(0, TimeUnit.SECONDS);
+
+        resolver.resolve("www.example.test");
+        resolver.resolve("www.example.test");
+
+        assertEquals("Expected lookups not to be cached", 2, dnsServer.getQueryCount("www.example.test", DnsRecordType.A));
+    }
+
+    @Test
+    public void testCachesFailedLookups() {
+        assertTrue(resolver.resolve("missing.example.test").isEmpty());
+        assertTrue(resolver.resolve("missing.example.test").isEmpty());
+
+        assertEquals("Expected a single A query", 1, dnsServer.getQueryCount("missing.example.test", DnsRecordType.A));
+    }
+
+    @Test
+    public void testCoalescesConcurrentLookups() throws Exception {
+        dnsServer.setResponseDelay(200, TimeUnit.MILLISECONDS);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Collection<InetAddress>>> lookups = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                lookups.add(executor.submit(() -> resolver.resolve("www.example.test")));
+            }
+
+            for (Future<Collection<InetAddress>> lookup : lookups) {
+                assertFalse(lookup.get(10, TimeUnit.SECONDS).isEmpty());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals("Expected concurrent lookups to share a single A query", 1, dnsServer.getQueryCount("www.example.test", DnsRecordType.A));
+    }
+
+    @Test
+    public void testResolveRemappedHost() {
+        resolver.remapHost("www.original.test", "www.example.test");
+
+        Collection<InetAddress> addresses = resolver.resolve("www.original.test");
+
+        assertFalse(addresses.isEmpty());
+        assertEquals("Expected hostname for returned address to reflect the remapped address", "www.example.test",
+                addresses.iterator().next().getHostName());
+    }
+
+    @Test
+    public void testResolveIpLiteralWithoutQuery() {
+        Collection<InetAddress> addresses = resolver.resolve("192.0.2.2");
+
+        assertEquals(Collections.singletonList(InetAddresses.forString("192.0.2.2")), new ArrayList<>(addresses));
+        assertEquals(0, dnsServer.getQueryCount("192.0.2.2", DnsRecordType.A));
+    }
+
+    /**
+     * A DNS server on the loopback interface that answers A and AAAA queries from a fixed set of records, and
+     * returns NXDOMAIN for other names.
+     */
+    private static class StubDnsServer {
+        private final EventLoopGroup eventLoopGroup = new NioEventLoopGroup(1);
+
+        private final Map<String, StubRecord> records = new ConcurrentHashMap<>();
+
+        private final Map<String, AtomicInteger> queryCounts = new ConcurrentHashMap<>();
+
+        private final Channel channel;
+
+        private volatile long responseDelayMs;
+
+        StubDnsServer() throws InterruptedException {
+            channel = new Bootstrap()
+                    .group(eventLoopGroup)
+                    .channel(NioDatagramChannel.class)
+                    .handler(new ChannelInitializer<DatagramChannel>() {
+                        @Override
+                        protected void initChannel(DatagramChannel ch) {
+                            ch.pipeline().addLast(new DatagramDnsQueryDecoder(), new DatagramDnsResponseEncoder(), new QueryHandler());
+                        }
+                    })
+                    .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+                    .sync()
+                    .channel();
+        }
+
+        InetSocketAddress getAddress() {
+            return (InetSocketAddress) channel.localAddress();
+        }
+
+        void addRecord(String name, DnsRecordType type, InetAddress address, long ttlSeconds) {
+            records.put(key(name, type), new StubRecord(address.getAddress(), ttlSeconds));
+        }
+
+        void setResponseDelay(long delay, TimeUnit timeUnit) {
+            responseDelayMs = timeUnit.toMillis(delay);
+        }
+
+        int getQueryCount(String name, DnsRecordType type) {
+            AtomicInteger queryCount = queryCounts.get(key(name, type));
+            return queryCount == null ? 0 : queryCount.get();
+        }
+
+        void close() {
+            channel.close().awaitUninterruptibly();
+            eventLoopGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        }
+
+        private static String key(String name, DnsRecordType type) {
+            return type.name() + ' ' + (name.endsWith(".") ? name.substring(0, name.length() - 1) : name);
+        }
+
+        private class QueryHandler extends SimpleChannelInboundHandler<DatagramDnsQuery> {
+            @Override
+            protected void channelRead0(ChannelHandlerContext ctx, DatagramDnsQuery query) {
+                DnsQuestion question = query.recordAt(DnsSection.QUESTION);
+                String key = key(question.name(), question.type());
+                queryCounts.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+
+                DatagramDnsResponse response = new DatagramDnsResponse(query.recipient(), query.sender(), query.id());
+                response.addRecord(DnsSection.QUESTION, question);
+
+                StubRecord record = records.get(key);
+                if (record != null) {
+                    response.addRecord(DnsSection.ANSWER, record.newRecord(question));
+                } else if (!records.containsKey(key(question.name(), DnsRecordType.A))
+                        && !records.containsKey(key(question.name(), DnsRecordType.AAAA))) {
+                    response.setCode(DnsResponseCode.NXDOMAIN);
+                }
+
+                long delayMs = responseDelayMs;
+                if (delayMs > 0) {
+                    ctx.executor().schedule(() -> ctx.writeAndFlush(response), delayMs, TimeUnit.MILLISECONDS);
+                } else {
+                    ctx.writeAndFlush(response);
+                }
+            }
+        }
+    }
+
+    private static class StubRecord {
+        private final byte[] address;
+        private final long ttlSeconds;
+
+        StubRecord(byte[] address, long ttlSeconds) {
+            this.address = address;
+            this.ttlSeconds = ttlSeconds;
+        }
+
+        DefaultDnsRawRecord newRecord(DnsQuestion question) {
+            return new DefaultDnsRawRecord(question.name(), question.type(), ttlSeconds, Unpooled.wrappedBuffer(address));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.browserup.harreader.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+
+public class ChunkedAppendListTest {
+
+    @Test
+    public void testAddAndGetAcrossChunks() {
+        ChunkedAppendList<Integer> list = new ChunkedAppendList<>();
+        List<Integer> expected = new ArrayList<>();
+
+        for (int i = 0; i < 10000; i++) {
+            list.add(i);
+            expected.add(i);
+        }
+
+        Assert.assertEquals(10000, list.size());
+        Assert.assertEquals(expected, list);
+        Assert.assertEquals(expected, new ArrayList<>(list));
+        Assert.assertEquals(expected, list.stream().collect(Collectors.toList()));
+
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertEquals(Integer.valueOf(i), list.get(i));
+        }
+    }
+
+    @Test
+    public void testCopyConstructor() {
+        ChunkedAppendList<String> list = new ChunkedAppendList<>(Arrays.asList("a", "b", "c"));
+
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), list);
+    }
+
+    @Test
+    public void testIteratorIsSnapshot() {
+        ChunkedAppendList<String> list = new ChunkedAppendList<>(Arrays.asList("a", "b"));
+
+        Iterator<String> iterator = list.iterator();
+        list.add("c");
+
+        Assert.assertEquals("a", iterator.next());
+        Assert.assertEquals("b", iterator.next());
+        Assert.assertFalse(iterator.hasNext());
+
+        Assert.assertEquals(3, list.size());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testGetOutOfBounds() {
+        ChunkedAppendList<String> list = new ChunkedAppendList<>(Arrays.asList("a", "b"));
+
+        list.get(2);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testAddNull() {
+        new ChunkedAppendList<String>().add(null);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testRemoveUnsupported() {
+        ChunkedAppendList<String> list = new ChunkedAppendList<>(Arrays.asList("a", "b"));
+
+        list.remove(0);
+    }
+
+    @Test
+    public void testSetReplacesElement() {
+        ChunkedAppendList<String> list = new ChunkedAppendList<>(Arrays.asList("a", "b"));
+
+        Assert.assertEquals("a", list.set(0, "c"));
+        Assert.assertEquals(Arrays.asList("c", "b"), list);
+        Assert.assertEquals(1, list.getReplacementCount());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testSetOutOfBounds() {
+        ChunkedAppendList<String> list = new ChunkedAppendList<>(Arrays.asList("a", "b"));
+
+        list.set(2, "c");
+    }
+
+    @Test
+    public void testSort() {
+        ChunkedAppendList<Integer> list = new ChunkedAppendList<>();
+        for (int i = 100; i > 0; i--) {
+            list.add(i);
+        }
+
+        list.sort(null);
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) {
+            expected.add(i);
+        }
+        Assert.assertEquals(expected, list);
+    }
+
+    @Test
+    public void testConcurrentAdd() throws InterruptedException {
+        final int threadCount = 8;
+        final int elementsPerThread = 20000;
+
+        ChunkedAppendList<Integer> list = new ChunkedAppendList<>();
+        CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            final int firstElement = t * elementsPerThread;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                for (int i = 0; i < elementsPerThread; i++) {
+                    list.add(firstElement + i);
+
+                    if (i % 1000 == 0) {
+                        // iterating while other threads append must never observe a missing element
+                        for (Integer element : list) {
+                            Assert.assertNotNull(element);
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(threadCount * elementsPerThread, list.size());
+
+        Set<Integer> distinctElements = new HashSet<>(list);
+        Assert.assertEquals(threadCount * elementsPerThread, distinctElements.size());
+    }
+}
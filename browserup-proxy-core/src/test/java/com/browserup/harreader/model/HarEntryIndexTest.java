@@ -0,0 +1,156 @@
+package com.browserup.harreader.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+public class HarEntryIndexTest {
+
+    @Test
+    public void testRequiredHost() {
+        Assert.assertEquals("example.com", HarEntryIndex.getRequiredHost(Pattern.compile("^https?://example\\.com/.*")));
+        Assert.assertEquals("example.com", HarEntryIndex.getRequiredHost(Pattern.compile("(http|https)://example\\.com/index\\.html$")));
+        Assert.assertEquals("example.com", HarEntryIndex.getRequiredHost(Pattern.compile("^http://Example\\.com:8080/.*")));
+        Assert.assertEquals("example.com", HarEntryIndex.getRequiredHost(Pattern.compile("^http://example\\.com\\?.*")));
+        Assert.assertEquals("example.com", HarEntryIndex.getRequiredHost(Pattern.compile("^http://example\\.com$")));
+        Assert.assertEquals("example.com", HarEntryIndex.getRequiredHost(Pattern.compile("^http://example\\.com", Pattern.CASE_INSENSITIVE)));
+    }
+
+    @Test
+    public void testNoRequiredHostForPatternsThatAllowOtherHosts() {
+        // unescaped dot matches any character
+        Assert.assertNull(HarEntryIndex.getRequiredHost(Pattern.compile("^http://example.com/.*")));
+        // the host continues after an optional slash
+        Assert.assertNull(HarEntryIndex.getRequiredHost(Pattern.compile("^http://example\\.com/?.*")));
+        Assert.assertNull(HarEntryIndex.getRequiredHost(Pattern.compile("^http://example\\.com.*")));
+        Assert.assertNull(HarEntryIndex.getRequiredHost(Pattern.compile("^http://example\\.com/.*|.*")));
+        Assert.assertNull(HarEntryIndex.getRequiredHost(Pattern.compile("^http://(www\\.)?example\\.com/.*")));
+        Assert.assertNull(HarEntryIndex.getRequiredHost(Pattern.compile(".*example\\.com.*")));
+        Assert.assertNull(HarEntryIndex.getRequiredHost(Pattern.compile("^http://example\\.com/.*", Pattern.COMMENTS)));
+    }
+
+    @Test
+    public void testHost() {
+        Assert.assertEquals("example.com", HarEntryIndex.getHost("https://Example.com:8443/path?query"));
+        Assert.assertEquals("example.com", HarEntryIndex.getHost("http://example.com"));
+        Assert.assertEquals("example.com", HarEntryIndex.getHost("http://example.com?query"));
+        Assert.assertNull(HarEntryIndex.getHost("http://user@example.com/"));
+        Assert.assertNull(HarEntryIndex.getHost("example.com/path"));
+        Assert.assertNull(HarEntryIndex.getHost("http://"));
+    }
+
+    @Test
+    public void testFindEntriesMatchesLinearSearch() {
+        HarLog log = new HarLog();
+        List<String> urls = Arrays.asList(
+                "https://example.com/index.html",
+                "https://www.example.com/index.html",
+                "http://example.com:8080/api/items?id=1",
+                "https://user@example.com/index.html",
+                "https://other.org/example.com/index.html",
+                "https://EXAMPLE.com/index.html");
+
+        List<Pattern> patterns = Arrays.asList(
+                Pattern.compile("^https?://example\\.com/.*"),
+                Pattern.compile("^https?://example\\.com/.*", Pattern.CASE_INSENSITIVE),
+                Pattern.compile(".*example\\.com/index\\.html"),
+                Pattern.compile("^http://example\\.com:8080/api/.*"),
+                Pattern.compile("^https://other\\.org/.*"));
+
+        for (int round = 0; round < 3; round++) {
+            for (String url : urls) {
+                log.getEntries().add(createEntry(url, "page_" + round));
+            }
+
+            // search after every round, so cached matches are extended with the entries added since the previous search
+            for (Pattern pattern : patterns) {
+                List<HarEntry> expected = log.getEntries().stream()
+                        .filter(entry -> pattern.matcher(entry.getRequest().getUrl()).matches())
+                        .collect(Collectors.toList());
+
+                Assert.assertEquals("Unexpected entries for pattern " + pattern, expected, log.findEntries(pattern));
+            }
+        }
+    }
+
+    @Test
+    public void testFindEntriesByHostAndPageref() {
+        HarLog log = new HarLog();
+        HarEntry first = createEntry("https://example.com/a", "page_1");
+        HarEntry second = createEntry("https://other.org/b", "page_1");
+        HarEntry third = createEntry("http://Example.com:8080/c", "page_2");
+        log.getEntries().addAll(Arrays.asList(first, second, third));
+
+        Assert.assertEquals(Arrays.asList(first, third), log.findEntriesByHost("example.com"));
+        Assert.assertEquals(Arrays.asList(first, second), log.findEntriesByPageref("page_1"));
+        Assert.assertEquals(Collections.emptyList(), log.findEntriesByPageref("page_3"));
+
+        HarEntry fourth = createEntry("https://example.com/d", "page_2");
+        log.getEntries().add(fourth);
+
+        Assert.assertEquals(Arrays.asList(first, third, fourth), log.findEntriesByHost("EXAMPLE.COM"));
+        Assert.assertEquals(Arrays.asList(third, fourth), log.findEntriesByPageref("page_2"));
+    }
+
+    @Test
+    public void testEntryWithoutUrlIsFoundOnceUrlIsSet() {
+        HarLog log = new HarLog();
+        HarEntry pending = new HarEntry();
+        log.getEntries().add(pending);
+        log.getEntries().add(createEntry("https://example.com/after", "page_1"));
+
+        Pattern pattern = Pattern.compile("^https://example\\.com/.*");
+        Assert.assertEquals(1, log.findEntries(pattern).size());
+
+        pending.getRequest().setUrl("https://example.com/pending");
+
+        Assert.assertEquals(Arrays.asList(pending, log.getEntries().get(1)), log.findEntries(pattern));
+    }
+
+    @Test
+    public void testReplacedEntriesAreSearched() {
+        HarLog log = new HarLog();
+        log.getEntries().add(createEntry("https://example.com/old", "page_1"));
+        Pattern pattern = Pattern.compile("^https://example\\.com/.*");
+        Assert.assertEquals(1, log.findEntries(pattern).size());
+
+        HarEntry replacement = createEntry("https://example.com/new", "page_1");
+        log.setEntries(new ChunkedAppendList<>(Collections.singletonList(replacement)));
+        Assert.assertEquals(Collections.singletonList(replacement), log.findEntries(pattern));
+
+        log.setEntries(Arrays.asList(replacement, createEntry("https://other.org/", "page_1")));
+        Assert.assertEquals(Collections.singletonList(replacement), log.findEntries(pattern));
+    }
+
+    @Test
+    public void testSortedEntriesAreReindexed() {
+        HarLog log = new HarLog();
+        HarEntry first = createEntry("https://example.com/b", "page_1");
+        HarEntry second = createEntry("https://other.org/a", "page_1");
+        HarEntry third = createEntry("https://example.com/a", "page_2");
+        log.getEntries().addAll(Arrays.asList(first, second, third));
+
+        Pattern pattern = Pattern.compile("^https://example\\.com/.*");
+        Assert.assertEquals(Arrays.asList(first, third), log.findEntries(pattern));
+        Assert.assertEquals(Arrays.asList(first, third), log.findEntriesByHost("example.com"));
+
+        log.getEntries().sort(Comparator.comparing(entry -> entry.getRequest().getUrl()));
+
+        Assert.assertEquals(Arrays.asList(third, first), log.findEntries(pattern));
+        Assert.assertEquals(Arrays.asList(third, first), log.findEntriesByHost("example.com"));
+        Assert.assertEquals(Arrays.asList(third), log.findEntriesByPageref("page_2"));
+    }
+
+    private static HarEntry createEntry(String url, String pageref) {
+        HarEntry entry = new HarEntry();
+        entry.getRequest().setUrl(url);
+        entry.setPageref(pageref);
+        return entry;
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.mitm;
+
+import com.browserup.bup.mitm.exception.ExportException;
+import com.browserup.bup.mitm.exception.ImportException;
+import com.browserup.bup.mitm.tools.DefaultSecurityProviderTool;
+import com.browserup.bup.mitm.tools.SecurityProviderTool;
+import com.browserup.bup.mitm.util.MitmConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores impersonated server certificates and their private keys in a directory, so they can be reused when the proxy
+ * is restarted instead of being generated again. Each certificate is saved in its own password-protected PKCS12 file,
+ * in a subdirectory named after the SHA-256 fingerprint of the CA root certificate that signed it. Certificates signed
+ * by a different root certificate are never loaded, so changing the root certificate does not require clearing the
+ * directory.
+ * <p>
+ * <b>The stored private keys can be used to impersonate any of the stored hosts to clients that trust the root
+ * certificate</b>, so the directory should be protected like the root certificate's private key. On file systems that
+ * support POSIX permissions, the directories and files created by the store are only accessible by their owner.
+ */
+public class ImpersonatedCertificateStore {
+    private static final Logger log = LoggerFactory.getLogger(ImpersonatedCertificateStore.class);
+
+    private static final String FILE_EXTENSION = ".p12";
+
+    /**
+     * Certificates that expire within this interval are not loaded, so a certificate does not expire while in use.
+     */
+    private static final long MINIMUM_REMAINING_VALIDITY_MS = TimeUnit.MILLISECONDS.convert(1, TimeUnit.DAYS);
+
+    /**
+     * Permissions of the directories and files created by the store on file systems that support POSIX permissions.
+     */
+    private static final Set<PosixFilePermission> OWNER_ONLY_DIRECTORY_PERMISSIONS = PosixFilePermissions.fromString("rwx------");
+    private static final Set<PosixFilePermission> OWNER_ONLY_FILE_PERMISSIONS = PosixFilePermissions.fromString("rw-------");
+
+    private final File directory;
+    private final String password;
+
+    private SecurityProviderTool securityProviderTool = new DefaultSecurityProviderTool();
+
+    /**
+     * Creates a store that saves impersonated certificates in the specified directory. The directory is created when
+     * the first certificate is saved.
+     *
+     * @param directory directory to store the certificates in
+     * @param password  password used to protect each stored certificate's private key
+     */
+    public ImpersonatedCertificateStore(File directory, String password) {
+        if (directory == null) {
+            throw new IllegalArgumentException("Certificate store directory cannot be null");
+        }
+
+        if (password == null) {
+            throw new IllegalArgumentException("Certificate store password cannot be null");
+        }
+
+        this.directory = directory;
+        this.password = password;
+    }
+
+    /**
+     * Override the default {@link SecurityProviderTool} used to read and write the stored certificates.
+     * @return ImpersonatedCertificateStore
+     * @param securityProviderTool securityProviderTool
+     */
+    public ImpersonatedCertificateStore certificateTool(SecurityProviderTool securityProviderTool) {
+        this.securityProviderTool = securityProviderTool;
+        return this;
+    }
+
+    /**
+     * Loads the stored certificate impersonating the hostname, if one was signed by the root certificate and is not
+     * about to expire.
+     *
+     * @param hostname        impersonated hostname
+     * @param rootCertificate CA root certificate that must have signed the stored certificate
+     * @return the stored certificate and private key, or null if there is no usable certificate for the hostname
+     */
+    public CertificateAndKey load(String hostname, X509Certificate rootCertificate) {
+        File file = new File(getRootCertificateDirectory(rootCertificate), encodeHostname(hostname) + FILE_EXTENSION);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        return loadFile(file, normalizeHostname(hostname));
+    }
+
+    /**
+     * Loads every stored certificate that was signed by the root certificate and is not about to expire.
+     *
+     * @param rootCertificate CA root certificate that must have signed the stored certificates
+     * @return stored certificates and private keys, keyed by impersonated hostname
+     */
+    public Map<String, CertificateAndKey> loadAll(X509Certificate rootCertificate) {
+        Map<String, CertificateAndKey> certificates = new HashMap<>();
+
+        File[] files = getRootCertificateDirectory(rootCertificate).listFiles((dir, name) -> name.endsWith(FILE_EXTENSION));
+        if (files == null) {
+            return certificates;
+        }
+
+        for (File file : files) {
+            String fileName = file.getName();
+            String hostname = decodeHostname(fileName.substring(0, fileName.length() - FILE_EXTENSION.length()));
+            if (hostname == null) {
+                log.debug("Ignoring file in impersonated certificate store that was not created by the store: {}", file);
+                continue;
+            }
+
+            CertificateAndKey certificateAndKey = loadFile(file, hostname);
+            if (certificateAndKey != null) {
+                certificates.put(hostname, certificateAndKey);
+            }
+        }
+
+        return certificates;
+    }
+
+    /**
+     * Saves the certificate impersonating the hostname, replacing any certificate stored for the hostname and root
+     * certificate. The file is written atomically where the file system supports it, so a concurrent or interrupted
+     * save never leaves a partially-written file behind.
+     *
+     * @param hostname          impersonated hostname
+     * @param certificateAndKey impersonated certificate and its private key
+     * @param rootCertificate   CA root certificate that signed the impersonated certificate
+     */
+    public void save(String hostname, CertificateAndKey certificateAndKey, X509Certificate rootCertificate) {
+        File rootCertificateDirectory = getRootCertificateDirectory(rootCertificate);
+        boolean posix = isPosix(rootCertificateDirectory.toPath());
+        try {
+            if (posix) {
+                Files.createDirectories(rootCertificateDirectory.toPath(), PosixFilePermissions.asFileAttribute(OWNER_ONLY_DIRECTORY_PERMISSIONS));
+            } else {
+                Files.createDirectories(rootCertificateDirectory.toPath());
+            }
+        } catch (IOException e) {
+            throw new ExportException("Unable to create impersonated certificate store directory: " + rootCertificateDirectory, e);
+        }
+
+        String normalizedHostname = normalizeHostname(hostname);
+        KeyStore keyStore = securityProviderTool.createServerKeyStore(MitmConstants.DEFAULT_KEYSTORE_TYPE, certificateAndKey, rootCertificate, normalizedHostname, password);
+
+        File file = new File(rootCertificateDirectory, encodeHostname(normalizedHostname) + FILE_EXTENSION);
+        File tempFile;
+        try {
+            // the file holds a private key, so only the owner may read it, regardless of the umask
+            if (posix) {
+                tempFile = Files.createTempFile(rootCertificateDirectory.toPath(), "certificate", ".tmp",
+                        PosixFilePermissions.asFileAttribute(OWNER_ONLY_FILE_PERMISSIONS)).toFile();
+            } else {
+                tempFile = Files.createTempFile(rootCertificateDirectory.toPath(), "certificate", ".tmp").toFile();
+            }
+        } catch (IOException e) {
+            throw new ExportException("Unable to create temporary file in impersonated certificate store directory: " + rootCertificateDirectory, e);
+        }
+
+        try {
+            securityProviderTool.saveKeyStore(tempFile, keyStore, password);
+
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new ExportException("Unable to save impersonated certificate to file: " + file, e);
+        } finally {
+            if (tempFile.exists() && !tempFile.delete()) {
+                log.warn("Unable to delete temporary file in impersonated certificate store: {}", tempFile);
+            }
+        }
+    }
+
+    private static boolean isPosix(Path path) {
+        return path.getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+
+    private CertificateAndKey loadFile(File file, String hostname) {
+        CertificateAndKey certificateAndKey;
+        try {
+            KeyStore keyStore = securityProviderTool.loadKeyStore(file, MitmConstants.DEFAULT_KEYSTORE_TYPE, password);
+
+            KeyStore.Entry entry = keyStore.getEntry(hostname, new KeyStore.PasswordProtection(password.toCharArray()));
+            if (!(entry instanceof KeyStore.PrivateKeyEntry)
+                    || !(((KeyStore.PrivateKeyEntry) entry).getCertificate() instanceof X509Certificate)) {
+                log.warn("Impersonated certificate store file does not contain a certificate and private key for {}: {}", hostname, file);
+                return null;
+            }
+
+            KeyStore.PrivateKeyEntry privateKeyEntry = (KeyStore.PrivateKeyEntry) entry;
+            certificateAndKey = new CertificateAndKey((X509Certificate) privateKeyEntry.getCertificate(), privateKeyEntry.getPrivateKey());
+        } catch (ImportException | GeneralSecurityException e) {
+            log.warn("Unable to load impersonated certificate for {} from file: {}", hostname, file, e);
+            return null;
+        }
+
+        try {
+            certificateAndKey.getCertificate().checkValidity(new Date(System.currentTimeMillis() + MINIMUM_REMAINING_VALIDITY_MS));
+        } catch (CertificateException e) {
+            log.debug("Not loading expired or soon-to-expire impersonated certificate for {} from file: {}", hostname, file);
+            return null;
+        }
+
+        return certificateAndKey;
+    }
+
+    private File getRootCertificateDirectory(X509Certificate rootCertificate) {
+        return new File(directory, getFingerprint(rootCertificate));
+    }
+
+    /**
+     * Returns the lower-case hex SHA-256 fingerprint of the certificate.
+     *
+     * @param certificate certificate to fingerprint
+     * @return the certificate's fingerprint
+     */
+    public static String getFingerprint(X509Certificate certificate) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded());
+        } catch (NoSuchAlgorithmException | CertificateEncodingException e) {
+            throw new ExportException("Unable to compute fingerprint of certificate", e);
+        }
+
+        StringBuilder fingerprint = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            fingerprint.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return fingerprint.toString();
+    }
+
+    private static String normalizeHostname(String hostname) {
+        return hostname.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Encodes the hostname as a file name that is valid on all common file systems. Letters, digits, dots and hyphens
+     * are kept; every other character, such as the colons of IPv6 addresses or the asterisk of a wildcard name, is
+     * replaced by an underscore followed by its four-digit hex code.
+     */
+    static String encodeHostname(String hostname) {
+        String normalizedHostname = normalizeHostname(hostname);
+        StringBuilder encoded = new StringBuilder(normalizedHostname.length());
+        for (int i = 0; i < normalizedHostname.length(); i++) {
+            char c = normalizedHostname.charAt(i);
+            if (c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '.' || c == '-') {
+                encoded.append(c);
+            } else {
+                encoded.append('_').append(String.format("%04x", (int) c));
+            }
+        }
+
+        return encoded.toString();
+    }
+
+    /**
+     * Decodes a file name created by {@link #encodeHostname(String)}, or returns null if it is not a valid encoding.
+     */
+    static String decodeHostname(String encoded) {
+        StringBuilder hostname = new StringBuilder(encoded.length());
+        for (int i = 0; i < encoded.length(); i++) {
+            char c = encoded.charAt(i);
+            if (c != '_') {
+                hostname.append(c);
+                continue;
+            }
+
+            if (i + 5 > encoded.length()) {
+                return null;
+            }
+
+            try {
+                hostname.append((char) Integer.parseInt(encoded.substring(i + 1, i + 5), 16));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            i += 4;
+        }
+
+        return hostname.length() == 0 ? null : hostname.toString();
+    }
+}
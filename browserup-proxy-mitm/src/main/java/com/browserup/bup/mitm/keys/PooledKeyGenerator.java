@@ -0,0 +1,152 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.mitm.keys;
+
+import com.browserup.bup.mitm.stats.CertificateGenerationStatistics;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.KeyPair;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link KeyGenerator} that keeps a bounded pool of key pairs generated in advance by another KeyGenerator, so callers
+ * do not wait for key generation unless the pool is empty. The pool is refilled by a background thread after each key
+ * pair is taken from it. Each key pair is returned only once.
+ * <p>
+ * The background thread is a daemon thread that exits when the pool is full, so the generator does not need to be shut
+ * down.
+ */
+public class PooledKeyGenerator implements KeyGenerator {
+    private static final Logger log = LoggerFactory.getLogger(PooledKeyGenerator.class);
+
+    private final KeyGenerator keyGenerator;
+    private final int poolSize;
+
+    private final BlockingQueue<KeyPair> pool;
+
+    /**
+     * True while a refill task is scheduled or running.
+     */
+    private final AtomicBoolean refilling = new AtomicBoolean();
+
+    private final ThreadPoolExecutor refillExecutor = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder()
+                    .setNameFormat("key-pair-pool-%d")
+                    .setDaemon(true)
+                    .setPriority(Thread.NORM_PRIORITY - 1)
+                    .build());
+
+    /**
+     * Statistics that record whether each key pair was taken from the pool.
+     */
+    private final List<CertificateGenerationStatistics> statistics = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates a pool of key pairs generated by the keyGenerator. The pool starts filling immediately.
+     *
+     * @param keyGenerator generator of the pooled key pairs
+     * @param poolSize     maximum number of key pairs generated in advance
+     */
+    public PooledKeyGenerator(KeyGenerator keyGenerator, int poolSize) {
+        if (keyGenerator == null) {
+            throw new IllegalArgumentException("Key generator cannot be null");
+        }
+
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Key pair pool size must be at least 1");
+        }
+
+        this.keyGenerator = keyGenerator;
+        this.poolSize = poolSize;
+        this.pool = new ArrayBlockingQueue<>(poolSize);
+
+        scheduleRefill();
+    }
+
+    /**
+     * Records pool hits and misses in the statistics, in addition to any statistics already added.
+     *
+     * @param certificateGenerationStatistics statistics to record pool hits and misses in
+     */
+    public void addStatistics(CertificateGenerationStatistics certificateGenerationStatistics) {
+        statistics.add(certificateGenerationStatistics);
+    }
+
+    /**
+     * Returns a key pair from the pool, or generates one on the calling thread if the pool is empty.
+     *
+     * @return a new public/private key pair
+     */
+    @Override
+    public KeyPair generate() {
+        KeyPair keyPair = pool.poll();
+
+        if (keyPair != null) {
+            statistics.forEach(CertificateGenerationStatistics::keyPairPoolHit);
+        } else {
+            statistics.forEach(CertificateGenerationStatistics::keyPairPoolMiss);
+
+            keyPair = keyGenerator.generate();
+        }
+
+        scheduleRefill();
+
+        return keyPair;
+    }
+
+    /**
+     * @return the number of key pairs currently available in the pool
+     */
+    public int getAvailableKeyPairs() {
+        return pool.size();
+    }
+
+    /**
+     * @return the maximum number of key pairs generated in advance
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    private void scheduleRefill() {
+        if (pool.size() < poolSize && refilling.compareAndSet(false, true)) {
+            refillExecutor.execute(this::refill);
+        }
+    }
+
+    private void refill() {
+        try {
+            while (pool.size() < poolSize) {
+                if (!pool.offer(keyGenerator.generate())) {
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            // leave the pool partially filled; the next key pair taken from the pool will try again
+            log.warn("Unable to generate key pair for key pair pool using {}", keyGenerator, e);
+            refilling.set(false);
+            return;
+        }
+
+        refilling.set(false);
+
+        // a key pair may have been taken after the last check above, while the refill was still marked as running
+        scheduleRefill();
+    }
+
+    @Override
+    public String toString() {
+        return "Pooled " + keyGenerator + " (" + poolSize + ")";
+    }
+}
@@ -9,24 +9,36 @@ import com.google.common.base.Suppliers;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
+import com.google.common.net.InetAddresses;
+import com.google.common.net.InternetDomainName;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.netty.buffer.ByteBufAllocator;
 import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
 import io.netty.handler.ssl.SupportedCipherSuiteFilter;
 import com.browserup.bup.mitm.CertificateAndKey;
 import com.browserup.bup.mitm.CertificateAndKeySource;
 import com.browserup.bup.mitm.CertificateInfo;
 import com.browserup.bup.mitm.CertificateInfoGenerator;
 import com.browserup.bup.mitm.HostnameCertificateInfoGenerator;
+import com.browserup.bup.mitm.ImpersonatedCertificateStore;
 import com.browserup.bup.mitm.RootCertificateGenerator;
 import com.browserup.bup.mitm.TrustSource;
 import com.browserup.bup.mitm.exception.MitmException;
 import com.browserup.bup.mitm.exception.SslContextInitializationException;
 import com.browserup.bup.mitm.keys.ECKeyGenerator;
 import com.browserup.bup.mitm.keys.KeyGenerator;
+import com.browserup.bup.mitm.keys.PooledKeyGenerator;
 import com.browserup.bup.mitm.keys.RSAKeyGenerator;
 import com.browserup.bup.mitm.stats.CertificateGenerationStatistics;
+import com.browserup.bup.mitm.stats.TlsSessionStatistics;
 import com.browserup.bup.mitm.tools.DefaultSecurityProviderTool;
 import com.browserup.bup.mitm.tools.SecurityProviderTool;
 import com.browserup.bup.mitm.util.EncryptionUtil;
@@ -43,13 +55,29 @@ import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSession;
 import java.security.KeyPair;
 import java.security.PrivateKey;
+import java.security.cert.CertificateParsingException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 /**
  * An {@link MitmManager} that will create SSLEngines for clients that present impersonated certificates for upstream servers. The impersonated
@@ -59,6 +87,11 @@ import java.util.concurrent.TimeUnit;
 public class ImpersonatingMitmManager implements MitmManager {
     private static final Logger log = LoggerFactory.getLogger(ImpersonatingMitmManager.class);
 
+    /**
+     * The length of a session ticket key: a 16-byte key name, followed by a 16-byte HMAC secret and a 16-byte AES key.
+     */
+    public static final int SESSION_TICKET_KEY_LENGTH = 48;
+
     /**
      * Cipher suites allowed on proxy connections to upstream servers.
      */
@@ -75,10 +108,16 @@ public class ImpersonatingMitmManager implements MitmManager {
     private final Supplier<SslContext> upstreamServerSslContext = Suppliers.memoize(new Supplier<SslContext>() {
         @Override
         public SslContext get() {
-            return SslUtil.getUpstreamServerSslContext(serverCipherSuites, trustSource);
+            return SslUtil.getUpstreamServerSslContext(serverCipherSuites, trustSource, sslProvider, sessionCacheSize, sessionTimeoutSeconds,
+                    upstreamHttp2Enabled);
         }
     });
 
+    /**
+     * The SSL provider used for both the impersonating SslContexts and the upstream server SslContext.
+     */
+    private final SslProvider sslProvider;
+
     /**
      * Cache for impersonating netty SslContexts. SslContexts can be safely reused, so caching the impersonating contexts avoids
      * repeatedly re-impersonating upstream servers.
@@ -129,11 +168,81 @@ public class ImpersonatingMitmManager implements MitmManager {
         }
     });
 
+    /**
+     * Persistent store of impersonated server certificates, or null to generate certificates again after a restart.
+     */
+    private final ImpersonatedCertificateStore certificateStore;
+
+    /**
+     * When true, one wildcard certificate is generated for each registrable domain (such as example.com or example.co.uk)
+     * rather than one certificate per hostname. See {@link Builder#wildcardCertificates(boolean)}.
+     */
+    private final boolean wildcardCertificates;
+
+    /**
+     * The names of the wildcard certificate most recently generated for each registrable domain, keyed by the
+     * certificate's key in the {@link #sslContextCache}. The names of a domain only grow, so a regenerated certificate
+     * still covers every hostname impersonated before.
+     */
+    private final ConcurrentMap<String, Set<String>> wildcardCertificateNames = new ConcurrentHashMap<>();
+
+    /**
+     * Locks that serialize regeneration of the wildcard certificate for a registrable domain.
+     */
+    private final Striped<Lock> wildcardCertificateLocks;
+
+    /**
+     * The key pair used for every impersonated certificate, or null to generate a key pair for each certificate.
+     */
+    private final Supplier<KeyPair> sharedServerKeyPair;
+
+    /**
+     * Executor that generates impersonated certificates, or null to generate them on the thread that requests them.
+     */
+    private final ExecutorService certificateGenerationExecutor;
+
+    /**
+     * Certificate generations that have been submitted to the {@link #certificateGenerationExecutor} and have not
+     * completed yet, keyed by hostname. Concurrent requests for the same hostname share the same generation.
+     */
+    private final ConcurrentMap<String, CompletableFuture<SslContext>> inFlightImpersonations = new ConcurrentHashMap<>();
+
+    /**
+     * Maximum number of TLS sessions cached by each SslContext, or 0 to use the SSL provider's default.
+     */
+    private final long sessionCacheSize;
+
+    /**
+     * Number of seconds a cached TLS session can be resumed, or 0 to use the SSL provider's default.
+     */
+    private final long sessionTimeoutSeconds;
+
+    /**
+     * Session ticket keys shared by all impersonating SslContexts, or an empty list to let each SslContext generate
+     * its own keys. Each key is {@link #SESSION_TICKET_KEY_LENGTH} bytes long.
+     */
+    private final List<byte[]> sessionTicketKeys;
+
+    /**
+     * When true, the impersonating SslContexts offer HTTP/2 to clients using ALPN.
+     */
+    private final boolean clientHttp2Enabled;
+
+    /**
+     * When true, the upstream server SslContext offers HTTP/2 to upstream servers using ALPN.
+     */
+    private final boolean upstreamHttp2Enabled;
+
     /**
      * Simple server certificate generation statistics.
      */
     private final CertificateGenerationStatistics statistics = new CertificateGenerationStatistics();
 
+    /**
+     * TLS session resumption statistics for client and upstream server connections.
+     */
+    private final TlsSessionStatistics sessionStatistics = new TlsSessionStatistics();
+
     /**
      * Creates a new ImpersonatingMitmManager. In general, use {@link ImpersonatingMitmManager.Builder}
      * to construct new instances.
@@ -158,6 +267,63 @@ public class ImpersonatingMitmManager implements MitmManager {
                                     CertificateInfoGenerator certificateInfoGenerator,
                                     Collection<String> serverCipherSuites,
                                     Collection<String> clientCipherSuites) {
+        this(rootCertificateSource, serverKeyGenerator, serverMessageDigest, trustSource, sslContextCacheConcurrencyLevel,
+                cacheExpirationIntervalMs, securityProviderTool, certificateInfoGenerator, serverCipherSuites, clientCipherSuites,
+                null, false, false, null, SslProvider.JDK, 0, 0, null, false, false);
+    }
+
+    /**
+     * Creates a new ImpersonatingMitmManager. If a certificateStore is specified, the impersonated certificates in the
+     * store are reused, and the certificates the manager generates are saved there. The SSLContext cache is populated
+     * with the stored certificates signed by the CA root certificate when the manager is created. In general, use
+     * {@link ImpersonatingMitmManager.Builder} to construct new instances.
+     * @param cacheExpirationIntervalMs cacheExpirationIntervalMs
+     * @param certificateInfoGenerator certificateInfoGenerator
+     * @param clientCipherSuites clientCipherSuites
+     * @param rootCertificateSource rootCertificateSource
+     * @param securityProviderTool securityProviderTool
+     * @param serverCipherSuites serverCipherSuites
+     * @param serverKeyGenerator serverKeyGenerator
+     * @param serverMessageDigest serverMessageDigest
+     * @param sslContextCacheConcurrencyLevel sslContextCacheConcurrencyLevel
+     * @param trustSource trustSource
+     * @param certificateStore persistent store of impersonated certificates, or null to disable persistence
+     * @param wildcardCertificates true to generate one wildcard certificate per registrable domain
+     * @param shareServerKeyPair true to use a single server key pair for every impersonated certificate
+     * @param certificateGenerationExecutor executor that generates impersonated certificates, or null to generate
+     *                                      certificates on the thread that requests them
+     * @param sslProvider SSL provider for client and upstream server connections; falls back to the JDK provider if
+     *                    the requested provider is not available
+     * @param sessionCacheSize maximum number of TLS sessions cached by each SslContext, or 0 for the provider's default
+     * @param sessionTimeoutSeconds number of seconds a cached TLS session can be resumed, or 0 for the provider's default
+     * @param sessionTicketKeys session ticket keys for client connections, each {@link #SESSION_TICKET_KEY_LENGTH} bytes
+     *                          long, or null to generate keys for each impersonating SslContext. The first key
+     *                          encrypts new tickets. Only supported by the OpenSSL provider.
+     * @param clientHttp2Enabled true to offer HTTP/2 to clients using ALPN. The proxy must be able to handle HTTP/2 on
+     *                           client connections, as BrowserUpProxyServer does.
+     * @param upstreamHttp2Enabled true to offer HTTP/2 to upstream servers using ALPN. The proxy must be able to handle
+     *                             HTTP/2 on upstream connections, as BrowserUpProxyServer does.
+     */
+    public ImpersonatingMitmManager(CertificateAndKeySource rootCertificateSource,
+                                    KeyGenerator serverKeyGenerator,
+                                    String serverMessageDigest,
+                                    TrustSource trustSource,
+                                    int sslContextCacheConcurrencyLevel,
+                                    long cacheExpirationIntervalMs,
+                                    SecurityProviderTool securityProviderTool,
+                                    CertificateInfoGenerator certificateInfoGenerator,
+                                    Collection<String> serverCipherSuites,
+                                    Collection<String> clientCipherSuites,
+                                    ImpersonatedCertificateStore certificateStore,
+                                    boolean wildcardCertificates,
+                                    boolean shareServerKeyPair,
+                                    ExecutorService certificateGenerationExecutor,
+                                    SslProvider sslProvider,
+                                    long sessionCacheSize,
+                                    long sessionTimeoutSeconds,
+                                    List<byte[]> sessionTicketKeys,
+                                    boolean clientHttp2Enabled,
+                                    boolean upstreamHttp2Enabled) {
         if (rootCertificateSource == null) {
             throw new IllegalArgumentException("CA root certificate source cannot be null");
         }
@@ -178,6 +344,14 @@ public class ImpersonatingMitmManager implements MitmManager {
             throw new IllegalArgumentException("Certificate info generator cannot be null");
         }
 
+        if (sessionTicketKeys != null) {
+            for (byte[] sessionTicketKey : sessionTicketKeys) {
+                if (sessionTicketKey == null || sessionTicketKey.length != SESSION_TICKET_KEY_LENGTH) {
+                    throw new IllegalArgumentException("Session ticket keys must be " + SESSION_TICKET_KEY_LENGTH + " bytes long");
+                }
+            }
+        }
+
         this.rootCertificateSource = rootCertificateSource;
 
         this.trustSource = trustSource;
@@ -185,6 +359,9 @@ public class ImpersonatingMitmManager implements MitmManager {
         this.serverCertificateMessageDigest = serverMessageDigest;
 
         this.serverKeyGenerator = serverKeyGenerator;
+        if (serverKeyGenerator instanceof PooledKeyGenerator) {
+            ((PooledKeyGenerator) serverKeyGenerator).addStatistics(statistics);
+        }
 
         this.sslContextCache = CacheBuilder.newBuilder()
                 .concurrencyLevel(sslContextCacheConcurrencyLevel)
@@ -200,6 +377,74 @@ public class ImpersonatingMitmManager implements MitmManager {
 
         this.clientCipherSuites = ImmutableList.copyOf(clientCipherSuites);
         log.debug("Allowed ciphers for client connections to proxy (some ciphers may not be available): {}", clientCipherSuites);
+
+        this.wildcardCertificates = wildcardCertificates;
+        this.wildcardCertificateLocks = Striped.lock(sslContextCacheConcurrencyLevel);
+
+        this.sharedServerKeyPair = shareServerKeyPair ? Suppliers.memoize(serverKeyGenerator::generate) : null;
+
+        this.certificateGenerationExecutor = certificateGenerationExecutor;
+
+        this.sslProvider = SslUtil.getAvailableSslProvider(sslProvider);
+        log.debug("Using SSL provider for client and upstream server connections: {}", this.sslProvider);
+
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeoutSeconds = sessionTimeoutSeconds;
+
+        this.sessionTicketKeys = sessionTicketKeys == null ? Collections.emptyList() : ImmutableList.copyOf(sessionTicketKeys);
+        if (!this.sessionTicketKeys.isEmpty() && this.sslProvider == SslProvider.JDK) {
+            log.warn("Session ticket keys are only supported by the OpenSSL provider and will not be used with the {} provider", this.sslProvider);
+        }
+
+        if (clientHttp2Enabled && !SslProvider.isAlpnSupported(this.sslProvider)) {
+            log.warn("ALPN is not supported by the {} provider in this JVM, so HTTP/2 will not be offered to clients", this.sslProvider);
+            this.clientHttp2Enabled = false;
+        } else {
+            this.clientHttp2Enabled = clientHttp2Enabled;
+        }
+
+        if (upstreamHttp2Enabled && !SslProvider.isAlpnSupported(this.sslProvider)) {
+            log.warn("ALPN is not supported by the {} provider in this JVM, so HTTP/2 will not be offered to upstream servers", this.sslProvider);
+            this.upstreamHttp2Enabled = false;
+        } else {
+            this.upstreamHttp2Enabled = upstreamHttp2Enabled;
+        }
+
+        this.certificateStore = certificateStore;
+        if (certificateStore != null) {
+            loadStoredCertificates();
+        }
+    }
+
+    /**
+     * Populates the SSLContext cache with the certificates in the {@link #certificateStore} that were signed by the CA
+     * root certificate, so connections to previously impersonated hosts do not wait for certificate generation.
+     */
+    private void loadStoredCertificates() {
+        long loadStart = System.currentTimeMillis();
+
+        Map<String, CertificateAndKey> storedCertificates;
+        try {
+            storedCertificates = certificateStore.loadAll(rootCertificate.get().getCertificate());
+        } catch (RuntimeException e) {
+            log.warn("Unable to load impersonated certificates from certificate store", e);
+            return;
+        }
+
+        for (Map.Entry<String, CertificateAndKey> storedCertificate : storedCertificates.entrySet()) {
+            try {
+                sslContextCache.put(storedCertificate.getKey(), createImpersonatingSslContext(storedCertificate.getValue()));
+                statistics.certificateLoaded();
+
+                if (wildcardCertificates && storedCertificate.getKey().startsWith("*.")) {
+                    wildcardCertificateNames.put(storedCertificate.getKey(), getSubjectAlternativeNames(storedCertificate.getValue().getCertificate()));
+                }
+            } catch (RuntimeException e) {
+                log.warn("Unable to create SslContext for stored impersonated certificate for host: {}", storedCertificate.getKey(), e);
+            }
+        }
+
+        log.debug("Loaded {} impersonated certificates from certificate store in {}ms", storedCertificates.size(), System.currentTimeMillis() - loadStart);
     }
 
     @Override
@@ -234,7 +479,7 @@ public class ImpersonatingMitmManager implements MitmManager {
         String requestedHostname = HttpUtil.getHostFromRequest(httpRequest);
 
         try {
-            SslContext ctx = getHostnameImpersonatingSslContext(requestedHostname, sslSession);
+            SslContext ctx = awaitImpersonatingSslContext(requestedHostname, sslSession);
 
             return ctx.newEngine(ByteBufAllocator.DEFAULT);
         } catch (RuntimeException e) {
@@ -242,6 +487,130 @@ public class ImpersonatingMitmManager implements MitmManager {
         }
     }
 
+    /**
+     * Starts generating the certificate impersonating the hostname in the background, if it is not cached, so it may be
+     * ready by the time the client handshake needs it. Call this when the hostname is known before the connection to
+     * the upstream server is established, such as when the client's CONNECT is received.
+     * <p>
+     * The certificate is generated without the upstream server's certificate, so this should only be used with a
+     * {@link CertificateInfoGenerator} that does not need it, such as the default {@link HostnameCertificateInfoGenerator}.
+     *
+     * @param hostname hostname that will be impersonated
+     * @return a future that completes with the SSLContext impersonating the hostname
+     */
+    public CompletableFuture<SslContext> prepareImpersonatingSslContext(String hostname) {
+        return getImpersonatingSslContextAsync(hostname, null);
+    }
+
+    /**
+     * Retrieves an SSLContext that impersonates the specified hostname without blocking the calling thread for
+     * certificate generation, unless no certificate generation executor is configured or its queue is full. If the
+     * SSLContext is cached, the returned future is already complete. Otherwise, the certificate is generated on the
+     * certificate generation executor, and concurrent requests for the same hostname share the same generation.
+     *
+     * @param hostnameToImpersonate the hostname for which the impersonated SSLContext is being requested
+     * @param sslSession the upstream server SSLSession, or null if the upstream server's certificate is not available
+     * @return a future that completes with the SSLContext impersonating the hostname
+     */
+    public CompletableFuture<SslContext> getImpersonatingSslContextAsync(String hostnameToImpersonate, SSLSession sslSession) {
+        SslContext cachedSslContext = getCachedImpersonatingSslContext(hostnameToImpersonate);
+        if (cachedSslContext != null) {
+            return CompletableFuture.completedFuture(cachedSslContext);
+        }
+
+        if (certificateGenerationExecutor == null) {
+            CompletableFuture<SslContext> future = new CompletableFuture<>();
+            completeImpersonation(hostnameToImpersonate, sslSession, future);
+
+            return future;
+        }
+
+        CompletableFuture<SslContext> future = new CompletableFuture<>();
+        CompletableFuture<SslContext> inFlightFuture = inFlightImpersonations.putIfAbsent(hostnameToImpersonate, future);
+        if (inFlightFuture != null) {
+            statistics.certificateRequestCoalesced();
+
+            return inFlightFuture;
+        }
+
+        long queuedTime = System.currentTimeMillis();
+        statistics.certificateGenerationQueued();
+        try {
+            certificateGenerationExecutor.execute(() -> {
+                statistics.certificateGenerationStarted(queuedTime, System.currentTimeMillis());
+
+                completeImpersonation(hostnameToImpersonate, sslSession, future);
+            });
+        } catch (RejectedExecutionException e) {
+            // the queue is full, so generate the certificate on the calling thread, as if there were no executor
+            statistics.certificateGenerationStarted(queuedTime, queuedTime);
+
+            completeImpersonation(hostnameToImpersonate, sslSession, future);
+        }
+
+        return future;
+    }
+
+    /**
+     * Retrieves the SSLContext impersonating the hostname, waiting for its certificate to be generated if necessary.
+     *
+     * @param hostnameToImpersonate the hostname for which the impersonated SSLContext is being requested
+     * @param sslSession the upstream server SSLSession
+     * @return SSLContext which will present an impersonated certificate
+     */
+    private SslContext awaitImpersonatingSslContext(String hostnameToImpersonate, SSLSession sslSession) {
+        CompletableFuture<SslContext> future = getImpersonatingSslContextAsync(hostnameToImpersonate, sslSession);
+
+        long waitStart = System.currentTimeMillis();
+        boolean waited = !future.isDone();
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new SslContextInitializationException("Interrupted while waiting to impersonate the remote host: " + hostnameToImpersonate, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new SslContextInitializationException("An error occurred while impersonating the remote host: " + hostnameToImpersonate, e.getCause());
+        } finally {
+            if (waited) {
+                statistics.handshakeWaitedForCertificate(System.currentTimeMillis() - waitStart);
+            }
+        }
+    }
+
+    /**
+     * Completes the future with the SSLContext impersonating the hostname, generating its certificate on the calling
+     * thread if necessary, and removes the future from the in-flight impersonations.
+     */
+    private void completeImpersonation(String hostnameToImpersonate, SSLSession sslSession, CompletableFuture<SslContext> future) {
+        try {
+            future.complete(getHostnameImpersonatingSslContext(hostnameToImpersonate, sslSession));
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        } finally {
+            inFlightImpersonations.remove(hostnameToImpersonate, future);
+        }
+    }
+
+    /**
+     * Returns the cached SSLContext that impersonates the hostname, or null if the hostname's certificate has not been
+     * generated yet.
+     */
+    private SslContext getCachedImpersonatingSslContext(String hostname) {
+        if (wildcardCertificates) {
+            String registrableDomain = getRegistrableDomain(hostname);
+            if (registrableDomain != null) {
+                return getCachedWildcardSslContext("*." + registrableDomain, getWildcardName(hostname.toLowerCase(Locale.ROOT), registrableDomain));
+            }
+        }
+
+        return sslContextCache.getIfPresent(hostname);
+    }
+
     /**
      * Retrieves an SSLContext that impersonates the specified hostname. If an impersonating SSLContext has already been
      * created for this hostname and is stored in the cache, it will be reused. Otherwise, a certificate will be created
@@ -252,6 +621,13 @@ public class ImpersonatingMitmManager implements MitmManager {
      * @return SSLContext which will present an impersonated certificate
      */
     private SslContext getHostnameImpersonatingSslContext(final String hostnameToImpersonate, final SSLSession sslSession) {
+        if (wildcardCertificates) {
+            String registrableDomain = getRegistrableDomain(hostnameToImpersonate);
+            if (registrableDomain != null) {
+                return getWildcardImpersonatingSslContext(hostnameToImpersonate.toLowerCase(Locale.ROOT), registrableDomain, sslSession);
+            }
+        }
+
         try {
             return sslContextCache.get(hostnameToImpersonate, new Callable<SslContext>() {
                 @Override
@@ -262,44 +638,242 @@ public class ImpersonatingMitmManager implements MitmManager {
         } catch (ExecutionException e) {
             throw new SslContextInitializationException("An error occurred while impersonating the remote host: " + hostnameToImpersonate, e);
         }
+    }
+
+    /**
+     * Retrieves the SSLContext presenting the wildcard certificate for the hostname's registrable domain, which is
+     * cached under the key "*.registrable.domain". A wildcard only matches a single label, so the certificate's names are
+     * the registrable domain, and a wildcard for the parent domain of each hostname impersonated so far. If the cached
+     * certificate does not cover the hostname, it is regenerated with the hostname's wildcard added to its names.
+     *
+     * @param hostnameToImpersonate lower-cased hostname for which the impersonated SSLContext is being requested
+     * @param registrableDomain the hostname's registrable domain
+     * @param sslSession the upstream server SSLSession
+     * @return SSLContext which will present an impersonated certificate covering the hostname
+     */
+    private SslContext getWildcardImpersonatingSslContext(String hostnameToImpersonate, String registrableDomain, SSLSession sslSession) {
+        String cacheKey = "*." + registrableDomain;
+        String requiredName = getWildcardName(hostnameToImpersonate, registrableDomain);
+
+        SslContext sslContext = getCachedWildcardSslContext(cacheKey, requiredName);
+        if (sslContext != null) {
+            return sslContext;
+        }
+
+        Lock lock = wildcardCertificateLocks.get(cacheKey);
+        lock.lock();
+        try {
+            sslContext = getCachedWildcardSslContext(cacheKey, requiredName);
+            if (sslContext != null) {
+                return sslContext;
+            }
+
+            Set<String> names = new LinkedHashSet<>();
+            names.add(cacheKey);
+            names.add(registrableDomain);
+            Set<String> previousNames = wildcardCertificateNames.get(cacheKey);
+            if (previousNames != null) {
+                names.addAll(previousNames);
+            }
+            names.add(requiredName);
+
+            if (certificateStore != null) {
+                CertificateAndKey storedCertificateAndKey = loadStoredCertificate(cacheKey);
+                if (storedCertificateAndKey != null) {
+                    Set<String> storedNames = getSubjectAlternativeNames(storedCertificateAndKey.getCertificate());
+                    if (storedNames.containsAll(names)) {
+                        statistics.certificateLoaded();
+
+                        sslContext = createImpersonatingSslContext(storedCertificateAndKey);
+                        names = storedNames;
+                    }
+                }
+            }
+
+            if (sslContext == null) {
+                sslContext = generateImpersonatingSslContext(sslSession, cacheKey, new ArrayList<>(names));
+            }
+
+            // publish the SSLContext before its names, so a concurrent lookup never pairs the new names with the old context
+            sslContextCache.put(cacheKey, sslContext);
+            wildcardCertificateNames.put(cacheKey, Collections.unmodifiableSet(names));
+
+            return sslContext;
+        } catch (RuntimeException e) {
+            throw new SslContextInitializationException("An error occurred while impersonating the remote host: " + hostnameToImpersonate, e);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        //TODO: generate wildcard certificates, rather than one certificate per host, to reduce the number of certs generated
+    /**
+     * Returns the name a wildcard certificate must have to cover the hostname: the registrable domain itself, or a
+     * wildcard for the hostname's parent domain.
+     */
+    private static String getWildcardName(String hostname, String registrableDomain) {
+        if (hostname.equals(registrableDomain)) {
+            return registrableDomain;
+        }
+
+        return "*." + hostname.substring(hostname.indexOf('.') + 1);
+    }
+
+    /**
+     * Returns the cached wildcard SSLContext for the cacheKey if its certificate covers the requiredName, otherwise null.
+     */
+    private SslContext getCachedWildcardSslContext(String cacheKey, String requiredName) {
+        Set<String> names = wildcardCertificateNames.get(cacheKey);
+        if (names == null || !names.contains(requiredName)) {
+            return null;
+        }
+
+        return sslContextCache.getIfPresent(cacheKey);
+    }
+
+    /**
+     * Returns the registrable domain of the hostname, such as example.com for www.example.com, or null if the hostname
+     * is an IP address or is not under a public suffix.
+     */
+    private static String getRegistrableDomain(String hostname) {
+        if (hostname == null || InetAddresses.isInetAddress(hostname) || !InternetDomainName.isValid(hostname)) {
+            return null;
+        }
+
+        InternetDomainName domainName = InternetDomainName.from(hostname);
+        if (!domainName.isUnderPublicSuffix()) {
+            return null;
+        }
+
+        return domainName.topPrivateDomain().toString();
+    }
+
+    /**
+     * Returns the DNS names and IP addresses in the certificate's subject alternative names.
+     */
+    private static Set<String> getSubjectAlternativeNames(X509Certificate certificate) {
+        Collection<List<?>> subjectAlternativeNames;
+        try {
+            subjectAlternativeNames = certificate.getSubjectAlternativeNames();
+        } catch (CertificateParsingException e) {
+            log.warn("Unable to parse subject alternative names of certificate: {}", certificate.getSubjectX500Principal(), e);
+            return Collections.emptySet();
+        }
+
+        if (subjectAlternativeNames == null) {
+            return Collections.emptySet();
+        }
+
+        Set<String> names = new HashSet<>();
+        for (List<?> subjectAlternativeName : subjectAlternativeNames) {
+            if (subjectAlternativeName.size() > 1 && subjectAlternativeName.get(1) instanceof String) {
+                names.add(((String) subjectAlternativeName.get(1)).toLowerCase(Locale.ROOT));
+            }
+        }
+
+        return names;
     }
 
     /**
      * Creates an SSLContext that will present an impersonated certificate for the specified hostname to the client.
-     * This is a convenience method for {@link #createImpersonatingSslContext(CertificateInfo)} that generates the
-     * {@link CertificateInfo} from the specified hostname using the {@link #certificateInfoGenerator}.
+     * The certificate is loaded from the {@link #certificateStore}, if one is configured and contains a certificate for
+     * the hostname. Otherwise, a certificate is generated from the {@link CertificateInfo} returned by the
+     * {@link #certificateInfoGenerator}, and saved to the certificate store.
      *
      * @param sslSession sslSession between the proxy and the upstream server
      * @param hostnameToImpersonate hostname (supplied by the client's HTTP CONNECT) that will be impersonated
      * @return an SSLContext presenting a certificate matching the hostnameToImpersonate
      */
     private SslContext createImpersonatingSslContext(SSLSession sslSession, String hostnameToImpersonate) {
+        // reuse the certificate generated for this host by a previous run, or before the SslContext expired from the cache
+        if (certificateStore != null) {
+            CertificateAndKey storedCertificateAndKey = loadStoredCertificate(hostnameToImpersonate);
+            if (storedCertificateAndKey != null) {
+                statistics.certificateLoaded();
+
+                return createImpersonatingSslContext(storedCertificateAndKey);
+            }
+        }
+
+        return generateImpersonatingSslContext(sslSession, hostnameToImpersonate, Collections.singletonList(hostnameToImpersonate));
+    }
+
+    /**
+     * Generates a certificate for the hostnames and creates an SSLContext that will present it to the client. The
+     * certificate is saved to the {@link #certificateStore} under the storeKey, if a certificate store is configured.
+     *
+     * @param sslSession sslSession between the proxy and the upstream server, or null if it is not available
+     * @param storeKey key of the certificate in the certificate store
+     * @param hostnames hostnames, which may include wildcards, the certificate will be generated for
+     * @return an SSLContext presenting a certificate matching the hostnames
+     */
+    private SslContext generateImpersonatingSslContext(SSLSession sslSession, String storeKey, List<String> hostnames) {
         // get the upstream server's certificate so the certificateInfoGenerator can (optionally) use it to construct a forged certificate
-        X509Certificate originalCertificate = SslUtil.getServerCertificate(sslSession);
+        X509Certificate originalCertificate = sslSession != null ? SslUtil.getServerCertificate(sslSession) : null;
 
         // get the CertificateInfo that will be used to populate the impersonated X509Certificate
-        CertificateInfo certificateInfo = certificateInfoGenerator.generate(Collections.singletonList(hostnameToImpersonate), originalCertificate);
+        CertificateInfo certificateInfo = certificateInfoGenerator.generate(hostnames, originalCertificate);
+
+        long impersonationStart = System.currentTimeMillis();
 
-        SslContext sslContext = createImpersonatingSslContext(certificateInfo);
+        CertificateAndKey impersonatedCertificateAndKey = createImpersonatedCertificate(certificateInfo);
+
+        SslContext sslContext = createImpersonatingSslContext(impersonatedCertificateAndKey);
+
+        long impersonationFinish = System.currentTimeMillis();
+
+        statistics.certificateCreated(impersonationStart, impersonationFinish);
+
+        log.debug("Impersonated certificate for {} in {}ms", certificateInfo.getCommonName(), impersonationFinish - impersonationStart);
+
+        if (certificateStore != null) {
+            storeCertificate(storeKey, impersonatedCertificateAndKey);
+        }
 
         return sslContext;
     }
 
     /**
-     * Generates an {@link SslContext} using an impersonated certificate containing the information in the specified
-     * certificateInfo.
+     * Loads the certificate impersonating the hostname from the {@link #certificateStore}. Errors are logged rather than
+     * thrown, since a new certificate can be generated instead.
      *
-     * @param certificateInfo certificate information to impersonate
-     * @return an SslContext that will present the impersonated certificate to the client
+     * @param hostname impersonated hostname
+     * @return the stored certificate and private key, or null if no usable certificate is stored
      */
-    private SslContext createImpersonatingSslContext(CertificateInfo certificateInfo) {
-        long impersonationStart = System.currentTimeMillis();
+    private CertificateAndKey loadStoredCertificate(String hostname) {
+        try {
+            return certificateStore.load(hostname, rootCertificate.get().getCertificate());
+        } catch (RuntimeException e) {
+            log.warn("Unable to load impersonated certificate for host {} from certificate store", hostname, e);
+            return null;
+        }
+    }
 
+    /**
+     * Saves the certificate impersonating the hostname to the {@link #certificateStore}. Errors are logged rather than
+     * thrown, since the certificate can still be used for this run.
+     *
+     * @param hostname          impersonated hostname
+     * @param certificateAndKey impersonated certificate and private key
+     */
+    private void storeCertificate(String hostname, CertificateAndKey certificateAndKey) {
+        try {
+            certificateStore.save(hostname, certificateAndKey, rootCertificate.get().getCertificate());
+        } catch (RuntimeException e) {
+            log.warn("Unable to save impersonated certificate for host {} to certificate store", hostname, e);
+        }
+    }
+
+    /**
+     * Generates an impersonated certificate containing the information in the specified certificateInfo, signed by the
+     * CA root certificate.
+     *
+     * @param certificateInfo certificate information to impersonate
+     * @return the impersonated certificate and its private key
+     */
+    private CertificateAndKey createImpersonatedCertificate(CertificateInfo certificateInfo) {
         // generate a public and private key pair for the forged certificate. the SslContext will send the impersonated certificate to clients
         // to impersonate the real upstream server, and will use the private key to encrypt the channel.
-        KeyPair serverKeyPair = serverKeyGenerator.generate();
+        KeyPair serverKeyPair = sharedServerKeyPair != null ? sharedServerKeyPair.get() : serverKeyGenerator.generate();
 
         // get the CA root certificate and private key that will be used to sign the forged certificate
         X509Certificate caRootCertificate = rootCertificate.get().getCertificate();
@@ -326,22 +900,56 @@ public class ImpersonatingMitmManager implements MitmManager {
                 serverKeyPair,
                 serverCertificateMessageDigest);
 
+        return impersonatedCertificateAndKey;
+    }
+
+    /**
+     * Creates an {@link SslContext} that presents the impersonated certificate, followed by the CA root certificate, to
+     * the client.
+     *
+     * @param impersonatedCertificateAndKey impersonated certificate and its private key
+     * @return an SslContext that will present the impersonated certificate to the client
+     */
+    private SslContext createImpersonatingSslContext(CertificateAndKey impersonatedCertificateAndKey) {
+        X509Certificate caRootCertificate = rootCertificate.get().getCertificate();
+
         X509Certificate[] certChain = {impersonatedCertificateAndKey.getCertificate(), caRootCertificate};
         SslContext sslContext;
         try {
-            sslContext = SslContextBuilder.forServer(impersonatedCertificateAndKey.getPrivateKey(), certChain)
+            SslContextBuilder sslContextBuilder = SslContextBuilder.forServer(impersonatedCertificateAndKey.getPrivateKey(), certChain)
+                    .sslProvider(sslProvider)
                     .ciphers(clientCipherSuites, SupportedCipherSuiteFilter.INSTANCE)
-                    .build();
+                    .sessionCacheSize(sessionCacheSize)
+                    .sessionTimeout(sessionTimeoutSeconds);
+
+            if (clientHttp2Enabled) {
+                // clients that do not support ALPN, or do not offer h2, continue to use HTTP/1.1
+                sslContextBuilder.applicationProtocolConfig(new ApplicationProtocolConfig(
+                        ApplicationProtocolConfig.Protocol.ALPN,
+                        ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                        ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                        ApplicationProtocolNames.HTTP_2,
+                        ApplicationProtocolNames.HTTP_1_1));
+            }
+
+            sslContext = sslContextBuilder.build();
 
         } catch (SSLException e) {
             throw new MitmException("Error creating SslContext for connection to client using impersonated certificate and private key", e);
         }
 
-        long impersonationFinish = System.currentTimeMillis();
-
-        statistics.certificateCreated(impersonationStart, impersonationFinish);
+        if (!sessionTicketKeys.isEmpty() && sslContext.sessionContext() instanceof OpenSslSessionContext) {
+            OpenSslSessionTicketKey[] ticketKeys = new OpenSslSessionTicketKey[sessionTicketKeys.size()];
+            for (int i = 0; i < ticketKeys.length; i++) {
+                byte[] sessionTicketKey = sessionTicketKeys.get(i);
+                ticketKeys[i] = new OpenSslSessionTicketKey(
+                        Arrays.copyOfRange(sessionTicketKey, 0, 16),
+                        Arrays.copyOfRange(sessionTicketKey, 16, 32),
+                        Arrays.copyOfRange(sessionTicketKey, 32, 48));
+            }
 
-        log.debug("Impersonated certificate for {} in {}ms", certificateInfo.getCommonName(), impersonationFinish - impersonationStart);
+            ((OpenSslSessionContext) sslContext.sessionContext()).setTicketKeys(ticketKeys);
+        }
 
         return sslContext;
     }
@@ -354,6 +962,42 @@ public class ImpersonatingMitmManager implements MitmManager {
         return this.statistics;
     }
 
+    /**
+     * Returns TLS session resumption statistics for this MitmManager. Handshakes are recorded by the proxy server
+     * when connections using this MitmManager complete their handshakes.
+     * @return TlsSessionStatistics
+     */
+    public TlsSessionStatistics getSessionStatistics() {
+        return this.sessionStatistics;
+    }
+
+    /**
+     * Returns true if the impersonating SslContexts offer HTTP/2 to clients using ALPN. This is false if HTTP/2 was
+     * requested but the SSL provider does not support ALPN in this JVM.
+     * @return true if HTTP/2 is offered to clients
+     */
+    public boolean isClientHttp2Enabled() {
+        return this.clientHttp2Enabled;
+    }
+
+    /**
+     * Returns true if the upstream server SslContext offers HTTP/2 to upstream servers using ALPN. This is false if
+     * HTTP/2 was requested but the SSL provider does not support ALPN in this JVM.
+     * @return true if HTTP/2 is offered to upstream servers
+     */
+    public boolean isUpstreamHttp2Enabled() {
+        return this.upstreamHttp2Enabled;
+    }
+
+    /**
+     * Returns the SSL provider used for client and upstream server connections. This is the JDK provider if the
+     * requested provider was not available.
+     * @return SslProvider
+     */
+    public SslProvider getSslProvider() {
+        return this.sslProvider;
+    }
+
     /**
      * Convenience method to return a new {@link Builder} instance default default values: a {@link RootCertificateGenerator}
      * that dynamically generates an RSA root certificate and RSA server certificates.
@@ -399,6 +1043,30 @@ public class ImpersonatingMitmManager implements MitmManager {
 
         private Collection<String> clientCiphers;
 
+        private ImpersonatedCertificateStore certificateStore;
+
+        private int serverKeyPairPoolSize;
+
+        private boolean wildcardCertificates;
+
+        private boolean shareServerKeyPair;
+
+        private int certificateGenerationThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+        private int certificateGenerationQueueCapacity = 256;
+
+        private SslProvider sslProvider = SslProvider.JDK;
+
+        private long sessionCacheSize;
+
+        private long sessionTimeoutSeconds;
+
+        private List<byte[]> sessionTicketKeys;
+
+        private boolean clientHttp2;
+
+        private boolean upstreamHttp2;
+
         /**
          * The source of the CA root certificate that will be used to sign the impersonated server certificates. Custom
          * certificates can be used by supplying an implementation of {@link CertificateAndKeySource}, such as
@@ -465,6 +1133,152 @@ public class ImpersonatingMitmManager implements MitmManager {
             return this;
         }
 
+        /**
+         * The number of server key pairs to generate in advance on a background thread, so impersonating a new host
+         * only waits for the certificate to be signed. The pooled key pairs are generated by the
+         * {@link #serverKeyGenerator(KeyGenerator)}. Pool hits and misses are recorded in the
+         * {@link CertificateGenerationStatistics}. Defaults to 0, which generates key pairs when they are needed.
+         * @return Builder
+         * @param serverKeyPairPoolSize serverKeyPairPoolSize
+         */
+        public Builder serverKeyPairPoolSize(int serverKeyPairPoolSize) {
+            this.serverKeyPairPoolSize = serverKeyPairPoolSize;
+            return this;
+        }
+
+        /**
+         * When true, one wildcard certificate is generated for each registrable domain, such as example.com or
+         * example.co.uk, rather than one certificate per hostname, so the number of certificates generated grows with
+         * the number of domains rather than hosts. When a hostname in a new subdomain of the registrable domain is
+         * impersonated, the domain's certificate is regenerated with a wildcard for that subdomain added, so it keeps
+         * covering every hostname impersonated before. IP addresses and hostnames that are not under a public suffix
+         * still get their own certificate. Defaults to false.
+         * @return Builder
+         * @param wildcardCertificates wildcardCertificates
+         */
+        public Builder wildcardCertificates(boolean wildcardCertificates) {
+            this.wildcardCertificates = wildcardCertificates;
+            return this;
+        }
+
+        /**
+         * When true, a single server key pair is generated by the {@link #serverKeyGenerator(KeyGenerator)} and used for
+         * every impersonated certificate, so impersonating a host only waits for the certificate to be signed. This
+         * weakens the isolation between impersonated hosts, which is usually acceptable for testing. Defaults to false.
+         * @return Builder
+         * @param shareServerKeyPair shareServerKeyPair
+         */
+        public Builder shareServerKeyPair(boolean shareServerKeyPair) {
+            this.shareServerKeyPair = shareServerKeyPair;
+            return this;
+        }
+
+        /**
+         * The number of threads that generate impersonated certificates, so certificate generation does not block the
+         * threads that handle connections. Concurrent requests for the same hostname share a single generation. Set to 0
+         * to generate certificates on the thread that requests them. Defaults to half the number of available processors.
+         * @return Builder
+         * @param certificateGenerationThreads certificateGenerationThreads
+         */
+        public Builder certificateGenerationThreads(int certificateGenerationThreads) {
+            this.certificateGenerationThreads = certificateGenerationThreads;
+            return this;
+        }
+
+        /**
+         * The maximum number of certificate generations waiting for a certificate generation thread. When the queue is
+         * full, certificates are generated on the thread that requests them. Defaults to 256.
+         * @return Builder
+         * @param certificateGenerationQueueCapacity certificateGenerationQueueCapacity
+         */
+        public Builder certificateGenerationQueueCapacity(int certificateGenerationQueueCapacity) {
+            this.certificateGenerationQueueCapacity = certificateGenerationQueueCapacity;
+            return this;
+        }
+
+        /**
+         * The SSL provider used for client connections to the proxy and proxy connections to upstream servers. The
+         * OpenSSL provider performs handshakes and bulk encryption considerably faster than the JDK provider, but
+         * requires netty-tcnative (such as netty-tcnative-boringssl-static) on the classpath. If the provider is not
+         * available, the JDK provider is used. {@link SslProvider#OPENSSL_REFCNT} is treated as
+         * {@link SslProvider#OPENSSL}, since cached SslContexts are released when they are garbage collected.
+         * Defaults to {@link SslProvider#JDK}.
+         * @return Builder
+         * @param sslProvider sslProvider
+         */
+        public Builder sslProvider(SslProvider sslProvider) {
+            this.sslProvider = sslProvider;
+            return this;
+        }
+
+        /**
+         * The maximum number of TLS sessions cached for resumption by each impersonating SslContext, and by the
+         * SslContext used for connections to upstream servers. Clients that reconnect to an impersonated host, and
+         * proxy connections to an upstream host and port connected to before, can resume a cached session instead of
+         * performing a full handshake. Defaults to 0, which uses the SSL provider's default size.
+         * @return Builder
+         * @param sessionCacheSize sessionCacheSize
+         */
+        public Builder sessionCacheSize(long sessionCacheSize) {
+            this.sessionCacheSize = sessionCacheSize;
+            return this;
+        }
+
+        /**
+         * The length of time a cached TLS session can be resumed, on both client and upstream server connections.
+         * Defaults to the SSL provider's default timeout.
+         * @return Builder
+         * @param sessionTimeout sessionTimeout
+         * @param timeUnit timeUnit
+         */
+        public Builder sessionTimeout(long sessionTimeout, TimeUnit timeUnit) {
+            this.sessionTimeoutSeconds = TimeUnit.SECONDS.convert(sessionTimeout, timeUnit);
+            return this;
+        }
+
+        /**
+         * The keys used to encrypt and decrypt TLS session tickets on client connections. Each key is
+         * {@link ImpersonatingMitmManager#SESSION_TICKET_KEY_LENGTH} bytes long: a 16-byte key name, a 16-byte HMAC secret and a 16-byte AES key.
+         * The first key encrypts new tickets; the others only decrypt tickets issued before the keys were rotated. Using
+         * the same keys in every proxy instance, together with a {@link #certificateStore(ImpersonatedCertificateStore)},
+         * lets clients resume sessions after the proxy is restarted. <b>Anyone with the keys can decrypt traffic
+         * on connections that used the tickets</b>, so protect them like the root certificate's private key. Only
+         * supported by the OpenSSL provider. By default, each impersonating SslContext generates its own keys.
+         * @return Builder
+         * @param sessionTicketKeys sessionTicketKeys
+         */
+        public Builder sessionTicketKeys(List<byte[]> sessionTicketKeys) {
+            this.sessionTicketKeys = sessionTicketKeys;
+            return this;
+        }
+
+        /**
+         * When true, the impersonating SslContexts offer HTTP/2 to clients using ALPN, so browsers can send all requests
+         * to an impersonated host over a single connection. Clients that do not negotiate HTTP/2 use HTTP/1.1. Only
+         * enable this when the proxy using this MitmManager handles HTTP/2 on client connections, as
+         * BrowserUpProxyServer does; otherwise clients that negotiate HTTP/2 will fail. The
+         * JDK provider supports ALPN on Java 9+ and Java 8u252+. Defaults to false.
+         * @return Builder
+         * @param clientHttp2 clientHttp2
+         */
+        public Builder clientHttp2(boolean clientHttp2) {
+            this.clientHttp2 = clientHttp2;
+            return this;
+        }
+
+        /**
+         * When true, the upstream server SslContext offers HTTP/2 to upstream servers using ALPN, in addition to
+         * HTTP/1.1. Only enable this when the proxy using this MitmManager handles HTTP/2 on upstream connections, as
+         * BrowserUpProxyServer does; otherwise connections to servers that select HTTP/2 will fail. The JDK provider
+         * supports ALPN on Java 9+ and Java 8u252+. Defaults to false.
+         * @return Builder
+         * @param upstreamHttp2 upstreamHttp2
+         */
+        public Builder upstreamHttp2(boolean upstreamHttp2) {
+            this.upstreamHttp2 = upstreamHttp2;
+            return this;
+        }
+
         /**
          * The concurrency level for the SSLContext cache. Increase this beyond the default value for high-volume proxy servers.
          * @return Builder
@@ -531,6 +1345,18 @@ public class ImpersonatingMitmManager implements MitmManager {
             return this;
         }
 
+        /**
+         * The {@link ImpersonatedCertificateStore} that impersonated server certificates will be saved to and reused
+         * from, so hosts impersonated before the proxy was restarted do not wait for a new certificate. By default,
+         * certificates are only kept in memory.
+         * @return Builder
+         * @param certificateStore certificateStore
+         */
+        public Builder certificateStore(ImpersonatedCertificateStore certificateStore) {
+            this.certificateStore = certificateStore;
+            return this;
+        }
+
         public ImpersonatingMitmManager build() {
             if (clientCiphers == null) {
                 clientCiphers = SslUtil.getDefaultCipherList();
@@ -540,9 +1366,28 @@ public class ImpersonatingMitmManager implements MitmManager {
                 serverCiphers = SslUtil.getDefaultCipherList();
             }
 
+            KeyGenerator keyGenerator = serverKeyGenerator;
+            if (serverKeyPairPoolSize > 0) {
+                keyGenerator = new PooledKeyGenerator(serverKeyGenerator, serverKeyPairPoolSize);
+            }
+
+            ExecutorService certificateGenerationExecutor = null;
+            if (certificateGenerationThreads > 0) {
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(certificateGenerationThreads, certificateGenerationThreads,
+                        30, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<>(Math.max(1, certificateGenerationQueueCapacity)),
+                        new ThreadFactoryBuilder()
+                                .setNameFormat("certificate-generation-%d")
+                                .setDaemon(true)
+                                .build());
+                executor.allowCoreThreadTimeOut(true);
+
+                certificateGenerationExecutor = executor;
+            }
+
             return new ImpersonatingMitmManager(
                     rootCertificateSource,
-                    serverKeyGenerator,
+                    keyGenerator,
                     serverMessageDigest,
                     trustSource,
                     cacheConcurrencyLevel,
@@ -550,7 +1395,17 @@ public class ImpersonatingMitmManager implements MitmManager {
                     securityProviderTool,
                     certificateInfoGenerator,
                     serverCiphers,
-                    clientCiphers
+                    clientCiphers,
+                    certificateStore,
+                    wildcardCertificates,
+                    shareServerKeyPair,
+                    certificateGenerationExecutor,
+                    sslProvider == SslProvider.OPENSSL_REFCNT ? SslProvider.OPENSSL : sslProvider,
+                    sessionCacheSize,
+                    sessionTimeoutSeconds,
+                    sessionTicketKeys,
+                    clientHttp2,
+                    upstreamHttp2
             );
         }
     }
@@ -13,6 +13,19 @@ import java.util.concurrent.atomic.AtomicLong;
 public class CertificateGenerationStatistics {
     private AtomicLong certificateGenerationTimeMs = new AtomicLong();
     private AtomicInteger certificatesGenerated = new AtomicInteger();
+    private AtomicInteger certificatesLoaded = new AtomicInteger();
+
+    private AtomicLong keyPairPoolHits = new AtomicLong();
+    private AtomicLong keyPairPoolMisses = new AtomicLong();
+
+    private AtomicInteger certificateGenerationQueueDepth = new AtomicInteger();
+    private AtomicInteger maxCertificateGenerationQueueDepth = new AtomicInteger();
+    private AtomicLong certificateGenerationsStarted = new AtomicLong();
+    private AtomicLong certificateGenerationQueueTimeMs = new AtomicLong();
+    private AtomicLong coalescedCertificateRequests = new AtomicLong();
+
+    private AtomicLong handshakesWaitedForCertificate = new AtomicLong();
+    private AtomicLong handshakeCertificateWaitTimeMs = new AtomicLong();
 
     private AtomicLong firstCertificateGeneratedTimestamp = new AtomicLong();
 
@@ -29,6 +42,64 @@ public class CertificateGenerationStatistics {
         firstCertificateGeneratedTimestamp.compareAndSet(0L, System.currentTimeMillis());
     }
 
+    /**
+     * Records a certificate that was loaded from an {@link com.browserup.bup.mitm.ImpersonatedCertificateStore}
+     * instead of being generated.
+     */
+    public void certificateLoaded() {
+        certificatesLoaded.incrementAndGet();
+    }
+
+    /**
+     * Records a server key pair that was taken from a {@link com.browserup.bup.mitm.keys.PooledKeyGenerator}'s pool.
+     */
+    public void keyPairPoolHit() {
+        keyPairPoolHits.incrementAndGet();
+    }
+
+    /**
+     * Records a server key pair that was generated on the calling thread because a
+     * {@link com.browserup.bup.mitm.keys.PooledKeyGenerator}'s pool was empty.
+     */
+    public void keyPairPoolMiss() {
+        keyPairPoolMisses.incrementAndGet();
+    }
+
+    /**
+     * Records a certificate generation that was queued for the certificate generation executor.
+     */
+    public void certificateGenerationQueued() {
+        int queueDepth = certificateGenerationQueueDepth.incrementAndGet();
+        maxCertificateGenerationQueueDepth.accumulateAndGet(queueDepth, Math::max);
+    }
+
+    /**
+     * Records a queued certificate generation that was queued at queuedTimeMs and started at startTimeMs.
+     * @param queuedTimeMs queuedTimeMs
+     * @param startTimeMs startTimeMs
+     */
+    public void certificateGenerationStarted(long queuedTimeMs, long startTimeMs) {
+        certificateGenerationQueueDepth.decrementAndGet();
+        certificateGenerationsStarted.incrementAndGet();
+        certificateGenerationQueueTimeMs.addAndGet(startTimeMs - queuedTimeMs);
+    }
+
+    /**
+     * Records a request for a certificate that joined a generation already in progress for the same hostname.
+     */
+    public void certificateRequestCoalesced() {
+        coalescedCertificateRequests.incrementAndGet();
+    }
+
+    /**
+     * Records a client handshake that waited waitTimeMs for its impersonated certificate to be generated.
+     * @param waitTimeMs waitTimeMs
+     */
+    public void handshakeWaitedForCertificate(long waitTimeMs) {
+        handshakesWaitedForCertificate.incrementAndGet();
+        handshakeCertificateWaitTimeMs.addAndGet(waitTimeMs);
+    }
+
     /**
      * Returns the total number of certificates created.
      * @return CertificatesGenerated
@@ -37,6 +108,83 @@ public class CertificateGenerationStatistics {
         return certificatesGenerated.get();
     }
 
+    /**
+     * Returns the total number of certificates loaded from an {@link com.browserup.bup.mitm.ImpersonatedCertificateStore}.
+     * @return CertificatesLoaded
+     */
+    public int getCertificatesLoaded() {
+        return certificatesLoaded.get();
+    }
+
+    /**
+     * Returns the number of server key pairs taken from the key pair pool.
+     * @return KeyPairPoolHits
+     */
+    public long getKeyPairPoolHits() {
+        return keyPairPoolHits.get();
+    }
+
+    /**
+     * Returns the number of server key pairs generated when the key pair pool was empty.
+     * @return KeyPairPoolMisses
+     */
+    public long getKeyPairPoolMisses() {
+        return keyPairPoolMisses.get();
+    }
+
+    /**
+     * Returns the number of certificate generations currently waiting for a certificate generation thread.
+     * @return CertificateGenerationQueueDepth
+     */
+    public int getCertificateGenerationQueueDepth() {
+        return certificateGenerationQueueDepth.get();
+    }
+
+    /**
+     * Returns the largest number of certificate generations that waited for a certificate generation thread at once.
+     * @return MaxCertificateGenerationQueueDepth
+     */
+    public int getMaxCertificateGenerationQueueDepth() {
+        return maxCertificateGenerationQueueDepth.get();
+    }
+
+    /**
+     * Returns the average number of ms certificate generations waited for a certificate generation thread.
+     * @return AvgCertificateGenerationQueueTimeMs
+     */
+    public long getAvgCertificateGenerationQueueTimeMs() {
+        long started = certificateGenerationsStarted.get();
+        if (started > 0) {
+            return certificateGenerationQueueTimeMs.get() / started;
+        } else {
+            return 0L;
+        }
+    }
+
+    /**
+     * Returns the number of certificate requests that joined a generation already in progress for the same hostname.
+     * @return CoalescedCertificateRequests
+     */
+    public long getCoalescedCertificateRequests() {
+        return coalescedCertificateRequests.get();
+    }
+
+    /**
+     * Returns the number of client handshakes that waited for their impersonated certificate to be generated.
+     * @return HandshakesWaitedForCertificate
+     */
+    public long getHandshakesWaitedForCertificate() {
+        return handshakesWaitedForCertificate.get();
+    }
+
+    /**
+     * Returns the total number of ms client handshakes waited for their impersonated certificates to be generated.
+     * @return TotalHandshakeCertificateWaitTimeMs
+     */
+    public long getTotalHandshakeCertificateWaitTimeMs() {
+        return handshakeCertificateWaitTimeMs.get();
+    }
+
     /**
      * Returns the total number of ms spent generating all certificates.
      * @return TotalCertificateGenerationTimeMs
@@ -0,0 +1,99 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.mitm.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks how many TLS handshakes resumed an existing session, on client connections to the proxy and on proxy
+ * connections to upstream servers.
+ */
+public class TlsSessionStatistics {
+    private AtomicLong clientHandshakes = new AtomicLong();
+    private AtomicLong clientSessionsResumed = new AtomicLong();
+
+    private AtomicLong upstreamHandshakes = new AtomicLong();
+    private AtomicLong upstreamSessionsResumed = new AtomicLong();
+
+    /**
+     * Records a completed handshake on a client connection to the proxy.
+     * @param resumed true if the handshake resumed an existing session
+     */
+    public void clientHandshakeCompleted(boolean resumed) {
+        clientHandshakes.incrementAndGet();
+        if (resumed) {
+            clientSessionsResumed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a completed handshake on a proxy connection to an upstream server.
+     * @param resumed true if the handshake resumed an existing session
+     */
+    public void upstreamHandshakeCompleted(boolean resumed) {
+        upstreamHandshakes.incrementAndGet();
+        if (resumed) {
+            upstreamSessionsResumed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of completed handshakes on client connections to the proxy.
+     * @return ClientHandshakes
+     */
+    public long getClientHandshakes() {
+        return clientHandshakes.get();
+    }
+
+    /**
+     * Returns the number of handshakes on client connections to the proxy that resumed an existing session.
+     * @return ClientSessionsResumed
+     */
+    public long getClientSessionsResumed() {
+        return clientSessionsResumed.get();
+    }
+
+    /**
+     * Returns the fraction of handshakes on client connections to the proxy that resumed an existing session, or 0 if
+     * there have been no handshakes.
+     * @return ClientSessionResumptionRate
+     */
+    public double getClientSessionResumptionRate() {
+        return getRate(clientSessionsResumed.get(), clientHandshakes.get());
+    }
+
+    /**
+     * Returns the number of completed handshakes on proxy connections to upstream servers.
+     * @return UpstreamHandshakes
+     */
+    public long getUpstreamHandshakes() {
+        return upstreamHandshakes.get();
+    }
+
+    /**
+     * Returns the number of handshakes on proxy connections to upstream servers that resumed an existing session.
+     * @return UpstreamSessionsResumed
+     */
+    public long getUpstreamSessionsResumed() {
+        return upstreamSessionsResumed.get();
+    }
+
+    /**
+     * Returns the fraction of handshakes on proxy connections to upstream servers that resumed an existing session, or
+     * 0 if there have been no handshakes.
+     * @return UpstreamSessionResumptionRate
+     */
+    public double getUpstreamSessionResumptionRate() {
+        return getRate(upstreamSessionsResumed.get(), upstreamHandshakes.get());
+    }
+
+    private static double getRate(long resumed, long handshakes) {
+        if (handshakes > 0) {
+            return (double) resumed / handshakes;
+        } else {
+            return 0.0;
+        }
+    }
+}
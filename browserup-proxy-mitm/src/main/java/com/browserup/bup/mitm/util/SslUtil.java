@@ -7,9 +7,12 @@ package com.browserup.bup.mitm.util;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
 import com.google.common.io.CharStreams;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.ssl.OpenSsl;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
 import io.netty.handler.ssl.SupportedCipherSuiteFilter;
 import com.browserup.bup.mitm.trustmanager.InsecureTrustManagerFactory;
 import com.browserup.bup.mitm.TrustSource;
@@ -83,7 +86,52 @@ public class SslUtil {
      * @return an SSLContext to connect to upstream servers with
      */
     public static SslContext getUpstreamServerSslContext(Collection<String> cipherSuites, TrustSource trustSource) {
-        SslContextBuilder sslContextBuilder = SslContextBuilder.forClient();
+        return getUpstreamServerSslContext(cipherSuites, trustSource, SslProvider.JDK);
+    }
+
+    /**
+     * Creates a netty SslContext for use when connecting to upstream servers, using the specified SSL provider. See
+     * {@link #getUpstreamServerSslContext(Collection, TrustSource)}.
+     *
+     * @param cipherSuites    cipher suites to allow when connecting to the upstream server
+     * @param trustSource     the trust store that will be used to validate upstream servers' certificates, or null to accept all upstream server certificates
+     * @param sslProvider     SSL provider implementation, which should be an available provider returned by {@link #getAvailableSslProvider(SslProvider)}
+     * @return an SSLContext to connect to upstream servers with
+     */
+    public static SslContext getUpstreamServerSslContext(Collection<String> cipherSuites, TrustSource trustSource, SslProvider sslProvider) {
+        return getUpstreamServerSslContext(cipherSuites, trustSource, sslProvider, 0, 0, false);
+    }
+
+    /**
+     * Creates a netty SslContext for use when connecting to upstream servers, using the specified SSL provider and
+     * session cache settings. Sessions are resumed when a new SSLEngine is created for the same host and port as a
+     * cached session, using {@link SslContext#newEngine(io.netty.buffer.ByteBufAllocator, String, int)}. See
+     * {@link #getUpstreamServerSslContext(Collection, TrustSource)}.
+     *
+     * @param cipherSuites          cipher suites to allow when connecting to the upstream server
+     * @param trustSource           the trust store that will be used to validate upstream servers' certificates, or null to accept all upstream server certificates
+     * @param sslProvider           SSL provider implementation, which should be an available provider returned by {@link #getAvailableSslProvider(SslProvider)}
+     * @param sessionCacheSize      maximum number of cached sessions, or 0 to use the provider's default
+     * @param sessionTimeoutSeconds number of seconds a cached session can be resumed, or 0 to use the provider's default
+     * @param http2                 true to offer HTTP/2 to upstream servers using ALPN, in addition to HTTP/1.1. The
+     *                              connection must switch to HTTP/2 when the server selects it.
+     * @return an SSLContext to connect to upstream servers with
+     */
+    public static SslContext getUpstreamServerSslContext(Collection<String> cipherSuites, TrustSource trustSource, SslProvider sslProvider,
+                                                         long sessionCacheSize, long sessionTimeoutSeconds, boolean http2) {
+        SslContextBuilder sslContextBuilder = SslContextBuilder.forClient()
+                .sslProvider(sslProvider)
+                .sessionCacheSize(sessionCacheSize)
+                .sessionTimeout(sessionTimeoutSeconds);
+
+        if (http2) {
+            sslContextBuilder.applicationProtocolConfig(new ApplicationProtocolConfig(
+                    ApplicationProtocolConfig.Protocol.ALPN,
+                    ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                    ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                    ApplicationProtocolNames.HTTP_2,
+                    ApplicationProtocolNames.HTTP_1_1));
+        }
 
         if (trustSource == null) {
             log.warn("Disabling upstream server certificate verification. This will allow attackers to intercept communications with upstream servers.");
@@ -102,6 +150,41 @@ public class SslUtil {
         }
     }
 
+    /**
+     * Returns the requested SSL provider if it is available, otherwise the JDK provider. The OpenSSL providers require
+     * netty-tcnative (such as netty-tcnative-boringssl-static) on the classpath.
+     *
+     * @param sslProvider the requested SSL provider
+     * @return an available SSL provider
+     */
+    public static SslProvider getAvailableSslProvider(SslProvider sslProvider) {
+        if (sslProvider == null || sslProvider == SslProvider.JDK) {
+            return SslProvider.JDK;
+        }
+
+        if (!OpenSsl.isAvailable()) {
+            log.warn("OpenSSL is not available, so the JDK SSL provider will be used instead of {}. Add netty-tcnative to the classpath to use OpenSSL.",
+                    sslProvider, OpenSsl.unavailabilityCause());
+
+            return SslProvider.JDK;
+        }
+
+        return sslProvider;
+    }
+
+    /**
+     * Returns true if the session was resumed by a handshake that started at handshakeStartedTimeMs, rather than
+     * established by a full handshake. A resumed session was created by an earlier handshake, so its creation time
+     * precedes the start of the handshake that resumed it.
+     *
+     * @param sslSession             session established by a completed handshake
+     * @param handshakeStartedTimeMs time the handshake started, or an earlier time on the same connection
+     * @return true if the handshake resumed an existing session
+     */
+    public static boolean isResumedSession(SSLSession sslSession, long handshakeStartedTimeMs) {
+        return sslSession != null && sslSession.isValid() && sslSession.getCreationTime() < handshakeStartedTimeMs;
+    }
+
     /**
      * Returns the X509Certificate for the server this session is connected to. The certificate may be null.
      *
@@ -0,0 +1,148 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.mitm
+
+import com.browserup.bup.mitm.keys.RSAKeyGenerator
+import com.browserup.bup.mitm.manager.ImpersonatingMitmManager
+import com.browserup.bup.mitm.tools.DefaultSecurityProviderTool
+import io.netty.handler.codec.http.DefaultFullHttpRequest
+import io.netty.handler.codec.http.HttpMethod
+import io.netty.handler.codec.http.HttpVersion
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import javax.net.ssl.SSLSession
+import java.nio.file.Files
+import java.nio.file.attribute.PosixFilePermissions
+import java.security.cert.X509Certificate
+import java.time.Instant
+import java.time.temporal.ChronoUnit
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertNotNull
+import static org.junit.Assert.assertNull
+import static org.junit.Assume.assumeTrue
+import static org.mockito.Mockito.mock
+
+class ImpersonatedCertificateStoreTest {
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder()
+
+    CertificateAndKeySource rootCertificateSource = RootCertificateGenerator.builder().build()
+
+    @Test
+    void testSaveAndLoad() {
+        ImpersonatedCertificateStore store = new ImpersonatedCertificateStore(tmpDir.root, "password")
+        X509Certificate rootCertificate = rootCertificateSource.load().certificate
+
+        CertificateAndKey certificateAndKey = createServerCertificate("www.example.com", Instant.now().plus(30, ChronoUnit.DAYS))
+        store.save("www.example.com", certificateAndKey, rootCertificate)
+
+        CertificateAndKey loaded = store.load("WWW.Example.com", rootCertificate)
+        assertNotNull(loaded)
+        assertEquals(certificateAndKey.certificate, loaded.certificate)
+        assertEquals(certificateAndKey.privateKey, loaded.privateKey)
+
+        assertNull(store.load("other.example.com", rootCertificate))
+    }
+
+    @Test
+    void testSavedFilesAreOnlyAccessibleByOwner() {
+        assumeTrue(tmpDir.root.toPath().fileSystem.supportedFileAttributeViews().contains("posix"))
+
+        File storeDirectory = new File(tmpDir.root, "store")
+        ImpersonatedCertificateStore store = new ImpersonatedCertificateStore(storeDirectory, "password")
+        X509Certificate rootCertificate = rootCertificateSource.load().certificate
+        store.save("www.example.com", createServerCertificate("www.example.com", Instant.now().plus(30, ChronoUnit.DAYS)), rootCertificate)
+
+        File[] rootCertificateDirectories = storeDirectory.listFiles()
+        assertEquals(1, rootCertificateDirectories.length)
+        assertEquals(PosixFilePermissions.fromString("rwx------"), Files.getPosixFilePermissions(rootCertificateDirectories[0].toPath()))
+
+        File[] files = rootCertificateDirectories[0].listFiles()
+        assertEquals(1, files.length)
+        assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(files[0].toPath()))
+    }
+
+    @Test
+    void testCertificatesSignedByOtherRootAreNotLoaded() {
+        ImpersonatedCertificateStore store = new ImpersonatedCertificateStore(tmpDir.root, "password")
+        X509Certificate rootCertificate = rootCertificateSource.load().certificate
+        store.save("www.example.com", createServerCertificate("www.example.com", Instant.now().plus(30, ChronoUnit.DAYS)), rootCertificate)
+
+        X509Certificate otherRootCertificate = RootCertificateGenerator.builder().build().load().certificate
+
+        assertNull(store.load("www.example.com", otherRootCertificate))
+        assertEquals(0, store.loadAll(otherRootCertificate).size())
+    }
+
+    @Test
+    void testExpiringCertificatesAreNotLoaded() {
+        ImpersonatedCertificateStore store = new ImpersonatedCertificateStore(tmpDir.root, "password")
+        X509Certificate rootCertificate = rootCertificateSource.load().certificate
+        store.save("www.example.com", createServerCertificate("www.example.com", Instant.now().plus(1, ChronoUnit.HOURS)), rootCertificate)
+
+        assertNull(store.load("www.example.com", rootCertificate))
+    }
+
+    @Test
+    void testLoadAll() {
+        ImpersonatedCertificateStore store = new ImpersonatedCertificateStore(tmpDir.root, "password")
+        X509Certificate rootCertificate = rootCertificateSource.load().certificate
+
+        List<String> hostnames = ["www.example.com", "*.example.org", "::1", "under_score.example.net"]
+        hostnames.each { store.save(it, createServerCertificate(it, Instant.now().plus(30, ChronoUnit.DAYS)), rootCertificate) }
+
+        Map<String, CertificateAndKey> loaded = store.loadAll(rootCertificate)
+        assertEquals(hostnames.toSet(), loaded.keySet())
+    }
+
+    @Test
+    void testHostnameEncoding() {
+        ["www.example.com", "*.example.org", "::1", "under_score.example.net", "_0041"].each {
+            assertEquals(it, ImpersonatedCertificateStore.decodeHostname(ImpersonatedCertificateStore.encodeHostname(it)))
+        }
+
+        assertNull(ImpersonatedCertificateStore.decodeHostname("bad_zz"))
+        assertNull(ImpersonatedCertificateStore.decodeHostname("short_00"))
+    }
+
+    @Test
+    void testMitmManagerReusesStoredCertificates() {
+        ImpersonatedCertificateStore store = new ImpersonatedCertificateStore(tmpDir.root, "password")
+        def request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, "https://test.connection")
+
+        ImpersonatingMitmManager mitmManager = ImpersonatingMitmManager.builder()
+                .rootCertificateSource(rootCertificateSource)
+                .certificateStore(store)
+                .build()
+        assertNotNull(mitmManager.clientSslEngineFor(request, mock(SSLSession)))
+        assertEquals(1, mitmManager.statistics.certificatesGenerated)
+        assertEquals(0, mitmManager.statistics.certificatesLoaded)
+
+        ImpersonatingMitmManager restartedMitmManager = ImpersonatingMitmManager.builder()
+                .rootCertificateSource(rootCertificateSource)
+                .certificateStore(store)
+                .build()
+        assertEquals(1, restartedMitmManager.statistics.certificatesLoaded)
+
+        assertNotNull(restartedMitmManager.clientSslEngineFor(request, mock(SSLSession)))
+        assertEquals(0, restartedMitmManager.statistics.certificatesGenerated)
+        assertEquals(1, restartedMitmManager.statistics.certificatesLoaded)
+    }
+
+    private CertificateAndKey createServerCertificate(String hostname, Instant notAfter) {
+        CertificateAndKey root = rootCertificateSource.load()
+        CertificateInfo certificateInfo = new CertificateInfo()
+                .commonName(hostname)
+                .subjectAlternativeNames([hostname])
+                .notBefore(Instant.now().minus(1, ChronoUnit.DAYS))
+                .notAfter(notAfter)
+
+        return new DefaultSecurityProviderTool().createServerCertificate(certificateInfo, root.certificate, root.privateKey,
+                new RSAKeyGenerator().generate(), "SHA256")
+    }
+}
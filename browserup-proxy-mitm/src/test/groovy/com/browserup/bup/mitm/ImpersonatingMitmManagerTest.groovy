@@ -7,15 +7,27 @@ package com.browserup.bup.mitm
 import io.netty.handler.codec.http.DefaultFullHttpRequest
 import io.netty.handler.codec.http.HttpMethod
 import io.netty.handler.codec.http.HttpVersion
+import io.netty.handler.ssl.OpenSsl
+import io.netty.handler.ssl.SslContext
+import io.netty.handler.ssl.SslProvider
 import com.browserup.bup.mitm.keys.ECKeyGenerator
+import com.browserup.bup.mitm.keys.KeyGenerator
 import com.browserup.bup.mitm.keys.RSAKeyGenerator
 import com.browserup.bup.mitm.manager.ImpersonatingMitmManager
+import com.browserup.bup.mitm.util.SslUtil
 import org.junit.Test
 
 import javax.net.ssl.SSLEngine
 import javax.net.ssl.SSLSession
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertFalse
 import static org.junit.Assert.assertNotNull
+import static org.junit.Assert.assertSame
+import static org.junit.Assert.assertTrue
 import static org.mockito.Mockito.mock
 import static org.mockito.Mockito.when
 
@@ -54,4 +66,211 @@ class ImpersonatingMitmManagerTest {
         SSLEngine clientSslEngine = mitmManager.clientSslEngineFor(request, mockSession)
         assertNotNull(clientSslEngine)
     }
+
+    @Test
+    void testWildcardCertificatesArePerRegistrableDomain() {
+        ImpersonatingMitmManager mitmManager = ImpersonatingMitmManager.builder()
+                .wildcardCertificates(true)
+                .build()
+
+        impersonate(mitmManager, "a.example.com")
+        impersonate(mitmManager, "b.example.com")
+        impersonate(mitmManager, "example.com")
+        assertEquals(1, mitmManager.statistics.certificatesGenerated)
+
+        // a wildcard only covers one label, so a deeper subdomain regenerates the domain's certificate
+        impersonate(mitmManager, "img.cdn.example.com")
+        assertEquals(2, mitmManager.statistics.certificatesGenerated)
+
+        impersonate(mitmManager, "js.cdn.example.com")
+        impersonate(mitmManager, "a.example.com")
+        assertEquals(2, mitmManager.statistics.certificatesGenerated)
+
+        impersonate(mitmManager, "www.example.co.uk")
+        impersonate(mitmManager, "static.example.co.uk")
+        assertEquals(3, mitmManager.statistics.certificatesGenerated)
+
+        // hosts without a registrable domain get their own certificate
+        impersonate(mitmManager, "127.0.0.1")
+        impersonate(mitmManager, "localhost")
+        assertEquals(5, mitmManager.statistics.certificatesGenerated)
+    }
+
+    @Test
+    void testSharedServerKeyPair() {
+        AtomicInteger keyPairsGenerated = new AtomicInteger()
+        RSAKeyGenerator rsaKeyGenerator = new RSAKeyGenerator()
+        ImpersonatingMitmManager mitmManager = ImpersonatingMitmManager.builder()
+                .serverKeyGenerator({ keyPairsGenerated.incrementAndGet(); rsaKeyGenerator.generate() } as KeyGenerator)
+                .shareServerKeyPair(true)
+                .build()
+
+        impersonate(mitmManager, "a.example.com")
+        impersonate(mitmManager, "b.example.org")
+
+        assertEquals(2, mitmManager.statistics.certificatesGenerated)
+        assertEquals(1, keyPairsGenerated.get())
+    }
+
+    @Test
+    void testConcurrentRequestsForSameHostAreCoalesced() {
+        CountDownLatch generationAllowed = new CountDownLatch(1)
+        RSAKeyGenerator rsaKeyGenerator = new RSAKeyGenerator()
+        ImpersonatingMitmManager mitmManager = ImpersonatingMitmManager.builder()
+                .serverKeyGenerator({ generationAllowed.await(); rsaKeyGenerator.generate() } as KeyGenerator)
+                .certificateGenerationThreads(1)
+                .build()
+
+        def first = mitmManager.getImpersonatingSslContextAsync("www.example.com", mockSession)
+        def second = mitmManager.getImpersonatingSslContextAsync("www.example.com", mockSession)
+        def otherHost = mitmManager.getImpersonatingSslContextAsync("www.example.org", mockSession)
+
+        assertSame(first, second)
+        assertEquals(1, mitmManager.statistics.coalescedCertificateRequests)
+        // the single generation thread is busy with the first host once it starts, so the other host stays queued
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10)
+        while (mitmManager.statistics.certificateGenerationQueueDepth > 1 && System.nanoTime() < deadline) {
+            Thread.sleep(10)
+        }
+        assertEquals(1, mitmManager.statistics.certificateGenerationQueueDepth)
+
+        generationAllowed.countDown()
+        assertNotNull(first.get(10, TimeUnit.SECONDS))
+        assertNotNull(otherHost.get(10, TimeUnit.SECONDS))
+
+        assertEquals(2, mitmManager.statistics.certificatesGenerated)
+        assertEquals(0, mitmManager.statistics.certificateGenerationQueueDepth)
+        assertTrue(mitmManager.statistics.maxCertificateGenerationQueueDepth >= 1)
+
+        // the SslContext is now cached, so it is returned without waiting
+        assertTrue(mitmManager.getImpersonatingSslContextAsync("www.example.com", mockSession).isDone())
+    }
+
+    @Test
+    void testSynchronousCertificateGeneration() {
+        ImpersonatingMitmManager mitmManager = ImpersonatingMitmManager.builder()
+                .certificateGenerationThreads(0)
+                .build()
+
+        assertTrue(mitmManager.getImpersonatingSslContextAsync("www.example.com", mockSession).isDone())
+        impersonate(mitmManager, "www.example.com")
+        assertEquals(1, mitmManager.statistics.certificatesGenerated)
+        assertEquals(0, mitmManager.statistics.handshakesWaitedForCertificate)
+    }
+
+    @Test
+    void testOpenSslProvider() {
+        ImpersonatingMitmManager mitmManager = ImpersonatingMitmManager.builder()
+                .sslProvider(SslProvider.OPENSSL)
+                .build()
+
+        // falls back to the JDK provider when netty-tcnative is not available on this platform
+        assertEquals(OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK, mitmManager.sslProvider)
+
+        impersonate(mitmManager, "www.example.com")
+        assertNotNull(mitmManager.serverSslEngine("www.example.com", 443))
+    }
+
+    @Test
+    void testSessionCacheSettingsAppliedToImpersonatingContexts() {
+        ImpersonatingMitmManager mitmManager = ImpersonatingMitmManager.builder()
+                .sessionCacheSize(100)
+                .sessionTimeout(10, TimeUnit.MINUTES)
+                .build()
+
+        SslContext sslContext = mitmManager.getImpersonatingSslContextAsync("www.example.com", mockSession).get(10, TimeUnit.SECONDS)
+        assertEquals(100, sslContext.sessionContext().sessionCacheSize)
+        assertEquals(600, sslContext.sessionContext().sessionTimeout)
+    }
+
+    @Test(expected = IllegalArgumentException)
+    void testInvalidSessionTicketKeysAreRejected() {
+        ImpersonatingMitmManager.builder()
+                .sessionTicketKeys([new byte[32]])
+                .build()
+    }
+
+    @Test
+    void testSessionTicketKeys() {
+        ImpersonatingMitmManager mitmManager = ImpersonatingMitmManager.builder()
+                .sslProvider(SslProvider.OPENSSL)
+                .sessionTicketKeys([new byte[ImpersonatingMitmManager.SESSION_TICKET_KEY_LENGTH]])
+                .build()
+
+        // ticket keys are ignored when falling back to the JDK provider
+        impersonate(mitmManager, "www.example.com")
+    }
+
+    @Test
+    void testIsResumedSession() {
+        long handshakeStartedTimeMs = System.currentTimeMillis()
+
+        SSLSession resumedSession = mock(SSLSession)
+        when(resumedSession.isValid()).thenReturn(true)
+        when(resumedSession.getCreationTime()).thenReturn(handshakeStartedTimeMs - 1000)
+        assertTrue(SslUtil.isResumedSession(resumedSession, handshakeStartedTimeMs))
+
+        SSLSession newSession = mock(SSLSession)
+        when(newSession.isValid()).thenReturn(true)
+        when(newSession.getCreationTime()).thenReturn(handshakeStartedTimeMs + 10)
+        assertFalse(SslUtil.isResumedSession(newSession, handshakeStartedTimeMs))
+
+        assertFalse(SslUtil.isResumedSession(null, handshakeStartedTimeMs))
+    }
+
+    @Test
+    void testClientHttp2OffersH2UsingAlpn() {
+        ImpersonatingMitmManager mitmManager = ImpersonatingMitmManager.builder()
+                .clientHttp2(true)
+                .build()
+
+        // HTTP/2 is disabled if the JVM's SSL provider does not support ALPN
+        assertEquals(SslProvider.isAlpnSupported(mitmManager.sslProvider), mitmManager.clientHttp2Enabled)
+
+        SslContext sslContext = mitmManager.getImpersonatingSslContextAsync("www.example.com", mockSession).get(10, TimeUnit.SECONDS)
+        if (mitmManager.clientHttp2Enabled) {
+            assertEquals(["h2", "http/1.1"], sslContext.applicationProtocolNegotiator().protocols())
+        }
+    }
+
+    @Test
+    void testClientHttp2DisabledByDefault() {
+        ImpersonatingMitmManager mitmManager = ImpersonatingMitmManager.builder().build()
+        assertFalse(mitmManager.clientHttp2Enabled)
+
+        SslContext sslContext = mitmManager.getImpersonatingSslContextAsync("www.example.com", mockSession).get(10, TimeUnit.SECONDS)
+        assertTrue(sslContext.applicationProtocolNegotiator().protocols().isEmpty())
+    }
+
+    @Test
+    void testUpstreamHttp2OffersH2UsingAlpn() {
+        ImpersonatingMitmManager mitmManager = ImpersonatingMitmManager.builder()
+                .upstreamHttp2(true)
+                .build()
+
+        // HTTP/2 is disabled if the JVM's SSL provider does not support ALPN
+        assertEquals(SslProvider.isAlpnSupported(mitmManager.sslProvider), mitmManager.upstreamHttp2Enabled)
+        assertFalse(mitmManager.clientHttp2Enabled)
+
+        if (mitmManager.upstreamHttp2Enabled) {
+            SslContext sslContext = SslUtil.getUpstreamServerSslContext(SslUtil.getDefaultCipherList(), TrustSource.defaultTrustSource(),
+                    SslProvider.JDK, 0, 0, true)
+            assertEquals(["h2", "http/1.1"], sslContext.applicationProtocolNegotiator().protocols())
+        }
+    }
+
+    @Test
+    void testUpstreamHttp2DisabledByDefault() {
+        ImpersonatingMitmManager mitmManager = ImpersonatingMitmManager.builder().build()
+        assertFalse(mitmManager.upstreamHttp2Enabled)
+
+        SslContext sslContext = SslUtil.getUpstreamServerSslContext(SslUtil.getDefaultCipherList(), TrustSource.defaultTrustSource())
+        assertTrue(sslContext.applicationProtocolNegotiator().protocols().isEmpty())
+    }
+
+    private void impersonate(ImpersonatingMitmManager mitmManager, String hostname) {
+        def request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, "https://" + hostname)
+        SSLEngine clientSslEngine = mitmManager.clientSslEngineFor(request, mockSession)
+        assertNotNull(clientSslEngine)
+    }
 }
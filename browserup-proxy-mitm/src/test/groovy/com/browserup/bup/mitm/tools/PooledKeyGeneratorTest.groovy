@@ -0,0 +1,88 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.mitm.tools
+
+import com.browserup.bup.mitm.keys.KeyGenerator
+import com.browserup.bup.mitm.keys.PooledKeyGenerator
+import com.browserup.bup.mitm.keys.RSAKeyGenerator
+import com.browserup.bup.mitm.stats.CertificateGenerationStatistics
+import org.junit.Test
+
+import java.security.KeyPair
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertNotNull
+import static org.junit.Assert.assertNotSame
+import static org.junit.Assert.assertTrue
+
+class PooledKeyGeneratorTest {
+    @Test
+    void testPoolIsFilledInBackground() {
+        AtomicInteger generated = new AtomicInteger()
+        PooledKeyGenerator keyGenerator = new PooledKeyGenerator({ generated.incrementAndGet(); new KeyPair(null, null) } as KeyGenerator, 4)
+        CertificateGenerationStatistics statistics = new CertificateGenerationStatistics()
+        keyGenerator.addStatistics(statistics)
+
+        waitForAvailableKeyPairs(keyGenerator, 4)
+        assertEquals(4, generated.get())
+
+        KeyPair first = keyGenerator.generate()
+        KeyPair second = keyGenerator.generate()
+        assertNotSame(first, second)
+        assertEquals(2, statistics.keyPairPoolHits)
+        assertEquals(0, statistics.keyPairPoolMisses)
+
+        // the key pairs taken from the pool are replaced
+        waitForAvailableKeyPairs(keyGenerator, 4)
+        assertEquals(6, generated.get())
+    }
+
+    @Test
+    void testGeneratesOnCallingThreadWhenPoolIsEmpty() {
+        CountDownLatch refillAllowed = new CountDownLatch(1)
+        KeyGenerator blockingGenerator = {
+            if (Thread.currentThread().name.startsWith("key-pair-pool")) {
+                refillAllowed.await()
+            }
+
+            new KeyPair(null, null)
+        } as KeyGenerator
+
+        PooledKeyGenerator keyGenerator = new PooledKeyGenerator(blockingGenerator, 2)
+        CertificateGenerationStatistics statistics = new CertificateGenerationStatistics()
+        keyGenerator.addStatistics(statistics)
+
+        assertNotNull(keyGenerator.generate())
+        assertEquals(0, statistics.keyPairPoolHits)
+        assertEquals(1, statistics.keyPairPoolMisses)
+
+        refillAllowed.countDown()
+        waitForAvailableKeyPairs(keyGenerator, 2)
+
+        assertNotNull(keyGenerator.generate())
+        assertEquals(1, statistics.keyPairPoolHits)
+    }
+
+    @Test
+    void testGeneratesRealKeyPairs() {
+        PooledKeyGenerator keyGenerator = new PooledKeyGenerator(new RSAKeyGenerator(1024), 1)
+
+        KeyPair keyPair = keyGenerator.generate()
+        assertNotNull(keyPair.getPrivate())
+        assertNotNull(keyPair.getPublic())
+    }
+
+    private static void waitForAvailableKeyPairs(PooledKeyGenerator keyGenerator, int expected) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10)
+        while (keyGenerator.availableKeyPairs < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10)
+        }
+
+        assertTrue("Expected the pool to contain " + expected + " key pairs", keyGenerator.availableKeyPairs >= expected)
+    }
+}
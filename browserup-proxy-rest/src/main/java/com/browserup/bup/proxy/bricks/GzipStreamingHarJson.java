@@ -0,0 +1,35 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.proxy.bricks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Inject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A {@link StreamingHarJson} transport that gzips the JSON as it is written. Replies using this transport must set the
+ * Content-Encoding header to gzip.
+ */
+public class GzipStreamingHarJson extends StreamingHarJson {
+    private static final int GZIP_BUFFER_SIZE = 8192;
+
+    @Inject
+    public GzipStreamingHarJson(ObjectMapper objectMapper) {
+        super(objectMapper);
+    }
+
+    @Override
+    public <T> void out(OutputStream out, Class<T> type, T data) throws IOException {
+        GZIPOutputStream gzipStream = new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+        super.out(gzipStream, type, data);
+
+        // write the gzip trailer without closing the response stream, which belongs to the servlet container
+        gzipStream.finish();
+        gzipStream.flush();
+    }
+}
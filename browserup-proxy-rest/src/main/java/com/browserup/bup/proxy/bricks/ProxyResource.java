@@ -12,6 +12,7 @@ import com.browserup.bup.filters.JavascriptRequestResponseFilter;
 import com.browserup.bup.mitmproxy.MitmProxyProcessManager;
 import com.browserup.bup.mitmproxy.MitmProxyProcessManager.MitmProxyLoggingLevel;
 import com.browserup.bup.proxy.CaptureType;
+import com.browserup.bup.proxy.LatencyRule;
 import com.browserup.bup.proxy.MitmProxyManager;
 import com.browserup.bup.proxy.auth.AuthType;
 import com.browserup.bup.util.BrowserUpHttpUtil;
@@ -155,7 +156,7 @@ public class ProxyResource {
         Boolean cleanHar = "true".equals(request.param("cleanHar"));
         Har har = proxy.getHar(cleanHar);
 
-        return Reply.with(har).as(Json.class);
+        return harReply(har, request);
     }
 
     @Put
@@ -194,7 +195,7 @@ public class ProxyResource {
         }
 
         if (oldHar != null) {
-            return Reply.with(oldHar).as(Json.class);
+            return harReply(oldHar, request);
         } else {
             return Reply.saying().noContent();
         }
@@ -450,12 +451,61 @@ public class ProxyResource {
         }
 
         String latency = request.param("latency");
-        if (latency != null) {
+        String latencyJitter = request.param("latencyJitter");
+        String latencyJitterDistribution = request.param("latencyJitterDistribution");
+        String latencyUrlPattern = request.param("latencyUrlPattern");
+        String latencyHost = request.param("latencyHost");
+
+        LatencyRule.JitterDistribution jitterDistribution = LatencyRule.JitterDistribution.UNIFORM;
+        if (latencyJitterDistribution != null) {
             try {
-                proxy.setLatency(Long.parseLong(latency), TimeUnit.MILLISECONDS);
+                jitterDistribution = LatencyRule.JitterDistribution.valueOf(latencyJitterDistribution.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Invalid latencyJitterDistribution value");
+                return Reply.saying().badRequest();
+            }
+        }
+
+        if (latencyUrlPattern != null || latencyHost != null) {
+            // a URL pattern or host turns the latency settings into a latency profile for the matching requests only
+            if (latency == null) {
+                LOG.warn("latency is required when specifying latencyUrlPattern or latencyHost");
+                return Reply.saying().badRequest();
+            }
+
+            try {
+                long latencyMs = Long.parseLong(latency);
+                long jitterMs = latencyJitter == null ? 0 : Long.parseLong(latencyJitter);
+
+                LatencyRule latencyRule = latencyHost != null ?
+                        LatencyRule.forHost(latencyHost, latencyMs, jitterMs, TimeUnit.MILLISECONDS, jitterDistribution) :
+                        new LatencyRule(latencyUrlPattern, latencyMs, jitterMs, TimeUnit.MILLISECONDS, jitterDistribution);
+
+                proxy.addLatencyRule(latencyRule);
             } catch (NumberFormatException e) {
-                LOG.warn("Invalid latency value");
+                LOG.warn("Invalid latency or latencyJitter value");
                 return Reply.saying().badRequest();
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Invalid latency profile", e);
+                return Reply.saying().badRequest();
+            }
+        } else {
+            if (latency != null) {
+                try {
+                    proxy.setLatency(Long.parseLong(latency), TimeUnit.MILLISECONDS);
+                } catch (NumberFormatException e) {
+                    LOG.warn("Invalid latency value");
+                    return Reply.saying().badRequest();
+                }
+            }
+
+            if (latencyJitter != null) {
+                try {
+                    proxy.setLatencyJitter(Long.parseLong(latencyJitter), TimeUnit.MILLISECONDS, jitterDistribution);
+                } catch (NumberFormatException e) {
+                    LOG.warn("Invalid latencyJitter value");
+                    return Reply.saying().badRequest();
+                }
             }
         }
 
@@ -483,6 +533,19 @@ public class ProxyResource {
         return Reply.saying().ok();
     }
 
+    @Delete
+    @At("/:port/limit/latency")
+    public Reply<?> clearLatencyRules(@Named("port") int port) {
+        LOG.info("DELETE /" + port + "/limit/latency");
+        MitmProxyServer proxy = proxyManager.get(port);
+        if (proxy == null) {
+            return Reply.saying().notFound();
+        }
+
+        proxy.clearLatencyRules();
+        return Reply.saying().ok();
+    }
+
     @Put
     @At("/:port/timeout")
     public Reply<?> timeout(@Named("port") int port, Request request) {
@@ -643,6 +706,48 @@ public class ProxyResource {
         return responseCode;
     }
 
+    /**
+     * Streams the HAR to the client entry by entry, gzipping it if the client accepts gzip content encoding.
+     */
+    private static Reply<?> harReply(Har har, Request request) {
+        Reply<Har> reply = Reply.with(har);
+
+        if (acceptsGzip(request.header("Accept-Encoding"))) {
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Content-Encoding", "gzip");
+            headers.put("Vary", "Accept-Encoding");
+
+            return reply.headers(headers).as(GzipStreamingHarJson.class);
+        }
+
+        return reply.as(StreamingHarJson.class);
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        for (String coding : acceptEncoding.split(",")) {
+            String[] codingAndParams = coding.split(";");
+            if (!"gzip".equalsIgnoreCase(codingAndParams[0].trim())) {
+                continue;
+            }
+
+            // "gzip;q=0" means the client explicitly does not accept gzip
+            for (int i = 1; i < codingAndParams.length; i++) {
+                String param = codingAndParams[i].trim().replace(" ", "");
+                if (param.startsWith("q=") && param.substring(2).matches("0(\\.0*)?")) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
     public static class ProxyDescriptor {
         private int port;
 
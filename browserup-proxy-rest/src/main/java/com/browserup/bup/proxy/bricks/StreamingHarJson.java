@@ -0,0 +1,55 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.proxy.bricks;
+
+import com.browserup.bup.har.StreamingHarWriter;
+import com.browserup.harreader.model.Har;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Inject;
+import com.google.inject.TypeLiteral;
+import com.google.sitebricks.client.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Sitebricks transport that writes a {@link Har} reply directly to the response stream using a
+ * {@link StreamingHarWriter}, so the JSON for a large HAR is never held in memory.
+ */
+public class StreamingHarJson implements Transport {
+    private final ObjectMapper objectMapper;
+    private final StreamingHarWriter harWriter;
+
+    @Inject
+    public StreamingHarJson(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+        this.harWriter = new StreamingHarWriter(objectMapper);
+    }
+
+    @Override
+    public <T> T in(InputStream in, Class<T> type) throws IOException {
+        return objectMapper.readValue(in, type);
+    }
+
+    @Override
+    public <T> T in(InputStream in, TypeLiteral<T> type) throws IOException {
+        return objectMapper.readValue(in, objectMapper.getTypeFactory().constructType(type.getType()));
+    }
+
+    @Override
+    public <T> void out(OutputStream out, Class<T> type, T data) throws IOException {
+        if (!(data instanceof Har)) {
+            throw new IllegalArgumentException("StreamingHarJson can only write HARs, not " + type.getName());
+        }
+
+        harWriter.write((Har) data, out);
+    }
+
+    @Override
+    public String contentType() {
+        return "application/json";
+    }
+}
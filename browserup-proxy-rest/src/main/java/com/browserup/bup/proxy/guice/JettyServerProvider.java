@@ -57,9 +57,12 @@ public class JettyServerProvider implements Provider<Server> {
         ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
         context.setContextPath("/");
 
-        context.addFilter(GuiceFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST));;
+        // async support lets the HAR entry stream hold its response open without tying up a request thread
+        context.addFilter(GuiceFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST)).setAsyncSupported(true);
         context.addServlet(DefaultServlet.class, "/");
-        context.addServlet(new ServletHolder(new ServletContainer(resourceConfig)), "/*");
+        ServletHolder jerseyServletHolder = new ServletHolder(new ServletContainer(resourceConfig));
+        jerseyServletHolder.setAsyncSupported(true);
+        context.addServlet(jerseyServletHolder, "/*");
 
         server = new Server(new InetSocketAddress(InetAddress.getByName(address), port));
         server.setHandler(context);
@@ -0,0 +1,138 @@
+package com.browserup.bup.rest.resource.entries;
+
+import com.browserup.bup.har.HarEntryPage;
+import com.browserup.bup.proxy.MitmProxyManager;
+import com.browserup.bup.rest.validation.LongPositiveConstraint;
+import com.browserup.bup.rest.validation.NotNullConstraint;
+import com.browserup.bup.rest.validation.PortWithExistingProxyConstraint;
+import com.browserup.harreader.model.HarEntry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.enums.ParameterIn;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import org.apache.commons.lang3.StringUtils;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.browserup.bup.rest.openapi.DocConstants.PORT_DESCRIPTION;
+
+@Path("/proxy/{port}/har/entriesSince")
+public class EntriesSinceProxyResource {
+    private static final String PORT = "port";
+    private static final String SEQUENCE = "sequence";
+    private static final String MAX_ENTRIES = "maxEntries";
+    private static final String FIELDS = "fields";
+    private static final String EXCLUDE_CONTENT = "excludeContent";
+
+    /**
+     * Largest page of entries returned by a single request.
+     */
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    private static final String SEQUENCE_DESCRIPTION = "Sequence number of the last entry already retrieved, " +
+            "usually the nextSequence of the previous page. Use 0 to start with the first completed entry.";
+    private static final String MAX_ENTRIES_DESCRIPTION = "Maximum number of entries to return, at most " + MAX_PAGE_SIZE + ".";
+    private static final String FIELDS_DESCRIPTION = "Comma-separated list of entry fields to return, " +
+            "for example 'timings,time'. The _sequence field is always returned. Optional, defaults to all fields.";
+    private static final String EXCLUDE_CONTENT_DESCRIPTION = "Omit request and response body text from the returned entries.";
+
+    private final MitmProxyManager proxyManager;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public EntriesSinceProxyResource(@Context MitmProxyManager proxyManager) {
+        this.proxyManager = proxyManager;
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(
+            description = "Return the entries completed since the entry with the given sequence number, in the order they were completed. " +
+                    "Poll with the nextSequence of the previous page to retrieve only new entries.",
+            responses = {@ApiResponse(description = "Page of Har Entries",
+                    content = @Content(
+                            mediaType = MediaType.APPLICATION_JSON,
+                            schema = @Schema(implementation = HarEntryPage.class)))})
+    public JsonNode entriesSince(
+            @PathParam(PORT)
+            @NotNullConstraint(paramName = PORT)
+            @PortWithExistingProxyConstraint
+            @Parameter(required = true, in = ParameterIn.PATH, description = PORT_DESCRIPTION) int port,
+
+            @QueryParam(SEQUENCE)
+            @DefaultValue("0")
+            @LongPositiveConstraint(value = 0, paramName = SEQUENCE)
+            @Parameter(description = SEQUENCE_DESCRIPTION) String sequence,
+
+            @QueryParam(MAX_ENTRIES)
+            @DefaultValue("100")
+            @LongPositiveConstraint(value = 0, paramName = MAX_ENTRIES)
+            @Parameter(description = MAX_ENTRIES_DESCRIPTION) String maxEntries,
+
+            @QueryParam(FIELDS)
+            @Parameter(description = FIELDS_DESCRIPTION) String fields,
+
+            @QueryParam(EXCLUDE_CONTENT)
+            @DefaultValue("false")
+            @Parameter(description = EXCLUDE_CONTENT_DESCRIPTION) boolean excludeContent) {
+        int pageSize = (int) Math.max(1, Math.min(Long.parseLong(maxEntries), MAX_PAGE_SIZE));
+
+        HarEntryPage page = proxyManager.get(port).getHarEntriesSince(Long.parseLong(sequence), pageSize);
+
+        Set<String> projectedFields = StringUtils.isBlank(fields) ? null : Arrays.stream(fields.split(","))
+                .map(String::trim)
+                .filter(StringUtils::isNotEmpty)
+                .collect(Collectors.toSet());
+
+        ObjectNode result = objectMapper.createObjectNode();
+        ArrayNode entries = result.putArray("entries");
+        for (HarEntry entry : page.getEntries()) {
+            entries.add(projectEntry(entry, projectedFields, excludeContent));
+        }
+        result.put("nextSequence", page.getNextSequence());
+        result.put("lastSequence", page.getLastSequence());
+        result.put("hasMore", page.isHasMore());
+
+        return result;
+    }
+
+    private ObjectNode projectEntry(HarEntry entry, Set<String> projectedFields, boolean excludeContent) {
+        ObjectNode entryNode = objectMapper.valueToTree(entry);
+
+        if (projectedFields != null) {
+            entryNode.retain(projectedFields);
+            // clients need the sequence number of each entry to resume polling
+            if (entry.getSequence() != null) {
+                entryNode.put("_sequence", entry.getSequence());
+            }
+        }
+
+        if (excludeContent) {
+            removeText(entryNode.path("request").path("postData"));
+            removeText(entryNode.path("response").path("content"));
+        }
+
+        return entryNode;
+    }
+
+    private static void removeText(JsonNode node) {
+        if (node instanceof ObjectNode) {
+            ((ObjectNode) node).remove("text");
+        }
+    }
+}
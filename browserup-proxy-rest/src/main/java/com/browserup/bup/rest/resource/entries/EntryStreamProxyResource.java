@@ -0,0 +1,187 @@
+package com.browserup.bup.rest.resource.entries;
+
+import com.browserup.bup.har.HarEntryOverflowPolicy;
+import com.browserup.bup.har.HarEntrySubscription;
+import com.browserup.bup.proxy.MitmProxyManager;
+import com.browserup.bup.rest.validation.LongPositiveConstraint;
+import com.browserup.bup.rest.validation.NotNullConstraint;
+import com.browserup.bup.rest.validation.PortWithExistingProxyConstraint;
+import com.browserup.harreader.model.HarEntry;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.enums.ParameterIn;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.browserup.bup.rest.openapi.DocConstants.PORT_DESCRIPTION;
+
+@Path("/proxy/{port}/har/entryStream")
+public class EntryStreamProxyResource {
+    private static final Logger log = LoggerFactory.getLogger(EntryStreamProxyResource.class);
+
+    private static final String PORT = "port";
+    private static final String QUEUE_CAPACITY = "queueCapacity";
+    private static final String OVERFLOW_POLICY = "overflowPolicy";
+
+    /**
+     * Name of the server-sent event carrying a completed entry.
+     */
+    public static final String ENTRY_EVENT_NAME = "entry";
+
+    /**
+     * Interval between the comments sent to idle clients, so that clients that have disconnected are detected even when
+     * no entries are completed.
+     */
+    private static final int HEARTBEAT_INTERVAL_SECONDS = 15;
+
+    private static final String QUEUE_CAPACITY_DESCRIPTION = "Maximum number of completed entries waiting to be sent " +
+            "to this client before entries are dropped.";
+    private static final String OVERFLOW_POLICY_DESCRIPTION = "Entry to drop when the queue is full: DROP_OLDEST or DROP_NEWEST.";
+
+    // a single daemon thread sends heartbeats to the clients of every stream
+    private static class HeartbeatExecutorHolder {
+        private static final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = Executors.defaultThreadFactory().newThread(r);
+                thread.setName("entry-stream-heartbeat-thread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private final MitmProxyManager proxyManager;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public EntryStreamProxyResource(@Context MitmProxyManager proxyManager) {
+        this.proxyManager = proxyManager;
+    }
+
+    @GET
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    @Operation(
+            description = "Stream entries as they are completed, as server-sent events named '" + ENTRY_EVENT_NAME + "' " +
+                    "whose id is the entry's sequence number. Entries are queued for each client; a client that falls behind " +
+                    "loses entries rather than slowing down the proxy, and can use the entriesSince endpoint to fill the gap. " +
+                    "A comment is sent every " + HEARTBEAT_INTERVAL_SECONDS + " seconds, so that disconnected clients are detected.",
+            responses = {@ApiResponse(description = "Stream of Har Entries",
+                    content = @Content(
+                            mediaType = MediaType.SERVER_SENT_EVENTS,
+                            schema = @Schema(implementation = HarEntry.class)))})
+    public void entryStream(
+            @PathParam(PORT)
+            @NotNullConstraint(paramName = PORT)
+            @PortWithExistingProxyConstraint
+            @Parameter(required = true, in = ParameterIn.PATH, description = PORT_DESCRIPTION) int port,
+
+            @QueryParam(QUEUE_CAPACITY)
+            @DefaultValue("1000")
+            @LongPositiveConstraint(value = 0, paramName = QUEUE_CAPACITY)
+            @Parameter(description = QUEUE_CAPACITY_DESCRIPTION) String queueCapacity,
+
+            @QueryParam(OVERFLOW_POLICY)
+            @DefaultValue("DROP_OLDEST")
+            @Parameter(description = OVERFLOW_POLICY_DESCRIPTION) HarEntryOverflowPolicy overflowPolicy,
+
+            @Context SseEventSink sink,
+            @Context Sse sse) {
+        int capacity = (int) Math.max(1, Math.min(Long.parseLong(queueCapacity), Integer.MAX_VALUE));
+
+        EntryStream stream = new EntryStream(sink);
+
+        stream.subscription = proxyManager.get(port).addHarEntryListener(entry -> stream.send(toEvent(sse, entry)),
+                capacity, overflowPolicy);
+
+        // a client that disconnects is only detected when the next event is sent to it, so send comments while no entries
+        // are completed. otherwise the subscription would stay alive for as long as the proxy is idle.
+        OutboundSseEvent heartbeatEvent = sse.newEventBuilder().comment("heartbeat").build();
+        stream.heartbeat = HeartbeatExecutorHolder.heartbeatExecutor.scheduleWithFixedDelay(() -> stream.send(heartbeatEvent),
+                HEARTBEAT_INTERVAL_SECONDS, HEARTBEAT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private OutboundSseEvent toEvent(Sse sse, HarEntry entry) {
+        String data;
+        try {
+            data = objectMapper.writeValueAsString(entry);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Unable to serialize HAR entry", e);
+        }
+
+        OutboundSseEvent.Builder event = sse.newEventBuilder()
+                .name(ENTRY_EVENT_NAME)
+                .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                .data(String.class, data);
+
+        if (entry.getSequence() != null) {
+            event.id(String.valueOf(entry.getSequence()));
+        }
+
+        return event.build();
+    }
+
+    /**
+     * A client's stream of entries. The stream is closed, and the subscription and heartbeat cancelled, as soon as an
+     * event cannot be sent to the client.
+     */
+    private static class EntryStream {
+        private final SseEventSink sink;
+
+        private volatile HarEntrySubscription subscription;
+        private volatile ScheduledFuture<?> heartbeat;
+
+        private EntryStream(SseEventSink sink) {
+            this.sink = sink;
+        }
+
+        private void send(OutboundSseEvent event) {
+            if (sink.isClosed()) {
+                close();
+                return;
+            }
+
+            sink.send(event).whenComplete((result, e) -> {
+                if (e != null) {
+                    log.debug("Unable to send event to stream client; closing stream", e);
+                    close();
+                }
+            });
+        }
+
+        private void close() {
+            HarEntrySubscription subscription = this.subscription;
+            if (subscription != null) {
+                subscription.cancel();
+            }
+
+            ScheduledFuture<?> heartbeat = this.heartbeat;
+            if (heartbeat != null) {
+                heartbeat.cancel(false);
+            }
+
+            sink.close();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.proxy.mitmproxy
+
+import com.browserup.bup.proxy.CaptureType
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import groovyx.net.http.HttpResponseDecorator
+import groovyx.net.http.Method
+import org.apache.http.HttpStatus
+import org.apache.http.entity.ContentType
+import org.awaitility.Awaitility
+import org.junit.Test
+
+import java.util.concurrent.TimeUnit
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertFalse
+import static org.junit.Assert.assertTrue
+
+class EntriesSinceRestTest extends BaseRestTest {
+    private static final String RESPONSE_BODY = 'success'
+
+    @Override
+    String getUrlPath() {
+        return 'har/entriesSince'
+    }
+
+    @Test
+    void pagesThroughEntriesInCompletionOrder() {
+        startHar()
+
+        sendRequestsToTargetServer('first', 'second', 'third')
+
+        JsonNode firstPage = getEntriesSince([sequence: '0', maxEntries: '2'])
+        assertEquals('Expected the first page to be full', 2, firstPage.path('entries').size())
+        assertTrue('Expected more entries after the first page', firstPage.path('hasMore').asBoolean())
+        assertEquals('Expected the next sequence to be the sequence of the last entry on the page',
+                firstPage.path('entries').get(1).path('_sequence').asLong(), firstPage.path('nextSequence').asLong())
+        assertTrue(firstPage.path('entries').get(0).path('request').path('url').asText().endsWith('/first'))
+        assertTrue(firstPage.path('entries').get(1).path('request').path('url').asText().endsWith('/second'))
+
+        JsonNode secondPage = getEntriesSince([sequence: firstPage.path('nextSequence').asText(), maxEntries: '2'])
+        assertEquals('Expected only the remaining entry on the second page', 1, secondPage.path('entries').size())
+        assertFalse('Expected no more entries after the second page', secondPage.path('hasMore').asBoolean())
+        assertTrue(secondPage.path('entries').get(0).path('request').path('url').asText().endsWith('/third'))
+        assertEquals(secondPage.path('entries').get(0).path('_sequence').asLong(), secondPage.path('nextSequence').asLong())
+        assertEquals(secondPage.path('nextSequence').asLong(), secondPage.path('lastSequence').asLong())
+
+        JsonNode emptyPage = getEntriesSince([sequence: secondPage.path('nextSequence').asText()])
+        assertEquals('Expected no entries after the last entry', 0, emptyPage.path('entries').size())
+        assertFalse(emptyPage.path('hasMore').asBoolean())
+        assertEquals('Expected the next sequence to be unchanged when there are no new entries',
+                secondPage.path('nextSequence').asLong(), emptyPage.path('nextSequence').asLong())
+    }
+
+    @Test
+    void returnsOnlyEntriesCompletedAfterSequence() {
+        startHar()
+
+        sendRequestsToTargetServer('first')
+
+        long lastSequence = getEntriesSince([:]).path('lastSequence').asLong()
+
+        sendRequestsToTargetServer('second')
+
+        JsonNode page = getEntriesSince([sequence: String.valueOf(lastSequence)])
+        assertEquals(1, page.path('entries').size())
+        assertTrue(page.path('entries').get(0).path('request').path('url').asText().endsWith('/second'))
+    }
+
+    @Test
+    void clampsMaxEntriesToPageSizeLimits() {
+        startHar()
+
+        sendRequestsToTargetServer('first', 'second', 'third')
+
+        JsonNode zeroPage = getEntriesSince([maxEntries: '0'])
+        assertEquals('Expected maxEntries=0 to return a single entry', 1, zeroPage.path('entries').size())
+        assertTrue(zeroPage.path('hasMore').asBoolean())
+
+        JsonNode oversizedPage = getEntriesSince([maxEntries: '1000000'])
+        assertEquals('Expected maxEntries above the limit to return every entry', 3, oversizedPage.path('entries').size())
+        assertFalse(oversizedPage.path('hasMore').asBoolean())
+    }
+
+    @Test
+    void projectsRequestedFieldsAndAlwaysReturnsSequence() {
+        startHar()
+
+        sendRequestsToTargetServer('first')
+
+        JsonNode entry = getEntriesSince([fields: 'time, timings']).path('entries').get(0)
+
+        List<String> fieldNames = entry.fieldNames().collect()
+        assertEquals(['_sequence', 'time', 'timings'] as Set, fieldNames as Set)
+        assertTrue(entry.path('_sequence').isNumber())
+    }
+
+    @Test
+    void excludesContentText() {
+        startHar()
+
+        sendRequestsToTargetServer('first')
+
+        JsonNode withContent = getEntriesSince([:]).path('entries').get(0)
+        assertEquals(RESPONSE_BODY, withContent.path('response').path('content').path('text').asText())
+
+        JsonNode withoutContent = getEntriesSince([excludeContent: 'true']).path('entries').get(0)
+        assertFalse('Expected the response content text to be omitted',
+                withoutContent.path('response').path('content').has('text'))
+        assertTrue('Expected the rest of the response content to be returned',
+                withoutContent.path('response').path('content').has('size'))
+    }
+
+    @Test
+    void getBadRequestIfSequenceIsNotValid() {
+        proxyRestServerClient.request(Method.GET, ContentType.APPLICATION_JSON) { req ->
+            uri.path = fullUrlPath
+            uri.query = [sequence: 'invalid']
+            response.success = { HttpResponseDecorator resp ->
+                throw new AssertionError('Expected to get bad request, got: ' + resp.status)
+            }
+            response.failure = { HttpResponseDecorator resp ->
+                assertEquals('Expected to get bad request', HttpStatus.SC_BAD_REQUEST, resp.status)
+            }
+        }
+    }
+
+    private void startHar() {
+        proxy.enableHarCaptureTypes(CaptureType.RESPONSE_CONTENT)
+
+        proxyManager.get()[0].newHar()
+    }
+
+    private void sendRequestsToTargetServer(String... urls) {
+        long lastSequence = getEntriesSince([:]).path('lastSequence').asLong()
+
+        urls.each { url ->
+            mockTargetServerResponse(url, RESPONSE_BODY)
+            requestToTargetServer(url, RESPONSE_BODY)
+            sleep MILLISECONDS_BETWEEN_REQUESTS
+        }
+
+        // entries are completed by the proxy shortly after the response is sent to the client
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until({ ->
+            getEntriesSince([:]).path('lastSequence').asLong() >= lastSequence + urls.length
+        })
+    }
+
+    private JsonNode getEntriesSince(Map<String, String> query) {
+        JsonNode page = null
+        proxyRestServerClient.request(Method.GET, ContentType.APPLICATION_JSON) { req ->
+            uri.path = fullUrlPath
+            uri.query = query
+            response.success = { HttpResponseDecorator resp ->
+                page = new ObjectMapper().readTree(resp.entity.content)
+            }
+        }
+        return page
+    }
+}
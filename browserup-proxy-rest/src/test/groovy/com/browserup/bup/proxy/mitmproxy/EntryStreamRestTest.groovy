@@ -0,0 +1,153 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.proxy.mitmproxy
+
+import com.browserup.bup.har.HarEntryOverflowPolicy
+import com.browserup.bup.har.HarEntrySubscription
+import com.browserup.bup.rest.resource.entries.EntryStreamProxyResource
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.awaitility.Awaitility
+import org.junit.Test
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.TimeUnit
+
+import static org.hamcrest.Matchers.containsString
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertThat
+import static org.junit.Assert.assertTrue
+import static org.junit.Assert.fail
+
+class EntryStreamRestTest extends BaseRestTest {
+
+    @Override
+    String getUrlPath() {
+        return 'har/entryStream'
+    }
+
+    @Test
+    void streamsCompletedEntryAsEventWithSequenceId() {
+        def url = 'stream'
+        def responseBody = 'success'
+        mockTargetServerResponse(url, responseBody)
+
+        proxyManager.get()[0].newHar()
+
+        HttpURLConnection connection = openStream([:])
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.inputStream, StandardCharsets.UTF_8))
+
+            requestToTargetServer(url, responseBody)
+
+            Map<String, String> event = readEvent(reader)
+            assertEquals(EntryStreamProxyResource.ENTRY_EVENT_NAME, event.event)
+
+            JsonNode entry = new ObjectMapper().readTree(event.data)
+            assertThat('Expected the event to contain the entry of the request through the proxy',
+                    entry.path('request').path('url').asText(), containsString(url))
+            assertTrue('Expected the entry to have a sequence number', entry.path('_sequence').isNumber())
+            assertEquals('Expected the event id to be the entry sequence number', entry.path('_sequence').asText(), event.id)
+        } finally {
+            connection.disconnect()
+        }
+    }
+
+    @Test
+    void subscribesWithRequestedQueueCapacityAndOverflowPolicy() {
+        HttpURLConnection connection = openStream([queueCapacity: '1', overflowPolicy: 'DROP_NEWEST'])
+        try {
+            assertEquals(200, connection.responseCode)
+
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until({ -> proxy.harEntrySubscriptions.size() == 1 })
+
+            HarEntrySubscription subscription = proxy.harEntrySubscriptions[0]
+            assertEquals(1, subscription.queueCapacity)
+            assertEquals(HarEntryOverflowPolicy.DROP_NEWEST, subscription.overflowPolicy)
+        } finally {
+            connection.disconnect()
+        }
+    }
+
+    @Test
+    void subscribesWithDefaultQueueCapacityAndOverflowPolicy() {
+        HttpURLConnection connection = openStream([:])
+        try {
+            assertEquals(200, connection.responseCode)
+
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until({ -> proxy.harEntrySubscriptions.size() == 1 })
+
+            HarEntrySubscription subscription = proxy.harEntrySubscriptions[0]
+            assertEquals(1000, subscription.queueCapacity)
+            assertEquals(HarEntryOverflowPolicy.DROP_OLDEST, subscription.overflowPolicy)
+        } finally {
+            connection.disconnect()
+        }
+    }
+
+    @Test
+    void cancelsSubscriptionWhenClientDisconnects() {
+        def url = 'disconnected'
+        def responseBody = 'success'
+        mockTargetServerResponse(url, responseBody)
+
+        proxyManager.get()[0].newHar()
+
+        HttpURLConnection connection = openStream([:])
+        assertEquals(200, connection.responseCode)
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until({ -> proxy.harEntrySubscriptions.size() == 1 })
+        HarEntrySubscription subscription = proxy.harEntrySubscriptions[0]
+
+        connection.inputStream.close()
+        connection.disconnect()
+
+        // the disconnect is only detected when an event is sent to the client, so keep completing entries until it is
+        Awaitility.await().atMost(10, TimeUnit.SECONDS).pollInterval(500, TimeUnit.MILLISECONDS).until({ ->
+            requestToTargetServer(url, responseBody)
+            return proxy.harEntrySubscriptions.isEmpty()
+        })
+
+        assertTrue('Expected the subscription to be cancelled', subscription.cancelled)
+    }
+
+    private HttpURLConnection openStream(Map<String, String> query) {
+        String queryString = query.collect { key, value -> "${key}=${value}" }.join('&')
+        URL url = new URL("http://localhost:${restServer.connectors[0].localPort}${fullUrlPath}${queryString ? '?' + queryString : ''}")
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection()
+        connection.setRequestProperty('Accept', 'text/event-stream')
+        connection.readTimeout = 10000
+        return connection
+    }
+
+    /**
+     * Reads the next event from the stream, skipping comments such as heartbeats.
+     */
+    private static Map<String, String> readEvent(BufferedReader reader) {
+        Map<String, String> event = [:]
+        String line
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                if (!event.isEmpty()) {
+                    return event
+                }
+                continue
+            }
+
+            if (line.startsWith(':')) {
+                continue
+            }
+
+            int separator = line.indexOf(':')
+            String field = separator < 0 ? line : line.substring(0, separator)
+            String value = separator < 0 ? '' : line.substring(separator + 1).replaceFirst('^ ', '')
+            event[field] = event.containsKey(field) ? event[field] + '\n' + value : value
+        }
+
+        fail('Expected an event before the stream ended')
+        return event
+    }
+}
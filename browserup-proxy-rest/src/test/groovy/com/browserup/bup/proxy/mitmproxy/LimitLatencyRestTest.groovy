@@ -0,0 +1,143 @@
+/*
+ * Modifications Copyright (c) 2019 BrowserUp, Inc.
+ */
+
+package com.browserup.bup.proxy.mitmproxy
+
+import com.browserup.bup.proxy.LatencyRule
+import groovyx.net.http.HttpResponseDecorator
+import groovyx.net.http.Method
+import org.apache.http.HttpStatus
+import org.apache.http.entity.ContentType
+import org.junit.Test
+
+import java.util.concurrent.TimeUnit
+
+import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertFalse
+import static org.junit.Assert.assertTrue
+
+class LimitLatencyRestTest extends BaseRestTest {
+
+    @Override
+    String getUrlPath() {
+        return 'limit'
+    }
+
+    @Test
+    void addLatencyRuleForUrlPattern() {
+        int status = sendToProxyServer(Method.PUT, fullUrlPath, [
+                latency                  : '1000',
+                latencyJitter            : '50',
+                latencyJitterDistribution: 'normal',
+                latencyUrlPattern        : '.*/slow.*'])
+
+        assertEquals(HttpStatus.SC_OK, status)
+        assertEquals('Expected one latency rule', 1, proxy.latencyRules.size())
+
+        LatencyRule latencyRule = proxy.latencyRules[0]
+        assertEquals('.*/slow.*', latencyRule.urlPattern.pattern())
+        assertEquals(1000, latencyRule.latencyMs)
+        assertEquals(50, latencyRule.jitterMs)
+        assertEquals(LatencyRule.JitterDistribution.NORMAL, latencyRule.jitterDistribution)
+    }
+
+    @Test
+    void addLatencyRuleForHost() {
+        int status = sendToProxyServer(Method.PUT, fullUrlPath, [latency: '500', latencyHost: 'slow.example.com'])
+
+        assertEquals(HttpStatus.SC_OK, status)
+        assertEquals('Expected one latency rule', 1, proxy.latencyRules.size())
+
+        LatencyRule latencyRule = proxy.latencyRules[0]
+        assertTrue(latencyRule.matches('https://slow.example.com:8443/index.html'))
+        assertFalse(latencyRule.matches('https://fast.example.com/index.html'))
+        assertEquals(500, latencyRule.latencyMs)
+        assertEquals(0, latencyRule.jitterMs)
+        assertEquals(LatencyRule.JitterDistribution.UNIFORM, latencyRule.jitterDistribution)
+    }
+
+    @Test
+    void latencyRuleDelaysMatchingResponses() {
+        def slowUrl = 'slow'
+        def responseBody = 'success'
+        mockTargetServerResponse(slowUrl, responseBody)
+
+        sendToProxyServer(Method.PUT, fullUrlPath, [latency: '1000', latencyUrlPattern: ".*/${slowUrl}"])
+
+        long start = System.nanoTime()
+        requestToTargetServer(slowUrl, responseBody)
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+
+        assertTrue("Expected the response to be delayed by at least 1000ms, but was ${elapsedMs}ms", elapsedMs >= 1000)
+    }
+
+    @Test
+    void getBadRequestIfLatencyProfileHasNoLatency() {
+        int status = sendToProxyServer(Method.PUT, fullUrlPath, [latencyUrlPattern: '.*/slow.*'])
+
+        assertEquals(HttpStatus.SC_BAD_REQUEST, status)
+        assertTrue('Expected no latency rule to be added', proxy.latencyRules.isEmpty())
+    }
+
+    @Test
+    void getBadRequestIfLatencyIsNotValid() {
+        int status = sendToProxyServer(Method.PUT, fullUrlPath, [latency: 'invalid', latencyHost: 'slow.example.com'])
+
+        assertEquals(HttpStatus.SC_BAD_REQUEST, status)
+        assertTrue('Expected no latency rule to be added', proxy.latencyRules.isEmpty())
+    }
+
+    @Test
+    void getBadRequestIfJitterDistributionIsNotValid() {
+        int status = sendToProxyServer(Method.PUT, fullUrlPath, [
+                latency                  : '100',
+                latencyJitter            : '10',
+                latencyJitterDistribution: 'invalid',
+                latencyUrlPattern        : '.*/slow.*'])
+
+        assertEquals(HttpStatus.SC_BAD_REQUEST, status)
+        assertTrue('Expected no latency rule to be added', proxy.latencyRules.isEmpty())
+    }
+
+    @Test
+    void deleteLatencyRemovesLatencyRules() {
+        sendToProxyServer(Method.PUT, fullUrlPath, [latency: '100', latencyHost: 'slow.example.com'])
+        sendToProxyServer(Method.PUT, fullUrlPath, [latency: '200', latencyUrlPattern: '.*/slow.*'])
+        assertEquals(2, proxy.latencyRules.size())
+
+        int status = sendToProxyServer(Method.DELETE, "${fullUrlPath}/latency", [:])
+
+        assertEquals(HttpStatus.SC_OK, status)
+        assertTrue('Expected the latency rules to be removed', proxy.latencyRules.isEmpty())
+    }
+
+    @Test
+    void getNotFoundWhenDeletingLatencyOfMissingProxy() {
+        int missingPort = proxy.port + 1
+        while (proxyManager.get(missingPort) != null) {
+            missingPort++
+        }
+
+        int status = sendToProxyServer(Method.DELETE, "/proxy/${missingPort}/limit/latency", [:])
+
+        assertEquals(HttpStatus.SC_NOT_FOUND, status)
+    }
+
+    private int sendToProxyServer(Method method, String path, Map<String, String> query) {
+        int status = 0
+        proxyRestServerClient.request(method, ContentType.WILDCARD) { req ->
+            uri.path = path
+            if (query) {
+                uri.query = query
+            }
+            response.success = { HttpResponseDecorator resp ->
+                status = resp.status
+            }
+            response.failure = { HttpResponseDecorator resp ->
+                status = resp.status
+            }
+        }
+        return status
+    }
+}